@@ -3,8 +3,12 @@ plugins {
     application
 }
 
+//The CPU tracer's packet traversal uses the Vector API, still an incubator module
+val vectorModule = listOf("--add-modules", "jdk.incubator.vector")
+
 application {
     mainClassName = "Main"
+    applicationDefaultJvmArgs = vectorModule
 }
 
 group = "org.example"
@@ -12,6 +16,8 @@ version = "1.0-SNAPSHOT"
 val lwjglVersion = "3.2.3"
 val jomlVersion = "1.10.1"
 val lwjglNatives = "natives-windows"
+val jmhVersion = "1.37"
+val junitVersion = "5.7.0"
 
 
 
@@ -19,6 +25,25 @@ repositories {
     mavenCentral()
 }
 
+//Benchmarks live in src/jmh/java and see everything in main
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(vectorModule)
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations["implementation"])
+}
+val jmhRuntimeOnly by configurations.getting {
+    extendsFrom(configurations["runtimeOnly"])
+}
+
 dependencies {
     implementation(platform("org.lwjgl:lwjgl-bom:$lwjglVersion"))
 
@@ -35,4 +60,34 @@ dependencies {
     runtimeOnly("org.lwjgl", "lwjgl-opengl", classifier = lwjglNatives)
     runtimeOnly("org.lwjgl", "lwjgl-stb", classifier = lwjglNatives)
     implementation("org.joml", "joml", jomlVersion)
-}
\ No newline at end of file
+
+    testImplementation(platform("org.junit:junit-bom:$junitVersion"))
+    testImplementation("org.junit.jupiter", "junit-jupiter")
+
+    jmhImplementation("org.openjdk.jmh", "jmh-core", jmhVersion)
+    "jmhAnnotationProcessor"("org.openjdk.jmh", "jmh-generator-annprocess", jmhVersion)
+}
+
+//Tests run headless on the CPU paths, nothing in src/test/java needs a GL context
+tasks.test {
+    useJUnitPlatform()
+    jvmArgs = vectorModule
+}
+
+//Runs the benchmarks and writes the results to build/reports/jmh/results.json for comparing runs.
+//JMH options can be passed through, e.g. gradle jmh -PjmhArgs="IntersectSphere -p spheres=1000"
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks"
+    dependsOn("jmhClasses")
+    classpath = sourceSets["jmh"].runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    jvmArgs = vectorModule
+
+    val results = file("$buildDir/reports/jmh/results.json")
+    val extraArgs = (project.findProperty("jmhArgs") as String? ?: "").split(" ").filter { it.isNotBlank() }
+    args = listOf("-rf", "json", "-rff", results.absolutePath) + extraArgs
+    doFirst {
+        results.parentFile.mkdirs()
+    }
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhTraverser;
+import accel.LbvhBuilder;
+import accel.PrimitiveIntersector;
+import cpu.CpuRaytracer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ray sphere intersection through {@link CpuRaytracer#intersectSphere}: a single test, and the closest
+ * hit of a ray among all spheres of a scene by testing every sphere and by traversing a BVH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectSphereBenchmark {
+    private static final int RAYS = 1024;
+
+    @State(Scope.Thread)
+    public static class Ray {
+        float[] directions = Scenes.randomDirections(RAYS, 1);
+        float cx = 0.3f, cy = -0.2f, cz = 5.0f, radius = 1.0f;
+        int next;
+
+        int nextRay() {
+            next = (next + 1) & (RAYS - 1);
+            return next * 3;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SceneState {
+        @Param({"3", "1000", "100000", "1000000"})
+        int spheres;
+
+        FloatBuffer positions;
+        BvhTraverser traverser;
+        PrimitiveIntersector intersector;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            positions = Scenes.random(spheres, 1, 2).sphereStore.positionRadius();
+            Bvh bvh = new Bvh();
+            new LbvhBuilder().build(BoundedPrimitives.spheres(positions, 4, spheres), bvh);
+            traverser = new BvhTraverser(bvh, 1e-4f);
+            intersector = (sphere, ox, oy, oz, dx, dy, dz) -> {
+                int s = sphere * 4;
+                return CpuRaytracer.intersectSphere(ox, oy, oz, dx, dy, dz,
+                        positions.get(s), positions.get(s + 1), positions.get(s + 2), positions.get(s + 3));
+            };
+        }
+    }
+
+    @Benchmark
+    public float singleIntersection(Ray ray) {
+        int d = ray.nextRay();
+        return CpuRaytracer.intersectSphere(0, 0, 0, ray.directions[d], ray.directions[d + 1], ray.directions[d + 2],
+                ray.cx, ray.cy, ray.cz, ray.radius);
+    }
+
+    //What compute.glsl did before the BVH: every ray tests every sphere
+    @Benchmark
+    public int closestHitBruteForce(Ray ray, SceneState scene) {
+        int d = ray.nextRay();
+        float dx = ray.directions[d], dy = ray.directions[d + 1], dz = ray.directions[d + 2];
+        FloatBuffer positions = scene.positions;
+        float smallest = Float.MAX_VALUE;
+        int closest = -1;
+        for (int i = 0; i < scene.spheres; i++) {
+            int s = i * 4;
+            float lambda = CpuRaytracer.intersectSphere(0, 0, 0, dx, dy, dz,
+                    positions.get(s), positions.get(s + 1), positions.get(s + 2), positions.get(s + 3));
+            if (lambda > 1e-4f && lambda < smallest) {
+                smallest = lambda;
+                closest = i;
+            }
+        }
+        return closest;
+    }
+
+    @Benchmark
+    public int closestHitBvh(Ray ray, SceneState scene) {
+        int d = ray.nextRay();
+        scene.traverser.closestHit(0, 0, 0, ray.directions[d], ray.directions[d + 1], ray.directions[d + 2], scene.intersector);
+        return scene.traverser.getPrimitive();
+    }
+}
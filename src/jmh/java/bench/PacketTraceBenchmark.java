@@ -0,0 +1,150 @@
+package bench;
+
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhTraverser;
+import accel.LbvhBuilder;
+import accel.PrimitiveIntersector;
+import cpu.CpuRaytracer;
+import cpu.PacketTraverser;
+import cpu.RayPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closest sphere hits of a batch of rays one at a time and in {@link PacketTraverser} packets,
+ * through a BVH and by testing every sphere. Scores are rays per second on one thread, so per core.
+ * Coherent rays fan out over a 60 degree view like primary rays, packets take 16 or 8 neighbours
+ * of a row; random rays make every packet diverge and fall back to scalar traversal.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+@OperationsPerInvocation(PacketTraceBenchmark.RAYS)
+public class PacketTraceBenchmark {
+    static final int SIDE = 64;
+    static final int RAYS = SIDE * SIDE;
+
+    @Param({"1000", "100000"})
+    int spheres;
+
+    @Param({"coherent", "random"})
+    String rays;
+
+    FloatBuffer positions;
+    float[] directions;
+    BvhTraverser traverser;
+    PrimitiveIntersector intersector;
+    PacketTraverser packetTraverser;
+    RayPacket packet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        positions = Scenes.random(spheres, 1, 2).sphereStore.positionRadius();
+        Bvh bvh = new Bvh();
+        new LbvhBuilder().build(BoundedPrimitives.spheres(positions, 4, spheres), bvh);
+        traverser = new BvhTraverser(bvh, 1e-4f);
+        intersector = (sphere, ox, oy, oz, dx, dy, dz) -> {
+            int s = sphere * 4;
+            return CpuRaytracer.intersectSphere(ox, oy, oz, dx, dy, dz,
+                    positions.get(s), positions.get(s + 1), positions.get(s + 2), positions.get(s + 3));
+        };
+        packetTraverser = new PacketTraverser(bvh, 1e-4f);
+        packet = new RayPacket(PacketTraverser.WIDTH);
+        directions = rays.equals("coherent") ? viewDirections() : Scenes.randomDirections(RAYS, 1);
+    }
+
+    //Directions through a SIDE x SIDE image plane a unit in front of the origin, row by row
+    private static float[] viewDirections() {
+        float[] directions = new float[RAYS * 3];
+        float halfWidth = (float) Math.tan(Math.toRadians(30));
+        for (int y = 0; y < SIDE; y++) {
+            for (int x = 0; x < SIDE; x++) {
+                float dx = ((x + 0.5f) / SIDE * 2 - 1) * halfWidth, dy = ((y + 0.5f) / SIDE * 2 - 1) * halfWidth;
+                float length = (float) Math.sqrt(dx * dx + dy * dy + 1);
+                int d = (y * SIDE + x) * 3;
+                directions[d] = dx / length;
+                directions[d + 1] = dy / length;
+                directions[d + 2] = 1 / length;
+            }
+        }
+        return directions;
+    }
+
+    @Benchmark
+    public int scalarBvh() {
+        int hits = 0;
+        for (int d = 0; d < RAYS * 3; d += 3) {
+            if (traverser.closestHit(0, 0, 0, directions[d], directions[d + 1], directions[d + 2], intersector)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int packetBvh() {
+        int hits = 0;
+        for (int first = 0; first < RAYS; first += PacketTraverser.WIDTH) {
+            fillPacket(first);
+            packetTraverser.closestHits(packet, positions);
+            hits += countHits();
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int scalarBruteForce() {
+        int hits = 0;
+        for (int d = 0; d < RAYS * 3; d += 3) {
+            float smallest = Float.MAX_VALUE;
+            int closest = -1;
+            for (int i = 0; i < spheres; i++) {
+                float lambda = intersector.intersect(i, 0, 0, 0, directions[d], directions[d + 1], directions[d + 2]);
+                if (lambda > 1e-4f && lambda < smallest) {
+                    smallest = lambda;
+                    closest = i;
+                }
+            }
+            if (closest >= 0) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    public int packetBruteForce() {
+        int hits = 0;
+        for (int first = 0; first < RAYS; first += PacketTraverser.WIDTH) {
+            fillPacket(first);
+            packetTraverser.closestHitsBruteForce(packet, positions, spheres);
+            hits += countHits();
+        }
+        return hits;
+    }
+
+    private void fillPacket(int first) {
+        int size = Math.min(PacketTraverser.WIDTH, RAYS - first);
+        for (int lane = 0; lane < size; lane++) {
+            int d = (first + lane) * 3;
+            packet.set(lane, 0, 0, 0, directions[d], directions[d + 1], directions[d + 2]);
+        }
+        packet.setSize(size);
+    }
+
+    private int countHits() {
+        int hits = 0;
+        for (int lane = 0; lane < packet.size(); lane++) {
+            if (packet.primitive[lane] >= 0) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import scene.BinaryScene;
+import scene.BinarySceneWriter;
+import scene.CameraPath;
+import scene.Scene;
+import scene.TextSceneReader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the same scene from the text format and from the binary one, by sphere count. The file
+ * sizes are printed during setup so times can be related to bytes read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SceneLoadBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int spheres;
+
+    Path textFile;
+    Path binaryFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        textFile = Files.createTempFile("scene", ".txt");
+        binaryFile = Files.createTempFile("scene", ".scene");
+
+        Random random = new Random(3);
+        float spread = 10.0f * (float) Math.cbrt(Math.max(1, spheres / 3.0));
+        try (BufferedWriter writer = Files.newBufferedWriter(textFile, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < spheres; i++) {
+                writer.write(String.format(Locale.ROOT, "sphere %f %f %f %f %f %f %f 50%n",
+                        (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                        (random.nextFloat() + 0.4f) * 0.5f, random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            }
+            writer.write("light 0 200 0 1 1 1 2000\n");
+            writer.write("camera 0 5 0 0 0 0.5 0\n");
+        }
+        BinarySceneWriter.convert(textFile, binaryFile);
+        System.out.printf("%ntext %.1f MB, binary %.1f MB%n", Files.size(textFile) / 1e6, Files.size(binaryFile) / 1e6);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(textFile);
+        Files.deleteIfExists(binaryFile);
+    }
+
+    @Benchmark
+    public Scene loadText() throws IOException {
+        Scene scene = new Scene();
+        TextSceneReader.read(textFile, scene, new CameraPath());
+        return scene;
+    }
+
+    //Maps, checks every checksum and copies the columns into the stores
+    @Benchmark
+    public Scene loadBinary() throws IOException {
+        Scene scene = new Scene();
+        BinaryScene.open(binaryFile).readInto(scene, new CameraPath());
+        return scene;
+    }
+
+    @Benchmark
+    public Scene loadBinaryUnverified() throws IOException {
+        Scene scene = new Scene();
+        BinaryScene.open(binaryFile, false).readInto(scene, new CameraPath());
+        return scene;
+    }
+
+    //What an uploader that reads the mapped columns directly pays before touching them
+    @Benchmark
+    public int mapBinary() throws IOException {
+        BinaryScene scene = BinaryScene.open(binaryFile, false);
+        return scene.sphereColumn(0).remaining();
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+import scene.Material;
+import scene.Scene;
+import scene.Sphere;
+import scene.SphereStore;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changing a scene between frames: moving every sphere or light through the stores and through
+ * the {@link Sphere} adapters, and adding and removing a sphere.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneMutationBenchmark {
+    @State(Scope.Thread)
+    public static class Spheres {
+        @Param({"3", "1000", "100000", "1000000"})
+        int spheres;
+
+        Scene scene;
+        int[] handles;
+        float offset;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            scene = Scenes.random(spheres, 1, 4);
+            handles = new int[spheres];
+            for (int i = 0; i < spheres; i++) {
+                handles[i] = scene.sphereStore.handleAt(i);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Adapters {
+        @Param({"3", "1000", "100000", "1000000"})
+        int spheres;
+
+        Scene scene;
+        Sphere[] adapters;
+        float offset;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            scene = new Scene();
+            adapters = new Sphere[spheres];
+            for (int i = 0; i < spheres; i++) {
+                adapters[i] = new Sphere(Material.DEFAULT_MATERIAL, new Vector3f(i, 0, 0), 0.5f);
+                scene.spheresInScene.add(adapters[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lights {
+        @Param({"1", "10", "100"})
+        int lights;
+
+        Scene scene;
+        int[] handles;
+        float offset;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            scene = Scenes.random(3, lights, 5);
+            handles = new int[lights];
+            for (int i = 0; i < lights; i++) {
+                handles[i] = scene.lightStore.handleAt(i);
+            }
+        }
+    }
+
+    @Benchmark
+    public long moveSpheresThroughStore(Spheres state) {
+        SphereStore store = state.scene.sphereStore;
+        float offset = state.offset += 0.01f;
+        for (int handle : state.handles) {
+            store.setPosition(handle, store.getX(handle), offset, store.getZ(handle));
+        }
+        return store.getVersion();
+    }
+
+    @Benchmark
+    public long moveSpheresThroughAdapters(Adapters state) {
+        float offset = state.offset += 0.01f;
+        for (Sphere sphere : state.adapters) {
+            sphere.setPosition(new Vector3f(sphere.getRadius(), offset, 0));
+        }
+        return state.scene.getVersion();
+    }
+
+    //The default animation, every adapter sphere bobs up and down
+    @Benchmark
+    public long animateAdapters(Adapters state) {
+        state.scene.step();
+        return state.scene.getVersion();
+    }
+
+    //Churn at a constant size, removing the first sphere moves the new last one into its slot
+    @Benchmark
+    public int addAndRemoveSphere(Spheres state) {
+        SphereStore store = state.scene.sphereStore;
+        int handle = store.add(0, 0, 0, 1, 1, 1, 1, 50);
+        store.remove(store.handleAt(0));
+        return handle;
+    }
+
+    @Benchmark
+    public long moveLights(Lights state) {
+        float offset = state.offset += 0.01f;
+        for (int handle : state.handles) {
+            state.scene.lightStore.setPosition(handle, offset, offset, offset);
+        }
+        return state.scene.lightStore.getVersion();
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhPacker;
+import accel.DynamicBvh;
+import accel.LbvhBuilder;
+import org.openjdk.jmh.annotations.*;
+import scene.Scene;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU side of ComputeShader's per frame upload: copying the scene store columns, as
+ * glBufferSubData does, and updating and packing the BVH. Needs no GL context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SceneUploadBenchmark {
+    @Param({"3", "1000", "100000", "1000000"})
+    int spheres;
+
+    @Param({"1", "10", "100"})
+    int lights;
+
+    Scene scene;
+    //Stands in for the mapped GL buffers
+    ByteBuffer staging;
+
+    DynamicBvh dynamicBvh;
+    LbvhBuilder lbvhBuilder;
+    Bvh rebuilt;
+    BvhPacker packer;
+    BoundedPrimitives primitives;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scene = Scenes.random(spheres, lights, 3);
+        staging = ByteBuffer.allocateDirect(Math.max(spheres, lights) * 16);
+        primitives = BoundedPrimitives.spheres(scene.sphereStore.positionRadius(), 4, spheres);
+
+        dynamicBvh = new DynamicBvh();
+        dynamicBvh.update(primitives);
+        lbvhBuilder = new LbvhBuilder();
+        rebuilt = new Bvh();
+        packer = new BvhPacker();
+    }
+
+    @Benchmark
+    public int copyStoreColumns() {
+        int bytes = copy(scene.sphereStore.getPositionRadiusBuffer());
+        bytes += copy(scene.sphereStore.getMaterialBuffer());
+        bytes += copy(scene.lightStore.getPositionBrightnessBuffer());
+        bytes += copy(scene.lightStore.getColourBuffer());
+        return bytes;
+    }
+
+    private int copy(ByteBuffer column) {
+        int bytes = column.remaining();
+        staging.clear();
+        staging.put(column);
+        return bytes;
+    }
+
+    //The usual frame, spheres keep their count so the hierarchy is refit
+    @Benchmark
+    public int refitAndPackBvh() {
+        Bvh bvh = dynamicBvh.update(primitives);
+        return packer.packNodes(bvh).remaining() + packer.packPrimitiveIndices(bvh).remaining();
+    }
+
+    @Benchmark
+    public int rebuildAndPackBvh() {
+        lbvhBuilder.build(primitives, rebuilt);
+        return packer.packNodes(rebuilt).remaining() + packer.packPrimitiveIndices(rebuilt).remaining();
+    }
+}
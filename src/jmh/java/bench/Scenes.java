@@ -0,0 +1,46 @@
+package bench;
+
+import scene.Scene;
+
+import java.util.Random;
+
+/**
+ * Deterministic random scenes shared by the benchmarks, spread like the ones Main builds
+ */
+final class Scenes {
+    private Scenes() {
+    }
+
+    static Scene random(int spheres, int lights, long seed) {
+        Random random = new Random(seed);
+        Scene scene = new Scene();
+        //Keep the density roughly constant as the sphere count grows
+        float spread = 10.0f * (float) Math.cbrt(Math.max(1, spheres / 3.0));
+        for (int i = 0; i < spheres; i++) {
+            scene.sphereStore.add(
+                    (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    (random.nextFloat() + 0.4f) * 0.5f,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat(), 50);
+        }
+        for (int i = 0; i < lights; i++) {
+            scene.lightStore.add(
+                    (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat(), (random.nextFloat() + 5) * 3);
+        }
+        return scene;
+    }
+
+    //Unit direction vectors from the origin, three floats each
+    static float[] randomDirections(int count, long seed) {
+        Random random = new Random(seed);
+        float[] directions = new float[count * 3];
+        for (int i = 0; i < count; i++) {
+            float x = (float) random.nextGaussian(), y = (float) random.nextGaussian(), z = (float) random.nextGaussian();
+            float length = (float) Math.sqrt(x * x + y * y + z * z);
+            directions[i * 3] = x / length;
+            directions[i * 3 + 1] = y / length;
+            directions[i * 3 + 2] = z / length;
+        }
+        return directions;
+    }
+}
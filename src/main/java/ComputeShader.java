@@ -1,50 +1,268 @@
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhPacker;
+import accel.BvhTimings;
+import accel.DynamicBvh;
+import accel.LightGrid;
+import accel.SahBvhBuilder;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
+import render.Accumulation;
+import render.FramePhase;
+import render.Reprojection;
+import render.TileScheduler;
+import render.TraceParameters;
+import render.WorkGroupTuner;
 import scene.Camera;
-import scene.Material;
+import scene.ChangeJournal;
+import scene.LightStore;
+import scene.MeshStore;
+import scene.OffHeapStore;
 import scene.Scene;
+import scene.SphereStore;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
+import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_RG32F;
 import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL32.*;
 import static org.lwjgl.opengl.GL42.*;
 import static org.lwjgl.opengl.GL43.*;
 
 public class ComputeShader extends ShaderProgram {
     private final int MAX_BOXES = 10;
-    private final int MAX_SPHERES = 1000;
-    private final int MAX_LIGHTS = 100;
+
+    //Must match the bindings of the buffer blocks in compute.glsl
+    private static final int SPHERE_POSITION_BUFFER_BINDING = 1;
+    private static final int SPHERE_MATERIAL_BUFFER_BINDING = 2;
+    private static final int LIGHT_POSITION_BUFFER_BINDING = 3;
+    private static final int LIGHT_COLOUR_BUFFER_BINDING = 4;
+    private static final int BVH_NODE_BUFFER_BINDING = 5;
+    private static final int BVH_PRIMITIVE_BUFFER_BINDING = 6;
+    private static final int TRIANGLE_BVH_NODE_BUFFER_BINDING = 7;
+    private static final int MESH_VERTEX_BUFFER_BINDING = 8;
+    private static final int MESH_TRIANGLE_BUFFER_BINDING = 9;
+    private static final int MESH_MATERIAL_BUFFER_BINDING = 10;
+    private static final int LIGHT_GRID_BUFFER_BINDING = 11;
+    private static final int ACTIVE_PIXEL_BUFFER_BINDING = 12;
+    private static final int NEXT_ACTIVE_PIXEL_BUFFER_BINDING = 13;
+    private static final int REPROJECTION_STATS_BUFFER_BINDING = 14;
+    private static final int STORAGE_BLOCKS_USED = 14;
+
+    //One vec4 per element in every scene buffer
+    private static final int VEC4_SIZE = 16;
+
+    //Tiles dispatched per frame stop after this long, leaving time for the rest of a 60Hz frame
+    private static final double DEFAULT_TILE_BUDGET_MILLIS = 12.0;
+    private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+    //Tags chunks of the active pixel list in the dispatch timer, tiles never start at a negative x
+    private static final int ACTIVE_PIXELS_CHUNK = -1;
+    //Makes a dispatch's image and list writes visible to the dispatches and uploads after it
+    private static final int DISPATCH_BARRIERS = GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT;
+
+    //Scenes with up to this many lights get a light loop bounded at compile time
+    private static final int LARGEST_LIGHT_LOOP_BOUND = 16;
+
+    //Remembers the tuned work group size of every driver, next to the program cache
+    private static final String WORK_GROUP_TUNING_FILE = "workgroup-sizes.properties";
 
     protected int workGroupSizeX;
     protected int workGroupSizeY;
+    //Work groups covering a whole tile, only edge tiles need working out
+    private int fullTileGroupsX, fullTileGroupsY;
+
+    private boolean autoTuneWorkGroupSize = true;
+    private WorkGroupTuner.Shape tunedWorkGroupSize;
+    private String workGroupTuning;
 
     protected int framebufferImageBinding;
+    protected int accumulationImageBinding;
+    protected int momentsImageBinding;
+    protected int surfaceImageBinding;
+    protected int historyImageBinding;
+    protected int historySurfaceImageBinding;
 
     protected final Camera camera;
 
-    private final int framebufferTextureID;
+    private int framebufferTextureID;
+
+    //Running sum of the samples of every pixel, the sample count is kept in alpha
+    private int accumulationTextureID;
+    private int accumulationWidth, accumulationHeight;
+    protected final Accumulation accumulation = new Accumulation();
+
+    //Luminance mean and M2 of every pixel, which decide the pixels adaptive passes trace
+    private int momentsTextureID;
+
+    //Active pixel lists, a uint count followed by the pixels: a pass traces the first and collects the second, then they swap
+    private ShaderStorageBuffer activePixelBuffer = new ShaderStorageBuffer(ACTIVE_PIXEL_BUFFER_BINDING, 4);
+    private ShaderStorageBuffer nextActivePixelBuffer = new ShaderStorageBuffer(NEXT_ACTIVE_PIXEL_BUFFER_BINDING, 4);
+    private final ByteBuffer activeCount = BufferUtils.createByteBuffer(4);
+    //Entries of the active list the current adaptive pass has traced so far
+    private int activeCursor;
+    private boolean showSampleHeatmap;
+
+    //Distance, hit and reuse count of every pixel's first sample, see Reprojection
+    private int surfaceTextureID;
+    //Accumulation and surface textures of the last complete image, which swap places with the current ones when the view changes
+    private int historyTextureID;
+    private int historySurfaceTextureID;
+    private boolean reprojection = true;
+    //Whether the accumulation holds a complete pass, so it can become the history
+    private boolean imageComplete;
+    private boolean historyValid;
+    //Whether the current first pass reuses the history, set when only the view changed since it was complete
+    private boolean reprojectPass;
+    //View, eye, scene and quality the history was traced with
+    private final Matrix4f historyViewProjection = new Matrix4f();
+    private final Vector3f historyEye = new Vector3f();
+    private Scene historyScene;
+    private long historySceneVersion = -1;
+    private TraceParameters historyParameters;
+    //Number of reprojected pixels the shader counts, cleared before every frame of a reprojecting pass
+    private final ShaderStorageBuffer reprojectionStatsBuffer = new ShaderStorageBuffer(REPROJECTION_STATS_BUFFER_BINDING, 4);
+    private final ByteBuffer reprojectedCount = BufferUtils.createByteBuffer(4);
+    private long reusedPixelsLastFrame;
+
+    //Splits the accumulation pass over as many frames as the time budget requires
+    protected final TileScheduler tileScheduler = new TileScheduler();
+    //GPU times of tiles and active pixel chunks, which come back a few frames after they were dispatched
+    private final DispatchTimer dispatchTimer = new DispatchTimer();
+    //GPU time per pixel of the last timed active pixel chunk, 0 until one was timed
+    private double activePixelNanos;
+    private final DispatchTimer.Listener dispatchTimes = (x, y, pixels, nanos) -> {
+        if (x == ACTIVE_PIXELS_CHUNK) {
+            activePixelNanos = nanos / (double) pixels;
+        } else {
+            tileScheduler.recordCost(x, y, nanos);
+        }
+    };
+    //Tiles are queued back to back, the budget holds what they took when their GPU times last came back
+    private final TileScheduler.TileRenderer tileDispatcher = (x, y, tileWidth, tileHeight) -> {
+        dispatchTimer.beforeDispatch();
+        dispatchTile(x, y, tileWidth, tileHeight);
+        dispatchTimer.afterDispatch(x, y, tileWidth * tileHeight);
+    };
+    //Signalled once the last frame's dispatches are done, the next frame waits for it so the CPU
+    //stays at most a frame ahead of the GPU
+    private long frameFence;
+    //Uniform locations in the program they were looked up in, set per tile, per sample and per frame
+    private int uniformsProgram;
+    private int tileOffsetLocation, tileSizeLocation, activeRangeLocation;
+    private int sampleIndexLocation, sampleJitterLocation, collectActiveLocation, adaptivePassLocation, reprojectHistoryLocation;
+    private int eyeLocation, ray00Location, ray01Location, ray10Location, ray11Location;
+    private int numberOfSpheresLocation, numberOfLightsLocation, numberOfTrianglesLocation;
+    private int errorThresholdLocation, showSampleHeatmapLocation, maxSamplesLocation;
+    private int historyViewProjectionLocation, historyEyeLocation;
+    private int lightGridMinLocation, lightGridInverseCellSizeLocation, lightGridCellsLocation;
+    private final FloatBuffer matrixUniform = BufferUtils.createFloatBuffer(16);
+    //Ray through each corner of the view in turn, reused so setting them every frame does not allocate
+    private final Vector3f frustumCorner = new Vector3f();
+
+    //Disabled unless Window shares its profiler
+    private FrameProfiler profiler = new FrameProfiler(0);
+    private long primaryRaysLastFrame;
+
+    //Time spent tracing the current pass so far, and the whole of the last completed one
+    private long passNanos;
+    private long lastPassNanos;
+    private long passesCompleted;
+
+    //Accumulation textures, shared with Window so resizing back and forth reuses them
+    private TexturePool texturePool = new TexturePool(2);
+    private boolean ownsTexturePool = true;
+
+    //View and scene of the accumulated image, a change to either restarts accumulation
+    private final Matrix4f accumulatedInvMatrix = new Matrix4f();
+    private final Vector3f accumulatedEye = new Vector3f();
+    private Scene accumulatedScene;
+    private long accumulatedSceneVersion = -1;
 
     protected final Matrix4f viewMatrix = new Matrix4f();
     protected final Matrix4f projMatrix = new Matrix4f();
     protected final Matrix4f invMatrix = new Matrix4f();
 
     protected int width,height;
-    private final int computeShaderObjectID;
+
+    private final String computeShaderFilename;
+    //Compiled variants of the shader, each built the first time it is used
+    private final Map<TraceParameters, Integer> variants = new HashMap<>();
+    private TraceParameters parameters = TraceParameters.DEFAULT;
+    private TraceParameters accumulatedParameters;
 
     public Scene currentScene = new Scene();
 
+    //The scene stores are uploaded as they are, without packing
+    private final ShaderStorageBuffer spherePositionBuffer = new ShaderStorageBuffer(SPHERE_POSITION_BUFFER_BINDING, VEC4_SIZE);
+    private final ShaderStorageBuffer sphereMaterialBuffer = new ShaderStorageBuffer(SPHERE_MATERIAL_BUFFER_BINDING, VEC4_SIZE);
+    private final ShaderStorageBuffer lightPositionBuffer = new ShaderStorageBuffer(LIGHT_POSITION_BUFFER_BINDING, VEC4_SIZE);
+    private final ShaderStorageBuffer lightColourBuffer = new ShaderStorageBuffer(LIGHT_COLOUR_BUFFER_BINDING, VEC4_SIZE);
+
+    //Buffers of the store columns, indexed by column
+    private final ShaderStorageBuffer[] sphereColumnBuffers = new ShaderStorageBuffer[2];
+    private final ShaderStorageBuffer[] lightColumnBuffers = new ShaderStorageBuffer[2];
+    private final RangeUploader rangeUploader = new RangeUploader();
+
+    //Stores and versions in the buffers, only what changed since is uploaded
+    private SphereStore uploadedSphereStore;
+    private LightStore uploadedLightStore;
+    private long uploadedSphereVersion = -1;
+    private long uploadedLightVersion = -1;
+    private long bytesUploadedLastFrame;
+
+    private final DynamicBvh dynamicBvh = new DynamicBvh();
+    private final BvhPacker bvhPacker = new BvhPacker();
+    private final ShaderStorageBuffer bvhNodeBuffer = new ShaderStorageBuffer(BVH_NODE_BUFFER_BINDING, BvhPacker.NODE_SIZE);
+    private final ShaderStorageBuffer bvhPrimitiveBuffer = new ShaderStorageBuffer(BVH_PRIMITIVE_BUFFER_BINDING, 4);
+
+    //Meshes are static, so their hierarchy is built once per change with the slower SAH builder
+    private final SahBvhBuilder triangleBvhBuilder = new SahBvhBuilder();
+    private final Bvh triangleBvh = new Bvh();
+    private final ShaderStorageBuffer triangleBvhNodeBuffer = new ShaderStorageBuffer(TRIANGLE_BVH_NODE_BUFFER_BINDING, BvhPacker.NODE_SIZE);
+    private final ShaderStorageBuffer meshVertexBuffer = new ShaderStorageBuffer(MESH_VERTEX_BUFFER_BINDING, MeshStore.VERTEX_SIZE);
+    private final ShaderStorageBuffer meshTriangleBuffer = new ShaderStorageBuffer(MESH_TRIANGLE_BUFFER_BINDING, MeshStore.TRIANGLE_SIZE);
+    private final ShaderStorageBuffer meshMaterialBuffer = new ShaderStorageBuffer(MESH_MATERIAL_BUFFER_BINDING, MeshStore.MATERIAL_SIZE);
+    private MeshStore uploadedMeshStore;
+    private long uploadedMeshVersion = -1;
+    private long meshBytes, meshUploadNanos;
+
+    //Lights that can reach each part of the scene, rebuilt whenever anything in the scene changed
+    private final LightGrid lightGrid = new LightGrid();
+    private final ShaderStorageBuffer lightGridBuffer = new ShaderStorageBuffer(LIGHT_GRID_BUFFER_BINDING, 4);
+    private Scene lightGridScene;
+    private long lightGridSceneVersion = -1;
+    private float lightGridThreshold = -1;
+
     public ComputeShader(String computeShaderFilename, int framebufferTextureID) throws IOException {
-        computeShaderObjectID = super.createShader(computeShaderFilename, GL_COMPUTE_SHADER);
-        super.attachAndLink(computeShaderObjectID);
+        int storageBlocks = glGetInteger(GL_MAX_COMPUTE_SHADER_STORAGE_BLOCKS);
+        if (storageBlocks < STORAGE_BLOCKS_USED) {
+            throw new IllegalStateException("The shader needs " + STORAGE_BLOCKS_USED + " storage blocks, the driver allows " + storageBlocks);
+        }
+        this.computeShaderFilename = computeShaderFilename;
+        sphereColumnBuffers[SphereStore.POSITION_RADIUS] = spherePositionBuffer;
+        sphereColumnBuffers[SphereStore.MATERIAL] = sphereMaterialBuffer;
+        lightColumnBuffers[LightStore.POSITION_BRIGHTNESS] = lightPositionBuffer;
+        lightColumnBuffers[LightStore.COLOUR] = lightColourBuffer;
+        this.programID = variant(parameters);
 
         //Create framebuffer texture
         this.framebufferTextureID = framebufferTextureID;
 
         camera = new Camera();
 
+        tileScheduler.setBudgetMillis(DEFAULT_TILE_BUDGET_MILLIS);
+        tileScheduler.setPredicted(true);
+
 
         //Use this shader
         useProgram();
@@ -55,6 +273,26 @@ public class ComputeShader extends ShaderProgram {
         glGetUniformiv(this.programID, loc, params);
         framebufferImageBinding = params.get(0);
 
+        loc = glGetUniformLocation(this.programID, "accumulationImage");
+        glGetUniformiv(this.programID, loc, params);
+        accumulationImageBinding = params.get(0);
+
+        loc = glGetUniformLocation(this.programID, "momentsImage");
+        glGetUniformiv(this.programID, loc, params);
+        momentsImageBinding = params.get(0);
+
+        loc = glGetUniformLocation(this.programID, "surfaceImage");
+        glGetUniformiv(this.programID, loc, params);
+        surfaceImageBinding = params.get(0);
+
+        loc = glGetUniformLocation(this.programID, "historyImage");
+        glGetUniformiv(this.programID, loc, params);
+        historyImageBinding = params.get(0);
+
+        loc = glGetUniformLocation(this.programID, "historySurfaceImage");
+        glGetUniformiv(this.programID, loc, params);
+        historySurfaceImageBinding = params.get(0);
+
         //Stop using this shader
         stopUsingProgram();
     }
@@ -64,8 +302,151 @@ public class ComputeShader extends ShaderProgram {
         this.height = height;
     }
 
+    /**
+     * Sets the texture traced into, e.g. after it was recreated at a new size
+     */
+    public void setFramebufferTexture(int framebufferTextureID) {
+        this.framebufferTextureID = framebufferTextureID;
+    }
+
+    /**
+     * Restarts accumulation on the next update. A complete image is kept as the history the next
+     * first pass may reproject.
+     */
+    public void invalidate() {
+        if (imageComplete) {
+            saveHistory();
+        }
+        reprojectPass = false;
+        accumulation.invalidate();
+        tileScheduler.restart();
+        passNanos = 0;
+        activeCursor = 0;
+    }
+
+    //Swaps the complete accumulation and surface textures in as the history, with the view they were traced from
+    private void saveHistory() {
+        int texture = historyTextureID;
+        historyTextureID = accumulationTextureID;
+        accumulationTextureID = texture;
+        texture = historySurfaceTextureID;
+        historySurfaceTextureID = surfaceTextureID;
+        surfaceTextureID = texture;
+
+        accumulatedInvMatrix.invert(historyViewProjection);
+        historyEye.set(accumulatedEye);
+        historyScene = accumulatedScene;
+        historySceneVersion = accumulatedSceneVersion;
+        historyParameters = accumulatedParameters;
+        historyValid = true;
+        imageComplete = false;
+    }
+
+    /**
+     * Reuses the colours of the last complete image where they still show the same surface after
+     * the view changed, on by default. See {@link Reprojection}.
+     */
+    public void setReprojection(boolean reprojection) {
+        this.reprojection = reprojection;
+    }
+
+    public boolean isReprojection() {
+        return reprojection;
+    }
+
+    /**
+     * Number of pixels of the last update whose colour was reprojected rather than shaded
+     */
+    public long getReusedPixelsLastFrame() {
+        return reusedPixelsLastFrame;
+    }
+
+    /**
+     * Time the tiles of the last complete pass over the image took, summed over its frames
+     */
+    public long getLastPassNanos() {
+        return lastPassNanos;
+    }
+
+    /**
+     * Number of passes over the whole image completed so far, to tell whether {@link #getLastPassNanos} changed
+     */
+    public long getPassesCompleted() {
+        return passesCompleted;
+    }
+
+    /**
+     * Takes the accumulation texture from a shared pool, which the caller disposes. Call before the first update.
+     */
+    public void setTexturePool(TexturePool texturePool) {
+        this.texturePool.dispose();
+        this.texturePool = texturePool;
+        this.ownsTexturePool = false;
+    }
+
+    public Accumulation getAccumulation() {
+        return accumulation;
+    }
+
+    public TileScheduler getTileScheduler() {
+        return tileScheduler;
+    }
+
+    /**
+     * Shows how many samples every pixel took instead of their average, restarting accumulation
+     */
+    public void setShowSampleHeatmap(boolean showSampleHeatmap) {
+        this.showSampleHeatmap = showSampleHeatmap;
+        invalidate();
+    }
+
+    public boolean isShowSampleHeatmap() {
+        return showSampleHeatmap;
+    }
+
+    /**
+     * Sets the quality of the traced image, switching to a shader variant compiled for it
+     */
+    public void setParameters(TraceParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public TraceParameters getParameters() {
+        return parameters;
+    }
+
+    //Program of a variant, compiling it the first time it is asked for
+    private int variant(TraceParameters variantParameters) {
+        //Programs only differ by their #defines, the light threshold is not one
+        variantParameters = variantParameters.withLightThreshold(TraceParameters.NO_LIGHT_CULLING);
+        Integer program = variants.get(variantParameters);
+        if (program == null) {
+            try {
+                program = buildProgram(variantParameters.toDefines(), stage(computeShaderFilename, GL_COMPUTE_SHADER));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            variants.put(variantParameters, program);
+        }
+        return program;
+    }
+
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Number of samples traced in the last update, one primary ray each
+     */
+    public long getPrimaryRaysLastFrame() {
+        return primaryRaysLastFrame;
+    }
+
     @Override
     public void update() {
+        primaryRaysLastFrame = 0;
+        reusedPixelsLastFrame = 0;
+        bytesUploadedLastFrame = 0;
 
         //Update view matrix based on camera
         viewMatrix.setLookAt(camera.getPosition(), camera.getDirection(), camera.getUpDirection());
@@ -73,95 +454,634 @@ public class ComputeShader extends ShaderProgram {
         //NDC space to World Space
         projMatrix.invertPerspectiveView(viewMatrix, invMatrix);
 
-        //Uniforms
-        setViewFrustumUniform();
-        setLightArrayUniform();
-        setSphereArrayUniform();
+        ensureAccumulationTexture();
+
+        //Restart accumulation whenever the view, the scene or the quality changed since the last sample
+        long sceneVersion = currentScene.getVersion();
+        if (!invMatrix.equals(accumulatedInvMatrix) || currentScene != accumulatedScene || sceneVersion != accumulatedSceneVersion
+                || !parameters.equals(accumulatedParameters)) {
+            invalidate();
+            accumulatedInvMatrix.set(invMatrix);
+            accumulatedEye.set(camera.getPosition());
+            accumulatedScene = currentScene;
+            accumulatedSceneVersion = sceneVersion;
+            accumulatedParameters = parameters;
+            //Only a static scene seen from elsewhere can reuse the history
+            reprojectPass = reprojection && historyValid && historyScene == currentScene && historySceneVersion == sceneVersion
+                    && parameters.equals(historyParameters);
+        }
+
+        //A converged image stays on screen without tracing it again
+        if (accumulation.isConverged()) {
+            stopUsingProgram();
+            return;
+        }
 
-        IntBuffer workGroupSize = BufferUtils.createIntBuffer(3);
-        glGetProgramiv(this.programID, GL_COMPUTE_WORK_GROUP_SIZE, workGroupSize);
-        workGroupSizeX = workGroupSize.get(0);
-        workGroupSizeY = workGroupSize.get(1);
+        waitForLastFrame();
+        profiler.begin(FramePhase.UPLOAD);
+
+        uploadLights();
+        uploadSpheres();
+        uploadMeshes();
+        uploadLightGrid();
 
         //Bind framebuffer image to texture
         glBindImageTexture(framebufferImageBinding, framebufferTextureID, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
+        glBindImageTexture(accumulationImageBinding, accumulationTextureID, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+        glBindImageTexture(momentsImageBinding, momentsTextureID, 0, false, 0, GL_READ_WRITE, GL_RG32F);
+        glBindImageTexture(surfaceImageBinding, surfaceTextureID, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+        glBindImageTexture(historyImageBinding, historyTextureID, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+        glBindImageTexture(historySurfaceImageBinding, historySurfaceTextureID, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
 
-        int numGroupsX = (int) Math.ceil((double) width / workGroupSizeX);
-        int numGroupsY = (int) Math.ceil((double) height / workGroupSizeY);
+        spherePositionBuffer.bind();
+        sphereMaterialBuffer.bind();
+        lightPositionBuffer.bind();
+        lightColourBuffer.bind();
+        bvhNodeBuffer.bind();
+        bvhPrimitiveBuffer.bind();
+        triangleBvhNodeBuffer.bind();
+        meshVertexBuffer.bind();
+        meshTriangleBuffer.bind();
+        meshMaterialBuffer.bind();
+        lightGridBuffer.bind();
+        activePixelBuffer.bind(ACTIVE_PIXEL_BUFFER_BINDING);
+        nextActivePixelBuffer.bind(NEXT_ACTIVE_PIXEL_BUFFER_BINDING);
+        reprojectionStatsBuffer.bind();
 
-        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        //Small scenes loop over their lights with a bound known at compile time
+        int lightLoopBound = TraceParameters.lightLoopBound(currentScene.lightStore.size(), LARGEST_LIGHT_LOOP_BOUND);
+        TraceParameters variant = parameters.withMaxLights(lightLoopBound);
+        if (autoTuneWorkGroupSize && tunedWorkGroupSize == null) {
+            tuneWorkGroupSize(variant);
+        }
+        if (tunedWorkGroupSize != null) {
+            variant = variant.withWorkGroupSize(tunedWorkGroupSize.x, tunedWorkGroupSize.y);
+        }
+        useVariant(variant);
+
+        //Uniforms
+        setFrameUniforms();
+        profiler.end(FramePhase.UPLOAD);
 
-        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+        profiler.begin(FramePhase.DISPATCH);
+        dispatchTimer.beginFrame(dispatchTimes);
+        //The pass may complete in this frame, which ends reprojection
+        boolean reprojecting = reprojectPass;
+        if (reprojecting) {
+            clearReprojectedCount();
+        }
+        if (accumulation.isAdaptivePass()) {
+            traceActivePixels();
+        } else {
+            //Every tile of a pass adds the same sample, the next sample starts once all of them are done
+            int pendingTiles = tileScheduler.getPendingTiles();
+            if (accumulation.collectsActivePixels() && (pendingTiles == 0 || pendingTiles == tileScheduler.getTileCount())) {
+                clearNextActivePixels();
+            }
+            boolean passCompleted = tileScheduler.renderFrame(tileDispatcher);
+            passNanos += tileScheduler.getNanosLastFrame();
+            primaryRaysLastFrame = tileScheduler.getPixelsRenderedLastFrame();
+            if (passCompleted) {
+                lastPassNanos = passNanos;
+                passesCompleted++;
+                completePass();
+            }
+        }
+        dispatchTimer.endFrame();
+        frameFence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        accumulation.samplesTraced(primaryRaysLastFrame);
+        if (reprojecting) {
+            reprojectedCount.clear();
+            reprojectionStatsBuffer.read(0, reprojectedCount);
+            reusedPixelsLastFrame = reprojectedCount.getInt(0) & 0xFFFFFFFFL;
+        }
+        profiler.end(FramePhase.DISPATCH);
 
-        //Unbind framebuffer image
+        //Unbind images and scene buffers
         glBindImageTexture(framebufferImageBinding, 0, 0, false, 0, GL_WRITE_ONLY, GL_RGBA32F);
+        glBindImageTexture(accumulationImageBinding, 0, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+        glBindImageTexture(momentsImageBinding, 0, 0, false, 0, GL_READ_WRITE, GL_RG32F);
+        glBindImageTexture(surfaceImageBinding, 0, 0, false, 0, GL_READ_WRITE, GL_RGBA32F);
+        glBindImageTexture(historyImageBinding, 0, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+        glBindImageTexture(historySurfaceImageBinding, 0, 0, false, 0, GL_READ_ONLY, GL_RGBA32F);
+        spherePositionBuffer.unbind();
+        sphereMaterialBuffer.unbind();
+        lightPositionBuffer.unbind();
+        lightColourBuffer.unbind();
+        bvhNodeBuffer.unbind();
+        bvhPrimitiveBuffer.unbind();
+        triangleBvhNodeBuffer.unbind();
+        meshVertexBuffer.unbind();
+        meshTriangleBuffer.unbind();
+        meshMaterialBuffer.unbind();
+        lightGridBuffer.unbind();
+        activePixelBuffer.unbind(ACTIVE_PIXEL_BUFFER_BINDING);
+        nextActivePixelBuffer.unbind(NEXT_ACTIVE_PIXEL_BUFFER_BINDING);
+        reprojectionStatsBuffer.unbind();
         stopUsingProgram();
     }
 
+    /**
+     * Traces the active pixel list in chunks of a tile's worth of pixels until the budget is spent,
+     * going on with the next adaptive pass whenever one completes, as the list is often short
+     */
+    private void traceActivePixels() {
+        long frameNanos = 0;
+        int chunk = tileScheduler.getTileSize() * tileScheduler.getTileSize();
+        long budgetNanos = tileScheduler.getBudgetNanos();
+        glUniform1i(adaptivePassLocation, 1);
+        do {
+            if (activeCursor == 0) {
+                clearNextActivePixels();
+            }
+            setSampleUniforms();
+            int end = Math.min(activeCursor + chunk, accumulation.getActivePixels());
+            int pixels = end - activeCursor;
+            dispatchTimer.beforeDispatch();
+            glUniform2i(activeRangeLocation, activeCursor, end);
+            glDispatchCompute(groupsFor(pixels, workGroupSizeX * workGroupSizeY), 1, 1);
+            glMemoryBarrier(DISPATCH_BARRIERS);
+            dispatchTimer.afterDispatch(ACTIVE_PIXELS_CHUNK, 0, pixels);
+            //Until a chunk has been timed, the tiles' cost per pixel is the best guess
+            double pixelNanos = activePixelNanos > 0 ? activePixelNanos : tileScheduler.getMeanPixelNanos();
+            long predictedNanos = (long) (pixelNanos * pixels);
+            frameNanos += predictedNanos;
+            passNanos += predictedNanos;
+            primaryRaysLastFrame += pixels;
+            activeCursor = end;
+            if (activeCursor == accumulation.getActivePixels()) {
+                completePass();
+            }
+            //Nothing known about the costs yet, one chunk per frame until they arrive
+            if (pixelNanos == 0 && budgetNanos != TileScheduler.UNLIMITED) {
+                break;
+            }
+        } while (accumulation.isAdaptivePass() && !accumulation.isConverged() && frameNanos < budgetNanos);
+        glUniform1i(adaptivePassLocation, 0);
+    }
+
+    //Takes the list the pass collected as the one the next pass traces, and counts the sample. Only
+    //passes over the whole image count towards the pass time, adaptive ones say nothing about the resolution.
+    private void completePass() {
+        if (accumulation.collectsActivePixels()) {
+            activeCount.clear();
+            nextActivePixelBuffer.read(0, activeCount);
+            ShaderStorageBuffer traced = activePixelBuffer;
+            activePixelBuffer = nextActivePixelBuffer;
+            nextActivePixelBuffer = traced;
+            activePixelBuffer.bind(ACTIVE_PIXEL_BUFFER_BINDING);
+            nextActivePixelBuffer.bind(NEXT_ACTIVE_PIXEL_BUFFER_BINDING);
+            accumulation.setActivePixels(activeCount.getInt(0));
+        }
+        accumulation.sampleTraced();
+        activeCursor = 0;
+        passNanos = 0;
+        imageComplete = true;
+        if (reprojectPass) {
+            reprojectPass = false;
+            glUniform1i(reprojectHistoryLocation, 0);
+        }
+    }
+
+    private void clearReprojectedCount() {
+        reprojectedCount.clear();
+        reprojectedCount.putInt(0, 0);
+        reprojectionStatsBuffer.uploadRange(reprojectedCount, 0, 4);
+    }
+
+    //Empties the list a collecting pass appends to, its count is all that needs resetting
+    private void clearNextActivePixels() {
+        activeCount.clear();
+        activeCount.putInt(0, 0);
+        nextActivePixelBuffer.uploadRange(activeCount, 0, 4);
+    }
+
+    //Switches to the program of a variant and the work group size it was compiled with
+    private void useVariant(TraceParameters variant) {
+        programID = variant(variant);
+        useProgram();
+        if (programID != uniformsProgram) {
+            lookUpUniforms();
+            uniformsProgram = programID;
+        }
+        if (variant.getWorkGroupSizeX() != workGroupSizeX || variant.getWorkGroupSizeY() != workGroupSizeY) {
+            workGroupSizeX = variant.getWorkGroupSizeX();
+            workGroupSizeY = variant.getWorkGroupSizeY();
+            fullTileGroupsX = groupsFor(tileScheduler.getTileSize(), workGroupSizeX);
+            fullTileGroupsY = groupsFor(tileScheduler.getTileSize(), workGroupSizeY);
+        }
+    }
+
+    private void lookUpUniforms() {
+        tileOffsetLocation = glGetUniformLocation(programID, "tileOffset");
+        tileSizeLocation = glGetUniformLocation(programID, "tileSize");
+        activeRangeLocation = glGetUniformLocation(programID, "activeRange");
+        sampleIndexLocation = glGetUniformLocation(programID, "sampleIndex");
+        sampleJitterLocation = glGetUniformLocation(programID, "sampleJitter");
+        collectActiveLocation = glGetUniformLocation(programID, "collectActive");
+        adaptivePassLocation = glGetUniformLocation(programID, "adaptivePass");
+        reprojectHistoryLocation = glGetUniformLocation(programID, "reprojectHistory");
+        eyeLocation = glGetUniformLocation(programID, "eye");
+        ray00Location = glGetUniformLocation(programID, "ray00");
+        ray01Location = glGetUniformLocation(programID, "ray01");
+        ray10Location = glGetUniformLocation(programID, "ray10");
+        ray11Location = glGetUniformLocation(programID, "ray11");
+        numberOfSpheresLocation = glGetUniformLocation(programID, "numberOfSpheres");
+        numberOfLightsLocation = glGetUniformLocation(programID, "numberOfLights");
+        numberOfTrianglesLocation = glGetUniformLocation(programID, "numberOfTriangles");
+        errorThresholdLocation = glGetUniformLocation(programID, "errorThreshold");
+        showSampleHeatmapLocation = glGetUniformLocation(programID, "showSampleHeatmap");
+        maxSamplesLocation = glGetUniformLocation(programID, "maxSamples");
+        historyViewProjectionLocation = glGetUniformLocation(programID, "historyViewProjection");
+        historyEyeLocation = glGetUniformLocation(programID, "historyEye");
+        lightGridMinLocation = glGetUniformLocation(programID, "lightGridMin");
+        lightGridInverseCellSizeLocation = glGetUniformLocation(programID, "lightGridInverseCellSize");
+        lightGridCellsLocation = glGetUniformLocation(programID, "lightGridCells");
+    }
+
+    private static int groupsFor(int pixels, int workGroupSize) {
+        return (pixels + workGroupSize - 1) / workGroupSize;
+    }
+
+    /**
+     * Traces the current frame with every candidate work group size and keeps the fastest, or the
+     * one an earlier run found for this driver. Expects the scene buffers and images to be bound.
+     */
+    private void tuneWorkGroupSize(TraceParameters variant) {
+        Path tuningFile = getProgramCache() == null ? null : getProgramCache().getDirectory().resolveSibling(WORK_GROUP_TUNING_FILE);
+        String renderer = driverString();
+        if (tuningFile != null) {
+            tunedWorkGroupSize = WorkGroupTuner.load(tuningFile, renderer);
+            if (tunedWorkGroupSize != null) {
+                workGroupTuning = "Work group size " + tunedWorkGroupSize + " tuned by an earlier run";
+                return;
+            }
+        }
+
+        //Every run writes a complete first sample, so accumulation can start from any of them
+        WorkGroupTuner tuner = new WorkGroupTuner(WorkGroupTuner.DEFAULT_CANDIDATES);
+        tunedWorkGroupSize = tuner.tune(shape -> {
+            useVariant(variant.withWorkGroupSize(shape.x, shape.y));
+            setFrameUniforms();
+            glUniform1i(sampleIndexLocation, 0);
+            glUniform1i(collectActiveLocation, 0);
+            glUniform1i(reprojectHistoryLocation, 0);
+            long start = System.nanoTime();
+            dispatchTile(0, 0, width, height);
+            waitForDispatch();
+            return System.nanoTime() - start;
+        });
+        invalidate();
+        workGroupTuning = tuner.summary() + ", using " + tunedWorkGroupSize;
+
+        if (tuningFile != null) {
+            WorkGroupTuner.store(tuningFile, renderer, tunedWorkGroupSize);
+        }
+    }
+
+    /**
+     * Picks the fastest work group size the first time a frame is traced, on by default.
+     * Otherwise the size in the parameters is used.
+     */
+    public void setAutoTuneWorkGroupSize(boolean autoTuneWorkGroupSize) {
+        this.autoTuneWorkGroupSize = autoTuneWorkGroupSize;
+        if (!autoTuneWorkGroupSize) {
+            tunedWorkGroupSize = null;
+            workGroupTuning = null;
+        }
+    }
+
+    /**
+     * The work group size picked and, if it was timed in this run, how long every candidate took.
+     * Null until a frame has been traced with auto tuning on.
+     */
+    public String getWorkGroupTuning() {
+        return workGroupTuning;
+    }
+
+    //Queues one tile, whose writes later dispatches see. It may still be running on return.
+    private void dispatchTile(int x, int y, int tileWidth, int tileHeight) {
+        glUniform2i(tileOffsetLocation, x, y);
+        glUniform2i(tileSizeLocation, tileWidth, tileHeight);
+
+        int tileSize = tileScheduler.getTileSize();
+        int numGroupsX = tileWidth == tileSize ? fullTileGroupsX : groupsFor(tileWidth, workGroupSizeX);
+        int numGroupsY = tileHeight == tileSize ? fullTileGroupsY : groupsFor(tileHeight, workGroupSizeY);
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(DISPATCH_BARRIERS);
+    }
+
+    //Waits for the last frame's dispatches, which are usually done by the time the next frame starts
+    private void waitForLastFrame() {
+        if (frameFence == 0) {
+            return;
+        }
+        while (glClientWaitSync(frameFence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS) == GL_TIMEOUT_EXPIRED) {
+            //Keep waiting, a frame of a huge scene may take a while
+        }
+        glDeleteSync(frameFence);
+        frameFence = 0;
+    }
+
+    //Waits for the dispatches so far to finish, a round trip to the GPU
+    private void waitForDispatch() {
+        long fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        while (glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS) == GL_TIMEOUT_EXPIRED) {
+            //Keep waiting, a tile of a huge scene may take a while
+        }
+        glDeleteSync(fence);
+    }
+
+    private void setFrameUniforms() {
+        setViewFrustumUniform();
+        setSampleUniforms();
+        glUniform1i(numberOfSpheresLocation, currentScene.sphereStore.size());
+        glUniform1i(numberOfLightsLocation, currentScene.lightStore.size());
+        glUniform1i(numberOfTrianglesLocation, currentScene.meshStore.getTriangleCount());
+        glUniform1i(adaptivePassLocation, 0);
+        glUniform1f(errorThresholdLocation, accumulation.getErrorThreshold());
+        glUniform1i(showSampleHeatmapLocation, showSampleHeatmap ? 1 : 0);
+        glUniform1i(maxSamplesLocation, accumulation.getMaxSamples());
+        glUniform1i(reprojectHistoryLocation, reprojectPass ? 1 : 0);
+        glUniformMatrix4fv(historyViewProjectionLocation, false, historyViewProjection.get(matrixUniform));
+        glUniform3f(historyEyeLocation, historyEye.x, historyEye.y, historyEye.z);
+        float[] gridMin = lightGrid.getMin(), gridInverseCellSize = lightGrid.getInverseCellSize();
+        int[] gridCells = lightGrid.getCells();
+        glUniform3f(lightGridMinLocation, gridMin[0], gridMin[1], gridMin[2]);
+        glUniform3f(lightGridInverseCellSizeLocation, gridInverseCellSize[0], gridInverseCellSize[1], gridInverseCellSize[2]);
+        glUniform3i(lightGridCellsLocation, gridCells[0], gridCells[1], gridCells[2]);
+    }
+
     private void setViewFrustumUniform() {
         //Set eye uniform
-        setUniform("eye", camera.getPosition());
+        Vector3f eye = camera.getPosition();
+        glUniform3f(eyeLocation, eye.x, eye.y, eye.z);
 
 
         //Computes view frustum
-        Vector3f temp = new Vector3f();
+        invMatrix.transformProject(frustumCorner.set(-1, -1, 0)).sub(eye);
+        glUniform3f(ray00Location, frustumCorner.x, frustumCorner.y, frustumCorner.z);
 
-        invMatrix.transformProject(temp.set(-1, -1, 0)).sub(camera.getPosition());
-        setUniform("ray00", temp);
+        invMatrix.transformProject(frustumCorner.set(-1, 1, 0)).sub(eye);
+        glUniform3f(ray01Location, frustumCorner.x, frustumCorner.y, frustumCorner.z);
 
-        invMatrix.transformProject(temp.set(-1, 1, 0)).sub(camera.getPosition());
-        setUniform("ray01", temp);
+        invMatrix.transformProject(frustumCorner.set(1, -1, 0)).sub(eye);
+        glUniform3f(ray10Location, frustumCorner.x, frustumCorner.y, frustumCorner.z);
 
-        invMatrix.transformProject(temp.set(1, -1, 0)).sub(camera.getPosition());
-        setUniform("ray10", temp);
+        invMatrix.transformProject(frustumCorner.set(1, 1, 0)).sub(eye);
+        glUniform3f(ray11Location, frustumCorner.x, frustumCorner.y, frustumCorner.z);
+    }
+
+    private void setSampleUniforms() {
+        glUniform1i(sampleIndexLocation, accumulation.getSampleIndex());
+        glUniform2f(sampleJitterLocation, accumulation.getJitterX(), accumulation.getJitterY());
+        glUniform1i(collectActiveLocation, accumulation.collectsActivePixels() ? 1 : 0);
+    }
 
-        invMatrix.transformProject(temp.set(1, 1, 0)).sub(camera.getPosition());
-        setUniform("ray11", temp);
+    //(Re)creates the accumulation textures, active pixel lists and tiles when the framebuffer size changed, which also
+    //restarts accumulation. The history is of the old size, so it is dropped.
+    private void ensureAccumulationTexture() {
+        if (accumulationTextureID != 0 && accumulationWidth == width && accumulationHeight == height) {
+            return;
+        }
+        imageComplete = false;
+        historyValid = false;
+        texturePool.release(accumulationTextureID);
+        texturePool.release(momentsTextureID);
+        texturePool.release(surfaceTextureID);
+        texturePool.release(historyTextureID);
+        texturePool.release(historySurfaceTextureID);
+        accumulationTextureID = texturePool.acquire(width, height, GL_RGBA32F);
+        momentsTextureID = texturePool.acquire(width, height, GL_RG32F);
+        surfaceTextureID = texturePool.acquire(width, height, GL_RGBA32F);
+        historyTextureID = texturePool.acquire(width, height, GL_RGBA32F);
+        historySurfaceTextureID = texturePool.acquire(width, height, GL_RGBA32F);
+        activePixelBuffer.reserve(4 + 4L * width * height);
+        nextActivePixelBuffer.reserve(4 + 4L * width * height);
+        accumulationWidth = width;
+        accumulationHeight = height;
+        tileScheduler.resize(width, height);
+        invalidate();
     }
 
-    private void setSphereArrayUniform() {
-        for (int i = 0; i < MAX_SPHERES; i++) {
-            Vector3f position = new Vector3f(0);
-            float radius = 0;
-            Material material = Material.DEFAULT_MATERIAL;
+    private void uploadSpheres() {
+        SphereStore spheres = currentScene.sphereStore;
+        //Versions of another scene's store say nothing about the buffers
+        if (spheres != uploadedSphereStore) {
+            uploadedSphereStore = spheres;
+            uploadedSphereVersion = -1;
+        }
+        if (spheres.getVersion() == uploadedSphereVersion) {
+            return;
+        }
+        bytesUploadedLastFrame += syncStore(spheres, uploadedSphereVersion, sphereColumnBuffers);
 
-            if(i < currentScene.spheresInScene.size()) {
-                position = currentScene.spheresInScene.get(i).getPosition();
-                radius = currentScene.spheresInScene.get(i).getRadius();
-                material = currentScene.spheresInScene.get(i).material;
+        //Spheres changed so the hierarchy is refit or rebuilt from the stored positions
+        Bvh bvh = dynamicBvh.update(BoundedPrimitives.spheres(spheres.positionRadius(), 4, spheres.size()));
+        ByteBuffer nodes = bvhPacker.packNodes(bvh);
+        ByteBuffer primitives = bvhPacker.packPrimitiveIndices(bvh);
+        bytesUploadedLastFrame += nodes.remaining() + primitives.remaining();
+        bvhNodeBuffer.upload(nodes);
+        bvhPrimitiveBuffer.upload(primitives);
+        uploadedSphereVersion = spheres.getVersion();
+    }
+
+    /**
+     * Brings the buffers of a store's columns up to date with it. Only the slots the store's journal
+     * lists as changed since the uploaded version are sent, unless the journal does not reach back
+     * that far or the store outgrew a buffer, then every column is uploaded whole.
+     *
+     * @return bytes uploaded
+     */
+    private long syncStore(OffHeapStore store, long uploadedVersion, ShaderStorageBuffer[] columnBuffers) {
+        int size = store.size();
+        boolean fits = true;
+        for (ShaderStorageBuffer buffer : columnBuffers) {
+            fits &= buffer.getCapacity() >= (long) size * OffHeapStore.ELEMENT_SIZE;
+        }
+
+        if (uploadedVersion >= 0 && fits) {
+            rangeUploader.start(store, columnBuffers);
+            boolean journaled = store.changesSince(uploadedVersion, rangeUploader);
+            long uploaded = rangeUploader.finish();
+            if (journaled) {
+                return uploaded;
             }
+        }
 
-            this.setUniform("sceneSpheres[" + i + "].position", position);
-            this.setUniform("sceneSpheres[" + i + "].radius", radius);
-            this.setUniform("sceneSpheres[" + i + "].mat.albedo", material.getAlbedo());
-            this.setUniform("sceneSpheres[" + i + "].mat.specularN", material.getSpecularN());
+        long uploaded = 0;
+        for (int column = 0; column < columnBuffers.length; column++) {
+            ByteBuffer data = store.getColumn(column);
+            uploaded += data.remaining();
+            columnBuffers[column].upload(data);
         }
-        this.setUniform("numberOfSpheres", currentScene.spheresInScene.size());
+        return uploaded;
     }
 
-    private void setLightArrayUniform() {
-        for (int i = 0; i < MAX_LIGHTS; i++) {
-            Vector3f position = new Vector3f(0);
-            Vector3f colour = new Vector3f(0);
-            float brightness = 0;
+    /**
+     * Uploads the changed ranges of one store's columns, reused for every store and frame so delta
+     * uploads do not allocate
+     */
+    private static final class RangeUploader implements ChangeJournal.RangeVisitor {
+        private OffHeapStore store;
+        private ShaderStorageBuffer[] columnBuffers;
+        private int size;
+        private long uploaded;
 
-            if(i < currentScene.lightsInScene.size()) {
-                position = currentScene.lightsInScene.get(i).getPosition();
-                colour = currentScene.lightsInScene.get(i).getColour();
-                brightness = currentScene.lightsInScene.get(i).getBrightness();
+        void start(OffHeapStore store, ShaderStorageBuffer[] columnBuffers) {
+            this.store = store;
+            this.columnBuffers = columnBuffers;
+            size = store.size();
+            uploaded = 0;
+        }
+
+        //Lets go of the store and returns the bytes uploaded since the start
+        long finish() {
+            store = null;
+            columnBuffers = null;
+            return uploaded;
+        }
+
+        @Override
+        public void changed(int column, int firstSlot, int endSlot) {
+            //Slots past the end were removed since, the shader never reads them
+            int end = Math.min(endSlot, size);
+            if (firstSlot < end) {
+                int length = (end - firstSlot) * OffHeapStore.ELEMENT_SIZE;
+                columnBuffers[column].uploadRange(store.getColumn(column), (long) firstSlot * OffHeapStore.ELEMENT_SIZE, length);
+                uploaded += length;
             }
+        }
+    }
 
-            this.setUniform("sceneLights[" + i + "].position", position);
-            this.setUniform("sceneLights[" + i + "].colour", colour);
-            this.setUniform("sceneLights[" + i + "].brightness", brightness);
+    //Uploads the meshes and a hierarchy over their triangles whenever they changed, which is rare
+    private void uploadMeshes() {
+        MeshStore meshes = currentScene.meshStore;
+        if (meshes == uploadedMeshStore && meshes.getVersion() == uploadedMeshVersion) {
+            return;
         }
-        this.setUniform("numberOfLights", currentScene.lightsInScene.size());
+        long start = System.nanoTime();
+        triangleBvhBuilder.build(BoundedPrimitives.triangles(meshes.vertices(), meshes.triangles(), meshes.getTriangleCount()), triangleBvh);
+        ByteBuffer nodes = bvhPacker.packNodes(triangleBvh);
+        ByteBuffer triangles = bvhPacker.packTrianglesInLeafOrder(triangleBvh, meshes.triangles());
+        ByteBuffer vertices = meshes.getVertexBuffer();
+        ByteBuffer materials = meshes.getMaterialBuffer();
+        long bytes = nodes.remaining() + triangles.remaining() + vertices.remaining() + materials.remaining();
+        triangleBvhNodeBuffer.upload(nodes);
+        meshTriangleBuffer.upload(triangles);
+        meshVertexBuffer.upload(vertices);
+        meshMaterialBuffer.upload(materials);
+        bytesUploadedLastFrame += bytes;
+        meshBytes = bytes;
+        meshUploadNanos = System.nanoTime() - start;
+
+        uploadedMeshStore = meshes;
+        uploadedMeshVersion = meshes.getVersion();
+    }
+
+    //Bins the lights over the geometry of the sphere and triangle hierarchies, which must be up to date
+    private void uploadLightGrid() {
+        long sceneVersion = currentScene.getVersion();
+        float threshold = parameters.getLightThreshold();
+        if (currentScene == lightGridScene && sceneVersion == lightGridSceneVersion && threshold == lightGridThreshold) {
+            return;
+        }
+        LightStore lights = currentScene.lightStore;
+        lightGrid.build(lights.positionBrightness(), lights.size(), threshold, dynamicBvh.getBvh(), triangleBvh);
+        ByteBuffer packed = lightGrid.pack();
+        bytesUploadedLastFrame += packed.remaining();
+        lightGridBuffer.upload(packed);
+        lightGridScene = currentScene;
+        lightGridSceneVersion = sceneVersion;
+        lightGridThreshold = threshold;
+    }
+
+    /**
+     * Lights binned for the last update
+     */
+    public LightGrid getLightGrid() {
+        return lightGrid;
+    }
+
+    /**
+     * Bytes of scene and hierarchy data sent to the GPU in the last update, zero when nothing changed
+     */
+    public long getBytesUploadedLastFrame() {
+        return bytesUploadedLastFrame;
+    }
+
+    /**
+     * Bytes the meshes take on the GPU with their hierarchy, as of their last upload
+     */
+    public long getMeshBytes() {
+        return meshBytes;
+    }
+
+    /**
+     * Time the last mesh upload took to build the hierarchy, pack and send everything
+     */
+    public long getMeshUploadNanos() {
+        return meshUploadNanos;
+    }
+
+    /**
+     * Timings of the last hierarchy update
+     */
+    public BvhTimings getBvhTimings() {
+        return dynamicBvh.getTimings();
     }
+
+    private void uploadLights() {
+        LightStore lights = currentScene.lightStore;
+        if (lights != uploadedLightStore) {
+            uploadedLightStore = lights;
+            uploadedLightVersion = -1;
+        }
+        if (lights.getVersion() == uploadedLightVersion) {
+            return;
+        }
+        bytesUploadedLastFrame += syncStore(lights, uploadedLightVersion, lightColumnBuffers);
+        uploadedLightVersion = lights.getVersion();
+    }
+
     @Override
     public void dispose() {
-        glDetachShader(programID, computeShaderObjectID);
-        glDeleteShader(computeShaderObjectID);
-        glDeleteProgram(programID);
+        spherePositionBuffer.dispose();
+        sphereMaterialBuffer.dispose();
+        lightPositionBuffer.dispose();
+        lightColourBuffer.dispose();
+        bvhNodeBuffer.dispose();
+        bvhPrimitiveBuffer.dispose();
+        triangleBvhNodeBuffer.dispose();
+        meshVertexBuffer.dispose();
+        meshTriangleBuffer.dispose();
+        meshMaterialBuffer.dispose();
+        lightGridBuffer.dispose();
+        activePixelBuffer.dispose();
+        nextActivePixelBuffer.dispose();
+        reprojectionStatsBuffer.dispose();
+        dispatchTimer.dispose();
+        if (frameFence != 0) {
+            glDeleteSync(frameFence);
+            frameFence = 0;
+        }
+        texturePool.release(accumulationTextureID);
+        texturePool.release(momentsTextureID);
+        texturePool.release(surfaceTextureID);
+        texturePool.release(historyTextureID);
+        texturePool.release(historySurfaceTextureID);
+        accumulationTextureID = 0;
+        momentsTextureID = 0;
+        surfaceTextureID = 0;
+        historyTextureID = 0;
+        historySurfaceTextureID = 0;
+        if (ownsTexturePool) {
+            texturePool.dispose();
+        }
+        for (int program : variants.values()) {
+            glDeleteProgram(program);
+        }
+        variants.clear();
     }
 
 
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Times compute dispatches on the GPU without waiting for them, with a GL_TIMESTAMP query written
+ * before the first dispatch of a frame and after every dispatch.
+ *
+ * Like {@link FrameProfiler}'s queries they go into a ring a few frames deep and are only read when
+ * their slot comes round again, by which time the GPU has almost always finished them. A frame
+ * whose queries are still not ready is dropped rather than waited for. Timestamps are used rather
+ * than GL_TIME_ELAPSED queries, as those cannot nest inside the profiler's dispatch phase.
+ */
+public class DispatchTimer {
+    private static final int RING_DEPTH = 4;
+
+    /**
+     * Receives the GPU time of a dispatch, tagged with what the caller passed to {@link #afterDispatch}
+     */
+    public interface Listener {
+        void dispatchTimed(int x, int y, int pixels, long nanos);
+    }
+
+    //Queries of the last RING_DEPTH frames, and the x, y and pixels of the dispatch that ended at each
+    private final int[][] queries = new int[RING_DEPTH][0];
+    private final int[][] tags = new int[RING_DEPTH][0];
+    private final int[] written = new int[RING_DEPTH];
+    private int slot;
+
+    /**
+     * Reports the dispatches of the frame that last used the slot this frame is about to reuse
+     */
+    public void beginFrame(Listener listener) {
+        resolve(slot, listener);
+        written[slot] = 0;
+    }
+
+    /**
+     * Marks the start of the frame's first dispatch, later ones start where the previous one ended
+     */
+    public void beforeDispatch() {
+        if (written[slot] == 0) {
+            write(0, 0, 0);
+        }
+    }
+
+    public void afterDispatch(int x, int y, int pixels) {
+        write(x, y, pixels);
+    }
+
+    public void endFrame() {
+        slot = (slot + 1) % RING_DEPTH;
+    }
+
+    private void write(int x, int y, int pixels) {
+        int i = written[slot];
+        if (i == queries[slot].length) {
+            int[] grown = Arrays.copyOf(queries[slot], Math.max(16, i * 2));
+            int[] generated = new int[grown.length - i];
+            glGenQueries(generated);
+            System.arraycopy(generated, 0, grown, i, generated.length);
+            queries[slot] = grown;
+            tags[slot] = Arrays.copyOf(tags[slot], grown.length * 3);
+        }
+        glQueryCounter(queries[slot][i], GL_TIMESTAMP);
+        tags[slot][i * 3] = x;
+        tags[slot][i * 3 + 1] = y;
+        tags[slot][i * 3 + 2] = pixels;
+        written[slot] = i + 1;
+    }
+
+    private void resolve(int oldSlot, Listener listener) {
+        int count = written[oldSlot];
+        if (count < 2) {
+            return;
+        }
+        //Timestamps complete in order, so once the last is available all of them are
+        if (glGetQueryObjecti(queries[oldSlot][count - 1], GL_QUERY_RESULT_AVAILABLE) != GL_TRUE) {
+            return;
+        }
+        long previous = glGetQueryObjectui64(queries[oldSlot][0], GL_QUERY_RESULT);
+        for (int i = 1; i < count; i++) {
+            long timestamp = glGetQueryObjectui64(queries[oldSlot][i], GL_QUERY_RESULT);
+            int[] tag = tags[oldSlot];
+            listener.dispatchTimed(tag[i * 3], tag[i * 3 + 1], tag[i * 3 + 2], timestamp - previous);
+            previous = timestamp;
+        }
+    }
+
+    public void dispose() {
+        for (int i = 0; i < RING_DEPTH; i++) {
+            if (queries[i].length > 0) {
+                glDeleteQueries(queries[i]);
+            }
+            queries[i] = new int[0];
+            written[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import render.FrameMetrics;
+import render.FramePhase;
+import render.FramePhaseEvent;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Times the phases of every frame on the CPU with nanoTime and on the GPU with GL_TIME_ELAPSED queries.
+ *
+ * Queries go into a ring a few frames deep and are only read when their slot comes round again,
+ * by which time the GPU has almost always finished them, so reading never stalls. A query that
+ * is still not ready is dropped rather than waited for. Results feed {@link FrameMetrics}, which
+ * is printed periodically, and {@link FramePhaseEvent}s for the flight recorder.
+ *
+ * While disabled every call returns after checking a flag.
+ */
+public class FrameProfiler {
+    private static final int RING_DEPTH = 4;
+    private static final FramePhase[] PHASES = FramePhase.values();
+
+    private final FrameMetrics metrics = new FrameMetrics();
+    private final long dumpIntervalNanos;
+    private boolean enabled;
+
+    //Queries and CPU times of the last RING_DEPTH frames, one of each per phase
+    private final int[][] queries = new int[RING_DEPTH][];
+    private final boolean[][] issued = new boolean[RING_DEPTH][PHASES.length];
+    private final long[][] cpuNanos = new long[RING_DEPTH][PHASES.length];
+    private final long[] frameNumbers = new long[RING_DEPTH];
+    private int slot;
+    private long frame;
+
+    private long phaseStart;
+    private long frameStart;
+
+    /**
+     * @param dumpIntervalMillis how often to print the metrics, 0 never prints them
+     */
+    public FrameProfiler(long dumpIntervalMillis) {
+        this.dumpIntervalNanos = dumpIntervalMillis * 1_000_000;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Needs the GL context current the first time it is enabled
+     */
+    public void setEnabled(boolean enabled) {
+        if (enabled && queries[0] == null) {
+            for (int i = 0; i < RING_DEPTH; i++) {
+                queries[i] = new int[PHASES.length];
+                glGenQueries(queries[i]);
+            }
+        }
+        if (enabled && !this.enabled) {
+            for (boolean[] slotIssued : issued) {
+                Arrays.fill(slotIssued, false);
+            }
+            long now = System.nanoTime();
+            metrics.reset(now);
+            frameStart = now;
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts timing a phase, phases must not overlap
+     */
+    public void begin(FramePhase phase) {
+        if (!enabled) {
+            return;
+        }
+        glBeginQuery(GL_TIME_ELAPSED, queries[slot][phase.ordinal()]);
+        phaseStart = System.nanoTime();
+    }
+
+    public void end(FramePhase phase) {
+        if (!enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - phaseStart;
+        glEndQuery(GL_TIME_ELAPSED);
+        metrics.recordCpu(phase, nanos);
+        cpuNanos[slot][phase.ordinal()] = nanos;
+        issued[slot][phase.ordinal()] = true;
+    }
+
+    /**
+     * Finishes the frame and reads the GPU times of the frame that used the next slot
+     *
+     * @param primaryRays  number of primary rays traced in the frame
+     * @param reusedPixels number of them whose pixel reused a reprojected colour
+     */
+    public void endFrame(long primaryRays, long reusedPixels) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        metrics.recordFrame(now - frameStart, primaryRays, reusedPixels);
+        frameStart = now;
+
+        frameNumbers[slot] = frame++;
+        slot = (slot + 1) % RING_DEPTH;
+        resolve(slot);
+
+        if (dumpIntervalNanos > 0 && metrics.getIntervalNanos(now) >= dumpIntervalNanos) {
+            System.out.println(metrics.summary(now));
+            metrics.reset(now);
+        }
+    }
+
+    private void resolve(int oldSlot) {
+        for (FramePhase phase : PHASES) {
+            int p = phase.ordinal();
+            if (!issued[oldSlot][p]) {
+                continue;
+            }
+            issued[oldSlot][p] = false;
+
+            int query = queries[oldSlot][p];
+            long gpuNanos = -1;
+            if (glGetQueryObjecti(query, GL_QUERY_RESULT_AVAILABLE) == GL_TRUE) {
+                gpuNanos = glGetQueryObjectui64(query, GL_QUERY_RESULT);
+                metrics.recordGpu(phase, gpuNanos);
+            } else {
+                metrics.recordDroppedGpu();
+            }
+
+            FramePhaseEvent event = new FramePhaseEvent();
+            if (event.isEnabled()) {
+                event.frame = frameNumbers[oldSlot];
+                event.phase = phase.name();
+                event.cpuTime = cpuNanos[oldSlot][p];
+                event.gpuTime = gpuNanos;
+                event.commit();
+            }
+        }
+    }
+
+    public FrameMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void dispose() {
+        for (int[] slotQueries : queries) {
+            if (slotQueries != null) {
+                glDeleteQueries(slotQueries);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import render.PixelConsumer;
+import render.PixelFormat;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL42.*;
+
+/**
+ * Reads the framebuffer texture back without stalling the pipeline.
+ *
+ * Each capture copies the texture into the next pixel buffer object of a ring and places a fence
+ * behind the copy. The copy runs on the GPU while the CPU carries on, and once the fence has passed,
+ * usually a frame or two later, the buffer is mapped and handed to the consumer without copying.
+ * Only when every buffer of the ring is still in flight does a capture wait for the oldest one.
+ */
+public class FramebufferReadback {
+    public static final int DEFAULT_RING_DEPTH = 3;
+
+    private final PixelFormat format;
+    private final PixelConsumer consumer;
+
+    private final int[] buffers;
+    private final long[] bufferSizes;
+    private final long[] fences;
+    private final int[] widths, heights;
+    private final long[] frames;
+
+    //Oldest capture still in flight and number of captures in flight
+    private int oldest;
+    private int inFlight;
+    private long frameCount;
+
+    public FramebufferReadback(PixelFormat format, PixelConsumer consumer) {
+        this(DEFAULT_RING_DEPTH, format, consumer);
+    }
+
+    public FramebufferReadback(int ringDepth, PixelFormat format, PixelConsumer consumer) {
+        if (ringDepth < 1) {
+            throw new IllegalArgumentException("Ring depth must be at least 1: " + ringDepth);
+        }
+        this.format = format;
+        this.consumer = consumer;
+        this.buffers = new int[ringDepth];
+        this.bufferSizes = new long[ringDepth];
+        this.fences = new long[ringDepth];
+        this.widths = new int[ringDepth];
+        this.heights = new int[ringDepth];
+        this.frames = new long[ringDepth];
+        glGenBuffers(buffers);
+    }
+
+    /**
+     * Starts copying level 0 of the texture, call after the frame was traced into it
+     */
+    public void capture(int texture, int width, int height) {
+        if (inFlight == buffers.length) {
+            deliverOldest(true);
+        }
+        int slot = (oldest + inFlight) % buffers.length;
+
+        //Image stores by the compute shader must land before the texture is read into a buffer
+        glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT | GL_PIXEL_BUFFER_BARRIER_BIT);
+
+        long size = (long) width * height * format.getBytesPerPixel();
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+        if (bufferSizes[slot] != size) {
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+            bufferSizes[slot] = size;
+        }
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, format == PixelFormat.RGBA8 ? GL_UNSIGNED_BYTE : GL_FLOAT, 0L);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        widths[slot] = width;
+        heights[slot] = height;
+        frames[slot] = frameCount++;
+        inFlight++;
+    }
+
+    /**
+     * Hands every finished capture to the consumer without waiting for unfinished ones
+     *
+     * @return the number of frames delivered
+     */
+    public int poll() {
+        int delivered = 0;
+        while (inFlight > 0 && deliverOldest(false)) {
+            delivered++;
+        }
+        return delivered;
+    }
+
+    /**
+     * Waits for and delivers every capture in flight
+     */
+    public void flush() {
+        while (inFlight > 0) {
+            deliverOldest(true);
+        }
+    }
+
+    public int getCapturesInFlight() {
+        return inFlight;
+    }
+
+    public PixelFormat getFormat() {
+        return format;
+    }
+
+    //Delivers the oldest capture, returns false if it has not finished and wait is false
+    private boolean deliverOldest(boolean wait) {
+        int slot = oldest;
+        long fence = fences[slot];
+        if (wait) {
+            while (glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L) == GL_TIMEOUT_EXPIRED) {
+                //The copy is queued behind the frame, keep waiting
+            }
+        } else {
+            int status = glClientWaitSync(fence, 0, 0);
+            if (status == GL_TIMEOUT_EXPIRED) {
+                return false;
+            }
+        }
+        glDeleteSync(fence);
+
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+        ByteBuffer pixels = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, bufferSizes[slot], GL_MAP_READ_BIT);
+        if (pixels != null) {
+            try {
+                consumer.accept(pixels, widths[slot], heights[slot], format, frames[slot]);
+            } finally {
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            }
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        oldest = (oldest + 1) % buffers.length;
+        inFlight--;
+        return true;
+    }
+
+    /**
+     * Delivers the captures in flight and deletes the buffers
+     */
+    public void dispose() {
+        flush();
+        glDeleteBuffers(buffers);
+    }
+}
@@ -1,7 +1,39 @@
+import batch.BatchOptions;
+import batch.BatchRenderer;
+import cpu.CpuRaytracer;
+import cpu.FloatImage;
+import farm.FarmCoordinator;
+import farm.FarmWorker;
+import farm.LocalWorkers;
 import org.joml.Vector3f;
+import render.Accumulation;
+import render.FrameRenderer;
+import render.PixelFormat;
+import scene.BinaryScene;
+import scene.BinarySceneWriter;
+import scene.Camera;
+import scene.CameraPath;
 import scene.Light;
 import scene.Material;
+import scene.MeshImporter;
+import scene.Scene;
 import scene.Sphere;
+import scene.TextSceneReader;
+import service.RenderCache;
+import service.RenderContext;
+import service.RenderRequest;
+import service.RenderServer;
+import service.RenderService;
+import service.ServerOptions;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     private static final int LIGHTS = 1;
@@ -9,27 +41,261 @@ public class Main {
     private static final int SPHERE_SPREAD = 10;
     private static final int LIGHT_SPREAD = 5;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        //--serve [options] renders scenes POSTed over HTTP, see service.ServerOptions
+        if (args.length > 0 && args[0].equals("--serve")) {
+            runServer(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        //--farm-worker <host:port> [--threads <n>] traces tiles for a coordinator, see --batch --renderer farm
+        if (args.length > 0 && args[0].equals("--farm-worker")) {
+            runFarmWorker(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        //--convert-scene <text> <binary> writes a text scene in the binary format
+        if (args.length == 3 && args[0].equals("--convert-scene")) {
+            BinarySceneWriter.convert(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println(BinaryScene.open(Paths.get(args[2])));
+            return;
+        }
+
         Window w = new Window();
         w.init();
 
+        //--record <pattern> [--record-format rgba8|rgba32f] writes every frame to image files
+        //--profile prints frame phase timings
+        //--no-tune keeps the shader's work group size instead of timing the alternatives
+        //--dynamic-resolution <ms> [--scale-range <min>-<max>] scales the traced resolution to trace a pass in about ms
+        //--scene <file> shows a text or binary scene instead of random spheres
+        //--mesh <file> adds the triangles of a model file Assimp can read, may be repeated
+        String recordPattern = null;
+        String sceneFile = null;
+        List<String> meshFiles = new ArrayList<>();
+        PixelFormat recordFormat = PixelFormat.RGBA8;
+        double targetPassMillis = 0, minScale = 0.5, maxScale = 1.0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--record") && i + 1 < args.length) {
+                recordPattern = args[++i];
+            } else if (args[i].equals("--record-format") && i + 1 < args.length) {
+                recordFormat = PixelFormat.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("--profile")) {
+                w.setProfiling(true);
+            } else if (args[i].equals("--no-tune")) {
+                w.setAutoTuneWorkGroupSize(false);
+            } else if (args[i].equals("--dynamic-resolution") && i + 1 < args.length) {
+                targetPassMillis = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--scale-range") && i + 1 < args.length) {
+                String[] range = args[++i].split("-");
+                minScale = Double.parseDouble(range[0]);
+                maxScale = Double.parseDouble(range[range.length - 1]);
+            } else if (args[i].equals("--scene") && i + 1 < args.length) {
+                sceneFile = args[++i];
+            } else if (args[i].equals("--mesh") && i + 1 < args.length) {
+                meshFiles.add(args[++i]);
+            }
+        }
+        if (targetPassMillis > 0) {
+            w.setDynamicResolution(targetPassMillis, minScale, maxScale);
+        }
+        if (recordPattern != null) {
+            w.record(recordPattern, recordFormat);
+        }
+
+
+        if (sceneFile != null) {
+            //The window has its own camera controls, so camera keyframes are ignored
+            readScene(Paths.get(sceneFile), w.currentScene, new CameraPath());
+        } else {
+            for (int i = 0; i < SPHERES; i++) {
+                w.currentScene.spheresInScene.add(
+                        new Sphere(
+                                Material.DEFAULT_MATERIAL, new Vector3f((float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2),(float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2),(float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2)),
+                                (float) (((Math.random() + 0.4) * 0.5))));
+            }
+
+            for (int i = 0; i < LIGHTS; i++) {
+                w.currentScene.lightsInScene.add(
+                        new Light(new Vector3f((float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2),(float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2),(float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2)),
+                                new Vector3f((float)Math.random(), (float)Math.random(), (float)Math.random()),
+                                (float) ((Math.random() + 5) * 3)));
+            }
+
+            w.currentScene.lightsInScene.add(new Light(new Vector3f(0.0f, 200.0f, 0.0f), new Vector3f(1.0f), 2000f));
+        }
+        importMeshes(meshFiles, w.currentScene);
+
+        w.run();
+        printProgramCacheStats();
+    }
 
-        for (int i = 0; i < SPHERES; i++) {
-            w.currentScene.spheresInScene.add(
-                    new Sphere(
-                            Material.DEFAULT_MATERIAL, new Vector3f((float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2),(float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2),(float) ((Math.random() * SPHERE_SPREAD) - SPHERE_SPREAD / 2)),
-                            (float) (((Math.random() + 0.4) * 0.5))));
+    //Reads a binary scene if the file is one, a text scene otherwise
+    private static void readScene(Path file, Scene scene, CameraPath cameraPath) throws IOException {
+        if (BinaryScene.isBinaryScene(file)) {
+            BinaryScene.open(file).readInto(scene, cameraPath);
+        } else {
+            TextSceneReader.read(file, scene, cameraPath);
         }
+    }
 
-        for (int i = 0; i < LIGHTS; i++) {
-            w.currentScene.lightsInScene.add(
-                    new Light(new Vector3f((float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2),(float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2),(float) ((Math.random() * LIGHT_SPREAD) - LIGHT_SPREAD / 2)),
-                            new Vector3f((float)Math.random(), (float)Math.random(), (float)Math.random()),
-                            (float) ((Math.random() + 5) * 3)));
+    private static void importMeshes(List<String> meshFiles, Scene scene) throws IOException {
+        MeshImporter importer = new MeshImporter();
+        for (String meshFile : meshFiles) {
+            System.out.println(meshFile + ": " + importer.importInto(Paths.get(meshFile), scene.meshStore));
         }
+    }
 
-        w.currentScene.lightsInScene.add(new Light(new Vector3f(0.0f, 200.0f, 0.0f), new Vector3f(1.0f), 2000f));
+    private static void printProgramCacheStats() {
+        if (ShaderProgram.getProgramCache() != null) {
+            System.out.println(ShaderProgram.getProgramCache());
+        }
+    }
 
-        w.run();
+    //Renders a frame range of a scene file to images, without a window
+    private static void runBatch(String[] args) throws IOException, InterruptedException {
+        BatchOptions options;
+        try {
+            options = BatchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BatchOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Scene scene = new Scene();
+        CameraPath cameraPath = new CameraPath();
+        readScene(Paths.get(options.scene), scene, cameraPath);
+        importMeshes(options.meshes, scene);
+
+        //Same starting point as the window's camera
+        Camera camera = new Camera();
+        camera.getPosition().add(5.0f, 0.0f, 0.0f);
+
+        if (options.renderer == BatchOptions.Renderer.FARM) {
+            renderOnFarm(options, scene, camera, cameraPath);
+            return;
+        }
+        if (options.renderer == BatchOptions.Renderer.CPU && options.samples > 1) {
+            renderAccumulated(options, scene, camera, cameraPath);
+            return;
+        }
+        try (FrameRenderer renderer = options.renderer == BatchOptions.Renderer.GL ? new OffscreenRenderer() : new CpuRaytracer()) {
+            renderFrames(renderer, options, scene, camera, cameraPath);
+            if (renderer instanceof OffscreenRenderer && ((OffscreenRenderer) renderer).getWorkGroupTuning() != null) {
+                System.out.println(((OffscreenRenderer) renderer).getWorkGroupTuning());
+            }
+        }
+        if (options.renderer == BatchOptions.Renderer.GL) {
+            printProgramCacheStats();
+        }
+    }
+
+    private static void renderFrames(FrameRenderer renderer, BatchOptions options, Scene scene, Camera camera,
+                                     CameraPath cameraPath) throws IOException, InterruptedException {
+        BatchRenderer batch = new BatchRenderer(renderer, options.width, options.height, options.queueDepth, options.writerThreads);
+        BatchRenderer.Stats stats = batch.render(scene, camera, cameraPath, options.firstFrame, options.lastFrame, options.output);
+        System.out.println(stats);
+    }
+
+    //Renders every frame on the CPU until it converges, adaptively unless the error threshold is zero
+    private static void renderAccumulated(BatchOptions options, Scene scene, Camera camera, CameraPath cameraPath) throws IOException, InterruptedException {
+        Accumulation accumulation = new Accumulation();
+        accumulation.setMaxSamples(options.samples);
+        accumulation.setAdaptive(options.errorThreshold > 0);
+        accumulation.setErrorThreshold(options.errorThreshold);
+        try (CpuRaytracer raytracer = new CpuRaytracer()) {
+            raytracer.setAccumulation(accumulation);
+            renderFrames(raytracer, options, scene, camera, cameraPath);
+        }
+        System.out.println("Last frame: " + accumulation);
+    }
+
+    //Renders the frames on worker processes, starting some on this machine if asked to
+    private static void renderOnFarm(BatchOptions options, Scene scene, Camera camera, CameraPath cameraPath) throws IOException, InterruptedException {
+        FarmCoordinator farm = new FarmCoordinator(options.farmPort, FarmCoordinator.DEFAULT_TILE_SIZE);
+        LocalWorkers localWorkers = null;
+        try {
+            if (options.farmSpawn > 0) {
+                localWorkers = new LocalWorkers(options.farmSpawn, farm.getPort(), Main.class.getName());
+            }
+            int workers = Math.max(options.farmWorkers, options.farmSpawn);
+            System.out.println("Waiting for " + workers + " workers on port " + farm.getPort());
+            farm.awaitWorkers(workers, FarmCoordinator.DEFAULT_WORKER_TIMEOUT_MILLIS);
+            renderFrames(farm, options, scene, camera, cameraPath);
+            System.out.println(farm);
+        } finally {
+            //Shuts the workers down before waiting for them to exit
+            farm.close();
+            if (localWorkers != null) {
+                localWorkers.close();
+            }
+        }
+    }
+
+    //Answers render requests until the process is stopped
+    private static void runServer(String[] args) throws IOException, InterruptedException {
+        ServerOptions options;
+        try {
+            options = ServerOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        RenderContext.Factory contexts = options.renderer == ServerOptions.Renderer.GL ? Main::glRenderContext : RenderContext.cpu();
+        RenderService service = new RenderService(contexts, options.contexts, options.queueCapacity, new RenderCache(options.cacheBytes));
+        RenderServer server = new RenderServer(options.port, service);
+        server.start();
+        System.out.println("Serving renders on port " + server.getPort() + " with " + service);
+
+        //The context threads keep the process alive, stopping it closes the server first so no request is cut off mid render
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            service.close();
+            System.out.println(service);
+        }));
+    }
+
+    //The compute shader in a hidden window, one sample per pixel
+    private static RenderContext glRenderContext() throws IOException {
+        OffscreenRenderer renderer = new OffscreenRenderer();
+        return new RenderContext() {
+            @Override
+            public void render(RenderRequest request, FloatImage target) {
+                renderer.setParameters(request.getParameters());
+                renderer.render(request.getScene(), request.getCamera(), target);
+            }
+
+            @Override
+            public void close() {
+                renderer.close();
+            }
+        };
+    }
+
+    //Traces tiles for a coordinator until it shuts the worker down
+    private static void runFarmWorker(String[] args) throws IOException {
+        if (args.length < 1 || args[0].lastIndexOf(':') < 0) {
+            System.err.println("Usage: --farm-worker <host:port> [--threads <n>]");
+            System.exit(2);
+            return;
+        }
+        String host = args[0].substring(0, args[0].lastIndexOf(':'));
+        int port = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length >= 3 && args[1].equals("--threads")) {
+            threads = Integer.parseInt(args[2]);
+        }
+
+        ForkJoinPool pool = threads == ForkJoinPool.getCommonPoolParallelism() ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+        FarmWorker worker = new FarmWorker(new CpuRaytracer(pool, CpuRaytracer.DEFAULT_TILE_SIZE), threads);
+        worker.run(new InetSocketAddress(host, port));
+        System.out.println("Worker finished: " + worker);
     }
 }
@@ -0,0 +1,112 @@
+import cpu.FloatImage;
+import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.opengl.GL;
+import render.FrameRenderer;
+import render.TileScheduler;
+import render.TraceParameters;
+import scene.Camera;
+import scene.Scene;
+
+import java.io.IOException;
+
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Renders frames with the compute shader into a texture and reads them back, without showing anything.
+ * GLFW still needs a display to create the hidden window's context.
+ * Must be used from the thread that created it.
+ */
+public class OffscreenRenderer implements FrameRenderer {
+    private final long window;
+    private final ComputeShader computeShader;
+
+    private int framebufferTex;
+    private int width, height;
+
+    public OffscreenRenderer() throws IOException {
+        GLFWErrorCallback.createPrint(System.err).set();
+        if ( !glfwInit() )
+            throw new IllegalStateException("Unable to initialize GLFW");
+
+        glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+        glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GLFW_TRUE);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
+        glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+
+        window = glfwCreateWindow(1, 1, "Raytracer", NULL, NULL);
+        if ( window == NULL )
+            throw new RuntimeException("Failed to create the GLFW window");
+        glfwMakeContextCurrent(window);
+        GL.createCapabilities();
+
+        computeShader = new ComputeShader("compute.glsl", 0);
+        //One complete sample per frame, exactly like the CPU tracer
+        computeShader.getAccumulation().setEnabled(false);
+        computeShader.getTileScheduler().setBudgetNanos(TileScheduler.UNLIMITED);
+    }
+
+    /**
+     * Sets the quality of the frames rendered from now on
+     */
+    public void setParameters(TraceParameters parameters) {
+        computeShader.setParameters(parameters);
+    }
+
+    /**
+     * See {@link ComputeShader#getWorkGroupTuning()}
+     */
+    public String getWorkGroupTuning() {
+        return computeShader.getWorkGroupTuning();
+    }
+
+    @Override
+    public void render(Scene scene, Camera camera, FloatImage target) {
+        if (target.getWidth() != width || target.getHeight() != height) {
+            resize(target.getWidth(), target.getHeight());
+        }
+
+        computeShader.currentScene = scene;
+        computeShader.camera.getPosition().set(camera.getPosition());
+        computeShader.camera.getDirection().set(camera.getDirection());
+        computeShader.camera.getUpDirection().set(camera.getUpDirection());
+
+        computeShader.useProgram();
+        computeShader.update();
+
+        //Same layout as FloatImage, rows from the bottom up
+        glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+        glBindTexture(GL_TEXTURE_2D, framebufferTex);
+        glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_FLOAT, target.getPixels());
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+
+    private void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        glDeleteTextures(framebufferTex);
+        framebufferTex = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, framebufferTex);
+        glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA32F, width, height);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        //Same projection as Window.recalculateProjectionMatrix
+        computeShader.projMatrix.setPerspective((float) Math.toRadians(60.0f), (float) width / height, 1f, 2f);
+        computeShader.setFramebufferTexture(framebufferTex);
+        computeShader.setDimensions(width, height);
+    }
+
+    @Override
+    public void close() {
+        computeShader.dispose();
+        glDeleteTextures(framebufferTex);
+        glfwDestroyWindow(window);
+        glfwTerminate();
+        glfwSetErrorCallback(null).free();
+    }
+}
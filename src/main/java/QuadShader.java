@@ -9,16 +9,11 @@ public class QuadShader extends ShaderProgram {
 
     private final int vaoID;
     private final int sampler;
-    private final int framebufferTextureID;
+    private int framebufferTextureID;
     private int texUniform;
 
-    private final int vertexShader, fragmentShader;
-
     public QuadShader(String vertexFilename, String fragmentFilename, int framebufferTextureID) throws IOException {
-        this.vertexShader = super.createShader(vertexFilename, GL_VERTEX_SHADER);
-        this.fragmentShader = super.createShader(fragmentFilename, GL_FRAGMENT_SHADER);
-
-        super.attachAndLink(vertexShader, fragmentShader);
+        this.programID = buildProgram(stage(vertexFilename, GL_VERTEX_SHADER), stage(fragmentFilename, GL_FRAGMENT_SHADER));
 
         this.framebufferTextureID = framebufferTextureID;
 
@@ -34,6 +29,22 @@ public class QuadShader extends ShaderProgram {
         stopUsingProgram();
     }
 
+    /**
+     * Sets the texture drawn to the screen, e.g. after it was recreated at a new size
+     */
+    public void setFramebufferTexture(int framebufferTextureID) {
+        this.framebufferTextureID = framebufferTextureID;
+    }
+
+    /**
+     * Filters the texture linearly instead of picking the nearest texel, for textures smaller than the window
+     */
+    public void setLinearFiltering(boolean linear) {
+        int filter = linear ? GL_LINEAR : GL_NEAREST;
+        glSamplerParameteri(this.sampler, GL_TEXTURE_MIN_FILTER, filter);
+        glSamplerParameteri(this.sampler, GL_TEXTURE_MAG_FILTER, filter);
+    }
+
     @Override
     public void update() {
         useProgram();
@@ -49,10 +60,6 @@ public class QuadShader extends ShaderProgram {
 
     @Override
     public void dispose() {
-        glDetachShader(programID, vertexShader);
-        glDeleteShader(vertexShader);
-        glDetachShader(programID, fragmentShader);
-        glDeleteShader(fragmentShader);
         glDeleteProgram(programID);
     }
 }
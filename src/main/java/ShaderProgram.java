@@ -1,21 +1,34 @@
+import org.joml.Matrix4f;
 import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
-import org.lwjgl.PointerBuffer;
+import render.ProgramBinaryCache;
+import render.ShaderPreprocessor;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.glBindFragDataLocation;
-import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
+import static org.lwjgl.opengl.GL41.*;
 
 
 public abstract class ShaderProgram {
 
+    private static final String PROGRAM_CACHE_PROPERTY = "raytracer.programCache";
+    private static ProgramBinaryCache programCache;
+    private static boolean programCacheResolved;
+
     protected int programID;
 
 
@@ -45,30 +58,134 @@ public abstract class ShaderProgram {
         int uniformLocation = glGetUniformLocation(programID, uniformName);
         glUniform1f(uniformLocation, value);
     }
+    protected void setUniform(String uniformName, Matrix4f value) {
+        int uniformLocation = glGetUniformLocation(programID, uniformName);
+        glUniformMatrix4fv(uniformLocation, false, value.get(new float[16]));
+    }
 
 
 
 
-    //Creates a shader object from the given file
-    public int createShader(String filename, int type) throws IOException {
-        //Shader pointer
-        int shader = glCreateShader(type);
+    /**
+     * Shader file and the stage it is compiled for
+     */
+    protected static class Stage {
+        final String filename;
+        final int type;
+
+        Stage(String filename, int type) {
+            this.filename = filename;
+            this.type = type;
+        }
+    }
+
+    protected static Stage stage(String filename, int type) {
+        return new Stage(filename, type);
+    }
+
+    /**
+     * Cache of linked programs shared by every shader, null if caching is disabled.
+     * The directory is taken from the raytracer.programCache system property, "off" disables it.
+     */
+    public static synchronized ProgramBinaryCache getProgramCache() {
+        if (!programCacheResolved) {
+            String directory = System.getProperty(PROGRAM_CACHE_PROPERTY);
+            if (directory == null) {
+                programCache = new ProgramBinaryCache(Paths.get(System.getProperty("user.home"), ".cache", "gpuraytracer", "programs"));
+            } else if (!directory.isEmpty() && !directory.equals("off")) {
+                programCache = new ProgramBinaryCache(Paths.get(directory));
+            }
+            programCacheResolved = true;
+        }
+        return programCache;
+    }
 
-        //Read file into bytebuffer
-        byte[] sourceData = this.getClass().getResourceAsStream(filename).readAllBytes();
+    protected int buildProgram(Stage... stages) throws IOException {
+        return buildProgram(Collections.emptyMap(), stages);
+    }
+
+    /**
+     * Compiles and links the stages into a program, or loads the binary linked by an earlier run
+     * with the same sources, defines and driver. Shader objects are deleted once linked.
+     *
+     * @param defines injected into every stage, see {@link ShaderPreprocessor}
+     * @return the program
+     */
+    protected int buildProgram(Map<String, String> defines, Stage... stages) throws IOException {
+        long start = System.nanoTime();
 
-        ByteBuffer source = ByteBuffer.wrap(sourceData).flip();
+        List<String> sources = new ArrayList<>();
+        for (Stage stage : stages) {
+            sources.add(Integer.toString(stage.type));
+            sources.add(ShaderPreprocessor.injectDefines(readSource(stage.filename), defines));
+        }
 
+        //Drivers without binary formats cannot give us anything to cache
+        ProgramBinaryCache cache = getProgramCache();
+        if (cache != null && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) == 0) {
+            cache = null;
+        }
 
-        PointerBuffer strings = BufferUtils.createPointerBuffer(1);
-        IntBuffer lengths = BufferUtils.createIntBuffer(1);
+        String key = null;
+        if (cache != null) {
+            key = ProgramBinaryCache.keyOf(driverString(), defines, sources);
+            ProgramBinaryCache.Entry entry = cache.load(key);
+            if (entry != null) {
+                int program = loadBinary(entry);
+                if (program != 0) {
+                    long nanos = System.nanoTime() - start;
+                    cache.recordHit(nanos);
+                    return program;
+                }
+                cache.reject(key, "driver refused it");
+            }
+        }
 
-        strings.put(0, source);
-        lengths.put(0, source.remaining());
+        int program = glCreateProgram();
+        if (cache != null) {
+            glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+        int[] shaders = new int[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            shaders[i] = compileShader(sources.get(2 * i + 1), stages[i].type);
+            glAttachShader(program, shaders[i]);
+            if (stages[i].type == GL_FRAGMENT_SHADER) {
+                glBindFragDataLocation(program, 0, "color");
+            }
+        }
+
+        //Link shader
+        link(program);
+        for (int shader : shaders) {
+            glDetachShader(program, shader);
+            glDeleteShader(shader);
+        }
+
+        long nanos = System.nanoTime() - start;
+        if (cache != null) {
+            storeBinary(cache, key, program);
+            cache.recordMiss(nanos);
+        }
+        return program;
+    }
+
+    //Reads a shader from the classpath
+    private String readSource(String filename) throws IOException {
+        try (InputStream in = this.getClass().getResourceAsStream(filename)) {
+            if (in == null) {
+                throw new IOException("Shader not found: " + filename);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    //Creates a shader object from the given source
+    private int compileShader(String source, int type) {
+        //Shader pointer
+        int shader = glCreateShader(type);
 
         //Set source
-        //glShaderSource(shader, strings, lengths);
-        glShaderSource(shader, new String(sourceData).subSequence(0, sourceData.length));
+        glShaderSource(shader, source);
 
         //Compile and print any errors
         glCompileShader(shader);
@@ -83,33 +200,38 @@ public abstract class ShaderProgram {
         return shader;
     }
 
-    public void attachAndLink(int shaderObjectID) {
-        //Create shader program
-        int program = glCreateProgram();
-
-        //Attach compiled shader
-        glAttachShader(program, shaderObjectID);
+    //Creates a program from a cached binary, 0 if the driver no longer accepts it
+    private static int loadBinary(ProgramBinaryCache.Entry entry) {
+        ByteBuffer binary = BufferUtils.createByteBuffer(entry.binary.length);
+        binary.put(entry.binary).flip();
 
-        //Link shader
-        link(program);
-
-        this.programID = program;
-    }
-
-    public void attachAndLink(int vertexShaderID, int fragmentShaderID) {
-        //Create shader program
         int program = glCreateProgram();
+        glProgramBinary(program, entry.format, binary);
+        if (glGetProgrami(program, GL_LINK_STATUS) == 0) {
+            glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
 
-        //Attach compiled shader
-        glAttachShader(program, vertexShaderID);
-        glAttachShader(program, fragmentShaderID);
-
-        glBindFragDataLocation(program, 0, "color");
-
-        //Link shader
-        link(program);
+    private static void storeBinary(ProgramBinaryCache cache, String key, int program) {
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return;
+        }
+        ByteBuffer binary = BufferUtils.createByteBuffer(length);
+        IntBuffer written = BufferUtils.createIntBuffer(1);
+        IntBuffer format = BufferUtils.createIntBuffer(1);
+        glGetProgramBinary(program, written, format, binary);
+
+        byte[] bytes = new byte[written.get(0)];
+        binary.get(bytes);
+        cache.store(key, format.get(0), bytes);
+    }
 
-        this.programID = program;
+    //Identifies the driver, a binary only loads into the driver that produced it
+    protected static String driverString() {
+        return glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|" + glGetString(GL_VERSION);
     }
 
     private void link(int pid) throws AssertionError {
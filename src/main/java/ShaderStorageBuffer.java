@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+
+/**
+ * A shader storage buffer whose data store only grows, so uploads of a similar size reuse it
+ */
+public class ShaderStorageBuffer {
+    private final int bufferID;
+    private final int binding;
+    private long capacity;
+
+    public ShaderStorageBuffer(int binding, long initialCapacity) {
+        this.bufferID = glGenBuffers();
+        this.binding = binding;
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferID);
+        allocate(Math.max(initialCapacity, 16));
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    /**
+     * Uploads the remaining bytes of data to the start of the buffer, growing it if required
+     */
+    public void upload(ByteBuffer data) {
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferID);
+        if (data.remaining() > capacity) {
+            allocate(Math.max(data.remaining(), capacity * 2));
+        }
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, data);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    /**
+     * Uploads bytes [offset, offset + length) of data to the same place in the buffer, leaving the
+     * rest as it is. The buffer must already be large enough.
+     */
+    public void uploadRange(ByteBuffer data, long offset, int length) {
+        if (offset + length > capacity) {
+            throw new IllegalArgumentException("Range ends at " + (offset + length) + " past the buffer's " + capacity + " bytes");
+        }
+        ByteBuffer range = data.duplicate();
+        range.limit((int) offset + length).position((int) offset);
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferID);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, offset, range);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    /**
+     * Grows the buffer to at least the given size for the shader to write, its contents are
+     * undefined if it had to grow
+     */
+    public void reserve(long bytes) {
+        if (bytes > capacity) {
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferID);
+            allocate(Math.max(bytes, capacity * 2));
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of target from the buffer, starting at offset. Waits for the shader
+     * writes before it, so keep it small.
+     */
+    public void read(long offset, ByteBuffer target) {
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, bufferID);
+        glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, offset, target);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public void bind() {
+        bind(binding);
+    }
+
+    public void unbind() {
+        unbind(binding);
+    }
+
+    /**
+     * Binds the buffer to another binding than its own, e.g. for two buffers that swap roles between passes
+     */
+    public void bind(int binding) {
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, bufferID);
+    }
+
+    public void unbind(int binding) {
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, 0);
+    }
+
+    //Replaces the data store of the currently bound buffer
+    private void allocate(long bytes) {
+        glBufferData(GL_SHADER_STORAGE_BUFFER, bytes, GL_DYNAMIC_DRAW);
+        capacity = bytes;
+    }
+
+    public void dispose() {
+        glDeleteBuffers(bufferID);
+    }
+}
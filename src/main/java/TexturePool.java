@@ -0,0 +1,102 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL42.glTexStorage2D;
+
+/**
+ * Keeps released 2D textures around so a texture of the same size and format can be handed out
+ * again instead of being recreated, e.g. while the traced resolution moves between a few scales.
+ *
+ * Textures use immutable storage, so only exact matches are reused. The least recently released
+ * idle texture is deleted once more than the capacity are idle. Needs the GL context current.
+ */
+public class TexturePool {
+    private static final class Texture {
+        final int id, width, height, internalFormat;
+
+        Texture(int id, int width, int height, int internalFormat) {
+            this.id = id;
+            this.width = width;
+            this.height = height;
+            this.internalFormat = internalFormat;
+        }
+    }
+
+    private final int capacity;
+    //Most recently released last
+    private final LinkedList<Texture> idle = new LinkedList<>();
+    private final Map<Integer, Texture> inUse = new HashMap<>();
+    private long reused, created;
+
+    /**
+     * @param capacity most idle textures kept
+     */
+    public TexturePool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * A texture of the given size and format, with undefined contents
+     */
+    public int acquire(int width, int height, int internalFormat) {
+        for (Iterator<Texture> it = idle.descendingIterator(); it.hasNext(); ) {
+            Texture texture = it.next();
+            if (texture.width == width && texture.height == height && texture.internalFormat == internalFormat) {
+                it.remove();
+                inUse.put(texture.id, texture);
+                reused++;
+                return texture.id;
+            }
+        }
+
+        int id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, id);
+        glTexStorage2D(GL_TEXTURE_2D, 1, internalFormat, width, height);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        inUse.put(id, new Texture(id, width, height, internalFormat));
+        created++;
+        return id;
+    }
+
+    /**
+     * Hands a texture from {@link #acquire} back, 0 is ignored
+     */
+    public void release(int id) {
+        if (id == 0) {
+            return;
+        }
+        Texture texture = inUse.remove(id);
+        if (texture == null) {
+            throw new IllegalArgumentException("Texture " + id + " does not belong to this pool");
+        }
+        idle.addLast(texture);
+        while (idle.size() > capacity) {
+            glDeleteTextures(idle.removeFirst().id);
+        }
+    }
+
+    public long getReused() {
+        return reused;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Deletes every texture, including those still in use
+     */
+    public void dispose() {
+        for (Texture texture : idle) {
+            glDeleteTextures(texture.id);
+        }
+        for (Texture texture : inUse.values()) {
+            glDeleteTextures(texture.id);
+        }
+        idle.clear();
+        inUse.clear();
+    }
+}
@@ -1,8 +1,14 @@
+import batch.FrameRecorder;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 import org.lwjgl.system.*;
+import render.FramePhase;
+import render.PixelFormat;
+import render.ResolutionController;
+import render.TraceParameters;
 import scene.Camera;
 import scene.Scene;
+import scene.SimulationThread;
 
 import java.io.IOException;
 import java.nio.*;
@@ -24,18 +30,62 @@ public class Window {
     private ComputeShader computeShader;
     private QuadShader quadShader;
 
-    private boolean resetFramebuffer = true;
+    //Set whenever the traced image no longer matches what should be on screen: the framebuffer was resized,
+    //the camera moved or the scene changed. The next frame then starts accumulating from scratch.
+    private boolean invalidated = true;
 
     private int width = 1280, height = 720;
     private static final float MOVEMENT_SPEED = 1.0f;
 
     private int framebufferTex;
+    private int framebufferWidth, framebufferHeight;
 
+    //Framebuffer, accumulation, moments, surface and history textures of the last few traced resolutions
+    private static final int TEXTURE_POOL_CAPACITY = 12;
+    private final TexturePool texturePool = new TexturePool(TEXTURE_POOL_CAPACITY);
+
+    //Scales the traced resolution to hold a pass time, null traces at window resolution
+    private ResolutionController resolution;
+    private long passesSeen;
+
+    //The scene is simulated on its own thread and copied into the traced one whenever it changed
+    private static final int SIMULATION_TICKS_PER_SECOND = 60;
+    private final SimulationThread simulation = new SimulationThread(SIMULATION_TICKS_PER_SECOND);
+
+    //The simulated scene, populate it before run
     public Scene currentScene;
 
+    //Frames are read back asynchronously and written to disk while recording
+    private static final int RECORDER_BUFFERS = 8;
+    private static final int RECORDER_THREADS = 2;
+    private FramebufferReadback readback;
+    private FrameRecorder recorder;
+    private boolean recording;
+
+    //Phase timings, printed every few seconds while enabled
+    private static final long PROFILE_DUMP_INTERVAL_MILLIS = 5000;
+    private final FrameProfiler profiler = new FrameProfiler(PROFILE_DUMP_INTERVAL_MILLIS);
+
     public void run() {
+        simulation.start();
         loop();
 
+        simulation.close();
+        System.out.println(simulation);
+        if (computeShader.getWorkGroupTuning() != null) {
+            System.out.println(computeShader.getWorkGroupTuning());
+        }
+
+        if (readback != null) {
+            stopRecording();
+        }
+
+        //GL objects have to go while the context is still current
+        quadShader.dispose();
+        computeShader.dispose();
+        profiler.dispose();
+        texturePool.dispose();
+
         // Free the window callbacks and destroy the window
         glfwFreeCallbacks(window);
         glfwDestroyWindow(window);
@@ -43,9 +93,46 @@ public class Window {
         // Terminate GLFW and free the error callback
         glfwTerminate();
         glfwSetErrorCallback(null).free();
+    }
 
-        quadShader.dispose();
-        computeShader.dispose();
+    /**
+     * Starts or stops timing the phases of every frame and printing percentiles, I toggles it too.
+     * Call after init.
+     */
+    public void setProfiling(boolean profiling) {
+        profiler.setEnabled(profiling);
+    }
+
+    /**
+     * Whether to time the work group sizes on the first frame, see ComputeShader. Call after init.
+     */
+    public void setAutoTuneWorkGroupSize(boolean autoTune) {
+        computeShader.setAutoTuneWorkGroupSize(autoTune);
+    }
+
+    /**
+     * Traces at a fraction of the window resolution, between the given bounds, chosen so a pass
+     * over the whole image takes about the target time. The quad pass upscales it to the window.
+     */
+    public void setDynamicResolution(double targetMillis, double minScale, double maxScale) {
+        resolution = new ResolutionController((long) (targetMillis * 1_000_000), minScale, maxScale);
+        invalidate();
+    }
+
+    /**
+     * Records every frame to numbered image files from the first frame on, R pauses and resumes recording.
+     * Call after init.
+     */
+    public void record(String outputPattern, PixelFormat format) {
+        recorder = new FrameRecorder(outputPattern, RECORDER_BUFFERS, RECORDER_THREADS);
+        readback = new FramebufferReadback(format, recorder);
+        recording = true;
+    }
+
+    private void stopRecording() {
+        readback.dispose();
+        recorder.close();
+        System.out.println(recorder);
     }
 
     public void init() {
@@ -74,22 +161,53 @@ public class Window {
             if ( key == GLFW_KEY_ESCAPE && action == GLFW_RELEASE )
                 glfwSetWindowShouldClose(window, true); // We will detect this in the rendering loop
             if ((key == GLFW_KEY_DOWN || key == GLFW_KEY_S) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(MOVEMENT_SPEED, 0.0f, 0.0f);
+                moveCamera(MOVEMENT_SPEED, 0.0f, 0.0f);
             }
             if ((key == GLFW_KEY_UP || key == GLFW_KEY_W) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(-MOVEMENT_SPEED, 0.0f, 0.0f);
+                moveCamera(-MOVEMENT_SPEED, 0.0f, 0.0f);
             }
             if ((key == GLFW_KEY_LEFT || key == GLFW_KEY_A) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(0.0f, 0.0f, -MOVEMENT_SPEED);
+                moveCamera(0.0f, 0.0f, -MOVEMENT_SPEED);
             }
             if ((key == GLFW_KEY_RIGHT || key == GLFW_KEY_D) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(0.0f, 0.0f, MOVEMENT_SPEED);
+                moveCamera(0.0f, 0.0f, MOVEMENT_SPEED);
             }
             if ((key == GLFW_KEY_SPACE || key == GLFW_KEY_Z) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(0.0f, -MOVEMENT_SPEED, 0.0f);
+                moveCamera(0.0f, -MOVEMENT_SPEED, 0.0f);
             }
             if ((key == GLFW_KEY_LEFT_SHIFT || key == GLFW_KEY_X) && (action == GLFW_PRESS || action == GLFW_REPEAT)) {
-                this.getCamera().getPosition().add(0.0f, MOVEMENT_SPEED, 0.0f);
+                moveCamera(0.0f, MOVEMENT_SPEED, 0.0f);
+            }
+            //Toggle progressive accumulation
+            if (key == GLFW_KEY_P && action == GLFW_PRESS) {
+                computeShader.getAccumulation().setEnabled(!computeShader.getAccumulation().isEnabled());
+            }
+            //Toggle the heatmap of samples per pixel, printing how many the current image took
+            if (key == GLFW_KEY_H && action == GLFW_PRESS) {
+                System.out.println(computeShader.getAccumulation());
+                computeShader.setShowSampleHeatmap(!computeShader.isShowSampleHeatmap());
+            }
+            //Toggle reuse of the last image's colours after the camera moved
+            if (key == GLFW_KEY_T && action == GLFW_PRESS) {
+                computeShader.setReprojection(!computeShader.isReprojection());
+                System.out.println("Reprojection " + (computeShader.isReprojection() ? "on" : "off"));
+            }
+            //Switch between full quality and the cheaper preview
+            if (key == GLFW_KEY_Q && action == GLFW_PRESS) {
+                TraceParameters parameters = computeShader.getParameters();
+                computeShader.setParameters(parameters.equals(TraceParameters.PREVIEW) ? TraceParameters.DEFAULT : TraceParameters.PREVIEW);
+            }
+            //Toggle frame phase profiling
+            if (key == GLFW_KEY_I && action == GLFW_PRESS) {
+                profiler.setEnabled(!profiler.isEnabled());
+            }
+            //Pause or resume recording
+            if (key == GLFW_KEY_R && action == GLFW_PRESS && recorder != null) {
+                recording = !recording;
+            }
+            //Freeze the animation so a still image can converge
+            if (key == GLFW_KEY_F && action == GLFW_PRESS) {
+                simulation.post(scene -> scene.setAnimationPaused(!scene.isAnimationPaused()));
             }
         });
 
@@ -100,8 +218,7 @@ public class Window {
                 if (width > 0 && height > 0 && (Window.this.width != width || Window.this.height != height)) {
                     Window.this.width = width;
                     Window.this.height = height;
-                    Window.this.resetFramebuffer = true;
-                    computeShader.setDimensions(width, height);
+                    Window.this.invalidate();
                 }
             }
         });
@@ -140,23 +257,39 @@ public class Window {
             quadShader = new QuadShader("vertex.glsl", "fragment.glsl", framebufferTex);
             computeShader = new ComputeShader("compute.glsl", framebufferTex);
             computeShader.setDimensions(width, height);
+            computeShader.setProfiler(profiler);
+            computeShader.setTexturePool(texturePool);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        currentScene = computeShader.currentScene;
-        this.getCamera().getPosition().add(5.0f, 0.0f, 0.0f);
+        currentScene = simulation.getScene();
+        currentScene.camera.getPosition().add(5.0f, 0.0f, 0.0f);
+    }
+
+    //The simulation owns the camera, the traced one follows it
+    private void moveCamera(float x, float y, float z) {
+        simulation.post(scene -> scene.camera.getPosition().add(x, y, z));
     }
 
 
     private void createFramebufferTex() {
-        this.framebufferTex = glGenTextures();
         glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, framebufferTex);
-        glTexStorage2D(GL_TEXTURE_2D, 1, GL_RGBA32F, width, height);
-        glBindTexture(GL_TEXTURE_2D, 0);
+        this.framebufferTex = texturePool.acquire(width, height, GL_RGBA32F);
+        framebufferWidth = width;
+        framebufferHeight = height;
+    }
+
+    /**
+     * Discards the accumulated image, the camera and scene are also checked for changes every frame
+     */
+    public void invalidate() {
+        invalidated = true;
     }
 
+    /**
+     * Camera of the traced image, a copy of the simulated scene's camera updated every frame
+     */
     public Camera getCamera() {
         return computeShader.camera;
     }
@@ -164,20 +297,45 @@ public class Window {
     private void traceScene() {
         computeShader.useProgram();
 
-        if (resetFramebuffer) {
+        if (invalidated) {
+            int traceWidth = resolution == null ? width : resolution.scale(width);
+            int traceHeight = resolution == null ? height : resolution.scale(height);
+            if (framebufferWidth != traceWidth || framebufferHeight != traceHeight) {
+                resizeFramebufferTex(traceWidth, traceHeight);
+            }
             recalculateProjectionMatrix();
+            computeShader.invalidate();
+            invalidated = false;
         }
 
         computeShader.update();
 
+        //Every completed pass tells the controller how long the current resolution takes
+        if (resolution != null && computeShader.getPassesCompleted() != passesSeen) {
+            passesSeen = computeShader.getPassesCompleted();
+            if (resolution.recordPass(computeShader.getLastPassNanos())) {
+                invalidate();
+            }
+        }
+
         glUseProgram(0);
     }
 
     private void recalculateProjectionMatrix() {
         computeShader.projMatrix.setPerspective((float) Math.toRadians(60.0f), (float) width / height, 1f, 2f);
-        glDeleteTextures(framebufferTex);
-        createFramebufferTex();
-        resetFramebuffer = false;
+    }
+
+    private void resizeFramebufferTex(int traceWidth, int traceHeight) {
+        texturePool.release(framebufferTex);
+        framebufferTex = texturePool.acquire(traceWidth, traceHeight, GL_RGBA32F);
+        framebufferWidth = traceWidth;
+        framebufferHeight = traceHeight;
+
+        computeShader.setFramebufferTexture(framebufferTex);
+        computeShader.setDimensions(traceWidth, traceHeight);
+        quadShader.setFramebufferTexture(framebufferTex);
+        //Smooth the upscaled image, at window resolution texels map to pixels one to one
+        quadShader.setLinearFiltering(traceWidth != width || traceHeight != height);
     }
 
     private void loop() {
@@ -188,10 +346,25 @@ public class Window {
 
             glViewport(0,0,width, height);
 
+            //Trace the latest state of the simulation, changes to it are picked up by the next pass
+            simulation.applyLatest(computeShader.currentScene, computeShader.camera);
             traceScene();
+
+            profiler.begin(FramePhase.QUAD);
             quadShader.update();
+            profiler.end(FramePhase.QUAD);
+
+            if (readback != null) {
+                if (recording) {
+                    readback.capture(framebufferTex, framebufferWidth, framebufferHeight);
+                }
+                readback.poll();
+            }
 
+            profiler.begin(FramePhase.SWAP);
             glfwSwapBuffers(window);
+            profiler.end(FramePhase.SWAP);
+            profiler.endFrame(computeShader.getPrimaryRaysLastFrame(), computeShader.getReusedPixelsLastFrame());
         }
     }
 }
@@ -0,0 +1,85 @@
+package accel;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A set of primitives an acceleration structure can be built over
+ */
+public interface BoundedPrimitives {
+    int primitiveCount();
+
+    /**
+     * Writes the axis aligned bounds of the primitive as minX, minY, minZ, maxX, maxY, maxZ
+     */
+    void getBounds(int primitive, float[] bounds);
+
+    /**
+     * Spheres stored as x, y, z, radius at the start of every stride floats
+     */
+    static BoundedPrimitives spheres(float[] data, int stride, int count) {
+        return new BoundedPrimitives() {
+            @Override
+            public int primitiveCount() {
+                return count;
+            }
+
+            @Override
+            public void getBounds(int primitive, float[] bounds) {
+                int s = primitive * stride;
+                setSphereBounds(bounds, data[s], data[s + 1], data[s + 2], data[s + 3]);
+            }
+        };
+    }
+
+    /**
+     * Spheres stored as x, y, z, radius at the start of every stride floats
+     */
+    static BoundedPrimitives spheres(FloatBuffer data, int stride, int count) {
+        return new BoundedPrimitives() {
+            @Override
+            public int primitiveCount() {
+                return count;
+            }
+
+            @Override
+            public void getBounds(int primitive, float[] bounds) {
+                int s = primitive * stride;
+                setSphereBounds(bounds, data.get(s), data.get(s + 1), data.get(s + 2), data.get(s + 3));
+            }
+        };
+    }
+
+    /**
+     * Triangles given as three vertex indices at the start of every four ints, into vertices
+     * stored as x, y, z at the start of every four floats
+     */
+    static BoundedPrimitives triangles(FloatBuffer vertices, IntBuffer triangles, int count) {
+        return new BoundedPrimitives() {
+            @Override
+            public int primitiveCount() {
+                return count;
+            }
+
+            @Override
+            public void getBounds(int primitive, float[] bounds) {
+                int t = primitive * 4;
+                int a = triangles.get(t) * 4, b = triangles.get(t + 1) * 4, c = triangles.get(t + 2) * 4;
+                for (int axis = 0; axis < 3; axis++) {
+                    float va = vertices.get(a + axis), vb = vertices.get(b + axis), vc = vertices.get(c + axis);
+                    bounds[axis] = Math.min(va, Math.min(vb, vc));
+                    bounds[axis + 3] = Math.max(va, Math.max(vb, vc));
+                }
+            }
+        };
+    }
+
+    private static void setSphereBounds(float[] bounds, float x, float y, float z, float radius) {
+        bounds[0] = x - radius;
+        bounds[1] = y - radius;
+        bounds[2] = z - radius;
+        bounds[3] = x + radius;
+        bounds[4] = y + radius;
+        bounds[5] = z + radius;
+    }
+}
@@ -0,0 +1,107 @@
+package accel;
+
+/**
+ * A bounding volume hierarchy flattened into arrays, so it can be copied straight to the GPU
+ * and traversed without a tree of objects.
+ *
+ * Every node has six bounds floats (min xyz, max xyz) and two ints: leftOrFirst and count.
+ * Interior nodes have a count of zero and their children at leftOrFirst and leftOrFirst + 1,
+ * leaves reference count entries of the primitive index list starting at leftOrFirst.
+ * The root is node 0 and every node also records its parent, so bounds can be refit bottom up.
+ * A builder refills the arrays in place so a hierarchy can be rebuilt
+ * every frame without allocating.
+ */
+public class Bvh {
+    public static final int BOUNDS_STRIDE = 6;
+    public static final int NODE_STRIDE = 2;
+
+    float[] bounds = new float[0];
+    int[] nodes = new int[0];
+    int[] parents = new int[0];
+    int[] primitiveIndices = new int[0];
+    int nodeCount;
+    int primitiveCount;
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getPrimitiveCount() {
+        return primitiveCount;
+    }
+
+    /**
+     * Node bounds, six floats per node
+     */
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * leftOrFirst and count of every node
+     */
+    public int[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Primitive indices referenced by the leaves
+     */
+    public int[] getPrimitiveIndices() {
+        return primitiveIndices;
+    }
+
+    /**
+     * Parent of every node, -1 for the root
+     */
+    public int[] getParents() {
+        return parents;
+    }
+
+    public boolean isLeaf(int node) {
+        return nodes[node * NODE_STRIDE + 1] > 0;
+    }
+
+    //Makes sure the arrays can hold a hierarchy over the given number of primitives
+    void ensureCapacity(int primitives) {
+        int maxNodes = Math.max(1, 2 * primitives - 1);
+        if (nodes.length < maxNodes * NODE_STRIDE) {
+            bounds = new float[maxNodes * BOUNDS_STRIDE];
+            nodes = new int[maxNodes * NODE_STRIDE];
+            parents = new int[maxNodes];
+        }
+        if (primitiveIndices.length < primitives) {
+            primitiveIndices = new int[primitives];
+        }
+        primitiveCount = primitives;
+    }
+
+    /**
+     * Computes the surface area heuristic cost of the hierarchy relative to its root,
+     * with a traversal cost of one and an intersection cost of one per primitive
+     */
+    public float sahCost() {
+        if (nodeCount == 0) {
+            return 0;
+        }
+        float rootArea = halfArea(0);
+        if (rootArea <= 0) {
+            return primitiveCount;
+        }
+
+        float cost = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int count = nodes[node * NODE_STRIDE + 1];
+            cost += halfArea(node) * (count > 0 ? count : 1);
+        }
+        return cost / rootArea;
+    }
+
+    float halfArea(int node) {
+        int b = node * BOUNDS_STRIDE;
+        float x = bounds[b + 3] - bounds[b];
+        float y = bounds[b + 4] - bounds[b + 1];
+        float z = bounds[b + 5] - bounds[b + 2];
+        return x * y + y * z + z * x;
+    }
+}
@@ -0,0 +1,89 @@
+package accel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Packs a {@link Bvh} into reusable direct buffers using the std430 layout of compute.glsl:
+ * <pre>
+ * struct BvhNode {
+ *     vec3 boundsMin;     // 0
+ *     int leftOrFirst;    // 12
+ *     vec3 boundsMax;     // 16
+ *     int primitiveCount; // 28
+ * };                      // 32
+ * </pre>
+ * followed by a plain int array of primitive indices. Triangles can instead be packed in the
+ * order the leaves reference them, so the shader needs no index list for them.
+ */
+public class BvhPacker {
+    public static final int NODE_BOUNDS_MIN_OFFSET = 0;
+    public static final int NODE_LEFT_OR_FIRST_OFFSET = 12;
+    public static final int NODE_BOUNDS_MAX_OFFSET = 16;
+    public static final int NODE_PRIMITIVE_COUNT_OFFSET = 28;
+    public static final int NODE_SIZE = 32;
+
+    private ByteBuffer nodeBuffer = allocate(NODE_SIZE);
+    private ByteBuffer primitiveBuffer = allocate(4);
+    private ByteBuffer triangleBuffer = allocate(16);
+
+    /**
+     * Packs the nodes, the returned buffer is reused by the next call
+     */
+    public ByteBuffer packNodes(Bvh bvh) {
+        nodeBuffer = ensureCapacity(nodeBuffer, bvh.nodeCount * NODE_SIZE);
+        for (int node = 0; node < bvh.nodeCount; node++) {
+            int offset = node * NODE_SIZE;
+            int b = node * Bvh.BOUNDS_STRIDE;
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MIN_OFFSET, bvh.bounds[b]);
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MIN_OFFSET + 4, bvh.bounds[b + 1]);
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MIN_OFFSET + 8, bvh.bounds[b + 2]);
+            nodeBuffer.putInt(offset + NODE_LEFT_OR_FIRST_OFFSET, bvh.nodes[node * Bvh.NODE_STRIDE]);
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MAX_OFFSET, bvh.bounds[b + 3]);
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MAX_OFFSET + 4, bvh.bounds[b + 4]);
+            nodeBuffer.putFloat(offset + NODE_BOUNDS_MAX_OFFSET + 8, bvh.bounds[b + 5]);
+            nodeBuffer.putInt(offset + NODE_PRIMITIVE_COUNT_OFFSET, bvh.nodes[node * Bvh.NODE_STRIDE + 1]);
+        }
+        nodeBuffer.limit(bvh.nodeCount * NODE_SIZE);
+        return nodeBuffer;
+    }
+
+    /**
+     * Packs the primitive index list, the returned buffer is reused by the next call
+     */
+    public ByteBuffer packPrimitiveIndices(Bvh bvh) {
+        primitiveBuffer = ensureCapacity(primitiveBuffer, bvh.primitiveCount * 4);
+        primitiveBuffer.asIntBuffer().put(bvh.primitiveIndices, 0, bvh.primitiveCount);
+        primitiveBuffer.limit(bvh.primitiveCount * 4);
+        return primitiveBuffer;
+    }
+
+    /**
+     * Packs triangles of four ints each, e.g. the ivec4s of a MeshStore, in the order of the
+     * primitive index list, so a leaf's triangles start at its leftOrFirst. The returned buffer is
+     * reused by the next call.
+     */
+    public ByteBuffer packTrianglesInLeafOrder(Bvh bvh, IntBuffer triangles) {
+        triangleBuffer = ensureCapacity(triangleBuffer, bvh.primitiveCount * 16);
+        IntBuffer packed = triangleBuffer.asIntBuffer();
+        for (int i = 0; i < bvh.primitiveCount; i++) {
+            int t = bvh.primitiveIndices[i] * 4;
+            packed.put(triangles.get(t)).put(triangles.get(t + 1)).put(triangles.get(t + 2)).put(triangles.get(t + 3));
+        }
+        triangleBuffer.limit(bvh.primitiveCount * 16);
+        return triangleBuffer;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int bytes) {
+        if (buffer.capacity() < bytes) {
+            buffer = allocate(Math.max(bytes, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
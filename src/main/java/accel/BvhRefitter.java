@@ -0,0 +1,85 @@
+package accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Recomputes the bounds of a {@link Bvh} in place after its primitives moved, keeping its topology.
+ *
+ * Leaves are refit in parallel and each one then walks towards the root. The first child to
+ * reach a parent stops there, the second computes the parent's bounds and carries on, so every
+ * node is written exactly once without locks.
+ */
+public class BvhRefitter {
+    private static final int GRAIN = 1024;
+
+    private final ForkJoinPool pool;
+
+    //Arrivals per node. Every interior node is reached exactly twice per refit, so the count
+    //stays even between refits and the parity tells the first arrival from the second
+    private AtomicIntegerArray arrivals = new AtomicIntegerArray(0);
+
+    public BvhRefitter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BvhRefitter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public void refit(Bvh bvh, BoundedPrimitives primitives) {
+        if (arrivals.length() < bvh.nodeCount) {
+            arrivals = new AtomicIntegerArray(bvh.nodes.length / Bvh.NODE_STRIDE);
+        }
+
+        ParallelRange.run(pool, 0, bvh.nodeCount, GRAIN, (from, to) -> {
+            float[] primitiveBounds = new float[6];
+            for (int node = from; node < to; node++) {
+                if (bvh.isLeaf(node)) {
+                    refitLeaf(bvh, primitives, node, primitiveBounds);
+                    propagate(bvh, node);
+                }
+            }
+        });
+    }
+
+    private static void refitLeaf(Bvh bvh, BoundedPrimitives primitives, int node, float[] primitiveBounds) {
+        float[] bounds = bvh.bounds;
+        int b = node * Bvh.BOUNDS_STRIDE;
+        int first = bvh.nodes[node * Bvh.NODE_STRIDE];
+        int count = bvh.nodes[node * Bvh.NODE_STRIDE + 1];
+
+        for (int i = first; i < first + count; i++) {
+            primitives.getBounds(bvh.primitiveIndices[i], primitiveBounds);
+            for (int axis = 0; axis < 3; axis++) {
+                if (i == first || primitiveBounds[axis] < bounds[b + axis]) {
+                    bounds[b + axis] = primitiveBounds[axis];
+                }
+                if (i == first || primitiveBounds[axis + 3] > bounds[b + axis + 3]) {
+                    bounds[b + axis + 3] = primitiveBounds[axis + 3];
+                }
+            }
+        }
+    }
+
+    private void propagate(Bvh bvh, int node) {
+        float[] bounds = bvh.bounds;
+        int parent = bvh.parents[node];
+        while (parent >= 0) {
+            //The sibling has not been refit yet, it will finish the parent
+            if ((arrivals.getAndIncrement(parent) & 1) == 0) {
+                return;
+            }
+
+            int left = bvh.nodes[parent * Bvh.NODE_STRIDE];
+            int p = parent * Bvh.BOUNDS_STRIDE;
+            int l = left * Bvh.BOUNDS_STRIDE;
+            int r = (left + 1) * Bvh.BOUNDS_STRIDE;
+            for (int axis = 0; axis < 3; axis++) {
+                bounds[p + axis] = Math.min(bounds[l + axis], bounds[r + axis]);
+                bounds[p + axis + 3] = Math.max(bounds[l + axis + 3], bounds[r + axis + 3]);
+            }
+            parent = bvh.parents[parent];
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package accel;
+
+/**
+ * Time spent in each stage of the last {@link DynamicBvh#update} in nanoseconds
+ */
+public class BvhTimings {
+    long primitiveBoundsNanos;
+    long mortonNanos;
+    long sortNanos;
+    long hierarchyNanos;
+    long refitNanos;
+    long costNanos;
+    boolean rebuilt;
+    float sahCost;
+
+    void reset() {
+        primitiveBoundsNanos = mortonNanos = sortNanos = hierarchyNanos = refitNanos = costNanos = 0;
+        rebuilt = false;
+        sahCost = 0;
+    }
+
+    /**
+     * Reading primitive bounds and centroids for a rebuild
+     */
+    public long getPrimitiveBoundsNanos() {
+        return primitiveBoundsNanos;
+    }
+
+    public long getMortonNanos() {
+        return mortonNanos;
+    }
+
+    public long getSortNanos() {
+        return sortNanos;
+    }
+
+    /**
+     * Emitting the node hierarchy from the sorted codes
+     */
+    public long getHierarchyNanos() {
+        return hierarchyNanos;
+    }
+
+    /**
+     * Bottom up bounds pass, run by both rebuilds and refits
+     */
+    public long getRefitNanos() {
+        return refitNanos;
+    }
+
+    /**
+     * Evaluating the surface area heuristic cost used to decide whether to rebuild
+     */
+    public long getCostNanos() {
+        return costNanos;
+    }
+
+    public long getTotalNanos() {
+        return primitiveBoundsNanos + mortonNanos + sortNanos + hierarchyNanos + refitNanos + costNanos;
+    }
+
+    /**
+     * True if the hierarchy was rebuilt rather than only refit
+     */
+    public boolean isRebuilt() {
+        return rebuilt;
+    }
+
+    public float getSahCost() {
+        return sahCost;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %.3f ms (bounds %.3f, morton %.3f, sort %.3f, hierarchy %.3f, refit %.3f, cost %.3f), SAH cost %.2f",
+                rebuilt ? "rebuild" : "refit", getTotalNanos() / 1e6,
+                primitiveBoundsNanos / 1e6, mortonNanos / 1e6, sortNanos / 1e6,
+                hierarchyNanos / 1e6, refitNanos / 1e6, costNanos / 1e6, sahCost);
+    }
+}
@@ -0,0 +1,183 @@
+package accel;
+
+import java.util.Arrays;
+
+/**
+ * Finds closest hits in a {@link Bvh}. Holds the traversal stack and visit counters,
+ * so every thread should use its own traverser.
+ */
+public class BvhTraverser {
+    private static final float LARGE_FLOAT = 1E+10f;
+
+    private final Bvh bvh;
+    private final float minLambda;
+
+    private int[] nodeStack = new int[64];
+    private float[] distanceStack = new float[64];
+
+    private float lambda;
+    private int primitive;
+
+    private long nodesVisited;
+    private long primitivesTested;
+
+    /**
+     * @param minLambda hits at or below this lambda are ignored, like EPSILON in compute.glsl
+     */
+    public BvhTraverser(Bvh bvh, float minLambda) {
+        this.bvh = bvh;
+        this.minLambda = minLambda;
+    }
+
+    /**
+     * Finds the closest primitive hit by the ray with a lambda between minLambda and LARGE_FLOAT.
+     * The ray direction must not be zero.
+     *
+     * @return true if a primitive was hit, see {@link #getLambda()} and {@link #getPrimitive()}
+     */
+    public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, PrimitiveIntersector intersector) {
+        return closestHit(ox, oy, oz, dx, dy, dz, LARGE_FLOAT, intersector);
+    }
+
+    /**
+     * Finds the closest primitive hit by the ray with a lambda between minLambda and maxLambda,
+     * e.g. the lambda of a hit in another hierarchy. The ray direction must not be zero.
+     *
+     * @return true if a primitive was hit, see {@link #getLambda()} and {@link #getPrimitive()}
+     */
+    public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxLambda, PrimitiveIntersector intersector) {
+        float smallest = maxLambda;
+        int closest = -1;
+
+        float idx = inverse(dx), idy = inverse(dy), idz = inverse(dz);
+        float[] bounds = bvh.bounds;
+        int[] nodes = bvh.nodes;
+        int[] primitiveIndices = bvh.primitiveIndices;
+
+        int stackSize = 0;
+        if (bvh.nodeCount > 0) {
+            nodesVisited++;
+            float rootDistance = boundsDistance(bounds, 0, ox, oy, oz, idx, idy, idz, smallest);
+            if (rootDistance < smallest) {
+                nodeStack[0] = 0;
+                distanceStack[0] = rootDistance;
+                stackSize = 1;
+            }
+        }
+
+        while (stackSize > 0) {
+            stackSize--;
+            //A closer hit may have been found since this node was pushed
+            if (distanceStack[stackSize] >= smallest) {
+                continue;
+            }
+            int node = nodeStack[stackSize];
+            int leftOrFirst = nodes[node * Bvh.NODE_STRIDE];
+            int count = nodes[node * Bvh.NODE_STRIDE + 1];
+
+            if (count > 0) {
+                for (int i = leftOrFirst; i < leftOrFirst + count; i++) {
+                    int candidate = primitiveIndices[i];
+                    primitivesTested++;
+                    float hit = intersector.intersect(candidate, ox, oy, oz, dx, dy, dz);
+                    //Ties within a leaf go to the lowest index, as in a brute force loop
+                    if (hit > minLambda && (hit < smallest || (hit == smallest && candidate < closest))) {
+                        smallest = hit;
+                        closest = candidate;
+                    }
+                }
+                continue;
+            }
+
+            nodesVisited += 2;
+            int right = leftOrFirst + 1;
+            float leftDistance = boundsDistance(bounds, leftOrFirst, ox, oy, oz, idx, idy, idz, smallest);
+            float rightDistance = boundsDistance(bounds, right, ox, oy, oz, idx, idy, idz, smallest);
+
+            if (stackSize + 2 > nodeStack.length) {
+                growStack();
+            }
+            //Push the far child first so the near one is visited first
+            if (leftDistance <= rightDistance) {
+                stackSize = push(right, rightDistance, stackSize, smallest);
+                stackSize = push(leftOrFirst, leftDistance, stackSize, smallest);
+            } else {
+                stackSize = push(leftOrFirst, leftDistance, stackSize, smallest);
+                stackSize = push(right, rightDistance, stackSize, smallest);
+            }
+        }
+
+        this.lambda = closest < 0 ? 0 : smallest;
+        this.primitive = closest;
+        return closest >= 0;
+    }
+
+    private int push(int node, float distance, int stackSize, float smallest) {
+        if (distance < smallest) {
+            nodeStack[stackSize] = node;
+            distanceStack[stackSize] = distance;
+            return stackSize + 1;
+        }
+        return stackSize;
+    }
+
+    private void growStack() {
+        nodeStack = Arrays.copyOf(nodeStack, nodeStack.length * 2);
+        distanceStack = Arrays.copyOf(distanceStack, distanceStack.length * 2);
+    }
+
+    //Avoids infinities, so a ray lying in a slab plane gives 0 * 1E+30 rather than NaN
+    static float inverse(float d) {
+        return 1.0f / (d != 0.0f ? d : 1E-30f);
+    }
+
+    //Slab test, returns the entry distance of the ray or LARGE_FLOAT if it misses the box before maxLambda
+    static float boundsDistance(float[] bounds, int node, float ox, float oy, float oz,
+                                float idx, float idy, float idz, float maxLambda) {
+        int b = node * Bvh.BOUNDS_STRIDE;
+        float tx0 = (bounds[b] - ox) * idx, tx1 = (bounds[b + 3] - ox) * idx;
+        float ty0 = (bounds[b + 1] - oy) * idy, ty1 = (bounds[b + 4] - oy) * idy;
+        float tz0 = (bounds[b + 2] - oz) * idz, tz1 = (bounds[b + 5] - oz) * idz;
+
+        float tNear = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.min(tz0, tz1));
+        float tFar = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.max(tz0, tz1));
+
+        if (tNear > tFar || tFar < 0 || tNear >= maxLambda) {
+            return LARGE_FLOAT;
+        }
+        return tNear;
+    }
+
+    /**
+     * Lambda of the last closest hit, zero if there was none
+     */
+    public float getLambda() {
+        return lambda;
+    }
+
+    /**
+     * Primitive of the last closest hit, -1 if there was none
+     */
+    public int getPrimitive() {
+        return primitive;
+    }
+
+    /**
+     * Number of node bounds tested since the last reset
+     */
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    /**
+     * Number of primitive intersection tests since the last reset
+     */
+    public long getPrimitivesTested() {
+        return primitivesTested;
+    }
+
+    public void resetCounters() {
+        nodesVisited = 0;
+        primitivesTested = 0;
+    }
+}
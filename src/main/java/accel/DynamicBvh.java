@@ -0,0 +1,103 @@
+package accel;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps a {@link Bvh} up to date over primitives that move every frame.
+ *
+ * While the number of primitives stays the same the bounds are refit in place. Refitting lets
+ * the tree degrade as primitives drift apart, so its surface area heuristic cost is compared with
+ * the cost right after the last rebuild, and once it has grown past the rebuild threshold the
+ * hierarchy is rebuilt as a linear BVH.
+ */
+public class DynamicBvh {
+    public static final float DEFAULT_REBUILD_THRESHOLD = 1.3f;
+
+    private final LbvhBuilder builder;
+    private final BvhRefitter refitter;
+    private final Bvh bvh = new Bvh();
+    private final BvhTimings timings = new BvhTimings();
+
+    private float rebuildThreshold = DEFAULT_REBUILD_THRESHOLD;
+    private float rebuiltCost;
+    private int builtPrimitiveCount = -1;
+
+    public DynamicBvh() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public DynamicBvh(ForkJoinPool pool) {
+        this.builder = new LbvhBuilder(pool);
+        this.refitter = new BvhRefitter(pool);
+    }
+
+    /**
+     * Refits or rebuilds the hierarchy for the current primitive bounds
+     *
+     * @return the updated hierarchy, the same instance every frame
+     */
+    public Bvh update(BoundedPrimitives primitives) {
+        timings.reset();
+
+        if (primitives.primitiveCount() != builtPrimitiveCount) {
+            rebuild(primitives);
+            return bvh;
+        }
+
+        long refitStart = System.nanoTime();
+        refitter.refit(bvh, primitives);
+        long costStart = System.nanoTime();
+        float cost = bvh.sahCost();
+        timings.refitNanos += costStart - refitStart;
+        timings.costNanos += System.nanoTime() - costStart;
+        timings.sahCost = cost;
+
+        if (cost > rebuiltCost * rebuildThreshold) {
+            rebuild(primitives);
+        }
+        return bvh;
+    }
+
+    /**
+     * Forces a rebuild on the next update, e.g. after primitives were replaced
+     */
+    public void invalidate() {
+        builtPrimitiveCount = -1;
+    }
+
+    private void rebuild(BoundedPrimitives primitives) {
+        builder.build(primitives, bvh, timings);
+
+        long costStart = System.nanoTime();
+        rebuiltCost = bvh.sahCost();
+        timings.costNanos += System.nanoTime() - costStart;
+        timings.sahCost = rebuiltCost;
+        timings.rebuilt = true;
+        builtPrimitiveCount = primitives.primitiveCount();
+    }
+
+    public Bvh getBvh() {
+        return bvh;
+    }
+
+    /**
+     * Stage timings of the last update
+     */
+    public BvhTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * How much the SAH cost may grow through refitting, relative to the last rebuild, before rebuilding
+     */
+    public void setRebuildThreshold(float rebuildThreshold) {
+        if (rebuildThreshold < 1.0f) {
+            throw new IllegalArgumentException("Rebuild threshold must be at least 1: " + rebuildThreshold);
+        }
+        this.rebuildThreshold = rebuildThreshold;
+    }
+
+    public float getRebuildThreshold() {
+        return rebuildThreshold;
+    }
+}
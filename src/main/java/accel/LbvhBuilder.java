@@ -0,0 +1,306 @@
+package accel;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds a {@link Bvh} as a linear BVH: primitives are sorted along a Morton curve and the
+ * hierarchy is emitted from the sorted codes, every interior node independently of the others
+ * (Karras, "Maximizing Parallelism in the Construction of BVHs, Octrees, and k-d Trees").
+ *
+ * Each interior node splits its range after some sorted position, and no two interior nodes
+ * split at the same position. The children of the node splitting after position s are stored
+ * in slots 2s + 1 and 2s + 2, which keeps siblings adjacent as the flat layout requires
+ * without a sequential layout pass.
+ */
+public class LbvhBuilder {
+    private static final int GRAIN = 2048;
+    private static final int MORTON_BITS = 10;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    /**
+     * Deepest a leaf can be, which the GPU's fixed size traversal stack relies on. The keys under an
+     * interior node share a longer prefix than its parent's, at least the two bits above the 30 bit
+     * Morton code at the root and at most 63 bits, as keys are distinct. So interior nodes are at
+     * most 61 levels deep, and their leaves one more.
+     */
+    public static final int MAX_DEPTH = 62;
+
+    private final ForkJoinPool pool;
+    private final BvhRefitter refitter;
+
+    private float[] centroids = new float[0];
+    private long[] keys = new long[0];
+    private long[] sortScratch = new long[0];
+    private int[] splits = new int[0];
+    private int[] slotOfInternal = new int[0];
+
+    public LbvhBuilder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public LbvhBuilder(ForkJoinPool pool) {
+        this.pool = pool;
+        this.refitter = new BvhRefitter(pool);
+    }
+
+    public void build(BoundedPrimitives primitives, Bvh target) {
+        build(primitives, target, new BvhTimings());
+    }
+
+    /**
+     * Rebuilds the target hierarchy, adding the time spent in every stage to the timings
+     */
+    public void build(BoundedPrimitives primitives, Bvh target, BvhTimings timings) {
+        int count = primitives.primitiveCount();
+        target.ensureCapacity(count);
+        ensureCapacity(count);
+        if (count == 0) {
+            target.nodeCount = 0;
+            return;
+        }
+
+        long start = System.nanoTime();
+        float[] centroidBounds = computeCentroids(primitives, count);
+        long mortonStart = System.nanoTime();
+        computeKeys(centroidBounds, count);
+        long sortStart = System.nanoTime();
+        sortKeys(count);
+        long hierarchyStart = System.nanoTime();
+        emitHierarchy(target, count);
+        long refitStart = System.nanoTime();
+        refitter.refit(target, primitives);
+        long end = System.nanoTime();
+
+        timings.primitiveBoundsNanos += mortonStart - start;
+        timings.mortonNanos += sortStart - mortonStart;
+        timings.sortNanos += hierarchyStart - sortStart;
+        timings.hierarchyNanos += refitStart - hierarchyStart;
+        timings.refitNanos += end - refitStart;
+    }
+
+    private void ensureCapacity(int count) {
+        if (keys.length < count) {
+            centroids = new float[count * 3];
+            keys = new long[count];
+            sortScratch = new long[count];
+            splits = new int[count];
+            slotOfInternal = new int[count];
+        }
+    }
+
+    //Fills the centroid array and returns the bounds of all centroids
+    private float[] computeCentroids(BoundedPrimitives primitives, int count) {
+        float[] centroidBounds = {
+                Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+        };
+        ParallelRange.run(pool, 0, count, GRAIN, (from, to) -> {
+            float[] bounds = new float[6];
+            float[] local = {
+                    Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+            };
+            for (int i = from; i < to; i++) {
+                primitives.getBounds(i, bounds);
+                for (int axis = 0; axis < 3; axis++) {
+                    float centroid = (bounds[axis] + bounds[axis + 3]) * 0.5f;
+                    centroids[i * 3 + axis] = centroid;
+                    local[axis] = Math.min(local[axis], centroid);
+                    local[axis + 3] = Math.max(local[axis + 3], centroid);
+                }
+            }
+            synchronized (centroidBounds) {
+                for (int axis = 0; axis < 3; axis++) {
+                    centroidBounds[axis] = Math.min(centroidBounds[axis], local[axis]);
+                    centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3], local[axis + 3]);
+                }
+            }
+        });
+        return centroidBounds;
+    }
+
+    //Sort keys hold the Morton code in the high half and the primitive index in the low half, so they are unique
+    private void computeKeys(float[] centroidBounds, int count) {
+        float[] scale = new float[3];
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = centroidBounds[axis + 3] - centroidBounds[axis];
+            scale[axis] = extent > 0 ? ((1 << MORTON_BITS) - 1) / extent : 0;
+        }
+        ParallelRange.run(pool, 0, count, GRAIN, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int x = (int) ((centroids[i * 3] - centroidBounds[0]) * scale[0]);
+                int y = (int) ((centroids[i * 3 + 1] - centroidBounds[1]) * scale[1]);
+                int z = (int) ((centroids[i * 3 + 2] - centroidBounds[2]) * scale[2]);
+                long code = (expandBits(x) << 2) | (expandBits(y) << 1) | expandBits(z);
+                keys[i] = (code << 32) | i;
+            }
+        });
+    }
+
+    /**
+     * Parallel least significant digit radix sort of the Morton code half of the keys.
+     * Every chunk of keys counts its digits, the counts are turned into per chunk output offsets
+     * and the chunks then scatter in parallel. The sort is stable, so equal codes stay in index order.
+     */
+    private void sortKeys(int count) {
+        int chunks = Math.max(1, Math.min(pool.getParallelism() * 4, count / GRAIN));
+        int chunkSize = (count + chunks - 1) / chunks;
+        int[][] offsets = new int[chunks][RADIX];
+
+        long[] from = keys, to = sortScratch;
+        for (int shift = 32; shift < 32 + 3 * MORTON_BITS; shift += RADIX_BITS) {
+            int digitShift = shift;
+            long[] source = from, destination = to;
+
+            ParallelRange.run(pool, 0, chunks, 1, (first, last) -> {
+                for (int chunk = first; chunk < last; chunk++) {
+                    int[] histogram = offsets[chunk];
+                    Arrays.fill(histogram, 0);
+                    int end = Math.min(count, (chunk + 1) * chunkSize);
+                    for (int i = chunk * chunkSize; i < end; i++) {
+                        histogram[(int) (source[i] >>> digitShift) & (RADIX - 1)]++;
+                    }
+                }
+            });
+
+            //Exclusive prefix sum over digits, then chunks, so equal digits keep their order
+            int total = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int digitCount = offsets[chunk][digit];
+                    offsets[chunk][digit] = total;
+                    total += digitCount;
+                }
+            }
+
+            ParallelRange.run(pool, 0, chunks, 1, (first, last) -> {
+                for (int chunk = first; chunk < last; chunk++) {
+                    int[] offset = offsets[chunk];
+                    int end = Math.min(count, (chunk + 1) * chunkSize);
+                    for (int i = chunk * chunkSize; i < end; i++) {
+                        destination[offset[(int) (source[i] >>> digitShift) & (RADIX - 1)]++] = source[i];
+                    }
+                }
+            });
+
+            from = destination;
+            to = source;
+        }
+
+        //An odd number of passes leaves the result in the scratch array
+        if (from != keys) {
+            sortScratch = keys;
+            keys = from;
+        }
+    }
+
+    //Spreads the lowest 10 bits of v out so there are two zero bits between each of them
+    static long expandBits(int v) {
+        long x = v & 0x3FF;
+        x = (x | (x << 16)) & 0x030000FFL;
+        x = (x | (x << 8)) & 0x0300F00FL;
+        x = (x | (x << 4)) & 0x030C30C3L;
+        x = (x | (x << 2)) & 0x09249249L;
+        return x;
+    }
+
+    private void emitHierarchy(Bvh bvh, int count) {
+        bvh.nodeCount = 2 * count - 1;
+        bvh.parents[0] = -1;
+
+        ParallelRange.run(pool, 0, count, GRAIN, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                bvh.primitiveIndices[i] = (int) keys[i];
+            }
+        });
+
+        if (count == 1) {
+            bvh.nodes[0] = 0;
+            bvh.nodes[1] = 1;
+            return;
+        }
+
+        //First find every interior node's split and place its children, the root goes in slot 0
+        slotOfInternal[0] = 0;
+        ParallelRange.run(pool, 0, count - 1, GRAIN, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                placeChildren(bvh, i, count);
+            }
+        });
+
+        //Then every interior node knows its own slot
+        ParallelRange.run(pool, 0, count - 1, GRAIN, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int slot = slotOfInternal[i];
+                int left = 2 * splits[i] + 1;
+                bvh.nodes[slot * Bvh.NODE_STRIDE] = left;
+                bvh.nodes[slot * Bvh.NODE_STRIDE + 1] = 0;
+                bvh.parents[left] = slot;
+                bvh.parents[left + 1] = slot;
+            }
+        });
+    }
+
+    private void placeChildren(Bvh bvh, int i, int count) {
+        //Direction of the range covered by interior node i
+        int direction = Integer.signum(delta(i, i + 1, count) - delta(i, i - 1, count));
+        int deltaMin = delta(i, i - direction, count);
+
+        //Upper bound for the length of the range, then binary search for the other end
+        int maxLength = 2;
+        while (delta(i, i + maxLength * direction, count) > deltaMin) {
+            maxLength *= 2;
+        }
+        int length = 0;
+        for (int step = maxLength / 2; step >= 1; step /= 2) {
+            if (delta(i, i + (length + step) * direction, count) > deltaMin) {
+                length += step;
+            }
+        }
+        int j = i + length * direction;
+
+        //Binary search for the split position, where the common prefix gets longer
+        int deltaNode = delta(i, j, count);
+        int split = 0;
+        int step = length;
+        do {
+            step = (step + 1) >> 1;
+            if (delta(i, i + (split + step) * direction, count) > deltaNode) {
+                split += step;
+            }
+        } while (step > 1);
+        int gamma = i + split * direction + Math.min(direction, 0);
+        splits[i] = gamma;
+
+        int first = Math.min(i, j);
+        int last = Math.max(i, j);
+        int leftSlot = 2 * gamma + 1;
+        int rightSlot = leftSlot + 1;
+
+        if (first == gamma) {
+            makeLeaf(bvh, leftSlot, gamma);
+        } else {
+            slotOfInternal[gamma] = leftSlot;
+        }
+        if (last == gamma + 1) {
+            makeLeaf(bvh, rightSlot, gamma + 1);
+        } else {
+            slotOfInternal[gamma + 1] = rightSlot;
+        }
+    }
+
+    private static void makeLeaf(Bvh bvh, int slot, int sortedIndex) {
+        bvh.nodes[slot * Bvh.NODE_STRIDE] = sortedIndex;
+        bvh.nodes[slot * Bvh.NODE_STRIDE + 1] = 1;
+    }
+
+    //Length of the common prefix of two sort keys, -1 outside the range
+    private int delta(int i, int j, int count) {
+        if (j < 0 || j >= count) {
+            return -1;
+        }
+        return Long.numberOfLeadingZeros(keys[i] ^ keys[j]);
+    }
+}
@@ -0,0 +1,313 @@
+package accel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * World space grid of the lights that can noticeably light each cell, so shading loops over a
+ * short list instead of every light.
+ *
+ * A light's intensity falls off as brightness / r^2, so it is cut off at the radius where that
+ * drops below a threshold. The grid covers the bounds of the geometry, which is the only place a
+ * ray can be shaded, with cubic cells of which the longest axis has at most {@link #MAX_CELLS_PER_AXIS}.
+ * Lights whose radius covers the whole grid go on a global list instead of every cell, lights that
+ * reach no geometry are left out.
+ *
+ * The lists are stored in one int array, laid out as the LightGridBuffer of compute.glsl:
+ * <pre>
+ * data[list] to data[list + 1]   range of data holding the light indices of the list
+ * list 0                         global lights
+ * list 1 + x + cellsX * (y + cellsY * z)   lights of cell x, y, z
+ * </pre>
+ * The grid is rebuilt in place, so it can be rebuilt every frame with little allocation.
+ */
+public class LightGrid {
+    public static final int MAX_CELLS_PER_AXIS = 16;
+    public static final int GLOBAL_LIST = 0;
+
+    private final float[] min = new float[3];
+    private final float[] inverseCellSize = new float[3];
+    private final int[] cells = {1, 1, 1};
+
+    private int[] data = new int[3];
+    private int dataLength = 2;
+    private int[] cellCounts = new int[0];
+    private final float[] cellBox = new float[6];
+    private ByteBuffer packed = allocate(12);
+
+    private int lightCount, globalLights, culledLights, binnedLights;
+
+    /**
+     * Bins the lights into a grid over the union of the hierarchies' root bounds
+     *
+     * @param positionBrightness x, y, z, brightness of each light, four floats apart as in a LightStore
+     * @param threshold          intensity below which a light is ignored, zero or less keeps every light everywhere
+     * @param geometry           hierarchies over everything that can be hit, empty ones are skipped
+     */
+    public void build(FloatBuffer positionBrightness, int lightCount, float threshold, Bvh... geometry) {
+        float[] box = emptyBox();
+        for (Bvh bvh : geometry) {
+            if (bvh.nodeCount > 0) {
+                grow(box, bvh.bounds);
+            }
+        }
+        build(positionBrightness, lightCount, threshold, box);
+    }
+
+    /**
+     * Bins the lights into a grid over the bounds of every primitive, for when there are no hierarchies
+     */
+    public void build(FloatBuffer positionBrightness, int lightCount, float threshold, BoundedPrimitives... geometry) {
+        float[] box = emptyBox();
+        for (BoundedPrimitives primitives : geometry) {
+            for (int i = 0; i < primitives.primitiveCount(); i++) {
+                primitives.getBounds(i, cellBox);
+                grow(box, cellBox);
+            }
+        }
+        build(positionBrightness, lightCount, threshold, box);
+    }
+
+    private static float[] emptyBox() {
+        return new float[]{Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    }
+
+    private static void grow(float[] box, float[] bounds) {
+        for (int axis = 0; axis < 3; axis++) {
+            box[axis] = Math.min(box[axis], bounds[axis]);
+            box[axis + 3] = Math.max(box[axis + 3], bounds[axis + 3]);
+        }
+    }
+
+    private void build(FloatBuffer positionBrightness, int lightCount, float threshold, float[] box) {
+        this.lightCount = lightCount;
+        globalLights = culledLights = binnedLights = 0;
+
+        boolean empty = box[0] > box[3];
+        setUpCells(box, empty);
+
+        int cellCount = cells[0] * cells[1] * cells[2];
+        if (cellCounts.length < cellCount) {
+            cellCounts = new int[cellCount];
+        }
+        Arrays.fill(cellCounts, 0, cellCount, 0);
+
+        //Count the lights of every list, then fill the lists at their offsets
+        int lists = cellCount + 1;
+        for (int pass = 0; pass < 2; pass++) {
+            int globalCount = 0;
+            for (int light = 0; light < lightCount; light++) {
+                int l = light * 4;
+                float x = positionBrightness.get(l), y = positionBrightness.get(l + 1), z = positionBrightness.get(l + 2);
+                float brightness = positionBrightness.get(l + 3);
+                float radius = threshold > 0 ? (float) Math.sqrt(Math.max(0.0f, brightness) / threshold) : Float.POSITIVE_INFINITY;
+
+                if (empty || distanceSquared(x, y, z, box, false) > radius * radius) {
+                    if (pass == 0) {
+                        culledLights++;
+                    }
+                } else if (radius == Float.POSITIVE_INFINITY || distanceSquared(x, y, z, box, true) <= radius * radius) {
+                    if (pass == 1) {
+                        data[lists + 1 + globalCount] = light;
+                    }
+                    globalCount++;
+                } else {
+                    binnedLights += binLight(light, x, y, z, radius, pass == 1);
+                }
+            }
+            if (pass == 0) {
+                globalLights = globalCount;
+                //Offsets are absolute positions in data, the lists follow the lists + 1 offsets
+                dataLength = lists + 1 + globalCount + binnedLights;
+                if (data.length < dataLength) {
+                    data = new int[Math.max(dataLength, data.length * 2)];
+                }
+                data[GLOBAL_LIST] = lists + 1;
+                int offset = lists + 1 + globalCount;
+                for (int cell = 0; cell < cellCount; cell++) {
+                    data[cell + 1] = offset;
+                    offset += cellCounts[cell];
+                    //Reused as the fill position of the second pass
+                    cellCounts[cell] = data[cell + 1];
+                }
+                data[lists] = offset;
+                binnedLights = 0;
+            }
+        }
+    }
+
+    private void setUpCells(float[] box, boolean empty) {
+        if (empty) {
+            Arrays.fill(min, 0.0f);
+            Arrays.fill(inverseCellSize, 0.0f);
+            Arrays.fill(cells, 1);
+            return;
+        }
+        //Pad so points on the geometry's surface, moved by float error, still fall inside
+        float longest = 0.0f;
+        for (int axis = 0; axis < 3; axis++) {
+            float pad = 1E-4f * (1.0f + Math.abs(box[axis]) + Math.abs(box[axis + 3]));
+            box[axis] -= pad;
+            box[axis + 3] += pad;
+            longest = Math.max(longest, box[axis + 3] - box[axis]);
+        }
+        float cellSize = longest / MAX_CELLS_PER_AXIS;
+        for (int axis = 0; axis < 3; axis++) {
+            float extent = box[axis + 3] - box[axis];
+            cells[axis] = Math.max(1, Math.min(MAX_CELLS_PER_AXIS, (int) Math.ceil(extent / cellSize)));
+            min[axis] = box[axis];
+            inverseCellSize[axis] = cells[axis] / extent;
+        }
+    }
+
+    //Counts the light into every cell its sphere overlaps, or adds it to their lists when filling
+    private int binLight(int light, float x, float y, float z, float radius, boolean fill) {
+        int x0 = cellCoordinate(x - radius, 0), x1 = cellCoordinate(x + radius, 0);
+        int y0 = cellCoordinate(y - radius, 1), y1 = cellCoordinate(y + radius, 1);
+        int z0 = cellCoordinate(z - radius, 2), z1 = cellCoordinate(z + radius, 2);
+        int binned = 0;
+        for (int cz = z0; cz <= z1; cz++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                for (int cx = x0; cx <= x1; cx++) {
+                    cellBounds(cx, cy, cz, cellBox);
+                    if (distanceSquared(x, y, z, cellBox, false) > radius * radius) {
+                        continue;
+                    }
+                    int cell = cx + cells[0] * (cy + cells[1] * cz);
+                    if (fill) {
+                        data[cellCounts[cell]++] = light;
+                    } else {
+                        cellCounts[cell]++;
+                    }
+                    binned++;
+                }
+            }
+        }
+        return binned;
+    }
+
+    private int cellCoordinate(float position, int axis) {
+        int cell = (int) Math.floor((position - min[axis]) * inverseCellSize[axis]);
+        return Math.max(0, Math.min(cells[axis] - 1, cell));
+    }
+
+    private void cellBounds(int cx, int cy, int cz, float[] box) {
+        box[0] = min[0] + cx / inverseCellSize[0];
+        box[1] = min[1] + cy / inverseCellSize[1];
+        box[2] = min[2] + cz / inverseCellSize[2];
+        box[3] = min[0] + (cx + 1) / inverseCellSize[0];
+        box[4] = min[1] + (cy + 1) / inverseCellSize[1];
+        box[5] = min[2] + (cz + 1) / inverseCellSize[2];
+    }
+
+    //Squared distance from a point to the nearest or the farthest point of a box
+    private static float distanceSquared(float x, float y, float z, float[] box, boolean farthest) {
+        float dx = farthest ? Math.max(Math.abs(x - box[0]), Math.abs(x - box[3])) : Math.max(0.0f, Math.max(box[0] - x, x - box[3]));
+        float dy = farthest ? Math.max(Math.abs(y - box[1]), Math.abs(y - box[4])) : Math.max(0.0f, Math.max(box[1] - y, y - box[4]));
+        float dz = farthest ? Math.max(Math.abs(z - box[2]), Math.abs(z - box[5])) : Math.max(0.0f, Math.max(box[2] - z, z - box[5]));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * List of the cell holding a point, points outside the grid use the nearest cell
+     */
+    public int listAt(float x, float y, float z) {
+        return 1 + cellCoordinate(x, 0) + cells[0] * (cellCoordinate(y, 1) + cells[1] * cellCoordinate(z, 2));
+    }
+
+    /**
+     * Position in {@link #getData()} of the first light index of a list
+     */
+    public int listStart(int list) {
+        return data[list];
+    }
+
+    /**
+     * Position in {@link #getData()} past the last light index of a list
+     */
+    public int listEnd(int list) {
+        return data[list + 1];
+    }
+
+    /**
+     * Offsets and light indices, valid up to {@link #getDataLength()}. The array is replaced when the grid grows.
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Packs the data as ints for the GPU, the returned buffer is reused by the next call
+     */
+    public ByteBuffer pack() {
+        if (packed.capacity() < dataLength * 4) {
+            packed = allocate(Math.max(dataLength * 4, packed.capacity() * 2));
+        }
+        packed.clear();
+        packed.asIntBuffer().put(data, 0, dataLength);
+        packed.limit(dataLength * 4);
+        return packed;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Corner of the grid with the smallest coordinates
+     */
+    public float[] getMin() {
+        return min;
+    }
+
+    /**
+     * Cells per unit along each axis
+     */
+    public float[] getInverseCellSize() {
+        return inverseCellSize;
+    }
+
+    /**
+     * Cells along each axis
+     */
+    public int[] getCells() {
+        return cells;
+    }
+
+    public int getCellCount() {
+        return cells[0] * cells[1] * cells[2];
+    }
+
+    /**
+     * Lights in the global list, shaded at every point
+     */
+    public int getGlobalLights() {
+        return globalLights;
+    }
+
+    /**
+     * Lights too dim to reach any geometry
+     */
+    public int getCulledLights() {
+        return culledLights;
+    }
+
+    /**
+     * Average number of lights a point is shaded with, counting the global ones
+     */
+    public double getAverageLightsPerCell() {
+        return globalLights + (double) binnedLights / getCellCount();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d lights in %dx%dx%d cells: %d global, %d culled, %.1f per cell on average",
+                lightCount, cells[0], cells[1], cells[2], globalLights, culledLights, getAverageLightsPerCell());
+    }
+}
@@ -0,0 +1,45 @@
+package accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//Runs a body over an index range, split into fork join tasks of at least grain indices
+final class ParallelRange {
+    interface Body {
+        void run(int from, int to);
+    }
+
+    private ParallelRange() {
+    }
+
+    static void run(ForkJoinPool pool, int from, int to, int grain, Body body) {
+        if (to - from <= grain) {
+            body.run(from, to);
+            return;
+        }
+        pool.invoke(new RangeTask(from, to, grain, body));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RangeTask extends RecursiveAction {
+        private final int from, to, grain;
+        private final Body body;
+
+        RangeTask(int from, int to, int grain, Body body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(from, middle, grain, body), new RangeTask(middle, to, grain, body));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package accel;
+
+/**
+ * Intersects a ray with a single primitive during traversal
+ */
+public interface PrimitiveIntersector {
+    /**
+     * @return the lambda of the intersection along the ray, or a negative value if there is none
+     */
+    float intersect(int primitive, float ox, float oy, float oz, float dx, float dy, float dz);
+}
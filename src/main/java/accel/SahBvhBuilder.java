@@ -0,0 +1,270 @@
+package accel;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds a {@link Bvh} top down using a binned surface area heuristic.
+ * Subtrees over more than PARALLEL_THRESHOLD primitives are built as separate fork join tasks.
+ */
+public class SahBvhBuilder {
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 8;
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    //Cost of visiting a node relative to intersecting one primitive
+    private static final float TRAVERSAL_COST = 1.0f;
+
+    /**
+     * Deeper nodes are always made leaves, so a fixed size traversal stack on the GPU cannot overflow
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private final ForkJoinPool pool;
+
+    private float[] primitiveBounds = new float[0];
+    private float[] centroids = new float[0];
+
+    public SahBvhBuilder() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public SahBvhBuilder(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Rebuilds the target hierarchy over the primitives, reusing its arrays where possible
+     */
+    public void build(BoundedPrimitives primitives, Bvh target) {
+        int count = primitives.primitiveCount();
+        target.ensureCapacity(count);
+        if (primitiveBounds.length < count * 6) {
+            primitiveBounds = new float[count * 6];
+            centroids = new float[count * 3];
+        }
+
+        float[] bounds = new float[6];
+        for (int i = 0; i < count; i++) {
+            primitives.getBounds(i, bounds);
+            System.arraycopy(bounds, 0, primitiveBounds, i * 6, 6);
+            centroids[i * 3] = (bounds[0] + bounds[3]) * 0.5f;
+            centroids[i * 3 + 1] = (bounds[1] + bounds[4]) * 0.5f;
+            centroids[i * 3 + 2] = (bounds[2] + bounds[5]) * 0.5f;
+            target.primitiveIndices[i] = i;
+        }
+
+        if (count == 0) {
+            target.nodeCount = 0;
+            return;
+        }
+
+        AtomicInteger nextNode = new AtomicInteger(1);
+        target.parents[0] = -1;
+        pool.invoke(new BuildTask(target, nextNode, 0, 0, count, 0));
+        target.nodeCount = nextNode.get();
+    }
+
+    //Builds the subtree rooted at a node, forking for large children
+    @SuppressWarnings("serial")
+    private final class BuildTask extends RecursiveAction {
+        private final Bvh bvh;
+        private final AtomicInteger nextNode;
+        private final int node, first, count, depth;
+
+        //Per task binning scratch
+        private final int[] binCounts = new int[BINS];
+        private final float[] binBounds = new float[BINS * 6];
+        private final float[] rightAreas = new float[BINS];
+        private final float[] nodeBounds = new float[6];
+        private final float[] centroidBounds = new float[6];
+        private final float[] sweep = new float[6];
+
+        BuildTask(Bvh bvh, AtomicInteger nextNode, int node, int first, int count, int depth) {
+            this.bvh = bvh;
+            this.nextNode = nextNode;
+            this.node = node;
+            this.first = first;
+            this.count = count;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            buildNode(node, first, count, depth);
+        }
+
+        private void buildNode(int node, int first, int count, int depth) {
+            int[] indices = bvh.primitiveIndices;
+            computeBounds(indices, first, count);
+            System.arraycopy(nodeBounds, 0, bvh.bounds, node * Bvh.BOUNDS_STRIDE, 6);
+
+            if (count <= 1 || depth >= MAX_DEPTH) {
+                makeLeaf(node, first, count);
+                return;
+            }
+
+            int leftCount = split(indices, first, count);
+            if (leftCount == 0) {
+                makeLeaf(node, first, count);
+                return;
+            }
+
+            int left = nextNode.getAndAdd(2);
+            bvh.nodes[node * Bvh.NODE_STRIDE] = left;
+            bvh.nodes[node * Bvh.NODE_STRIDE + 1] = 0;
+            bvh.parents[left] = node;
+            bvh.parents[left + 1] = node;
+
+            int rightCount = count - leftCount;
+            if (leftCount >= PARALLEL_THRESHOLD && rightCount >= PARALLEL_THRESHOLD) {
+                invokeAll(new BuildTask(bvh, nextNode, left, first, leftCount, depth + 1),
+                        new BuildTask(bvh, nextNode, left + 1, first + leftCount, rightCount, depth + 1));
+            } else {
+                buildNode(left, first, leftCount, depth + 1);
+                buildNode(left + 1, first + leftCount, rightCount, depth + 1);
+            }
+        }
+
+        private void makeLeaf(int node, int first, int count) {
+            bvh.nodes[node * Bvh.NODE_STRIDE] = first;
+            bvh.nodes[node * Bvh.NODE_STRIDE + 1] = count;
+        }
+
+        private void computeBounds(int[] indices, int first, int count) {
+            resetBounds(nodeBounds);
+            resetBounds(centroidBounds);
+            for (int i = first; i < first + count; i++) {
+                int primitive = indices[i];
+                for (int axis = 0; axis < 3; axis++) {
+                    nodeBounds[axis] = Math.min(nodeBounds[axis], primitiveBounds[primitive * 6 + axis]);
+                    nodeBounds[axis + 3] = Math.max(nodeBounds[axis + 3], primitiveBounds[primitive * 6 + axis + 3]);
+                    centroidBounds[axis] = Math.min(centroidBounds[axis], centroids[primitive * 3 + axis]);
+                    centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3], centroids[primitive * 3 + axis]);
+                }
+            }
+        }
+
+        /**
+         * Partitions the range along the cheapest binned split
+         *
+         * @return the number of primitives in the left child, zero if the range should be a leaf
+         */
+        private int split(int[] indices, int first, int count) {
+            float nodeArea = halfArea(nodeBounds, 0);
+            float bestCost = Float.MAX_VALUE;
+            int bestAxis = -1;
+            int bestBin = -1;
+
+            for (int axis = 0; axis < 3; axis++) {
+                float extent = centroidBounds[axis + 3] - centroidBounds[axis];
+                if (extent <= 0 || nodeArea <= 0) {
+                    continue;
+                }
+                binPrimitives(indices, first, count, axis, extent);
+
+                //Sweep from the right to get the area of every right hand side
+                resetBounds(sweep);
+                for (int bin = BINS - 1; bin > 0; bin--) {
+                    growBounds(sweep, binBounds, bin * 6);
+                    rightAreas[bin] = halfArea(sweep, 0);
+                }
+
+                //Then from the left, evaluating the split after every bin
+                resetBounds(sweep);
+                int leftCount = 0;
+                for (int bin = 0; bin < BINS - 1; bin++) {
+                    growBounds(sweep, binBounds, bin * 6);
+                    leftCount += binCounts[bin];
+                    int rightCount = count - leftCount;
+                    if (leftCount == 0 || rightCount == 0) {
+                        continue;
+                    }
+                    float cost = TRAVERSAL_COST + (halfArea(sweep, 0) * leftCount + rightAreas[bin + 1] * rightCount) / nodeArea;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestAxis = axis;
+                        bestBin = bin;
+                    }
+                }
+            }
+
+            if (bestAxis < 0) {
+                //All centroids coincide, split the range in half if it is too big for a leaf
+                return count <= MAX_LEAF_SIZE ? 0 : count / 2;
+            }
+            if (bestCost >= count && count <= MAX_LEAF_SIZE) {
+                return 0;
+            }
+
+            //Partition around the chosen bin boundary
+            float min = centroidBounds[bestAxis];
+            float scale = BINS / (centroidBounds[bestAxis + 3] - min);
+            int i = first, j = first + count - 1;
+            while (i <= j) {
+                if (binOf(centroids[indices[i] * 3 + bestAxis], min, scale) <= bestBin) {
+                    i++;
+                } else {
+                    int swap = indices[i];
+                    indices[i] = indices[j];
+                    indices[j--] = swap;
+                }
+            }
+            int leftCount = i - first;
+            return leftCount == 0 || leftCount == count ? count / 2 : leftCount;
+        }
+
+        private void binPrimitives(int[] indices, int first, int count, int axis, float extent) {
+            for (int bin = 0; bin < BINS; bin++) {
+                binCounts[bin] = 0;
+                resetBounds(binBounds, bin * 6);
+            }
+            float min = centroidBounds[axis];
+            float scale = BINS / extent;
+            for (int i = first; i < first + count; i++) {
+                int primitive = indices[i];
+                int bin = binOf(centroids[primitive * 3 + axis], min, scale);
+                binCounts[bin]++;
+                growBounds(binBounds, bin * 6, primitiveBounds, primitive * 6);
+            }
+        }
+    }
+
+    private static int binOf(float centroid, float min, float scale) {
+        return Math.min(BINS - 1, (int) ((centroid - min) * scale));
+    }
+
+    private static void resetBounds(float[] bounds) {
+        resetBounds(bounds, 0);
+    }
+
+    private static void resetBounds(float[] bounds, int offset) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[offset + axis] = Float.POSITIVE_INFINITY;
+            bounds[offset + axis + 3] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void growBounds(float[] bounds, float[] other, int otherOffset) {
+        growBounds(bounds, 0, other, otherOffset);
+    }
+
+    private static void growBounds(float[] bounds, int offset, float[] other, int otherOffset) {
+        for (int axis = 0; axis < 3; axis++) {
+            bounds[offset + axis] = Math.min(bounds[offset + axis], other[otherOffset + axis]);
+            bounds[offset + axis + 3] = Math.max(bounds[offset + axis + 3], other[otherOffset + axis + 3]);
+        }
+    }
+
+    private static float halfArea(float[] bounds, int offset) {
+        float x = bounds[offset + 3] - bounds[offset];
+        float y = bounds[offset + 4] - bounds[offset + 1];
+        float z = bounds[offset + 5] - bounds[offset + 2];
+        //Empty bounds have negative extents
+        if (x < 0 || y < 0 || z < 0) {
+            return 0;
+        }
+        return x * y + y * z + z * x;
+    }
+}
@@ -0,0 +1,136 @@
+package batch;
+
+import render.Accumulation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options of the batch mode, see {@link #USAGE}
+ */
+public class BatchOptions {
+    public static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: --batch --scene <file> --output <pattern> [options]",
+            "  --scene <file>        text or binary scene, see scene.TextSceneReader and scene.BinaryScene",
+            "  --mesh <file>         triangles of a model file Assimp can read, may be repeated",
+            "  --output <pattern>    image file per frame, formatted with the frame number, e.g. out/frame_%04d.png",
+            "                        .png files are clamped to 8 bits, .hdr files keep the traced values",
+            "  --frames <a>-<b>      frames to render, inclusive (default 0-0)",
+            "  --size <w>x<h>        resolution (default 1280x720)",
+            "  --renderer cpu|gl|farm  CPU tracer, the compute shader in a hidden window or worker processes (default cpu)",
+            "  --samples <n>         most samples per pixel of the cpu renderer, 1 traces each pixel centre once (default 1)",
+            "  --error-threshold <e> standard error at which a pixel stops taking samples, 0 samples every pixel evenly (default "
+                    + Accumulation.DEFAULT_ERROR_THRESHOLD + ")",
+            "  --farm-port <port>    port farm workers connect to (default 7878)",
+            "  --farm-workers <n>    workers to wait for before the first frame (default 1, or as many as spawned)",
+            "  --farm-spawn <n>      worker processes to start on this machine (default 0)",
+            "  --queue <n>           most frames held in memory at once (default 4)",
+            "  --writers <n>         image encoding threads (default 2)");
+
+    public enum Renderer {
+        CPU, GL, FARM
+    }
+
+    public String scene;
+    public final List<String> meshes = new ArrayList<>();
+    public String output;
+    public int firstFrame = 0;
+    public int lastFrame = 0;
+    public int width = 1280;
+    public int height = 720;
+    public Renderer renderer = Renderer.CPU;
+    public int samples = 1;
+    public float errorThreshold = Accumulation.DEFAULT_ERROR_THRESHOLD;
+    public int queueDepth = 4;
+    public int writerThreads = 2;
+    public int farmPort = 7878;
+    public int farmWorkers = 1;
+    public int farmSpawn = 0;
+
+    /**
+     * @throws IllegalArgumentException with a message for the user if the arguments are invalid
+     */
+    public static BatchOptions parse(String[] args) {
+        BatchOptions options = new BatchOptions();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--scene":
+                        options.scene = value;
+                        break;
+                    case "--mesh":
+                        options.meshes.add(value);
+                        break;
+                    case "--output":
+                        options.output = value;
+                        break;
+                    case "--frames": {
+                        int dash = value.indexOf('-', 1);
+                        options.firstFrame = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                        options.lastFrame = dash < 0 ? options.firstFrame : Integer.parseInt(value.substring(dash + 1));
+                        break;
+                    }
+                    case "--size": {
+                        int x = value.indexOf('x');
+                        if (x < 0) {
+                            throw new IllegalArgumentException("Size must look like 1280x720: " + value);
+                        }
+                        options.width = Integer.parseInt(value.substring(0, x));
+                        options.height = Integer.parseInt(value.substring(x + 1));
+                        break;
+                    }
+                    case "--renderer":
+                        options.renderer = Renderer.valueOf(value.toUpperCase());
+                        break;
+                    case "--samples":
+                        options.samples = Integer.parseInt(value);
+                        break;
+                    case "--error-threshold":
+                        options.errorThreshold = Float.parseFloat(value);
+                        break;
+                    case "--queue":
+                        options.queueDepth = Integer.parseInt(value);
+                        break;
+                    case "--writers":
+                        options.writerThreads = Integer.parseInt(value);
+                        break;
+                    case "--farm-port":
+                        options.farmPort = Integer.parseInt(value);
+                        break;
+                    case "--farm-workers":
+                        options.farmWorkers = Integer.parseInt(value);
+                        break;
+                    case "--farm-spawn":
+                        options.farmSpawn = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+            }
+        }
+
+        if (options.scene == null || options.output == null) {
+            throw new IllegalArgumentException("--scene and --output are required");
+        }
+        if (options.lastFrame < options.firstFrame) {
+            throw new IllegalArgumentException("Last frame comes before the first: " + options.firstFrame + "-" + options.lastFrame);
+        }
+        if (options.samples < 1 || !(options.errorThreshold >= 0)) {
+            throw new IllegalArgumentException("Invalid sampling: " + options.samples + " samples, error threshold " + options.errorThreshold);
+        }
+        if (options.samples > 1 && options.renderer != Renderer.CPU) {
+            throw new IllegalArgumentException("Only the cpu renderer takes more than one sample per pixel");
+        }
+        if (options.farmWorkers < 1 || options.farmSpawn < 0) {
+            throw new IllegalArgumentException("A farm needs at least one worker: " + options.farmWorkers + ", " + options.farmSpawn);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,153 @@
+package batch;
+
+import cpu.FloatImage;
+import render.FrameRenderer;
+import scene.Camera;
+import scene.CameraPath;
+import scene.Scene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Renders a range of frames and writes them to image files.
+ *
+ * Rendering happens on the calling thread, encoding and writing on a pool of worker threads, so the
+ * next frame renders while earlier ones are written. Frames are rendered into a fixed pool of
+ * images which are only returned once written: at most queueDepth frames exist at any time, and
+ * rendering waits for a free image when the writers fall behind.
+ */
+public class BatchRenderer {
+    private final FrameRenderer renderer;
+    private final int width, height;
+    private final int queueDepth;
+    private final int writerThreads;
+
+    public BatchRenderer(FrameRenderer renderer, int width, int height, int queueDepth, int writerThreads) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        if (queueDepth < 1 || writerThreads < 1) {
+            throw new IllegalArgumentException("Need at least one image and one writer: " + queueDepth + ", " + writerThreads);
+        }
+        this.renderer = renderer;
+        this.width = width;
+        this.height = height;
+        this.queueDepth = queueDepth;
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Renders frames first to last inclusive along the camera path
+     *
+     * @param outputPattern file name pattern formatted with the frame number, e.g. frame_%04d.png
+     * @throws IOException if an image could not be written, rendering stops at the next frame
+     */
+    public Stats render(Scene scene, Camera camera, CameraPath cameraPath, int firstFrame, int lastFrame,
+                        String outputPattern) throws IOException, InterruptedException {
+        ImageEncoder.Format.of(Paths.get(String.format(outputPattern, firstFrame)));
+
+        BlockingQueue<FloatImage> freeImages = new ArrayBlockingQueue<>(queueDepth);
+        for (int i = 0; i < queueDepth; i++) {
+            freeImages.add(new FloatImage(width, height));
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "image-writer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        try {
+            for (int frame = firstFrame; frame <= lastFrame && failure.get() == null; frame++) {
+                long waitStart = System.nanoTime();
+                FloatImage image = freeImages.take();
+                long renderStart = System.nanoTime();
+                stats.waitNanos += renderStart - waitStart;
+
+                cameraPath.apply(frame, camera);
+                scene.seek(frame);
+                renderer.render(scene, camera, image);
+                stats.renderNanos += System.nanoTime() - renderStart;
+
+                Path file = Paths.get(String.format(outputPattern, frame));
+                writers.execute(() -> {
+                    try {
+                        ImageEncoder.write(image, file);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        freeImages.add(image);
+                    }
+                });
+                stats.frames++;
+            }
+        } finally {
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        stats.totalNanos = System.nanoTime() - start;
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return stats;
+    }
+
+    /**
+     * Where the time of a batch went
+     */
+    public static class Stats {
+        int frames;
+        long totalNanos;
+        long renderNanos;
+        long waitNanos;
+
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * Wall clock time from the first render until the last image was written
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Time spent rendering, including reading frames back from the GPU
+         */
+        public long getRenderNanos() {
+            return renderNanos;
+        }
+
+        /**
+         * Time rendering waited for the writers to free an image, zero when I/O keeps up
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        public double getFramesPerSecond() {
+            return totalNanos == 0 ? 0 : frames * 1e9 / totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames in %.2f s, %.2f frames/s (rendering %.2f s, waiting for writers %.2f s)",
+                    frames, totalNanos / 1e9, getFramesPerSecond(), renderNanos / 1e9, waitNanos / 1e9);
+        }
+    }
+}
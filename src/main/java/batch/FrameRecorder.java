@@ -0,0 +1,124 @@
+package batch;
+
+import org.lwjgl.system.MemoryUtil;
+import render.PixelConsumer;
+import render.PixelFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes frames read back from the framebuffer to numbered image files on background threads.
+ *
+ * Each frame is copied out of the mapped buffer into one of a fixed number of off-heap buffers and
+ * encoded by a writer thread. The renderer must never wait for the disk, so when every buffer is
+ * still being written the frame is dropped and counted instead.
+ */
+public class FrameRecorder implements PixelConsumer, AutoCloseable {
+    private final String outputPattern;
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final ExecutorService writers;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong writeFailures = new AtomicLong();
+
+    /**
+     * @param outputPattern file name pattern formatted with the frame number, e.g. frame_%05d.png
+     * @param bufferCount   most frames waiting to be written at once
+     */
+    public FrameRecorder(String outputPattern, int bufferCount, int writerThreads) {
+        ImageEncoder.Format.of(Paths.get(String.format(outputPattern, 0)));
+        if (bufferCount < 1 || writerThreads < 1) {
+            throw new IllegalArgumentException("Need at least one buffer and one writer: " + bufferCount + ", " + writerThreads);
+        }
+        this.outputPattern = outputPattern;
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(MemoryUtil.memAlloc(1));
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "frame-recorder-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void accept(ByteBuffer pixels, int width, int height, PixelFormat format, long frame) {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            framesDropped.incrementAndGet();
+            return;
+        }
+
+        int size = pixels.remaining();
+        if (buffer.capacity() < size) {
+            buffer = MemoryUtil.memRealloc(buffer, size);
+        }
+        buffer.clear();
+        MemoryUtil.memCopy(MemoryUtil.memAddress(pixels), MemoryUtil.memAddress(buffer), size);
+        buffer.limit(size);
+
+        ByteBuffer copy = buffer;
+        writers.execute(() -> {
+            try {
+                ImageEncoder.write(copy, format, width, height, Paths.get(String.format(outputPattern, frame)));
+                framesWritten.incrementAndGet();
+            } catch (IOException e) {
+                writeFailures.incrementAndGet();
+                System.err.println(e.getMessage());
+            } finally {
+                freeBuffers.add(copy);
+            }
+        });
+    }
+
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Frames skipped because the writers were still busy with earlier ones
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getWriteFailures() {
+        return writeFailures.get();
+    }
+
+    /**
+     * Waits for the frames being written and frees the buffers. If the caller is interrupted while
+     * waiting it keeps its interrupt flag set and only the buffers already written are freed.
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ByteBuffer buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames recorded, %d dropped, %d failed", getFramesWritten(), getFramesDropped(), getWriteFailures());
+    }
+}
@@ -0,0 +1,143 @@
+package batch;
+
+import cpu.FloatImage;
+import org.lwjgl.stb.STBIWriteCallback;
+import org.lwjgl.system.MemoryUtil;
+import render.PixelFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+
+import static org.lwjgl.stb.STBImageWrite.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Writes {@link FloatImage}s or read back pixels to PNG or Radiance HDR files through stb_image_write, picking the
+ * format from the file extension. PNGs get the colours clamped to [0, 1] like the window shows
+ * them, HDR files keep the traced values. Both are written top row first. Safe to use from several
+ * threads at once, scratch memory is allocated off-heap per image.
+ */
+public class ImageEncoder {
+    public enum Format {
+        PNG, HDR;
+
+        public static Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase();
+            if (name.endsWith(".png")) {
+                return PNG;
+            }
+            if (name.endsWith(".hdr")) {
+                return HDR;
+            }
+            throw new IllegalArgumentException("Unsupported image format, expected .png or .hdr: " + file);
+        }
+    }
+
+    private ImageEncoder() {
+    }
+
+    //Channel of an RGBA image stored bottom up, index is pixel * 4 + channel
+    private interface Pixels {
+        float get(int index);
+    }
+
+    public static void write(FloatImage image, Path file) throws IOException {
+        float[] pixels = image.getPixels();
+        write(i -> pixels[i], image.getWidth(), image.getHeight(), file);
+    }
+
+    /**
+     * Writes pixels read back from the framebuffer in the given format, starting at the buffer's position
+     */
+    public static void write(ByteBuffer pixels, PixelFormat format, int width, int height, Path file) throws IOException {
+        int start = pixels.position();
+        if (format == PixelFormat.RGBA8) {
+            write(i -> (pixels.get(start + i) & 0xFF) / 255.0f, width, height, file);
+        } else {
+            write(i -> pixels.getFloat(start + i * 4), width, height, file);
+        }
+    }
+
+    private static void write(Pixels pixels, int width, int height, Path file) throws IOException {
+        if (Format.of(file) == Format.PNG) {
+            writePng(pixels, width, height, file);
+        } else {
+            writeHdr(pixels, width, height, file);
+        }
+    }
+
+    /**
+     * Encodes an image as a PNG in memory, e.g. to send it over the network
+     */
+    public static byte[] encodePng(FloatImage image) throws IOException {
+        float[] pixels = image.getPixels();
+        ByteBuffer rgb = toRgb8(i -> pixels[i], image.getWidth(), image.getHeight());
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        //stb hands the file over in chunks
+        STBIWriteCallback callback = STBIWriteCallback.create((context, data, size) -> {
+            byte[] chunk = new byte[size];
+            STBIWriteCallback.getData(data, size).get(chunk);
+            png.write(chunk, 0, size);
+        });
+        try {
+            if (!stbi_write_png_to_func(callback, NULL, image.getWidth(), image.getHeight(), 3, rgb, image.getWidth() * 3)) {
+                throw new IOException("Could not encode a " + image.getWidth() + "x" + image.getHeight() + " PNG");
+            }
+        } finally {
+            callback.free();
+            MemoryUtil.memFree(rgb);
+        }
+        return png.toByteArray();
+    }
+
+    private static void writePng(Pixels pixels, int width, int height, Path file) throws IOException {
+        ByteBuffer rgb = toRgb8(pixels, width, height);
+        try {
+            if (!stbi_write_png(file.toString(), width, height, 3, rgb, width * 3)) {
+                throw new IOException("Could not write " + file);
+            }
+        } finally {
+            MemoryUtil.memFree(rgb);
+        }
+    }
+
+    //Clamped 8 bit RGB rows top first, allocated off-heap for the caller to free
+    private static ByteBuffer toRgb8(Pixels pixels, int width, int height) {
+        ByteBuffer rgb = MemoryUtil.memAlloc(width * height * 3);
+        for (int y = 0; y < height; y++) {
+            //Images are stored bottom up
+            int row = (height - 1 - y) * width * 4;
+            for (int x = 0; x < width * 4; x += 4) {
+                rgb.put(toByte(pixels.get(row + x)));
+                rgb.put(toByte(pixels.get(row + x + 1)));
+                rgb.put(toByte(pixels.get(row + x + 2)));
+            }
+        }
+        return rgb.flip();
+    }
+
+    private static void writeHdr(Pixels pixels, int width, int height, Path file) throws IOException {
+        FloatBuffer rgb = MemoryUtil.memAllocFloat(width * height * 3);
+        try {
+            for (int y = 0; y < height; y++) {
+                int row = (height - 1 - y) * width * 4;
+                for (int x = 0; x < width * 4; x += 4) {
+                    rgb.put(pixels.get(row + x)).put(pixels.get(row + x + 1)).put(pixels.get(row + x + 2));
+                }
+            }
+            rgb.flip();
+            if (!stbi_write_hdr(file.toString(), width, height, 3, rgb)) {
+                throw new IOException("Could not write " + file);
+            }
+        } finally {
+            MemoryUtil.memFree(rgb);
+        }
+    }
+
+    private static byte toByte(float value) {
+        return (byte) Math.round(Math.max(0.0f, Math.min(1.0f, value)) * 255.0f);
+    }
+}
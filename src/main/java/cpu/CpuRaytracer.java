@@ -0,0 +1,985 @@
+package cpu;
+
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhTimings;
+import accel.BvhTraverser;
+import accel.DynamicBvh;
+import accel.LightGrid;
+import accel.PrimitiveIntersector;
+import accel.SahBvhBuilder;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import render.Accumulation;
+import render.FrameRenderer;
+import render.Reprojection;
+import render.SampleStatistics;
+import render.TileScheduler;
+import render.TraceParameters;
+import scene.Camera;
+import scene.LightStore;
+import scene.MeshStore;
+import scene.Scene;
+import scene.SphereStore;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pure Java port of compute.glsl. Renders a {@link Scene} into a {@link FloatImage}
+ * by splitting the image into tiles which are traced on a {@link ForkJoinPool}.
+ *
+ * The scene's off-heap stores are read in place, so the scene must not change while a frame renders.
+ * An instance renders one frame at a time.
+ * Closest hits are found through a {@link DynamicBvh} refit or rebuilt every frame, or by testing
+ * every sphere like the original shader when the hierarchy is disabled. Mesh triangles have a
+ * hierarchy of their own, built with a {@link SahBvhBuilder} whenever the meshes change. Each hit
+ * is only shaded with the lights a {@link LightGrid}, rebuilt every frame, lists for its cell.
+ *
+ * When the JVM runs with --add-modules jdk.incubator.vector, primary rays are traced in packets
+ * of adjacent pixels by a {@link PacketTraverser}, which finds the same sphere hits with SIMD.
+ *
+ * A frame is one sample through each pixel centre, unless an {@link Accumulation} is set: then
+ * every frame traces jittered passes until it converges and shows their average, spending the
+ * adaptive passes only on the pixels whose error is still above the threshold.
+ *
+ * Without accumulation, {@link #setReprojection reprojection} reuses the colours of the previous
+ * frame for pixels whose primary ray hits the same surface it showed, as long as the scene did not change.
+ */
+public class CpuRaytracer implements FrameRenderer {
+    //Mirror the #defines in compute.glsl that are not part of TraceParameters
+    private static final float LARGE_FLOAT = 1E+10f;
+    private static final float EPSILON = 0.0001f;
+
+    public static final int DEFAULT_TILE_SIZE = 16;
+
+    //Every store column holds one vec4 per element
+    private static final int STRIDE = 4;
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+
+    private final Matrix4f viewMatrix = new Matrix4f();
+    private final Matrix4f projMatrix = new Matrix4f();
+    private final Matrix4f invMatrix = new Matrix4f();
+
+    //View frustum, same as the uniforms set by ComputeShader
+    private final Vector3f eye = new Vector3f();
+    private final Vector3f ray00 = new Vector3f();
+    private final Vector3f ray01 = new Vector3f();
+    private final Vector3f ray10 = new Vector3f();
+    private final Vector3f ray11 = new Vector3f();
+
+    //Store columns of the frame being rendered
+    private FloatBuffer spherePositions;
+    private FloatBuffer sphereMaterials;
+    private int numberOfSpheres;
+    private FloatBuffer lightPositions;
+    private FloatBuffer lightColours;
+    private int numberOfLights;
+    private FloatBuffer meshVertices;
+    private IntBuffer meshTriangles;
+    private FloatBuffer meshMaterials;
+    private int numberOfTriangles;
+
+    private final DynamicBvh dynamicBvh;
+    private final Bvh bvh;
+    private boolean bvhEnabled = true;
+
+    private final SahBvhBuilder triangleBvhBuilder;
+    private final Bvh triangleBvh = new Bvh();
+    private MeshStore builtMeshStore;
+    private long builtMeshVersion = -1;
+
+    private final LightGrid lightGrid = new LightGrid();
+
+    //Scene the hierarchies and light grid were last prepared for
+    private Scene preparedScene;
+    private long preparedSceneVersion;
+    private boolean preparedBvhEnabled;
+    private float preparedLightThreshold;
+
+    private static final boolean VECTOR_API_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private boolean packetTracing = VECTOR_API_AVAILABLE;
+
+    private TraceParameters parameters = TraceParameters.DEFAULT;
+    //Parameters of the frame being rendered
+    private TraceParameters frameParameters = parameters;
+
+    //Traversal counters of the last frame
+    private final LongAdder raysTraced = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder primitivesTested = new LongAdder();
+    private final LongAdder packetsTraced = new LongAdder();
+    private final LongAdder packetFallbacks = new LongAdder();
+    private final LongAdder reusedPixels = new LongAdder();
+
+    private FloatImage target;
+    //Position of the primary rays within their pixels
+    private float jitterX = 0.5f, jitterY = 0.5f;
+
+    private Accumulation accumulation;
+    private final SampleStatistics sampleStatistics = new SampleStatistics();
+    private final FloatImage sampleImage = new FloatImage(1, 1);
+    private boolean showSampleHeatmap;
+
+    //Distance, hit and reuse count of every pixel, see Reprojection, for the frame being rendered and the previous one
+    private boolean reprojection;
+    //Whether the frame being traced records its surfaces, and whether it also reuses the history
+    private boolean recordingSurfaces, reprojecting;
+    private float[] surfaces = new float[0];
+    private float[] historySurfaces = new float[0];
+    private float[] historyColours = new float[0];
+    private boolean historyValid;
+    //View, eye, scene, quality and size the history was traced with
+    private final Matrix4f historyViewProjection = new Matrix4f();
+    private final Vector3f historyEye = new Vector3f();
+    private Scene historyScene;
+    private long historySceneVersion;
+    private TraceParameters historyParameters;
+    private int historyWidth, historyHeight;
+    //Region of the target being traced, split into tiles of tileSize
+    private int regionX, regionY, regionWidth, regionHeight;
+    private int tilesX;
+
+    public CpuRaytracer() {
+        this(ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+    }
+
+    public CpuRaytracer(ForkJoinPool pool, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.pool = pool;
+        this.tileSize = tileSize;
+        this.dynamicBvh = new DynamicBvh(pool);
+        this.bvh = dynamicBvh.getBvh();
+        this.triangleBvhBuilder = new SahBvhBuilder(pool);
+    }
+
+    /**
+     * Switches between BVH traversal and testing every sphere and triangle for every ray
+     */
+    public void setBvhEnabled(boolean bvhEnabled) {
+        this.bvhEnabled = bvhEnabled;
+    }
+
+    public boolean isBvhEnabled() {
+        return bvhEnabled;
+    }
+
+    /**
+     * Switches between tracing primary rays in SIMD packets and one at a time. Packets need the
+     * jdk.incubator.vector module, without it they stay off.
+     */
+    public void setPacketTracing(boolean packetTracing) {
+        this.packetTracing = packetTracing && VECTOR_API_AVAILABLE;
+    }
+
+    public boolean isPacketTracing() {
+        return packetTracing;
+    }
+
+    /**
+     * Sets the quality of the traced image, taking effect with the next frame. The work group size
+     * and light bound only matter to the shader.
+     */
+    public void setParameters(TraceParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public TraceParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Accumulates every frame until it converges, or traces a single sample through each pixel centre if null
+     */
+    public void setAccumulation(Accumulation accumulation) {
+        this.accumulation = accumulation;
+    }
+
+    public Accumulation getAccumulation() {
+        return accumulation;
+    }
+
+    /**
+     * Samples of every pixel in the last accumulated frame
+     */
+    public SampleStatistics getSampleStatistics() {
+        return sampleStatistics;
+    }
+
+    /**
+     * Shows how many samples every pixel of an accumulated frame took instead of their average
+     */
+    public void setShowSampleHeatmap(boolean showSampleHeatmap) {
+        this.showSampleHeatmap = showSampleHeatmap;
+    }
+
+    /**
+     * Reuses the previous frame's colour of every pixel whose primary ray still hits the same surface,
+     * for frames rendered whole without accumulation. Off by default.
+     */
+    public void setReprojection(boolean reprojection) {
+        this.reprojection = reprojection;
+        historyValid = false;
+    }
+
+    public boolean isReprojection() {
+        return reprojection;
+    }
+
+    /**
+     * Timings of the last hierarchy update
+     */
+    public BvhTimings getBvhTimings() {
+        return dynamicBvh.getTimings();
+    }
+
+    /**
+     * Traces one frame of the scene as seen from the camera into the target image
+     */
+    @Override
+    public void render(Scene scene, Camera camera, FloatImage target) {
+        beginFrame(scene, camera, target);
+        if (accumulation != null) {
+            renderAccumulated(target);
+        } else if (reprojection) {
+            renderReprojected(scene, target);
+        } else {
+            traceRegion(0, 0, target.getWidth(), target.getHeight());
+        }
+        this.target = null;
+    }
+
+    //Traces the frame reusing the history where it still holds, then keeps the frame as the next history
+    private void renderReprojected(Scene scene, FloatImage output) {
+        int width = output.getWidth(), height = output.getHeight();
+        int pixels = width * height;
+        if (surfaces.length < pixels * 3) {
+            surfaces = new float[pixels * 3];
+            historySurfaces = new float[pixels * 3];
+            historyColours = new float[pixels * 4];
+            historyValid = false;
+        }
+        reprojecting = historyValid && scene == historyScene && scene.getVersion() == historySceneVersion
+                && frameParameters.equals(historyParameters) && width == historyWidth && height == historyHeight;
+        recordingSurfaces = true;
+        traceRegion(0, 0, width, height);
+        recordingSurfaces = false;
+        reprojecting = false;
+
+        System.arraycopy(output.getPixels(), 0, historyColours, 0, pixels * 4);
+        float[] traced = surfaces;
+        surfaces = historySurfaces;
+        historySurfaces = traced;
+        invMatrix.invert(historyViewProjection);
+        historyEye.set(eye);
+        historyScene = scene;
+        historySceneVersion = scene.getVersion();
+        historyParameters = frameParameters;
+        historyWidth = width;
+        historyHeight = height;
+        historyValid = true;
+    }
+
+    //Traces passes into the sample image until the accumulation converges, then resolves them into the target
+    private void renderAccumulated(FloatImage output) {
+        int width = output.getWidth(), height = output.getHeight();
+        sampleImage.resize(width, height);
+        sampleStatistics.resize(width, height);
+        accumulation.invalidate();
+        target = sampleImage;
+        do {
+            jitterX = accumulation.getJitterX();
+            jitterY = accumulation.getJitterY();
+            boolean adaptivePass = accumulation.isAdaptivePass();
+            if (adaptivePass) {
+                pool.invoke(new ActivePixelTask(0, sampleStatistics.getActiveCount()));
+                accumulation.samplesTraced(sampleStatistics.getActiveCount());
+            } else {
+                traceRegion(0, 0, width, height);
+                accumulation.samplesTraced((long) width * height);
+            }
+            sampleStatistics.addPass(sampleImage.getPixels(), adaptivePass, accumulation.getSampleIndex() == 0);
+            if (accumulation.collectsActivePixels()) {
+                accumulation.setActivePixels(sampleStatistics.collectActivePixels(accumulation));
+            }
+            accumulation.sampleTraced();
+        } while (accumulation.isEnabled() && !accumulation.isConverged());
+
+        if (showSampleHeatmap) {
+            sampleStatistics.writeHeatmap(output.getPixels(), accumulation.getMaxSamples());
+        } else {
+            sampleStatistics.resolve(output.getPixels());
+        }
+    }
+
+    /**
+     * Traces one rectangle of the target image and leaves the rest of it alone, e.g. a tile of a
+     * frame shared out between several renderers. Rays are cast as for the whole target.
+     */
+    public void render(Scene scene, Camera camera, FloatImage target, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > target.getWidth() || y + height > target.getHeight()) {
+            throw new IllegalArgumentException("Region " + width + "x" + height + " at " + x + ", " + y
+                    + " outside of a " + target.getWidth() + "x" + target.getHeight() + " image");
+        }
+        beginFrame(scene, camera, target);
+        traceRegion(x, y, width, height);
+        this.target = null;
+    }
+
+    /**
+     * Traces as many tiles of the target image as the scheduler's budget allows, the rest are traced by later calls
+     *
+     * @return true if this call completed the image
+     */
+    public boolean render(Scene scene, Camera camera, FloatImage target, TileScheduler scheduler) {
+        beginFrame(scene, camera, target);
+        scheduler.resize(target.getWidth(), target.getHeight());
+        boolean complete = scheduler.renderFrame(this::traceRegion);
+        this.target = null;
+        return complete;
+    }
+
+    private void beginFrame(Scene scene, Camera camera, FloatImage target) {
+        this.frameParameters = parameters;
+        bindScene(scene);
+        prepareScene(scene);
+        setViewFrustum(camera, target.getWidth(), target.getHeight());
+        this.target = target;
+        jitterX = 0.5f;
+        jitterY = 0.5f;
+
+        raysTraced.reset();
+        nodesVisited.reset();
+        primitivesTested.reset();
+        packetsTraced.reset();
+        packetFallbacks.reset();
+        reusedPixels.reset();
+    }
+
+    //Updates the hierarchies and bins the lights, unless nothing changed since the last call, e.g. for the next tile of a frame
+    private void prepareScene(Scene scene) {
+        if (scene == preparedScene && scene.getVersion() == preparedSceneVersion && bvhEnabled == preparedBvhEnabled
+                && frameParameters.getLightThreshold() == preparedLightThreshold) {
+            return;
+        }
+        if (bvhEnabled) {
+            dynamicBvh.update(BoundedPrimitives.spheres(spherePositions, STRIDE, numberOfSpheres));
+            MeshStore meshes = scene.meshStore;
+            if (meshes != builtMeshStore || meshes.getVersion() != builtMeshVersion) {
+                triangleBvhBuilder.build(BoundedPrimitives.triangles(meshVertices, meshTriangles, numberOfTriangles), triangleBvh);
+                builtMeshStore = meshes;
+                builtMeshVersion = meshes.getVersion();
+            }
+            lightGrid.build(lightPositions, numberOfLights, frameParameters.getLightThreshold(), bvh, triangleBvh);
+        } else {
+            lightGrid.build(lightPositions, numberOfLights, frameParameters.getLightThreshold(),
+                    BoundedPrimitives.spheres(spherePositions, STRIDE, numberOfSpheres),
+                    BoundedPrimitives.triangles(meshVertices, meshTriangles, numberOfTriangles));
+        }
+        preparedScene = scene;
+        preparedSceneVersion = scene.getVersion();
+        preparedBvhEnabled = bvhEnabled;
+        preparedLightThreshold = frameParameters.getLightThreshold();
+    }
+
+    //Traces a rectangle of the target on the pool, in tiles of tileSize
+    private void traceRegion(int x, int y, int width, int height) {
+        this.regionX = x;
+        this.regionY = y;
+        this.regionWidth = width;
+        this.regionHeight = height;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        pool.invoke(new TileTask(0, tilesX * tilesY));
+    }
+
+    /**
+     * Lights binned for the last frame
+     */
+    public LightGrid getLightGrid() {
+        return lightGrid;
+    }
+
+    /**
+     * Number of primary, reflection and shadow rays traced in the last frame
+     */
+    public long getRaysTraced() {
+        return raysTraced.sum();
+    }
+
+    /**
+     * Number of BVH nodes tested in the last frame, zero without the hierarchy
+     */
+    public long getNodesVisited() {
+        return nodesVisited.sum();
+    }
+
+    /**
+     * Number of ray sphere and ray triangle tests in the last frame, a packet's test of all its rays counting once
+     */
+    public long getPrimitivesTested() {
+        return primitivesTested.sum();
+    }
+
+    /**
+     * Number of primary ray packets traced with SIMD in the last frame
+     */
+    public long getPacketsTraced() {
+        return packetsTraced.sum();
+    }
+
+    /**
+     * Number of primary ray packets traced one ray at a time in the last frame, because their rays diverged
+     */
+    public long getPacketFallbacks() {
+        return packetFallbacks.sum();
+    }
+
+    /**
+     * Number of pixels of the last frame whose colour was reprojected rather than shaded
+     */
+    public long getReusedPixels() {
+        return reusedPixels.sum();
+    }
+
+    private void bindScene(Scene scene) {
+        SphereStore sphereStore = scene.sphereStore;
+        spherePositions = sphereStore.positionRadius();
+        sphereMaterials = sphereStore.materials();
+        numberOfSpheres = sphereStore.size();
+
+        LightStore lightStore = scene.lightStore;
+        lightPositions = lightStore.positionBrightness();
+        lightColours = lightStore.colours();
+        numberOfLights = lightStore.size();
+
+        MeshStore meshStore = scene.meshStore;
+        meshVertices = meshStore.vertices();
+        meshTriangles = meshStore.triangles();
+        meshMaterials = meshStore.materials();
+        numberOfTriangles = meshStore.getTriangleCount();
+    }
+
+    //Same projection as Window.recalculateProjectionMatrix and frustum as ComputeShader.setViewFrustumUniform
+    private void setViewFrustum(Camera camera, int width, int height) {
+        projMatrix.setPerspective((float) Math.toRadians(60.0f), (float) width / height, 1f, 2f);
+        viewMatrix.setLookAt(camera.getPosition(), camera.getDirection(), camera.getUpDirection());
+        projMatrix.invertPerspectiveView(viewMatrix, invMatrix);
+
+        eye.set(camera.getPosition());
+        invMatrix.transformProject(ray00.set(-1, -1, 0)).sub(eye);
+        invMatrix.transformProject(ray01.set(-1, 1, 0)).sub(eye);
+        invMatrix.transformProject(ray10.set(1, -1, 0)).sub(eye);
+        invMatrix.transformProject(ray11.set(1, 1, 0)).sub(eye);
+    }
+
+    /**
+     * Port of intersectSphere() in compute.glsl, returns the nearer solution or -1 if the ray misses
+     */
+    public static float intersectSphere(float ox, float oy, float oz, float dx, float dy, float dz,
+                                        float cx, float cy, float cz, float radius) {
+        float a = dx * dx + dy * dy + dz * dz;
+        float fx = ox - cx, fy = oy - cy, fz = oz - cz;
+
+        float b = 2.0f * (dx * fx + dy * fy + dz * fz);
+        float c = (fx * fx + fy * fy + fz * fz) - (radius * radius);
+
+        float dscrmnt = b * b - 4.0f * a * c;
+        if (dscrmnt < 0.0f) {
+            //No intersection
+            return -1.0f;
+        }
+
+        return (-b - (float) Math.sqrt(dscrmnt)) / (2.0f * a);
+    }
+
+    /**
+     * Port of intersectTriangle() in compute.glsl, Moller-Trumbore, returns the lambda of the hit or -1 if the ray misses
+     */
+    public static float intersectTriangle(float ox, float oy, float oz, float dx, float dy, float dz,
+                                          float ax, float ay, float az, float bx, float by, float bz,
+                                          float cx, float cy, float cz) {
+        float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+        float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float determinant = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(determinant) < 1E-12f) {
+            //Parallel to the triangle
+            return -1.0f;
+        }
+        float inverseDeterminant = 1.0f / determinant;
+
+        float fx = ox - ax, fy = oy - ay, fz = oz - az;
+        float u = (fx * px + fy * py + fz * pz) * inverseDeterminant;
+        if (u < 0.0f || u > 1.0f) {
+            return -1.0f;
+        }
+        float qx = fy * e1z - fz * e1y, qy = fz * e1x - fx * e1z, qz = fx * e1y - fy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inverseDeterminant;
+        if (v < 0.0f || u + v > 1.0f) {
+            return -1.0f;
+        }
+        return (e2x * qx + e2y * qy + e2z * qz) * inverseDeterminant;
+    }
+
+    //Mutable equivalent of the Ray and Intersection structs in compute.glsl
+    private static final class Ray {
+        float ox, oy, oz;
+        float dx, dy, dz;
+        float lambda;
+        float nx, ny, nz;
+        int sphereIndex;
+        int triangleIndex;
+
+        void set(float ox, float oy, float oz, float dx, float dy, float dz) {
+            this.ox = ox;
+            this.oy = oy;
+            this.oz = oz;
+            this.dx = dx;
+            this.dy = dy;
+            this.dz = dz;
+            this.lambda = 0;
+            this.nx = this.ny = this.nz = 0;
+            this.sphereIndex = -1;
+            this.triangleIndex = -1;
+        }
+    }
+
+    //Splits a range of tiles in half until a single tile is left, idle workers steal the other halves
+    @SuppressWarnings("serial")
+    private final class TileTask extends RecursiveAction {
+        private final int firstTile, endTile;
+
+        TileTask(int firstTile, int endTile) {
+            this.firstTile = firstTile;
+            this.endTile = endTile;
+        }
+
+        @Override
+        protected void compute() {
+            if (endTile - firstTile > 1) {
+                int middle = (firstTile + endTile) >>> 1;
+                invokeAll(new TileTask(firstTile, middle), new TileTask(middle, endTile));
+                return;
+            }
+            new TileTracer().traceTile(firstTile);
+        }
+    }
+
+    //Splits a range of the active pixel list like TileTask, down to about a tile's worth of pixels
+    @SuppressWarnings("serial")
+    private final class ActivePixelTask extends RecursiveAction {
+        private final int first, end;
+
+        ActivePixelTask(int first, int end) {
+            this.first = first;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first > tileSize * tileSize) {
+                int middle = (first + end) >>> 1;
+                invokeAll(new ActivePixelTask(first, middle), new ActivePixelTask(middle, end));
+                return;
+            }
+            new TileTracer().tracePixels(sampleStatistics.getActivePixels(), first, end);
+        }
+    }
+
+    //Scratch state for tracing a tile, so no objects are allocated per pixel
+    private final class TileTracer implements PrimitiveIntersector {
+        private final int reflections = frameParameters.getReflections();
+        private final float reflectivity = frameParameters.getReflectivity();
+        private final float ambientLight = frameParameters.getAmbientLight();
+        private final float kd = frameParameters.getDiffuse();
+        private final float ks = frameParameters.getSpecular();
+
+        private final Ray[] reflectionBounces = new Ray[reflections];
+        private final Ray toLightRay = new Ray();
+        private final float[] colours = new float[reflections * 3];
+        private final BvhTraverser traverser = new BvhTraverser(bvh, EPSILON);
+        private final BvhTraverser triangleTraverser = new BvhTraverser(triangleBvh, EPSILON);
+        private final PrimitiveIntersector triangleIntersector = this::intersectTriangle;
+        private final PacketTraverser packetTraverser = packetTracing ? new PacketTraverser(bvh, EPSILON) : null;
+        private final RayPacket packet = packetTracing ? new RayPacket(PacketTraverser.WIDTH) : null;
+        private long rays, bruteForceTests, reused;
+
+        TileTracer() {
+            for (int i = 0; i < reflections; i++) {
+                reflectionBounces[i] = new Ray();
+            }
+        }
+
+        void traceTile(int tile) {
+            int width = target.getWidth();
+            int height = target.getHeight();
+            float[] pixels = target.getPixels();
+
+            int x0 = regionX + (tile % tilesX) * tileSize;
+            int y0 = regionY + (tile / tilesX) * tileSize;
+            int x1 = Math.min(x0 + tileSize, regionX + regionWidth);
+            int y1 = Math.min(y0 + tileSize, regionY + regionHeight);
+
+            for (int y = y0; y < y1; y++) {
+                if (packetTraverser != null) {
+                    for (int x = x0; x < x1; x += PacketTraverser.WIDTH) {
+                        tracePacket(x, Math.min(x + PacketTraverser.WIDTH, x1), y, width, height, pixels);
+                    }
+                } else {
+                    for (int x = x0; x < x1; x++) {
+                        tracePixel(x, y, width, height, pixels);
+                    }
+                }
+            }
+
+            addCounters();
+        }
+
+        //Traces pixels of a list, one at a time since they are scattered over the image
+        void tracePixels(int[] pixelList, int first, int end) {
+            int width = target.getWidth();
+            int height = target.getHeight();
+            float[] pixels = target.getPixels();
+            for (int i = first; i < end; i++) {
+                tracePixel(pixelList[i] % width, pixelList[i] / width, width, height, pixels);
+            }
+            addCounters();
+        }
+
+        private void addCounters() {
+            raysTraced.add(rays);
+            reusedPixels.add(reused);
+            nodesVisited.add(traverser.getNodesVisited() + triangleTraverser.getNodesVisited());
+            primitivesTested.add(traverser.getPrimitivesTested() + triangleTraverser.getPrimitivesTested() + bruteForceTests);
+            if (packetTraverser != null) {
+                nodesVisited.add(packetTraverser.getNodesVisited());
+                primitivesTested.add(packetTraverser.getPrimitivesTested());
+                packetsTraced.add(packetTraverser.getPacketsTraced());
+                packetFallbacks.add(packetTraverser.getScalarFallbacks());
+            }
+        }
+
+        //Traces the pixels x0 to x1 of a row, finding the primary rays' sphere hits as one packet
+        private void tracePacket(int x0, int x1, int y, int width, int height, float[] pixels) {
+            Ray primary = reflectionBounces[0];
+            for (int x = x0; x < x1; x++) {
+                setPrimaryRay(primary, x, y, width, height);
+                normalize(primary);
+                packet.set(x - x0, primary.ox, primary.oy, primary.oz, primary.dx, primary.dy, primary.dz);
+            }
+            packet.setSize(x1 - x0);
+            if (bvhEnabled) {
+                packetTraverser.closestHits(packet, spherePositions);
+            } else {
+                packetTraverser.closestHitsBruteForce(packet, spherePositions, numberOfSpheres);
+            }
+
+            for (int x = x0; x < x1; x++) {
+                int lane = x - x0;
+                primary.set(packet.ox[lane], packet.oy[lane], packet.oz[lane], packet.dx[lane], packet.dy[lane], packet.dz[lane]);
+                int sphere = packet.primitive[lane];
+                shadePrimary(intersect(primary, sphere, sphere < 0 ? LARGE_FLOAT : packet.lambda[lane]), x, y, width, pixels);
+            }
+        }
+
+        //Port of main() in compute.glsl
+        private void tracePixel(int x, int y, int width, int height, float[] pixels) {
+            //Find the prime ray's hit
+            setPrimaryRay(reflectionBounces[0], x, y, width, height);
+            shadePrimary(intersect(reflectionBounces[0]), x, y, width, pixels);
+        }
+
+        //Takes the colour of a pixel whose primary ray was intersected from the history or shades it with its reflections
+        private void shadePrimary(boolean hit, int x, int y, int width, float[] pixels) {
+            Ray primary = reflectionBounces[0];
+            if (recordingSurfaces) {
+                int s = (y * width + x) * 3;
+                surfaces[s] = primary.lambda;
+                surfaces[s + 1] = Reprojection.hitId(primary.sphereIndex, primary.triangleIndex);
+                surfaces[s + 2] = 0;
+                if (reprojecting && reproject(primary, hit, x, y, width, pixels)) {
+                    reused++;
+                    return;
+                }
+            }
+            shade(primary, 0, hit);
+            traceReflections(x, y, width, pixels);
+        }
+
+        //Port of reproject() in compute.glsl
+        private boolean reproject(Ray primary, boolean hit, int x, int y, int width, float[] pixels) {
+            float px = primary.dx, py = primary.dy, pz = primary.dz, pw = 0;
+            if (hit) {
+                px = primary.ox + primary.dx * primary.lambda;
+                py = primary.oy + primary.dy * primary.lambda;
+                pz = primary.oz + primary.dz * primary.lambda;
+                pw = 1;
+            }
+            Matrix4f m = historyViewProjection;
+            float cw = m.m03() * px + m.m13() * py + m.m23() * pz + m.m33() * pw;
+            if (cw <= 0) {
+                return false;
+            }
+            float cx = m.m00() * px + m.m10() * py + m.m20() * pz + m.m30() * pw;
+            float cy = m.m01() * px + m.m11() * py + m.m21() * pz + m.m31() * pw;
+            int hx = (int) Math.floor((cx / cw * 0.5f + 0.5f) * width);
+            int hy = (int) Math.floor((cy / cw * 0.5f + 0.5f) * historyHeight);
+            if (hx < 0 || hy < 0 || hx >= width || hy >= historyHeight) {
+                return false;
+            }
+            int h = (hy * width + hx) * 3;
+            int s = (y * width + x) * 3;
+            if (historySurfaces[h + 1] != surfaces[s + 1] || historySurfaces[h + 2] >= Reprojection.ageLimit(x, y)) {
+                return false;
+            }
+            if (hit) {
+                float ex = px - historyEye.x, ey = py - historyEye.y, ez = pz - historyEye.z;
+                float distance = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+                if (Math.abs(distance - historySurfaces[h]) > Reprojection.DEPTH_TOLERANCE * historySurfaces[h]) {
+                    return false;
+                }
+            }
+            int c = (hy * width + hx) * 4, p = (y * width + x) * 4;
+            float inverseCount = 1.0f / historyColours[c + 3];
+            pixels[p] = historyColours[c] * inverseCount;
+            pixels[p + 1] = historyColours[c + 1] * inverseCount;
+            pixels[p + 2] = historyColours[c + 2] * inverseCount;
+            pixels[p + 3] = 1.0f;
+            surfaces[s + 2] = historySurfaces[h + 2] + 1;
+            return true;
+        }
+
+        private void setPrimaryRay(Ray primary, int x, int y, int width, int height) {
+            float px = (x + jitterX) / width;
+            float py = (y + jitterY) / height;
+
+            //Bilinear interpolation of the frustum corner rays
+            float lx = ray00.x + (ray01.x - ray00.x) * py, rx = ray10.x + (ray11.x - ray10.x) * py;
+            float ly = ray00.y + (ray01.y - ray00.y) * py, ry = ray10.y + (ray11.y - ray10.y) * py;
+            float lz = ray00.z + (ray01.z - ray00.z) * py, rz = ray10.z + (ray11.z - ray10.z) * py;
+            float dx = lx + (rx - lx) * px;
+            float dy = ly + (ry - ly) * px;
+            float dz = lz + (rz - lz) * px;
+            primary.set(eye.x, eye.y, eye.z, dx, dy, dz);
+        }
+
+        //Traces the reflections of a pixel whose primary ray was traced and writes its colour
+        private void traceReflections(int x, int y, int width, float[] pixels) {
+            //Do reflection traces
+            for (int i = 1; i < reflections; i++) {
+                Ray currentRay = reflectionBounces[i - 1];
+                float ox = currentRay.ox + currentRay.dx * currentRay.lambda;
+                float oy = currentRay.oy + currentRay.dy * currentRay.lambda;
+                float oz = currentRay.oz + currentRay.dz * currentRay.lambda;
+
+                float d = 2.0f * (currentRay.nx * currentRay.dx + currentRay.ny * currentRay.dy + currentRay.nz * currentRay.dz);
+                reflectionBounces[i].set(ox, oy, oz,
+                        currentRay.dx - d * currentRay.nx,
+                        currentRay.dy - d * currentRay.ny,
+                        currentRay.dz - d * currentRay.nz);
+                trace(reflectionBounces[i], i);
+            }
+
+            //Each reflection is weighted by a further power of the reflectivity
+            float r = colours[0], g = colours[1], b = colours[2];
+            float exponent = reflectivity;
+            for (int i = 1; i < reflections; i++) {
+                r += colours[i * 3] * exponent;
+                g += colours[i * 3 + 1] * exponent;
+                b += colours[i * 3 + 2] * exponent;
+                exponent *= reflectivity;
+            }
+
+            int p = (y * width + x) * 4;
+            pixels[p] = r;
+            pixels[p + 1] = g;
+            pixels[p + 2] = b;
+            pixels[p + 3] = 1.0f;
+        }
+
+        //Port of trace() in compute.glsl, writes the colour of the ray into colours[index]
+        private void trace(Ray toTrace, int index) {
+            shade(toTrace, index, intersect(toTrace));
+        }
+
+        private void shade(Ray toTrace, int index, boolean hit) {
+            float r = ambientLight, g = ambientLight, b = ambientLight;
+
+            if (hit) {
+                //Point of intersection
+                float px = toTrace.ox + toTrace.lambda * toTrace.dx;
+                float py = toTrace.oy + toTrace.lambda * toTrace.dy;
+                float pz = toTrace.oz + toTrace.lambda * toTrace.dz;
+                float specularN = toTrace.triangleIndex >= 0
+                        ? meshMaterials.get(meshTriangles.get(toTrace.triangleIndex * STRIDE + 3) * STRIDE + 3)
+                        : sphereMaterials.get(toTrace.sphereIndex * STRIDE + 3);
+
+                //Trace to the lights of the global list, then those of the cell holding P
+                int[] lights = lightGrid.getData();
+                int cellList = lightGrid.listAt(px, py, pz);
+                for (int pass = 0; pass < 2; pass++) {
+                    int list = pass == 0 ? LightGrid.GLOBAL_LIST : cellList;
+                    for (int n = lightGrid.listStart(list); n < lightGrid.listEnd(list); n++) {
+                        int l = lights[n] * STRIDE;
+                        float tlx = lightPositions.get(l) - px, tly = lightPositions.get(l + 1) - py, tlz = lightPositions.get(l + 2) - pz;
+                        float dist = (float) Math.sqrt(tlx * tlx + tly * tly + tlz * tlz);
+    
+                        //Points from the light towards P, as in the shader
+                        float ldx = -tlx / dist, ldy = -tly / dist, ldz = -tlz / dist;
+                        toLightRay.set(px - toTrace.nx, py - toTrace.ny, pz - toTrace.nz, ldx, ldy, ldz);
+    
+                        //If light can reach the point unobstructed
+                        if (!intersect(toLightRay)) {
+                            float r2 = dist * dist;
+                            float intensity = lightPositions.get(l + 3) / r2;
+    
+                            //The shadow ray missed so its surface normal is zero and reflect() leaves the direction unchanged
+                            float cosR = Math.max(0.0f, -(ldx * toTrace.dx + ldy * toTrace.dy + ldz * toTrace.dz));
+                            float specular = (float) Math.pow(cosR, specularN) * intensity;
+    
+                            float lr = lightColours.get(l), lg = lightColours.get(l + 1), lb = lightColours.get(l + 2);
+                            r += kd * lr * intensity + ks * specular * lr;
+                            g += kd * lg * intensity + ks * specular * lg;
+                            b += kd * lb * intensity + ks * specular * lb;
+                        }
+                    }
+                }
+            }
+
+            colours[index * 3] = r;
+            colours[index * 3 + 1] = g;
+            colours[index * 3 + 2] = b;
+        }
+
+        //Port of intersect() in compute.glsl
+        private boolean intersect(Ray toIntersect) {
+            normalize(toIntersect);
+
+            float smallest;
+            int closest;
+            if (bvhEnabled) {
+                traverser.closestHit(toIntersect.ox, toIntersect.oy, toIntersect.oz,
+                        toIntersect.dx, toIntersect.dy, toIntersect.dz, this);
+                closest = traverser.getPrimitive();
+                smallest = closest < 0 ? LARGE_FLOAT : traverser.getLambda();
+            } else {
+                smallest = LARGE_FLOAT;
+                closest = -1;
+                for (int i = 0; i < numberOfSpheres; i++) {
+                    float lambda = intersect(i, toIntersect.ox, toIntersect.oy, toIntersect.oz,
+                            toIntersect.dx, toIntersect.dy, toIntersect.dz);
+
+                    if (lambda > EPSILON && lambda < smallest) {
+                        smallest = lambda;
+                        closest = i;
+                    }
+                }
+                bruteForceTests += numberOfSpheres;
+            }
+            return intersect(toIntersect, closest, smallest);
+        }
+
+        //Normalize direction vector
+        private void normalize(Ray ray) {
+            float length = (float) Math.sqrt(ray.dx * ray.dx + ray.dy * ray.dy + ray.dz * ray.dz);
+            ray.dx /= length;
+            ray.dy /= length;
+            ray.dz /= length;
+        }
+
+        //Rest of intersect() for a normalized ray whose closest sphere is known, smallest is LARGE_FLOAT without one
+        private boolean intersect(Ray toIntersect, int closest, float smallest) {
+            rays++;
+            int closestTriangle = -1;
+            if (bvhEnabled) {
+                //Only triangles strictly closer than the closest sphere are taken, as in the shader
+                if (numberOfTriangles > 0 && triangleTraverser.closestHit(toIntersect.ox, toIntersect.oy, toIntersect.oz,
+                        toIntersect.dx, toIntersect.dy, toIntersect.dz, smallest, triangleIntersector)) {
+                    smallest = triangleTraverser.getLambda();
+                    closestTriangle = triangleTraverser.getPrimitive();
+                }
+            } else {
+                for (int i = 0; i < numberOfTriangles; i++) {
+                    float lambda = intersectTriangle(i, toIntersect.ox, toIntersect.oy, toIntersect.oz,
+                            toIntersect.dx, toIntersect.dy, toIntersect.dz);
+
+                    if (lambda > EPSILON && lambda < smallest) {
+                        smallest = lambda;
+                        closestTriangle = i;
+                    }
+                }
+                bruteForceTests += numberOfTriangles;
+            }
+
+            if (closestTriangle >= 0) {
+                int t = closestTriangle * STRIDE;
+                int a = meshTriangles.get(t) * STRIDE, b = meshTriangles.get(t + 1) * STRIDE, c = meshTriangles.get(t + 2) * STRIDE;
+                float e1x = meshVertices.get(b) - meshVertices.get(a), e1y = meshVertices.get(b + 1) - meshVertices.get(a + 1), e1z = meshVertices.get(b + 2) - meshVertices.get(a + 2);
+                float e2x = meshVertices.get(c) - meshVertices.get(a), e2y = meshVertices.get(c + 1) - meshVertices.get(a + 1), e2z = meshVertices.get(c + 2) - meshVertices.get(a + 2);
+                float nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+                float nLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                //Meshes may be wound either way, face the normal towards the ray
+                if (nx * toIntersect.dx + ny * toIntersect.dy + nz * toIntersect.dz > 0) {
+                    nLength = -nLength;
+                }
+
+                toIntersect.lambda = smallest;
+                toIntersect.nx = nx / nLength;
+                toIntersect.ny = ny / nLength;
+                toIntersect.nz = nz / nLength;
+                toIntersect.sphereIndex = -1;
+                toIntersect.triangleIndex = closestTriangle;
+                return true;
+            }
+
+            if (closest < 0) {
+                toIntersect.lambda = 0;
+                toIntersect.nx = toIntersect.ny = toIntersect.nz = 0;
+                toIntersect.sphereIndex = -1;
+                toIntersect.triangleIndex = -1;
+                return false;
+            }
+
+            //Surface normal at point of intersection
+            int s = closest * STRIDE;
+            float nx = toIntersect.ox + toIntersect.dx * smallest - spherePositions.get(s);
+            float ny = toIntersect.oy + toIntersect.dy * smallest - spherePositions.get(s + 1);
+            float nz = toIntersect.oz + toIntersect.dz * smallest - spherePositions.get(s + 2);
+            float nLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+            toIntersect.lambda = smallest;
+            toIntersect.nx = nx / nLength;
+            toIntersect.ny = ny / nLength;
+            toIntersect.nz = nz / nLength;
+            toIntersect.sphereIndex = closest;
+            toIntersect.triangleIndex = -1;
+            return true;
+        }
+
+        @Override
+        public float intersect(int sphere, float ox, float oy, float oz, float dx, float dy, float dz) {
+            int s = sphere * STRIDE;
+            return intersectSphere(ox, oy, oz, dx, dy, dz,
+                    spherePositions.get(s), spherePositions.get(s + 1), spherePositions.get(s + 2), spherePositions.get(s + 3));
+        }
+
+        //Intersects one triangle of the mesh store, by its index in the store
+        private float intersectTriangle(int triangle, float ox, float oy, float oz, float dx, float dy, float dz) {
+            int t = triangle * STRIDE;
+            int a = meshTriangles.get(t) * STRIDE, b = meshTriangles.get(t + 1) * STRIDE, c = meshTriangles.get(t + 2) * STRIDE;
+            return CpuRaytracer.intersectTriangle(ox, oy, oz, dx, dy, dz,
+                    meshVertices.get(a), meshVertices.get(a + 1), meshVertices.get(a + 2),
+                    meshVertices.get(b), meshVertices.get(b + 1), meshVertices.get(b + 2),
+                    meshVertices.get(c), meshVertices.get(c + 1), meshVertices.get(c + 2));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package cpu;
+
+/**
+ * A reusable RGBA float image laid out like the GL_RGBA32F framebuffer texture:
+ * rows from the bottom up, four floats per pixel.
+ */
+public class FloatImage {
+    private int width, height;
+    private float[] pixels;
+
+    public FloatImage(int width, int height) {
+        this.pixels = new float[0];
+        resize(width, height);
+    }
+
+    /**
+     * Changes the dimensions of the image, only reallocating when the current storage is too small
+     */
+    public void resize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        if (pixels.length < width * height * 4) {
+            pixels = new float[width * height * 4];
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Backing array, only the first width * height * 4 floats are valid
+     */
+    public float[] getPixels() {
+        return pixels;
+    }
+}
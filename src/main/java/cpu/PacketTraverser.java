@@ -0,0 +1,266 @@
+package cpu;
+
+import accel.Bvh;
+import accel.BvhTraverser;
+import accel.PrimitiveIntersector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the closest sphere hits of a {@link RayPacket} with the Vector API, testing every lane of
+ * the packet against a sphere or node at once. Each lane runs the same arithmetic as
+ * {@link CpuRaytracer#intersectSphere} in the same order, so it finds exactly what the scalar
+ * path finds.
+ *
+ * Hierarchy traversal follows a node while any lane can still hit it, masking off the others.
+ * Packets whose directions point into different octants would drag every lane through the union
+ * of their paths, so they fall back to one scalar traversal per lane.
+ *
+ * This is the only class using jdk.incubator.vector, which must be added with
+ * --add-modules jdk.incubator.vector. Loading it without the module fails, so check that the
+ * module is present first, as {@link CpuRaytracer#setPacketTracing} does.
+ */
+public class PacketTraverser {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+    private static final float LARGE_FLOAT = 1E+10f;
+
+    /**
+     * Lanes of a packet, the preferred vector width of the machine: 8 with AVX2, 16 with AVX-512
+     */
+    public static final int WIDTH = FLOATS.length();
+
+    private final Bvh bvh;
+    private final float minLambda;
+    private final BvhTraverser scalarTraverser;
+    private final PrimitiveIntersector sphereIntersector = this::intersectSphere;
+    private FloatBuffer spheres;
+
+    private int[] nodeStack = new int[64];
+
+    //Ray components as vectors, loaded once per packet
+    private FloatVector ox, oy, oz, dx, dy, dz, idx, idy, idz, a, twoA;
+    private FloatVector best;
+    private IntVector closest;
+
+    private long nodesVisited, primitivesTested, packetsTraced, scalarFallbacks;
+
+    /**
+     * @param minLambda hits at or below this lambda are ignored, like EPSILON in compute.glsl
+     */
+    public PacketTraverser(Bvh bvh, float minLambda) {
+        this.bvh = bvh;
+        this.minLambda = minLambda;
+        this.scalarTraverser = new BvhTraverser(bvh, minLambda);
+    }
+
+    /**
+     * Finds the closest hit of every lane among spheres stored as x, y, z, radius per four floats,
+     * through the hierarchy over them
+     */
+    public void closestHits(RayPacket packet, FloatBuffer spheres) {
+        this.spheres = spheres;
+        if (!packet.isCoherent()) {
+            scalarFallbacks++;
+            for (int lane = 0; lane < packet.size(); lane++) {
+                scalarTraverser.closestHit(packet.ox[lane], packet.oy[lane], packet.oz[lane],
+                        packet.dx[lane], packet.dy[lane], packet.dz[lane], sphereIntersector);
+                packet.lambda[lane] = scalarTraverser.getLambda();
+                packet.primitive[lane] = scalarTraverser.getPrimitive();
+            }
+            return;
+        }
+        packetsTraced++;
+        VectorMask<Float> lanes = load(packet);
+
+        float[] bounds = bvh.getBounds();
+        int[] nodes = bvh.getNodes();
+        int[] primitiveIndices = bvh.getPrimitiveIndices();
+        int stackSize = 0;
+        if (bvh.getNodeCount() > 0) {
+            nodeStack[stackSize++] = 0;
+        }
+
+        while (stackSize > 0) {
+            int node = nodeStack[--stackSize];
+            //Lanes that found a closer hit since the node was pushed drop out here
+            nodesVisited++;
+            VectorMask<Float> active = boundsHit(bounds, node, lanes);
+            if (!active.anyTrue()) {
+                continue;
+            }
+            int leftOrFirst = nodes[node * Bvh.NODE_STRIDE];
+            int count = nodes[node * Bvh.NODE_STRIDE + 1];
+
+            if (count > 0) {
+                for (int i = leftOrFirst; i < leftOrFirst + count; i++) {
+                    testSphere(primitiveIndices[i], active);
+                }
+                continue;
+            }
+
+            if (stackSize + 2 > nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, nodeStack.length * 2);
+            }
+            //Every lane points into the same octant, so the first lane's direction along the
+            //children's widest separation tells which child is near for all of them
+            int right = leftOrFirst + 1;
+            if (nearChildIsRight(bounds, leftOrFirst, right, packet)) {
+                nodeStack[stackSize++] = leftOrFirst;
+                nodeStack[stackSize++] = right;
+            } else {
+                nodeStack[stackSize++] = right;
+                nodeStack[stackSize++] = leftOrFirst;
+            }
+        }
+        store(packet);
+    }
+
+    /**
+     * Finds the closest hit of every lane by testing every sphere, as compute.glsl did before the hierarchy
+     */
+    public void closestHitsBruteForce(RayPacket packet, FloatBuffer spheres, int sphereCount) {
+        this.spheres = spheres;
+        packetsTraced++;
+        VectorMask<Float> lanes = load(packet);
+        for (int sphere = 0; sphere < sphereCount; sphere++) {
+            testSphere(sphere, lanes);
+        }
+        store(packet);
+    }
+
+    private VectorMask<Float> load(RayPacket packet) {
+        if (packet.capacity() < WIDTH) {
+            throw new IllegalArgumentException("Packet of " + packet.capacity() + " lanes, need " + WIDTH);
+        }
+        ox = FloatVector.fromArray(FLOATS, packet.ox, 0);
+        oy = FloatVector.fromArray(FLOATS, packet.oy, 0);
+        oz = FloatVector.fromArray(FLOATS, packet.oz, 0);
+        dx = FloatVector.fromArray(FLOATS, packet.dx, 0);
+        dy = FloatVector.fromArray(FLOATS, packet.dy, 0);
+        dz = FloatVector.fromArray(FLOATS, packet.dz, 0);
+        idx = inverse(dx);
+        idy = inverse(dy);
+        idz = inverse(dz);
+        a = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+        twoA = a.mul(2.0f);
+        best = FloatVector.broadcast(FLOATS, LARGE_FLOAT);
+        closest = IntVector.broadcast(INTS, -1);
+        return FLOATS.indexInRange(0, packet.size());
+    }
+
+    private void store(RayPacket packet) {
+        VectorMask<Integer> hit = closest.compare(VectorOperators.GE, 0);
+        best.blend(0.0f, hit.cast(FLOATS).not()).intoArray(packet.lambda, 0);
+        closest.intoArray(packet.primitive, 0);
+    }
+
+    //Same as BvhTraverser.inverse, avoids infinities for directions lying in a slab plane
+    private static FloatVector inverse(FloatVector d) {
+        return d.broadcast(1.0f).div(d.blend(1E-30f, d.compare(VectorOperators.EQ, 0.0f)));
+    }
+
+    //Port of intersectSphere() for every lane, keeping hits closer than each lane's best
+    private void testSphere(int sphere, VectorMask<Float> lanes) {
+        primitivesTested++;
+        int s = sphere * 4;
+        float cx = spheres.get(s), cy = spheres.get(s + 1), cz = spheres.get(s + 2), radius = spheres.get(s + 3);
+
+        FloatVector fx = ox.sub(cx), fy = oy.sub(cy), fz = oz.sub(cz);
+        FloatVector b = dx.mul(fx).add(dy.mul(fy)).add(dz.mul(fz)).mul(2.0f);
+        FloatVector c = fx.mul(fx).add(fy.mul(fy)).add(fz.mul(fz)).sub(radius * radius);
+        FloatVector discriminant = b.mul(b).sub(a.mul(4.0f).mul(c));
+        VectorMask<Float> hits = discriminant.compare(VectorOperators.GE, 0.0f).and(lanes);
+        if (!hits.anyTrue()) {
+            return;
+        }
+        FloatVector lambda = b.neg().sub(discriminant.sqrt()).div(twoA);
+
+        //Ties go to the lowest index, as in a brute force loop
+        IntVector candidate = IntVector.broadcast(INTS, sphere);
+        VectorMask<Float> lowerIndex = candidate.compare(VectorOperators.LT, closest).cast(FLOATS);
+        VectorMask<Float> closer = lambda.compare(VectorOperators.LT, best)
+                .or(lambda.compare(VectorOperators.EQ, best).and(lowerIndex));
+        VectorMask<Float> better = hits.and(lambda.compare(VectorOperators.GT, minLambda)).and(closer);
+        best = best.blend(lambda, better);
+        closest = closest.blend(candidate, better.cast(INTS));
+    }
+
+    //Slab test of every lane against a node, true where the lane enters the box before its best hit
+    private VectorMask<Float> boundsHit(float[] bounds, int node, VectorMask<Float> lanes) {
+        int b = node * Bvh.BOUNDS_STRIDE;
+        FloatVector tx0 = ox.broadcast(bounds[b]).sub(ox).mul(idx), tx1 = ox.broadcast(bounds[b + 3]).sub(ox).mul(idx);
+        FloatVector ty0 = oy.broadcast(bounds[b + 1]).sub(oy).mul(idy), ty1 = oy.broadcast(bounds[b + 4]).sub(oy).mul(idy);
+        FloatVector tz0 = oz.broadcast(bounds[b + 2]).sub(oz).mul(idz), tz1 = oz.broadcast(bounds[b + 5]).sub(oz).mul(idz);
+
+        FloatVector tNear = tx0.min(tx1).max(ty0.min(ty1)).max(tz0.min(tz1));
+        FloatVector tFar = tx0.max(tx1).min(ty0.max(ty1)).min(tz0.max(tz1));
+
+        return tNear.compare(VectorOperators.LE, tFar)
+                .and(tFar.compare(VectorOperators.GE, 0.0f))
+                .and(tNear.compare(VectorOperators.LT, best))
+                .and(lanes);
+    }
+
+    //Compares the children's centres along the axis they are furthest apart on
+    private static boolean nearChildIsRight(float[] bounds, int left, int right, RayPacket packet) {
+        int l = left * Bvh.BOUNDS_STRIDE, r = right * Bvh.BOUNDS_STRIDE;
+        int axis = 0;
+        float widest = -1.0f;
+        for (int i = 0; i < 3; i++) {
+            float separation = Math.abs((bounds[r + i] + bounds[r + i + 3]) - (bounds[l + i] + bounds[l + i + 3]));
+            if (separation > widest) {
+                widest = separation;
+                axis = i;
+            }
+        }
+        float direction = axis == 0 ? packet.dx[0] : axis == 1 ? packet.dy[0] : packet.dz[0];
+        float rightAhead = (bounds[r + axis] + bounds[r + axis + 3]) - (bounds[l + axis] + bounds[l + axis + 3]);
+        return direction * rightAhead < 0;
+    }
+
+    private float intersectSphere(int sphere, float ox, float oy, float oz, float dx, float dy, float dz) {
+        int s = sphere * 4;
+        return CpuRaytracer.intersectSphere(ox, oy, oz, dx, dy, dz,
+                spheres.get(s), spheres.get(s + 1), spheres.get(s + 2), spheres.get(s + 3));
+    }
+
+    /**
+     * Number of node bounds tested against a whole packet since the last reset
+     */
+    public long getNodesVisited() {
+        return nodesVisited + scalarTraverser.getNodesVisited();
+    }
+
+    /**
+     * Number of sphere tests, a whole packet counting as one, since the last reset
+     */
+    public long getPrimitivesTested() {
+        return primitivesTested + scalarTraverser.getPrimitivesTested();
+    }
+
+    /**
+     * Packets traced with vectors since the last reset
+     */
+    public long getPacketsTraced() {
+        return packetsTraced;
+    }
+
+    /**
+     * Packets traced one lane at a time since the last reset, because their rays diverged
+     */
+    public long getScalarFallbacks() {
+        return scalarFallbacks;
+    }
+
+    public void resetCounters() {
+        nodesVisited = primitivesTested = packetsTraced = scalarFallbacks = 0;
+        scalarTraverser.resetCounters();
+    }
+}
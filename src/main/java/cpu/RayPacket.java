@@ -0,0 +1,85 @@
+package cpu;
+
+/**
+ * A batch of rays as struct of arrays, one lane per ray, so a {@link PacketTraverser} can load
+ * each component of every ray as one vector. Holds the closest sphere hit of every lane after
+ * traversal.
+ */
+public class RayPacket {
+    public final float[] ox, oy, oz;
+    public final float[] dx, dy, dz;
+
+    /**
+     * Lambda of each lane's closest hit, only meaningful where {@link #primitive} is not -1
+     */
+    public final float[] lambda;
+
+    /**
+     * Primitive of each lane's closest hit, -1 if the lane hit nothing
+     */
+    public final int[] primitive;
+
+    private int size;
+
+    /**
+     * @param capacity lanes, at least the vector width the packet will be traversed with
+     */
+    public RayPacket(int capacity) {
+        ox = new float[capacity];
+        oy = new float[capacity];
+        oz = new float[capacity];
+        dx = new float[capacity];
+        dy = new float[capacity];
+        dz = new float[capacity];
+        lambda = new float[capacity];
+        primitive = new int[capacity];
+    }
+
+    /**
+     * Sets a lane's ray, the direction must already be normalized as intersect() in compute.glsl does
+     */
+    public void set(int lane, float ox, float oy, float oz, float dx, float dy, float dz) {
+        this.ox[lane] = ox;
+        this.oy[lane] = oy;
+        this.oz[lane] = oz;
+        this.dx[lane] = dx;
+        this.dy[lane] = dy;
+        this.dz[lane] = dz;
+    }
+
+    /**
+     * Number of lanes in use, counting from lane 0
+     */
+    public int size() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        if (size < 0 || size > ox.length) {
+            throw new IllegalArgumentException("Packet size " + size + " of " + ox.length + " lanes");
+        }
+        this.size = size;
+    }
+
+    public int capacity() {
+        return ox.length;
+    }
+
+    /**
+     * Whether the directions of every lane in use point into the same octant, so the lanes will
+     * mostly visit the same nodes of a hierarchy
+     */
+    public boolean isCoherent() {
+        int signs = octant(0);
+        for (int lane = 1; lane < size; lane++) {
+            if (octant(lane) != signs) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int octant(int lane) {
+        return (dx[lane] < 0 ? 1 : 0) | (dy[lane] < 0 ? 2 : 0) | (dz[lane] < 0 ? 4 : 0);
+    }
+}
@@ -0,0 +1,653 @@
+package farm;
+
+import cpu.FloatImage;
+import render.FrameRenderer;
+import render.TraceParameters;
+import scene.Camera;
+import scene.Scene;
+import scene.SceneCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders frames by splitting them into tiles which {@link FarmWorker}s in other processes trace.
+ *
+ * Workers connect to the coordinator's port whenever they like and are handed tiles from the next
+ * dispatch on. The scene goes to each worker packed by {@link SceneCodec}, once per scene version,
+ * ahead of the first tile that needs it. Each worker has a couple of tiles queued, so it starts on
+ * the next tile as soon as it finishes one and faster workers take more tiles.
+ *
+ * Tiles are dispatched costliest first by the trace time they took in the previous frame, so long
+ * tiles do not end up holding up the end of the frame, and each goes to the worker predicted to be
+ * free first. Once every tile is out, a worker that runs dry takes a copy of a tile queued on a
+ * worker whose current tile is far behind its prediction, and whichever copy comes back first is
+ * used. Tiles of workers that disconnect, or go quiet for longer than the worker timeout, go back
+ * to the queue.
+ */
+public class FarmCoordinator implements FrameRenderer {
+    public static final int DEFAULT_PORT = 7878;
+    public static final int DEFAULT_TILE_SIZE = 64;
+    public static final long DEFAULT_WORKER_TIMEOUT_MILLIS = 30_000;
+
+    //Tiles sent to a worker ahead of its results
+    private static final int TILES_IN_FLIGHT = 2;
+    //A tile this many times later than predicted is copied to an idle worker
+    private static final int STRAGGLER_FACTOR = 3;
+    private static final long MIN_STRAGGLER_NANOS = 20_000_000;
+    private static final long POLL_NANOS = 10_000_000;
+
+    //A worker's slowness follows its recent tiles by this weight
+    private static final double SLOWNESS_WEIGHT = 0.2;
+
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private final int tileSize;
+    private long workerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WORKER_TIMEOUT_MILLIS);
+    private TraceParameters parameters = TraceParameters.DEFAULT;
+
+    //Written by the connection threads, read by the thread rendering
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private volatile boolean closed;
+
+    //Packed scene the workers are sent, under an id that changes with the scene and its version
+    private ByteBuffer packedScene;
+    private Scene packedFrom;
+    private long packedVersion;
+    private long sceneId = -1;
+
+    private ByteBuffer message = FarmProtocol.allocate(FarmProtocol.HEADER_SIZE + FarmProtocol.TILE_SIZE);
+
+    //State of the frame being rendered
+    private long frame;
+    private int width, height, tilesX, tileCount;
+    private FloatImage target;
+    private Camera camera;
+    private boolean[] done = new boolean[0];
+    private int[] copiesInFlight = new int[0];
+    private int remainingTiles;
+    private final ArrayDeque<Integer> pendingTiles = new ArrayDeque<>();
+    private long frameCostSum;
+    private int frameCostCount;
+
+    //Trace time of each tile on a worker of slowness 1 when it was last traced, 0 if unknown
+    private long[] tileCost = new long[0];
+
+    private int framesRendered, tilesRequeued, tilesCopied, copiesDiscarded, scenesSent, workersLost;
+    private long bytesSent;
+
+    /**
+     * Starts listening for workers on the port, on every interface
+     */
+    public FarmCoordinator(int port, int tileSize) throws IOException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        acceptor = new Thread(this::acceptWorkers, "farm-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private interface Event {
+    }
+
+    private static final class Joined implements Event {
+        final Worker worker;
+
+        Joined(Worker worker) {
+            this.worker = worker;
+        }
+    }
+
+    private static final class Result implements Event {
+        final Worker worker;
+        final long frame;
+        final int tile;
+        final long nanos;
+        final float[] pixels;
+
+        Result(Worker worker, long frame, int tile, long nanos, float[] pixels) {
+            this.worker = worker;
+            this.frame = frame;
+            this.tile = tile;
+            this.nanos = nanos;
+            this.pixels = pixels;
+        }
+    }
+
+    private static final class Lost implements Event {
+        final Worker worker;
+        final IOException cause;
+
+        Lost(Worker worker, IOException cause) {
+            this.worker = worker;
+            this.cause = cause;
+        }
+    }
+
+    //A tile sent to a worker and not answered yet
+    private static final class Assignment {
+        final long frame;
+        final int tile;
+        final long sentAt;
+
+        Assignment(long frame, int tile, long sentAt) {
+            this.frame = frame;
+            this.tile = tile;
+            this.sentAt = sentAt;
+        }
+    }
+
+    //A connected worker, its connection thread only reads, everything else belongs to the rendering thread
+    private final class Worker {
+        final SocketChannel channel;
+        final String name;
+        int threads;
+
+        final ArrayDeque<Assignment> inFlight = new ArrayDeque<>();
+        long sentSceneId = -1;
+        //When the worker is predicted to finish the tiles it has
+        long busyUntil;
+        long lastHeard;
+        //Trace time relative to tile cost, above 1 for workers slower than the ones that measured the costs
+        double slowness = 1.0;
+        boolean alive = true;
+
+        int tilesTraced;
+        long traceNanos;
+
+        Worker(SocketChannel channel, String name) {
+            this.channel = channel;
+            this.name = name;
+        }
+
+        void readResults() {
+            ByteBuffer input = FarmProtocol.allocate(1 << 16);
+            try {
+                input = FarmProtocol.receive(channel, input, tileSize);
+                if (FarmProtocol.typeOf(input) != FarmProtocol.HELLO) {
+                    throw new IOException(name + " did not say hello");
+                }
+                threads = input.getInt();
+                events.add(new Joined(this));
+
+                while (true) {
+                    input = FarmProtocol.receive(channel, input, tileSize);
+                    if (FarmProtocol.typeOf(input) != FarmProtocol.RESULT) {
+                        throw new IOException(name + " sent message " + FarmProtocol.typeOf(input));
+                    }
+                    long resultFrame = input.getLong();
+                    int tile = input.getInt();
+                    long nanos = input.getLong();
+                    float[] pixels = new float[input.remaining() / 4];
+                    input.asFloatBuffer().get(pixels);
+                    events.add(new Result(this, resultFrame, tile, nanos, pixels));
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    events.add(new Lost(this, e));
+                }
+            }
+        }
+
+        void disconnect() {
+            alive = false;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //Already as closed as it gets
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d threads): %d tiles in %.2f s, slowness %.2f", name, threads, tilesTraced, traceNanos / 1e9, slowness);
+        }
+    }
+
+    private void acceptWorkers() {
+        int connections = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                Worker worker = new Worker(channel, "worker " + ++connections + " at " + channel.getRemoteAddress());
+                Thread reader = new Thread(worker::readResults, "farm-worker-" + connections);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Failed to accept a worker: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until at least the given number of workers are connected
+     *
+     * @throws IOException if they did not connect in time
+     */
+    public void awaitWorkers(int count, long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (workers.size() < count) {
+            Event event = events.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (event == null) {
+                throw new IOException("Only " + workers.size() + " of " + count + " workers connected within " + timeoutMillis + " ms");
+            }
+            handle(event);
+        }
+    }
+
+    /**
+     * Renders the frame on the workers, waiting for workers to connect if there are none
+     *
+     * @throws UncheckedIOException if no worker is left to finish the frame within the worker timeout
+     */
+    @Override
+    public void render(Scene scene, Camera camera, FloatImage target) {
+        beginFrame(scene, camera, target);
+        try {
+            long lastProgress = System.nanoTime();
+            while (remainingTiles > 0) {
+                dispatch();
+                Event event = events.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                while (event != null) {
+                    if (handle(event)) {
+                        lastProgress = System.nanoTime();
+                    }
+                    event = events.poll();
+                }
+                dropSilentWorkers();
+                if (workers.isEmpty() && System.nanoTime() - lastProgress > workerTimeoutNanos) {
+                    throw new UncheckedIOException(new IOException("No workers left, " + remainingTiles + " of " + tileCount + " tiles not traced"));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rendering on the farm", e);
+        } finally {
+            this.target = null;
+            this.camera = null;
+        }
+        framesRendered++;
+    }
+
+    private void beginFrame(Scene scene, Camera camera, FloatImage target) {
+        if (scene != packedFrom || scene.getVersion() != packedVersion) {
+            packedScene = SceneCodec.encode(scene, packedScene);
+            packedFrom = scene;
+            packedVersion = scene.getVersion();
+            sceneId++;
+        }
+
+        frame++;
+        this.target = target;
+        this.camera = camera;
+        if (target.getWidth() != width || target.getHeight() != height) {
+            width = target.getWidth();
+            height = target.getHeight();
+            tilesX = (width + tileSize - 1) / tileSize;
+            tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+            tileCost = new long[tileCount];
+            done = new boolean[tileCount];
+            copiesInFlight = new int[tileCount];
+        }
+        Arrays.fill(done, false);
+        Arrays.fill(copiesInFlight, 0);
+        remainingTiles = tileCount;
+        frameCostSum = 0;
+        frameCostCount = 0;
+
+        //Costliest first, tiles never measured go last
+        Integer[] order = new Integer[tileCount];
+        for (int tile = 0; tile < tileCount; tile++) {
+            order[tile] = tile;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(tileCost[b], tileCost[a]));
+        pendingTiles.clear();
+        pendingTiles.addAll(Arrays.asList(order));
+    }
+
+    //Fills every worker's queue, pending tiles first, then copies of stragglers
+    private void dispatch() {
+        while (true) {
+            Worker worker = firstFreeWorker();
+            if (worker == null) {
+                return;
+            }
+            Integer tile = pendingTiles.poll();
+            if (tile == null) {
+                tile = straggler(worker);
+                if (tile == null) {
+                    return;
+                }
+                tilesCopied++;
+            }
+            send(worker, tile);
+        }
+    }
+
+    //Worker with room in its queue predicted to be free first
+    private Worker firstFreeWorker() {
+        Worker first = null;
+        for (Worker worker : workers) {
+            if (worker.inFlight.size() < TILES_IN_FLIGHT && (first == null || worker.busyUntil < first.busyUntil)) {
+                first = worker;
+            }
+        }
+        return first;
+    }
+
+    //A tile of this frame queued on a worker whose current tile is far behind its prediction, if there is one
+    private Integer straggler(Worker idle) {
+        long now = System.nanoTime();
+        for (Worker worker : workers) {
+            Assignment current = worker.inFlight.peek();
+            if (worker == idle || current == null) {
+                continue;
+            }
+            //The worker started on its current tile when it answered the one before, or when it got it
+            long started = Math.max(current.sentAt, worker.lastHeard);
+            long expected = expectedNanos(worker, current.tile);
+            if (expected == 0 || now - started < Math.max(MIN_STRAGGLER_NANOS, STRAGGLER_FACTOR * expected)) {
+                continue;
+            }
+            for (Assignment assignment : worker.inFlight) {
+                if (assignment.frame == frame && !done[assignment.tile] && copiesInFlight[assignment.tile] == 1) {
+                    return assignment.tile;
+                }
+            }
+        }
+        return null;
+    }
+
+    //Predicted trace time of a tile on a worker, the frame's average so far for tiles never measured
+    private long expectedNanos(Worker worker, int tile) {
+        long cost = tileCost[tile] > 0 ? tileCost[tile] : frameCostCount > 0 ? frameCostSum / frameCostCount : 0;
+        return (long) (cost * worker.slowness);
+    }
+
+    private void send(Worker worker, int tile) {
+        long now = System.nanoTime();
+        try {
+            if (worker.sentSceneId != sceneId) {
+                message = FarmProtocol.begin(message, FarmProtocol.SCENE, 8 + packedScene.remaining()).putLong(sceneId);
+                FarmProtocol.send(worker.channel, message);
+                FarmProtocol.write(worker.channel, packedScene);
+                worker.sentSceneId = sceneId;
+                scenesSent++;
+                bytesSent += FarmProtocol.HEADER_SIZE + 8 + packedScene.remaining();
+            }
+
+            int x = (tile % tilesX) * tileSize, y = (tile / tilesX) * tileSize;
+            message = FarmProtocol.begin(message, FarmProtocol.TILE, FarmProtocol.TILE_SIZE)
+                    .putLong(frame).putInt(tile).putLong(sceneId)
+                    .putInt(width).putInt(height)
+                    .putInt(x).putInt(y).putInt(Math.min(tileSize, width - x)).putInt(Math.min(tileSize, height - y));
+            putVector(camera.getPosition().x, camera.getPosition().y, camera.getPosition().z);
+            putVector(camera.getDirection().x, camera.getDirection().y, camera.getDirection().z);
+            putVector(camera.getUpDirection().x, camera.getUpDirection().y, camera.getUpDirection().z);
+            message.putInt(parameters.getReflections()).putFloat(parameters.getDiffuse()).putFloat(parameters.getSpecular())
+                    .putFloat(parameters.getReflectivity()).putFloat(parameters.getAmbientLight())
+                    .putInt(parameters.getWorkGroupSizeX()).putInt(parameters.getWorkGroupSizeY())
+                    .putInt(parameters.getMaxLights()).putFloat(parameters.getLightThreshold());
+            FarmProtocol.send(worker.channel, message);
+            bytesSent += FarmProtocol.HEADER_SIZE + FarmProtocol.TILE_SIZE;
+        } catch (IOException e) {
+            lose(worker, e);
+            pendingTiles.addFirst(tile);
+            return;
+        }
+
+        if (worker.inFlight.isEmpty()) {
+            worker.lastHeard = now;
+        }
+        worker.busyUntil = Math.max(now, worker.busyUntil) + expectedNanos(worker, tile);
+        worker.inFlight.add(new Assignment(frame, tile, now));
+        copiesInFlight[tile]++;
+    }
+
+    private void putVector(float x, float y, float z) {
+        message.putFloat(x).putFloat(y).putFloat(z);
+    }
+
+    //Returns true if the event brought the frame closer to completion
+    private boolean handle(Event event) {
+        if (event instanceof Joined) {
+            Worker worker = ((Joined) event).worker;
+            if (closed) {
+                worker.disconnect();
+            } else {
+                worker.busyUntil = System.nanoTime();
+                workers.add(worker);
+            }
+            return false;
+        }
+        if (event instanceof Lost) {
+            Lost lost = (Lost) event;
+            if (lost.worker.alive) {
+                lose(lost.worker, lost.cause);
+            }
+            return false;
+        }
+        return accept((Result) event);
+    }
+
+    private boolean accept(Result result) {
+        Worker worker = result.worker;
+        if (!worker.alive) {
+            return false;
+        }
+        long now = System.nanoTime();
+        worker.lastHeard = now;
+        worker.tilesTraced++;
+        worker.traceNanos += result.nanos;
+        //Results come back in the order the tiles were sent
+        Assignment assignment = worker.inFlight.poll();
+        if (assignment == null || assignment.frame != result.frame || assignment.tile != result.tile) {
+            lose(worker, new IOException("Answered a tile it was not asked for"));
+            return false;
+        }
+        if (worker.inFlight.isEmpty()) {
+            worker.busyUntil = now;
+        }
+        if (result.frame != frame) {
+            //A copy of a tile from an earlier frame, finished by another worker meanwhile
+            copiesDiscarded++;
+            return false;
+        }
+        copiesInFlight[result.tile]--;
+        if (done[result.tile]) {
+            copiesDiscarded++;
+            return false;
+        }
+
+        //Costs are kept for a worker of slowness 1, so tiles measured on different workers compare
+        int tile = result.tile;
+        if (tileCost[tile] > 0) {
+            double ratio = (double) result.nanos / tileCost[tile];
+            worker.slowness += SLOWNESS_WEIGHT * (ratio - worker.slowness);
+        }
+        tileCost[tile] = Math.max(1, (long) (result.nanos / worker.slowness));
+        frameCostSum += tileCost[tile];
+        frameCostCount++;
+
+        int x = (tile % tilesX) * tileSize, y = (tile / tilesX) * tileSize;
+        int tileWidth = Math.min(tileSize, width - x), tileHeight = Math.min(tileSize, height - y);
+        if (result.pixels.length != tileWidth * tileHeight * 4) {
+            lose(worker, new IOException("Sent " + result.pixels.length + " floats for a " + tileWidth + "x" + tileHeight + " tile"));
+            return false;
+        }
+        float[] pixels = target.getPixels();
+        for (int row = 0; row < tileHeight; row++) {
+            System.arraycopy(result.pixels, row * tileWidth * 4, pixels, ((y + row) * width + x) * 4, tileWidth * 4);
+        }
+        done[tile] = true;
+        remainingTiles--;
+        return true;
+    }
+
+    //Drops a worker, putting the tiles only it was tracing back at the front of the queue
+    private void lose(Worker worker, IOException cause) {
+        if (!worker.alive) {
+            return;
+        }
+        System.err.println("Lost " + worker.name + ": " + cause.getMessage());
+        worker.disconnect();
+        workers.remove(worker);
+        workersLost++;
+        for (Iterator<Assignment> it = worker.inFlight.descendingIterator(); it.hasNext(); ) {
+            Assignment assignment = it.next();
+            if (assignment.frame == frame && target != null && !done[assignment.tile] && --copiesInFlight[assignment.tile] == 0) {
+                pendingTiles.addFirst(assignment.tile);
+                tilesRequeued++;
+            }
+        }
+        worker.inFlight.clear();
+    }
+
+    //Workers that have had tiles for longer than the timeout without answering are treated as lost
+    private void dropSilentWorkers() {
+        long now = System.nanoTime();
+        for (Worker worker : new ArrayList<>(workers)) {
+            if (!worker.inFlight.isEmpty() && now - worker.lastHeard > workerTimeoutNanos) {
+                lose(worker, new IOException("No answer for " + TimeUnit.NANOSECONDS.toMillis(now - worker.lastHeard) + " ms"));
+            }
+        }
+    }
+
+    /**
+     * Sets the quality the workers trace with, taking effect with the next frame
+     */
+    public void setParameters(TraceParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public TraceParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * How long a worker with tiles may stay silent before its tiles go to others, and how long a
+     * frame waits for a worker when there are none
+     */
+    public void setWorkerTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        }
+        this.workerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Port the coordinator listens on, useful after binding to port 0
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    public int getFramesRendered() {
+        return framesRendered;
+    }
+
+    /**
+     * Tiles put back in the queue because their worker was lost
+     */
+    public int getTilesRequeued() {
+        return tilesRequeued;
+    }
+
+    /**
+     * Tiles copied to an idle worker because the one tracing them fell far behind
+     */
+    public int getTilesCopied() {
+        return tilesCopied;
+    }
+
+    /**
+     * Results thrown away because another copy of the tile came back first
+     */
+    public int getCopiesDiscarded() {
+        return copiesDiscarded;
+    }
+
+    public int getScenesSent() {
+        return scenesSent;
+    }
+
+    public int getWorkersLost() {
+        return workersLost;
+    }
+
+    /**
+     * Bytes of scenes and tile requests sent to workers
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Tells the workers to shut down and stops listening
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+            //Nothing left to do with it
+        }
+        for (Event event = events.poll(); event != null; event = events.poll()) {
+            if (event instanceof Joined) {
+                workers.add(((Joined) event).worker);
+            }
+        }
+        for (Worker worker : workers) {
+            try {
+                FarmProtocol.send(worker.channel, FarmProtocol.begin(message, FarmProtocol.SHUTDOWN, 0));
+            } catch (IOException ignored) {
+                //The worker is gone already
+            }
+            worker.disconnect();
+        }
+        workers.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format(
+                "%d frames on %d workers, %d scenes sent, %.1f MB sent, %d tiles requeued, %d copied, %d copies discarded, %d workers lost",
+                framesRendered, workers.size(), scenesSent, bytesSent / 1e6, tilesRequeued, tilesCopied, copiesDiscarded, workersLost));
+        for (Worker worker : workers) {
+            builder.append(System.lineSeparator()).append("  ").append(worker);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package farm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Messages between a {@link FarmCoordinator} and its {@link FarmWorker}s. Every message is an int
+ * type and an int payload length followed by the payload, little-endian throughout:
+ * <pre>
+ * HELLO     worker to coordinator   int threads
+ * SCENE     coordinator to worker   long scene id, a scene packed by scene.SceneCodec
+ * TILE      coordinator to worker   long frame, int tile, long scene id, int image width, height,
+ *                                   int tile x, y, width, height, camera position, target and up,
+ *                                   the TraceParameters in constructor order
+ * RESULT    worker to coordinator   long frame, int tile, long trace nanos, RGBA floats of the tile row by row
+ * SHUTDOWN  coordinator to worker   nothing
+ * </pre>
+ * A worker answers tiles in the order it received them, and every TILE follows the SCENE it names
+ * on the same connection. Lengths are checked against the most a message of the type can hold
+ * before anything is allocated for it, see {@link #maxPayload}.
+ */
+final class FarmProtocol {
+    static final int HELLO = 1;
+    static final int SCENE = 2;
+    static final int TILE = 3;
+    static final int RESULT = 4;
+    static final int SHUTDOWN = 5;
+
+    static final int HEADER_SIZE = 8;
+    static final int HELLO_SIZE = 4;
+    static final int TILE_SIZE = 8 + 4 + 8 + 4 * 6 + 9 * 4 + 9 * 4;
+    static final int RESULT_HEADER_SIZE = 8 + 4 + 8;
+
+    //A message has to fit one buffer
+    static final int MAX_PAYLOAD = Integer.MAX_VALUE - HEADER_SIZE;
+
+    //Workers never receive results, so they accept none of any size
+    private static final int NO_RESULTS = 0;
+
+    private FarmProtocol() {
+    }
+
+    static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Clears the buffer, growing it if needed, and writes a header announcing a payload of the given length
+     */
+    static ByteBuffer begin(ByteBuffer buffer, int type, int payloadLength) {
+        if (buffer.capacity() < HEADER_SIZE + payloadLength) {
+            buffer = allocate(grownCapacity(buffer, payloadLength));
+        }
+        buffer.clear();
+        return buffer.putInt(type).putInt(payloadLength);
+    }
+
+    /**
+     * Writes the buffer from its start to its position
+     */
+    static void send(WritableByteChannel channel, ByteBuffer message) throws IOException {
+        message.flip();
+        while (message.hasRemaining()) {
+            channel.write(message);
+        }
+    }
+
+    /**
+     * Writes data between the buffer's position and limit, leaving the buffer itself untouched,
+     * e.g. the rest of a payload whose first bytes went out with the header
+     */
+    static void write(WritableByteChannel channel, ByteBuffer data) throws IOException {
+        ByteBuffer remaining = data.duplicate();
+        while (remaining.hasRemaining()) {
+            channel.write(remaining);
+        }
+    }
+
+    /**
+     * Smallest payload of a message of the given type, that of a result without pixels
+     */
+    static int minPayload(int type) {
+        switch (type) {
+            case SCENE:
+                return 8;
+            case RESULT:
+                return RESULT_HEADER_SIZE;
+            default:
+                return Math.max(0, maxPayload(type, NO_RESULTS));
+        }
+    }
+
+    /**
+     * Largest payload of a message of the given type, -1 for unknown types. Only scenes vary
+     * freely in size, they come from the coordinator a worker chose to connect to.
+     *
+     * @param tileSize side of the tiles the results answer
+     */
+    static int maxPayload(int type, int tileSize) {
+        switch (type) {
+            case HELLO:
+                return HELLO_SIZE;
+            case SCENE:
+                return MAX_PAYLOAD;
+            case TILE:
+                return TILE_SIZE;
+            case RESULT:
+                return (int) Math.min(MAX_PAYLOAD, RESULT_HEADER_SIZE + (long) tileSize * tileSize * 16);
+            case SHUTDOWN:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Reads the next message into the buffer on a worker, which never receives results
+     *
+     * @see #receive(ReadableByteChannel, ByteBuffer, int)
+     */
+    static ByteBuffer receive(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        return receive(channel, buffer, NO_RESULTS);
+    }
+
+    /**
+     * Reads the next message into the buffer, growing it if needed
+     *
+     * @param tileSize side of the tiles handed out, bounding the size of results
+     * @return the buffer with the payload between position and limit, its type in {@link #typeOf}
+     * @throws EOFException if the other side closed the connection
+     * @throws IOException  if the type is unknown or the length does not fit the type
+     */
+    static ByteBuffer receive(ReadableByteChannel channel, ByteBuffer buffer, int tileSize) throws IOException {
+        buffer.clear().limit(HEADER_SIZE);
+        readFully(channel, buffer);
+        int type = buffer.getInt(0);
+        int length = buffer.getInt(4);
+        int maxPayload = maxPayload(type, tileSize);
+        if (maxPayload < 0) {
+            throw new IOException("Unknown message type " + type);
+        }
+        if (length < minPayload(type) || length > maxPayload) {
+            throw new IOException("Invalid length " + length + " for message type " + type
+                    + ", expected " + minPayload(type) + " to " + maxPayload);
+        }
+        if (buffer.capacity() < HEADER_SIZE + length) {
+            ByteBuffer grown = allocate(grownCapacity(buffer, length));
+            grown.putInt(type).putInt(length);
+            buffer = grown;
+        }
+        buffer.limit(HEADER_SIZE + length).position(HEADER_SIZE);
+        readFully(channel, buffer);
+        return buffer.position(HEADER_SIZE);
+    }
+
+    private static int grownCapacity(ByteBuffer buffer, int payloadLength) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(HEADER_SIZE + (long) payloadLength, buffer.capacity() * 2L));
+    }
+
+    static int typeOf(ByteBuffer message) {
+        return message.getInt(0);
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+}
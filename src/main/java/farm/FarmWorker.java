@@ -0,0 +1,131 @@
+package farm;
+
+import cpu.CpuRaytracer;
+import cpu.FloatImage;
+import render.TraceParameters;
+import scene.Camera;
+import scene.Scene;
+import scene.SceneCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Traces tiles for a {@link FarmCoordinator}. The worker connects to the coordinator, keeps the
+ * last scene it was sent and answers every tile with its pixels, one tile at a time on its
+ * {@link CpuRaytracer}, which spreads the tile over its own pool. The coordinator queues the next
+ * tile while the current one traces, so the worker is not left waiting on the network.
+ */
+public class FarmWorker {
+    private final CpuRaytracer raytracer;
+    private final int threads;
+
+    private final Scene scene = new Scene();
+    private final Camera camera = new Camera();
+    private final FloatImage image = new FloatImage(1, 1);
+    private long sceneId = -1;
+    private TraceParameters parameters = TraceParameters.DEFAULT;
+
+    private ByteBuffer input = FarmProtocol.allocate(1 << 16);
+    private ByteBuffer output = FarmProtocol.allocate(1 << 16);
+
+    private int scenesReceived, tilesTraced;
+    private long traceNanos;
+
+    /**
+     * @param threads parallelism of the raytracer's pool, told to the coordinator
+     */
+    public FarmWorker(CpuRaytracer raytracer, int threads) {
+        this.raytracer = raytracer;
+        this.threads = threads;
+    }
+
+    /**
+     * Connects to the coordinator and traces tiles until it shuts the worker down
+     *
+     * @throws IOException if the connection fails or breaks, or the coordinator sends garbage
+     */
+    public void run(InetSocketAddress coordinator) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(coordinator)) {
+            channel.socket().setTcpNoDelay(true);
+            output = FarmProtocol.begin(output, FarmProtocol.HELLO, FarmProtocol.HELLO_SIZE).putInt(threads);
+            FarmProtocol.send(channel, output);
+
+            while (true) {
+                input = FarmProtocol.receive(channel, input);
+                switch (FarmProtocol.typeOf(input)) {
+                    case FarmProtocol.SCENE:
+                        sceneId = input.getLong();
+                        SceneCodec.decode(input, scene);
+                        scenesReceived++;
+                        break;
+                    case FarmProtocol.TILE:
+                        traceTile(channel);
+                        break;
+                    case FarmProtocol.SHUTDOWN:
+                        return;
+                    default:
+                        throw new IOException("Unexpected message " + FarmProtocol.typeOf(input));
+                }
+            }
+        }
+    }
+
+    private void traceTile(SocketChannel channel) throws IOException {
+        long frame = input.getLong();
+        int tile = input.getInt();
+        long tileSceneId = input.getLong();
+        if (tileSceneId != sceneId) {
+            throw new IOException("Tile of scene " + tileSceneId + " arrived, the last scene was " + sceneId);
+        }
+        int imageWidth = input.getInt(), imageHeight = input.getInt();
+        int x = input.getInt(), y = input.getInt(), width = input.getInt(), height = input.getInt();
+        camera.getPosition().set(input.getFloat(), input.getFloat(), input.getFloat());
+        camera.getDirection().set(input.getFloat(), input.getFloat(), input.getFloat());
+        camera.getUpDirection().set(input.getFloat(), input.getFloat(), input.getFloat());
+        TraceParameters tileParameters = new TraceParameters(input.getInt(), input.getFloat(), input.getFloat(),
+                input.getFloat(), input.getFloat(), input.getInt(), input.getInt(), input.getInt(), input.getFloat());
+        if (!tileParameters.equals(parameters)) {
+            parameters = tileParameters;
+            raytracer.setParameters(parameters);
+        }
+
+        image.resize(imageWidth, imageHeight);
+        long start = System.nanoTime();
+        raytracer.render(scene, camera, image, x, y, width, height);
+        long nanos = System.nanoTime() - start;
+        tilesTraced++;
+        traceNanos += nanos;
+
+        output = FarmProtocol.begin(output, FarmProtocol.RESULT, FarmProtocol.RESULT_HEADER_SIZE + width * height * 16)
+                .putLong(frame).putInt(tile).putLong(nanos);
+        float[] pixels = image.getPixels();
+        for (int row = y; row < y + height; row++) {
+            output.asFloatBuffer().put(pixels, (row * imageWidth + x) * 4, width * 4);
+            output.position(output.position() + width * 16);
+        }
+        FarmProtocol.send(channel, output);
+    }
+
+    public int getScenesReceived() {
+        return scenesReceived;
+    }
+
+    public int getTilesTraced() {
+        return tilesTraced;
+    }
+
+    /**
+     * Time spent tracing tiles, without waiting for the network
+     */
+    public long getTraceNanos() {
+        return traceNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d scenes received, %d tiles traced in %.2f s", scenesReceived, tilesTraced, traceNanos / 1e9);
+    }
+}
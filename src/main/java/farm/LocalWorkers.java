@@ -0,0 +1,67 @@
+package farm;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker processes on this machine, started with the same JVM and class path as the current one,
+ * e.g. to try out a farm or to use more cores than one JVM's pool is given. The cores are shared
+ * out between the workers.
+ */
+public class LocalWorkers implements AutoCloseable {
+    private static final long EXIT_WAIT_MILLIS = 5_000;
+
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * Starts worker processes which connect to a coordinator on this machine
+     *
+     * @param mainClass class whose main method understands --farm-worker host:port --threads n
+     */
+    public LocalWorkers(int count, int port, String mainClass) throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, count));
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            command.add("--add-modules");
+            command.add("jdk.incubator.vector");
+        }
+        Collections.addAll(command, "-cp", System.getProperty("java.class.path"), mainClass,
+                "--farm-worker", "localhost:" + port, "--threads", Integer.toString(threads));
+
+        try {
+            for (int i = 0; i < count; i++) {
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public List<Process> getProcesses() {
+        return Collections.unmodifiableList(processes);
+    }
+
+    /**
+     * Waits a little for the workers to exit after the coordinator shut them down, then kills the rest
+     */
+    @Override
+    public void close() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXIT_WAIT_MILLIS);
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package render;
+
+/**
+ * Progressive accumulation state: how many samples the current image holds and where in the
+ * pixel the next one goes.
+ *
+ * The first sample after an invalidation goes through the pixel centre, so a view that changes
+ * every frame looks the same as without accumulation. Later samples follow the Halton (2, 3)
+ * sequence, which covers the pixel evenly at any sample count. Once the maximum number of
+ * samples is reached the image is converged and need not be traced again until it is invalidated.
+ *
+ * With adaptive sampling every pixel keeps a running mean and variance of its luminance. The
+ * first few passes cover the whole image, from then on a pass only traces the pixels whose
+ * standard error, or that of one of its four neighbours, is still above the threshold, which the
+ * previous pass collected into a list. Pixels leave the list for good once they and their
+ * neighbours are below it, and the image is converged when the list is empty, so a flat
+ * background stops costing rays after the warm-up while edges, shadows and reflections keep
+ * their samples.
+ */
+public class Accumulation {
+    public static final int DEFAULT_MAX_SAMPLES = 1024;
+    //Passes over the whole image before any pixel can converge, fewer let pixels whose samples all missed a thin edge stop early
+    public static final int DEFAULT_MIN_SAMPLES = 16;
+    //Standard error of a pixel's mean luminance, about half a step of an 8 bit channel
+    public static final float DEFAULT_ERROR_THRESHOLD = 0.002f;
+
+    private boolean enabled = true;
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+    private int sampleCount;
+
+    private boolean adaptive = true;
+    private int minSamples = DEFAULT_MIN_SAMPLES;
+    private float errorThreshold = DEFAULT_ERROR_THRESHOLD;
+    //Pixels the next adaptive pass traces, -1 until a pass collected them
+    private int activePixels = -1;
+    private long samplesTraced;
+
+    /**
+     * Discards the accumulated samples, call when the camera, scene or image size changes
+     */
+    public void invalidate() {
+        sampleCount = 0;
+        activePixels = -1;
+        samplesTraced = 0;
+    }
+
+    /**
+     * Index of the sample to trace next, zero means the accumulated image is replaced rather than added to
+     */
+    public int getSampleIndex() {
+        return enabled ? sampleCount : 0;
+    }
+
+    /**
+     * Horizontal position of the next sample within its pixel, between 0 and 1
+     */
+    public float getJitterX() {
+        return getSampleIndex() == 0 ? 0.5f : halton(sampleCount, 2);
+    }
+
+    /**
+     * Vertical position of the next sample within its pixel, between 0 and 1
+     */
+    public float getJitterY() {
+        return getSampleIndex() == 0 ? 0.5f : halton(sampleCount, 3);
+    }
+
+    /**
+     * Records that the next sample has been traced
+     */
+    public void sampleTraced() {
+        if (enabled && sampleCount < maxSamples) {
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Records how many samples, one primary ray each, the renderer traced for the accumulated image
+     */
+    public void samplesTraced(long samples) {
+        samplesTraced += samples;
+    }
+
+    /**
+     * Samples traced for the accumulated image so far, summed over its pixels
+     */
+    public long getSamplesTraced() {
+        return samplesTraced;
+    }
+
+    /**
+     * Whether the next pass traces only the pixels the previous one left in the active list
+     */
+    public boolean isAdaptivePass() {
+        return enabled && adaptive && sampleCount >= minSamples;
+    }
+
+    /**
+     * Whether the next pass collects the pixels that still need samples into the active list,
+     * which the last warm-up pass and every adaptive pass do
+     */
+    public boolean collectsActivePixels() {
+        return enabled && adaptive && sampleCount >= minSamples - 1;
+    }
+
+    /**
+     * Records the length of the active list a pass collected, call before {@link #sampleTraced}
+     */
+    public void setActivePixels(int activePixels) {
+        this.activePixels = activePixels;
+    }
+
+    /**
+     * Pixels the next adaptive pass traces, -1 while every pixel is traced
+     */
+    public int getActivePixels() {
+        return activePixels;
+    }
+
+    public boolean isConverged() {
+        return enabled && (sampleCount >= maxSamples || adaptive && sampleCount >= minSamples && activePixels == 0);
+    }
+
+    /**
+     * Whether a pixel with the given number of samples and sum of squared deviations of its
+     * luminance from their mean (Welford's M2) needs no more samples. Mirrors compute.glsl.
+     */
+    public boolean isPixelConverged(int samples, float m2) {
+        //Variance of the mean is the sample variance over the number of samples
+        return samples >= 2 && m2 <= errorThreshold * errorThreshold * samples * (samples - 1);
+    }
+
+    /**
+     * Number of samples in the accumulated image, always zero while accumulation is disabled
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        invalidate();
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    public void setMaxSamples(int maxSamples) {
+        if (maxSamples < 1) {
+            throw new IllegalArgumentException("At least one sample is needed: " + maxSamples);
+        }
+        this.maxSamples = maxSamples;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Spends the samples after the warm-up only on pixels whose error is above the threshold, on by default
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        invalidate();
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    public void setMinSamples(int minSamples) {
+        if (minSamples < 2) {
+            throw new IllegalArgumentException("A variance needs at least two samples: " + minSamples);
+        }
+        this.minSamples = minSamples;
+        invalidate();
+    }
+
+    public float getErrorThreshold() {
+        return errorThreshold;
+    }
+
+    /**
+     * Standard error of the mean luminance below which a pixel stops taking samples
+     */
+    public void setErrorThreshold(float errorThreshold) {
+        if (!(errorThreshold >= 0)) {
+            throw new IllegalArgumentException("Error threshold must not be negative: " + errorThreshold);
+        }
+        this.errorThreshold = errorThreshold;
+        invalidate();
+    }
+
+    @Override
+    public String toString() {
+        if (!enabled) {
+            return "Accumulation disabled";
+        }
+        String active = !adaptive || activePixels < 0 ? "all pixels" : activePixels + " pixels";
+        return String.format("%d of %d passes, %d samples traced, %s active%s", sampleCount, maxSamples, samplesTraced,
+                active, isConverged() ? ", converged" : "");
+    }
+
+    //Radical inverse of index in the given base
+    static float halton(int index, int base) {
+        float result = 0;
+        float fraction = 1.0f / base;
+        while (index > 0) {
+            result += (index % base) * fraction;
+            index /= base;
+            fraction /= base;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,118 @@
+package render;
+
+/**
+ * CPU and GPU time histograms of every {@link FramePhase}, the number of primary rays traced and how
+ * many of their pixels reused a reprojected colour, collected over a reporting interval.
+ */
+public class FrameMetrics {
+    private static final FramePhase[] PHASES = FramePhase.values();
+
+    private final LatencyHistogram[] cpuTimes = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram[] gpuTimes = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    private long frames;
+    private long primaryRays;
+    private long reusedPixels;
+    private long droppedGpuTimes;
+    private long intervalStart;
+
+    public FrameMetrics() {
+        for (int i = 0; i < PHASES.length; i++) {
+            cpuTimes[i] = new LatencyHistogram();
+            gpuTimes[i] = new LatencyHistogram();
+        }
+        intervalStart = System.nanoTime();
+    }
+
+    public void recordCpu(FramePhase phase, long nanos) {
+        cpuTimes[phase.ordinal()].record(nanos);
+    }
+
+    public void recordGpu(FramePhase phase, long nanos) {
+        gpuTimes[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Counts a GPU time that could not be read because its query had not finished in time
+     */
+    public void recordDroppedGpu() {
+        droppedGpuTimes++;
+    }
+
+    /**
+     * @param reusedPixels pixels of the frame whose colour was reprojected rather than shaded, see {@link Reprojection}
+     */
+    public void recordFrame(long frameNanos, long primaryRays, long reusedPixels) {
+        frameTimes.record(frameNanos);
+        this.primaryRays += primaryRays;
+        this.reusedPixels += reusedPixels;
+        frames++;
+    }
+
+    /**
+     * Share of the primary rays of the interval whose pixel reused a reprojected colour
+     */
+    public double getReusedShare() {
+        return primaryRays > 0 ? (double) reusedPixels / primaryRays : 0;
+    }
+
+    public LatencyHistogram getCpuTimes(FramePhase phase) {
+        return cpuTimes[phase.ordinal()];
+    }
+
+    public LatencyHistogram getGpuTimes(FramePhase phase) {
+        return gpuTimes[phase.ordinal()];
+    }
+
+    public LatencyHistogram getFrameTimes() {
+        return frameTimes;
+    }
+
+    /**
+     * Nanoseconds since the interval started
+     */
+    public long getIntervalNanos(long now) {
+        return now - intervalStart;
+    }
+
+    /**
+     * Percentiles of every phase, frames and primary rays per second and the reused share since the interval started
+     */
+    public String summary(long now) {
+        double seconds = Math.max(1e-9, (now - intervalStart) / 1e9);
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%.1f frames/s, %.3g primary rays/s, %.1f%% reprojected, frame p50 %s p99 %s",
+                frames / seconds, primaryRays / seconds, getReusedShare() * 100,
+                millis(frameTimes.getValueAtPercentile(50)), millis(frameTimes.getValueAtPercentile(99))));
+        for (FramePhase phase : PHASES) {
+            LatencyHistogram cpu = getCpuTimes(phase), gpu = getGpuTimes(phase);
+            summary.append(String.format("%n  %-8s cpu p50 %s p99 %s  gpu p50 %s p99 %s", phase,
+                    millis(cpu.getValueAtPercentile(50)), millis(cpu.getValueAtPercentile(99)),
+                    millis(gpu.getValueAtPercentile(50)), millis(gpu.getValueAtPercentile(99))));
+        }
+        if (droppedGpuTimes > 0) {
+            summary.append(String.format("%n  %d GPU times dropped", droppedGpuTimes));
+        }
+        return summary.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%7.3fms", nanos / 1e6);
+    }
+
+    /**
+     * Clears everything and starts a new interval
+     */
+    public void reset(long now) {
+        for (int i = 0; i < PHASES.length; i++) {
+            cpuTimes[i].reset();
+            gpuTimes[i].reset();
+        }
+        frameTimes.reset();
+        frames = 0;
+        primaryRays = 0;
+        reusedPixels = 0;
+        droppedGpuTimes = 0;
+        intervalStart = now;
+    }
+}
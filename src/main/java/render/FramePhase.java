@@ -0,0 +1,15 @@
+package render;
+
+/**
+ * Parts of a frame of the interactive renderer which are timed separately
+ */
+public enum FramePhase {
+    //Uniforms, scene buffers and the BVH
+    UPLOAD,
+    //The compute shader tracing the scene
+    DISPATCH,
+    //Drawing the framebuffer to the screen
+    QUAD,
+    //glfwSwapBuffers, including waiting for vsync
+    SWAP
+}
@@ -0,0 +1,32 @@
+package render;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one phase of one frame, committed once the GPU time is known
+ */
+@Name("raytracer.FramePhase")
+@Label("Frame Phase")
+@Category("Raytracer")
+@Description("CPU and GPU time of one phase of a frame")
+public class FramePhaseEvent extends Event {
+    @Label("Frame")
+    public long frame;
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("CPU Time")
+    @Timespan
+    public long cpuTime;
+
+    @Label("GPU Time")
+    @Description("Negative if the timer query was not ready in time")
+    @Timespan
+    public long gpuTime;
+}
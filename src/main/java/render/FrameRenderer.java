@@ -0,0 +1,22 @@
+package render;
+
+import cpu.FloatImage;
+import scene.Camera;
+import scene.Scene;
+
+/**
+ * Something that can render a complete frame into memory, for rendering without a window
+ */
+public interface FrameRenderer extends AutoCloseable {
+    /**
+     * Renders the scene as seen from the camera into the target at the target's size
+     */
+    void render(Scene scene, Camera camera, FloatImage target);
+
+    /**
+     * Releases the renderer's resources
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,16 @@
+package render;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives frames read back from the GPU
+ */
+public interface PixelConsumer {
+    /**
+     * Called with a view of mapped GPU memory, which is only valid until this method returns.
+     * Copy the pixels to keep them.
+     *
+     * @param frame number of the frame, counting captures from zero
+     */
+    void accept(ByteBuffer pixels, int width, int height, PixelFormat format, long frame);
+}
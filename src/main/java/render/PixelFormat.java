@@ -0,0 +1,21 @@
+package render;
+
+/**
+ * Formats framebuffer pixels can be read back in, both RGBA with rows from the bottom up
+ */
+public enum PixelFormat {
+    //The framebuffer's own values, four native order floats per pixel
+    RGBA32F(16),
+    //Clamped to [0, 1] and converted to bytes by GL, a quarter of the memory and bandwidth
+    RGBA8(4);
+
+    private final int bytesPerPixel;
+
+    PixelFormat(int bytesPerPixel) {
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+}
@@ -0,0 +1,240 @@
+package render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of linked program binaries, as returned by glGetProgramBinary, keyed by everything that
+ * went into them.
+ *
+ * A key is a SHA-256 over the driver, the defines and the source of every stage, so editing a
+ * shader or updating the driver simply misses. Each file carries a checksum; a truncated or
+ * corrupt file is deleted and reported as a miss. Files are written to a temporary name and
+ * moved into place, so concurrent processes never see half written binaries.
+ *
+ * Knows nothing about GL, the caller compiles on a miss and hands the result to {@link #store}.
+ */
+public class ProgramBinaryCache {
+    private static final int MAGIC = 0x47505242; //GPRB
+    private static final int FILE_VERSION = 1;
+    //Magic, version, format, length and checksum
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    private static final String SUFFIX = ".bin";
+
+    private final Path directory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong hitNanos = new AtomicLong();
+    private final AtomicLong missNanos = new AtomicLong();
+
+    /**
+     * Binary and its driver specific format
+     */
+    public static class Entry {
+        public final int format;
+        public final byte[] binary;
+
+        public Entry(int format, byte[] binary) {
+            this.format = format;
+            this.binary = binary;
+        }
+    }
+
+    public ProgramBinaryCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Hex SHA-256 of the driver, the defines in name order and the sources in stage order
+     */
+    public static String keyOf(String driver, Map<String, String> defines, List<String> sources) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every JVM", e);
+        }
+        //Every part is length prefixed so moving text from one part into the next changes the key
+        update(digest, driver);
+        for (Map.Entry<String, String> define : new TreeMap<>(defines).entrySet()) {
+            update(digest, define.getKey());
+            update(digest, define.getValue());
+        }
+        for (String source : sources) {
+            update(digest, source);
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String part) {
+        byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    /**
+     * @return the stored binary, or null if there is none or it was corrupt
+     */
+    public Entry load(String key) {
+        Path file = fileOf(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a program binary");
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            long checksum = in.readLong();
+            //A corrupt length must not allocate more than the file could hold
+            long size = Files.size(file);
+            if (length < 0 || length > size - HEADER_SIZE) {
+                throw new IOException("Length " + length + " does not fit a file of " + size + " bytes");
+            }
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+            if (checksumOf(binary) != checksum) {
+                throw new IOException("Checksum mismatch");
+            }
+            return new Entry(format, binary);
+        } catch (EOFException e) {
+            reject(key, "truncated");
+            return null;
+        } catch (IOException e) {
+            reject(key, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a binary, failing to write only costs the next start a compile
+     */
+    public void store(String key, int format, byte[] binary) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + binary.length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(format);
+            out.writeInt(binary.length);
+            out.writeLong(checksumOf(binary));
+            out.write(binary);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            Files.createDirectories(directory);
+            Path temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                bytes.writeTo(out);
+            }
+            Files.move(temporary, fileOf(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache program binary in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes a binary that could not be used, e.g. because the driver rejected it
+     */
+    public void reject(String key, String reason) {
+        rejected.incrementAndGet();
+        System.err.println("Discarding cached program " + key + ": " + reason);
+        try {
+            Files.deleteIfExists(fileOf(key));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private Path fileOf(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+
+    private static long checksumOf(byte[] binary) {
+        CRC32 crc = new CRC32();
+        crc.update(binary, 0, binary.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Counts a program created from a cached binary, including the time it took
+     */
+    public void recordHit(long nanos) {
+        hits.incrementAndGet();
+        hitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Counts a program that had to be compiled, including the time it took
+     */
+    public void recordMiss(long nanos) {
+        misses.incrementAndGet();
+        missNanos.addAndGet(nanos);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Time spent creating programs from cached binaries, over all hits
+     */
+    public long getHitNanos() {
+        return hitNanos.get();
+    }
+
+    /**
+     * Time spent compiling and linking, over all misses
+     */
+    public long getMissNanos() {
+        return missNanos.get();
+    }
+
+    /**
+     * Binaries discarded because they were corrupt or the driver refused them
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Program cache: %d hits in %.1fms, %d misses compiled in %.1fms, %d rejected",
+                getHits(), getHitNanos() / 1e6, getMisses(), getMissNanos() / 1e6, getRejected());
+    }
+}
@@ -0,0 +1,38 @@
+package render;
+
+/**
+ * Rules both renderers follow to reuse the last complete image after the view changed in a static
+ * scene. Every pixel's primary ray is still traced, but if its hit projects to a pixel of the last
+ * image that saw the same sphere or triangle at the same distance, that pixel's colour is taken
+ * instead of shading the hit, which saves its shadow rays and reflections. Pixels whose ray hits
+ * something the last image did not see there, e.g. a surface that was hidden before, are shaded
+ * as usual.
+ *
+ * A reused colour is the last image resampled at the nearest pixel, so the error of repeated reuse
+ * adds up. A pixel is shaded afresh after some reuses in a row, with the limit staggered over the
+ * image so a moving camera does not refresh every pixel in the same frame.
+ */
+public final class Reprojection {
+    //Largest difference between the distance of a hit from the last eye and the distance the last image saw, relative to it
+    public static final float DEPTH_TOLERANCE = 0.01f;
+    //Most reuses in a row of a pixel's colour, every pixel is shaded afresh after between half of this and this many
+    public static final int MAX_AGE = 8;
+
+    private Reprojection() {
+    }
+
+    /**
+     * Number of what a primary ray hit, compared between images: spheres count from 0, a miss is
+     * -1 and triangles count down from -2. Floats hold these exactly for up to 2^24 of each.
+     */
+    public static float hitId(int sphereIndex, int triangleIndex) {
+        return triangleIndex >= 0 ? -2 - triangleIndex : sphereIndex;
+    }
+
+    /**
+     * Number of reuses in a row after which the pixel is shaded afresh
+     */
+    public static int ageLimit(int x, int y) {
+        return MAX_AGE - (x + 3 * y) % (MAX_AGE / 2);
+    }
+}
@@ -0,0 +1,103 @@
+package render;
+
+/**
+ * Scales the traced resolution so tracing a whole image takes about a target time.
+ *
+ * The cost of a pass grows with the number of pixels, so the scale needed to meet the target is
+ * the current one times the square root of target over measured time. To keep the image from
+ * flickering between sizes the scale only moves after several passes in a row missed the target
+ * by more than a tolerance: quickly when passes are too slow, slowly when there is time to spare.
+ * Scales are rounded down to steps, which also keeps the number of distinct texture sizes small.
+ */
+public class ResolutionController {
+    private static final double TOLERANCE = 0.15;
+    private static final double STEP = 0.05;
+    //Passes in a row that must miss the target before the scale moves
+    private static final int SLOW_PASSES_BEFORE_DOWNSCALE = 2;
+    private static final int FAST_PASSES_BEFORE_UPSCALE = 10;
+
+    private final long targetNanos;
+    private final double minScale, maxScale;
+    private double scale;
+
+    private int slowPasses, fastPasses;
+    private long streakNanos;
+
+    /**
+     * @param targetNanos time a pass over the whole image should take
+     * @param minScale    smallest fraction of the window's width and height traced
+     * @param maxScale    largest fraction, usually 1
+     */
+    public ResolutionController(long targetNanos, double minScale, double maxScale) {
+        if (targetNanos <= 0) {
+            throw new IllegalArgumentException("Target must be positive: " + targetNanos);
+        }
+        if (minScale <= 0 || minScale > maxScale) {
+            throw new IllegalArgumentException("Invalid scale range: " + minScale + "-" + maxScale);
+        }
+        this.targetNanos = targetNanos;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.scale = maxScale;
+    }
+
+    /**
+     * Records how long the last complete pass took
+     *
+     * @return true if the scale changed
+     */
+    public boolean recordPass(long passNanos) {
+        if (passNanos > targetNanos * (1 + TOLERANCE)) {
+            fastPasses = 0;
+            if (slowPasses++ == 0) {
+                streakNanos = 0;
+            }
+            streakNanos += passNanos;
+            if (slowPasses >= SLOW_PASSES_BEFORE_DOWNSCALE) {
+                return rescale(streakNanos / slowPasses);
+            }
+        } else if (passNanos < targetNanos * (1 - TOLERANCE)) {
+            slowPasses = 0;
+            if (fastPasses++ == 0) {
+                streakNanos = 0;
+            }
+            streakNanos += passNanos;
+            if (fastPasses >= FAST_PASSES_BEFORE_UPSCALE) {
+                return rescale(streakNanos / fastPasses);
+            }
+        } else {
+            slowPasses = 0;
+            fastPasses = 0;
+        }
+        return false;
+    }
+
+    private boolean rescale(long averageNanos) {
+        slowPasses = 0;
+        fastPasses = 0;
+        double wanted = scale * Math.sqrt((double) targetNanos / Math.max(1, averageNanos));
+        //Small epsilon so a scale sitting exactly on a step is not rounded down a step
+        double stepped = Math.floor(wanted / STEP + 1e-6) * STEP;
+        double newScale = Math.max(minScale, Math.min(maxScale, stepped));
+        if (Math.abs(newScale - scale) < 1e-9) {
+            return false;
+        }
+        scale = newScale;
+        return true;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * A window dimension scaled to the traced one, at least 1
+     */
+    public int scale(int size) {
+        return Math.max(1, (int) Math.round(size * scale));
+    }
+
+    public long getTargetNanos() {
+        return targetNanos;
+    }
+}
@@ -0,0 +1,195 @@
+package render;
+
+import java.util.Arrays;
+
+/**
+ * Samples of an accumulated image kept on the CPU, the counterpart of the accumulation and moments
+ * images of compute.glsl: the running sum of every pixel's samples, how many there are, and the
+ * mean and sum of squared deviations (Welford's M2) of their luminance. After a pass that collects
+ * them, the pixels that still need samples are compacted into the active list the next adaptive
+ * pass traces, see {@link Accumulation}.
+ */
+public class SampleStatistics {
+    private int width, height;
+    private float[] sums = new float[0];
+    private float[] means = new float[0];
+    private float[] m2 = new float[0];
+    private int[] counts = new int[0];
+
+    //Pixels as y * width + x, only the first activeCount are valid
+    private int[] activePixels = new int[0];
+    private int activeCount;
+
+    /**
+     * Changes the dimensions, only reallocating when the current storage is too small. The contents
+     * are undefined until the next pass that restarts them.
+     */
+    public void resize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        int pixels = width * height;
+        if (counts.length < pixels) {
+            sums = new float[pixels * 3];
+            means = new float[pixels];
+            m2 = new float[pixels];
+            counts = new int[pixels];
+            activePixels = new int[pixels];
+        }
+        activeCount = 0;
+    }
+
+    /**
+     * Adds a pass of samples, RGBA per pixel like a {@link cpu.FloatImage}, to the pixels it traced
+     *
+     * @param activeOnly whether the pass traced only the active list rather than every pixel
+     * @param restart    whether the samples replace the ones held so far, for the first pass
+     */
+    public void addPass(float[] samples, boolean activeOnly, boolean restart) {
+        if (restart) {
+            Arrays.fill(counts, 0, width * height, 0);
+        }
+        if (activeOnly) {
+            for (int i = 0; i < activeCount; i++) {
+                addSample(activePixels[i], samples);
+            }
+        } else {
+            for (int pixel = 0; pixel < width * height; pixel++) {
+                addSample(pixel, samples);
+            }
+        }
+    }
+
+    private void addSample(int pixel, float[] samples) {
+        float r = samples[pixel * 4], g = samples[pixel * 4 + 1], b = samples[pixel * 4 + 2];
+        float luminance = luminance(r, g, b);
+        int count = ++counts[pixel];
+        if (count == 1) {
+            sums[pixel * 3] = r;
+            sums[pixel * 3 + 1] = g;
+            sums[pixel * 3 + 2] = b;
+            means[pixel] = luminance;
+            m2[pixel] = 0;
+            return;
+        }
+        sums[pixel * 3] += r;
+        sums[pixel * 3 + 1] += g;
+        sums[pixel * 3 + 2] += b;
+        float delta = luminance - means[pixel];
+        means[pixel] += delta / count;
+        m2[pixel] += delta * (luminance - means[pixel]);
+    }
+
+    /**
+     * Keeps the pixels whose error is still above the accumulation's threshold in the active list,
+     * scanning the list of the last adaptive pass or, before the first one, every pixel
+     *
+     * @return the length of the new list
+     */
+    public int collectActivePixels(Accumulation accumulation) {
+        int kept = 0;
+        if (accumulation.getActivePixels() < 0) {
+            for (int pixel = 0; pixel < width * height; pixel++) {
+                if (needsSamples(pixel, accumulation)) {
+                    activePixels[kept++] = pixel;
+                }
+            }
+        } else {
+            //The list shrinks in place, a pixel is never written ahead of where it is read
+            for (int i = 0; i < activeCount; i++) {
+                int pixel = activePixels[i];
+                if (needsSamples(pixel, accumulation)) {
+                    activePixels[kept++] = pixel;
+                }
+            }
+        }
+        activeCount = kept;
+        return kept;
+    }
+
+    //A pixel keeps sampling while it or a neighbour is above the threshold, so a thin feature its own samples missed is still found
+    private boolean needsSamples(int pixel, Accumulation accumulation) {
+        int x = pixel % width, y = pixel / width;
+        return !accumulation.isPixelConverged(counts[pixel], m2[pixel])
+                || x > 0 && !accumulation.isPixelConverged(counts[pixel - 1], m2[pixel - 1])
+                || x < width - 1 && !accumulation.isPixelConverged(counts[pixel + 1], m2[pixel + 1])
+                || y > 0 && !accumulation.isPixelConverged(counts[pixel - width], m2[pixel - width])
+                || y < height - 1 && !accumulation.isPixelConverged(counts[pixel + width], m2[pixel + width]);
+    }
+
+    /**
+     * Pixels of the active list, only the first {@link #getActiveCount} are valid
+     */
+    public int[] getActivePixels() {
+        return activePixels;
+    }
+
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Writes the average of every pixel's samples into an RGBA image
+     */
+    public void resolve(float[] target) {
+        for (int pixel = 0; pixel < width * height; pixel++) {
+            float inverseCount = 1.0f / counts[pixel];
+            target[pixel * 4] = sums[pixel * 3] * inverseCount;
+            target[pixel * 4 + 1] = sums[pixel * 3 + 1] * inverseCount;
+            target[pixel * 4 + 2] = sums[pixel * 3 + 2] * inverseCount;
+            target[pixel * 4 + 3] = 1.0f;
+        }
+    }
+
+    /**
+     * Writes the number of samples of every pixel into an RGBA image as a heatmap, see {@link #heatmap}
+     */
+    public void writeHeatmap(float[] target, int maxSamples) {
+        for (int pixel = 0; pixel < width * height; pixel++) {
+            heatmap(counts[pixel], maxSamples, target, pixel * 4);
+            target[pixel * 4 + 3] = 1.0f;
+        }
+    }
+
+    /**
+     * Colour of a sample count on a logarithmic scale from blue for one sample through green to red
+     * for the maximum, the same ramp as compute.glsl
+     */
+    public static void heatmap(int samples, int maxSamples, float[] rgb, int offset) {
+        float t = maxSamples > 1 ? (float) (Math.log(Math.max(samples, 1)) / Math.log(maxSamples)) : 1.0f;
+        t = Math.min(Math.max(t, 0.0f), 1.0f);
+        rgb[offset] = Math.max(2.0f * t - 1.0f, 0.0f);
+        rgb[offset + 1] = 1.0f - Math.abs(2.0f * t - 1.0f);
+        rgb[offset + 2] = Math.max(1.0f - 2.0f * t, 0.0f);
+    }
+
+    //Rec. 709 weights, as in compute.glsl
+    static float luminance(float r, float g, float b) {
+        return 0.2126f * r + 0.7152f * g + 0.0722f * b;
+    }
+
+    public int getSamples(int x, int y) {
+        return counts[y * width + x];
+    }
+
+    /**
+     * Largest number of samples any pixel took
+     */
+    public int getMaxPixelSamples() {
+        int max = 0;
+        for (int pixel = 0; pixel < width * height; pixel++) {
+            max = Math.max(max, counts[pixel]);
+        }
+        return max;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,59 @@
+package render;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Injects #defines into GLSL source right after its #version line.
+ *
+ * Shaders give every injectable value a default inside #ifndef, so the injected definition wins
+ * and the file still compiles on its own. A #line directive follows the defines so compiler
+ * messages keep pointing at the lines of the file.
+ */
+public final class ShaderPreprocessor {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private ShaderPreprocessor() {
+    }
+
+    public static String injectDefines(String source, Map<String, String> defines) {
+        if (defines.isEmpty()) {
+            return source;
+        }
+
+        StringBuilder injected = new StringBuilder();
+        for (Map.Entry<String, String> define : defines.entrySet()) {
+            if (!NAME.matcher(define.getKey()).matches()) {
+                throw new IllegalArgumentException("Not a macro name: " + define.getKey());
+            }
+            if (define.getValue().indexOf('\n') >= 0 || define.getValue().indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Macro " + define.getKey() + " spans lines");
+            }
+            injected.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+        }
+
+        //#version must stay the first statement, a source without one gets the defines at the top
+        int version = source.startsWith("#version") ? 0 : source.indexOf("\n#version");
+        if (version < 0) {
+            return injected.append("#line 1\n").append(source).toString();
+        }
+        int lineStart = version == 0 ? 0 : version + 1;
+        int lineEnd = source.indexOf('\n', lineStart);
+        if (lineEnd < 0) {
+            return source + '\n' + injected;
+        }
+        int nextLine = countLines(source, lineEnd) + 1;
+        return source.substring(0, lineEnd + 1) + injected + "#line " + nextLine + '\n' + source.substring(lineEnd + 1);
+    }
+
+    //Number of the line ending at the given newline, counted from 1
+    private static int countLines(String source, int newline) {
+        int lines = 1;
+        for (int i = 0; i < newline; i++) {
+            if (source.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
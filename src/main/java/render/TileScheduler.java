@@ -0,0 +1,301 @@
+package render;
+
+import java.util.Arrays;
+
+/**
+ * Splits an image into square tiles and renders as many of them per frame as fit into a time budget.
+ *
+ * A pass renders every tile once. Each frame continues the current pass in priority order and stops
+ * once the budget is spent, or when the predicted cost of the next tile would exceed it, but always
+ * renders at least one tile. Tiles left over are carried into the next frame ahead of everything
+ * else, so the edges of the image are not starved when the budget only ever covers the centre.
+ *
+ * The scheduler knows nothing about how tiles are rendered, it times each
+ * {@link TileRenderer#renderTile} call with its {@link TimeSource}. Under a budget renderers must
+ * therefore finish a tile before returning. With an {@link #UNLIMITED} budget every tile is
+ * rendered regardless of its time, so a renderer may return as soon as the tile is queued.
+ *
+ * A renderer that only queues tiles, e.g. on a GPU that should not be waited for, can instead
+ * {@link #setPredicted predict} them: the budget then holds the costs the tiles took last time,
+ * which the renderer reports through {@link #recordCost} once it knows them.
+ */
+public class TileScheduler {
+    public static final int DEFAULT_TILE_SIZE = 128;
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * Order in which the tiles of a pass are rendered, after the tiles carried over from the last frame
+     */
+    public enum Order {
+        //Tiles closest to the centre of the image first, where the viewer usually looks
+        CENTRE_FIRST,
+        //Tiles that took longest last time first, cheap tiles then fill up the rest of the budget
+        COSTLIEST_FIRST
+    }
+
+    public interface TileRenderer {
+        void renderTile(int x, int y, int width, int height);
+    }
+
+    public interface TimeSource {
+        long nanoTime();
+    }
+
+    private final int tileSize;
+    private final TimeSource timeSource;
+    private Order order = Order.CENTRE_FIRST;
+    private long budgetNanos = UNLIMITED;
+    private boolean predicted;
+
+    private int width, height;
+    private int tilesX, tileCount;
+
+    //Time each tile took when it was last rendered
+    private long[] lastCost = new long[0];
+    //Whether a tile still has to be rendered in the current pass
+    private boolean[] pending = new boolean[0];
+    //Whether a tile was left over by an earlier frame
+    private boolean[] carried = new boolean[0];
+    private int pendingCount;
+
+    //Sort keys of the pending tiles, priority in the high bits and tile index in the low ones
+    private long[] queue = new long[0];
+
+    private int tilesRenderedLastFrame;
+    private long pixelsRenderedLastFrame;
+    private long nanosLastFrame;
+
+    public TileScheduler() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    public TileScheduler(int tileSize) {
+        this(tileSize, System::nanoTime);
+    }
+
+    public TileScheduler(int tileSize, TimeSource timeSource) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        this.tileSize = tileSize;
+        this.timeSource = timeSource;
+    }
+
+    /**
+     * Sets the image size, which restarts the pass if it changed
+     */
+    public void resize(int width, int height) {
+        if (width == this.width && height == this.height) {
+            return;
+        }
+        this.width = width;
+        this.height = height;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+
+        lastCost = new long[tileCount];
+        pending = new boolean[tileCount];
+        carried = new boolean[tileCount];
+        queue = new long[tileCount];
+        startPass();
+    }
+
+    /**
+     * Starts the pass over, e.g. because the image became stale. Tiles not yet rendered in the
+     * abandoned pass keep their priority.
+     */
+    public void restart() {
+        startPass();
+    }
+
+    /**
+     * Renders tiles of the current pass until the budget is spent
+     *
+     * @return true if this frame completed the pass, the next frame then starts a new one
+     */
+    public boolean renderFrame(TileRenderer renderer) {
+        if (pendingCount == 0) {
+            startPass();
+        }
+
+        int queued = fillQueue();
+        long frameStart = timeSource.nanoTime();
+        long elapsed = 0;
+        int rendered = 0;
+        long pixels = 0;
+        long meanCost = predicted ? meanKnownCost() : 0;
+
+        for (int i = 0; i < queued; i++) {
+            int tile = (int) queue[i];
+            long cost = predicted ? predictedCost(tile, meanCost) : lastCost[tile];
+            //Before any costs are known a predicted frame renders one tile, until they arrive
+            boolean unknown = predicted && cost == 0;
+            if (rendered > 0 && budgetNanos != UNLIMITED && (elapsed >= budgetNanos || elapsed + cost > budgetNanos || unknown)) {
+                break;
+            }
+
+            int x = (tile % tilesX) * tileSize;
+            int y = (tile / tilesX) * tileSize;
+            int tileWidth = Math.min(tileSize, width - x), tileHeight = Math.min(tileSize, height - y);
+            if (predicted) {
+                renderer.renderTile(x, y, tileWidth, tileHeight);
+                elapsed += cost;
+            } else {
+                long tileStart = timeSource.nanoTime();
+                renderer.renderTile(x, y, tileWidth, tileHeight);
+                long tileEnd = timeSource.nanoTime();
+                lastCost[tile] = tileEnd - tileStart;
+                elapsed = tileEnd - frameStart;
+            }
+
+            pending[tile] = false;
+            carried[tile] = false;
+            pendingCount--;
+            rendered++;
+            pixels += (long) tileWidth * tileHeight;
+        }
+
+        //Whatever is left goes first next frame
+        for (int i = rendered; i < queued; i++) {
+            carried[(int) queue[i]] = true;
+        }
+
+        tilesRenderedLastFrame = rendered;
+        pixelsRenderedLastFrame = pixels;
+        nanosLastFrame = elapsed;
+        return pendingCount == 0 && tileCount > 0;
+    }
+
+    //A tile that was never rendered is predicted to cost as much as the others on average, 0 if none is known
+    private long predictedCost(int tile, long meanCost) {
+        return lastCost[tile] > 0 ? lastCost[tile] : meanCost;
+    }
+
+    private long meanKnownCost() {
+        long total = 0;
+        int known = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            if (lastCost[tile] > 0) {
+                total += lastCost[tile];
+                known++;
+            }
+        }
+        return known == 0 ? 0 : total / known;
+    }
+
+    private void startPass() {
+        Arrays.fill(pending, 0, tileCount, true);
+        pendingCount = tileCount;
+    }
+
+    //Sorts the pending tiles into the queue, returns how many there are
+    private int fillQueue() {
+        int queued = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            if (pending[tile]) {
+                long priority = (carried[tile] ? 0L : 1L << 62) | ((long) orderKey(tile) << 32);
+                queue[queued++] = priority | tile;
+            }
+        }
+        Arrays.sort(queue, 0, queued);
+        return queued;
+    }
+
+    //Smaller keys are rendered first, keys stay below 2^30
+    private int orderKey(int tile) {
+        if (order == Order.COSTLIEST_FIRST) {
+            long micros = Math.min(lastCost[tile] / 1000, (1 << 30) - 1);
+            return (int) ((1 << 30) - 1 - micros);
+        }
+        long dx = (tile % tilesX) * tileSize + tileSize / 2 - width / 2;
+        long dy = (tile / tilesX) * tileSize + tileSize / 2 - height / 2;
+        return (int) Math.min(dx * dx + dy * dy, (1 << 30) - 1);
+    }
+
+    /**
+     * Longest time to spend rendering tiles per frame, {@link #UNLIMITED} renders whole passes
+     */
+    public void setBudgetNanos(long budgetNanos) {
+        if (budgetNanos <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + budgetNanos);
+        }
+        this.budgetNanos = budgetNanos;
+    }
+
+    public void setBudgetMillis(double budgetMillis) {
+        setBudgetNanos((long) (budgetMillis * 1_000_000));
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    /**
+     * Whether the budget holds the predicted costs of tiles rather than the time rendering them
+     * took, so the renderer may return as soon as a tile is queued. Costs come from {@link #recordCost}.
+     */
+    public void setPredicted(boolean predicted) {
+        this.predicted = predicted;
+    }
+
+    public boolean isPredicted() {
+        return predicted;
+    }
+
+    /**
+     * Reports the time the tile at the given position took, e.g. once a GPU timer query is ready.
+     * Costs of a tile that is no longer there after a resize are ignored.
+     */
+    public void recordCost(int x, int y, long nanos) {
+        if (x < 0 || y < 0 || x >= width || y >= height || x % tileSize != 0 || y % tileSize != 0) {
+            return;
+        }
+        lastCost[(y / tileSize) * tilesX + x / tileSize] = Math.max(1, nanos);
+    }
+
+    /**
+     * Average cost of a pixel over the tiles whose costs are known, 0 before any are
+     */
+    public double getMeanPixelNanos() {
+        long meanCost = meanKnownCost();
+        return meanCost / (double) ((long) tileSize * tileSize);
+    }
+
+    public void setOrder(Order order) {
+        this.order = order;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Number of tiles still to render in the current pass
+     */
+    public int getPendingTiles() {
+        return pendingCount;
+    }
+
+    public int getTilesRenderedLastFrame() {
+        return tilesRenderedLastFrame;
+    }
+
+    public long getPixelsRenderedLastFrame() {
+        return pixelsRenderedLastFrame;
+    }
+
+    /**
+     * Time spent rendering tiles in the last frame, or the time they are predicted to take
+     */
+    public long getNanosLastFrame() {
+        return nanosLastFrame;
+    }
+}
@@ -0,0 +1,191 @@
+package render;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Quality and shape parameters baked into a compute.glsl variant as #defines, and followed by the
+ * CPU tracer so both render the same image. The light threshold is not a #define: it shapes the
+ * light grid both renderers build on the CPU, see accel.LightGrid.
+ *
+ * Instances are immutable and compare by value, so they can key a registry of compiled variants.
+ */
+public final class TraceParameters {
+    /**
+     * Leaves the light loop bounded by the numberOfLights uniform
+     */
+    public static final int UNBOUNDED_LIGHTS = 0;
+
+    /**
+     * Shades every point with every light, as the shader did before lights were culled
+     */
+    public static final float NO_LIGHT_CULLING = 0.0f;
+
+    /**
+     * A light dimmer than this adds less than a tenth of an 8 bit step at full weight, so a point
+     * is off by at most that for every light culled there
+     */
+    public static final float DEFAULT_LIGHT_THRESHOLD = 0.0003f;
+
+    public static final TraceParameters DEFAULT = new TraceParameters(2, 0.9f, 0.1f, 0.1f, 0.1f, 16, 16, UNBOUNDED_LIGHTS, DEFAULT_LIGHT_THRESHOLD);
+
+    /**
+     * Cheaper variant for interactive previews, without reflections
+     */
+    public static final TraceParameters PREVIEW = DEFAULT.withReflections(1);
+
+    private final int reflections;
+    private final float diffuse;
+    private final float specular;
+    private final float reflectivity;
+    private final float ambientLight;
+    private final int workGroupSizeX, workGroupSizeY;
+    private final int maxLights;
+    private final float lightThreshold;
+
+    /**
+     * @param reflections    rays traced per pixel including the primary ray, at least 1
+     * @param diffuse        Kd, weight of diffuse lighting
+     * @param specular       Ks, weight of specular lighting
+     * @param reflectivity   weight of the first reflection, each further one is weighted by its power
+     * @param ambientLight   colour of rays that hit nothing
+     * @param maxLights      compile time bound of the light loop, or {@link #UNBOUNDED_LIGHTS}
+     * @param lightThreshold light intensity, brightness / r^2, below which a light is not shaded, or {@link #NO_LIGHT_CULLING}
+     */
+    public TraceParameters(int reflections, float diffuse, float specular, float reflectivity, float ambientLight,
+                           int workGroupSizeX, int workGroupSizeY, int maxLights, float lightThreshold) {
+        if (reflections < 1) {
+            throw new IllegalArgumentException("Need at least the primary ray: " + reflections);
+        }
+        if (workGroupSizeX < 1 || workGroupSizeY < 1) {
+            throw new IllegalArgumentException("Work group size must be positive: " + workGroupSizeX + "x" + workGroupSizeY);
+        }
+        if (maxLights < 0) {
+            throw new IllegalArgumentException("Light bound must not be negative: " + maxLights);
+        }
+        if (!(lightThreshold >= 0.0f)) {
+            throw new IllegalArgumentException("Light threshold must not be negative: " + lightThreshold);
+        }
+        this.reflections = reflections;
+        this.diffuse = diffuse;
+        this.specular = specular;
+        this.reflectivity = reflectivity;
+        this.ambientLight = ambientLight;
+        this.workGroupSizeX = workGroupSizeX;
+        this.workGroupSizeY = workGroupSizeY;
+        this.maxLights = maxLights;
+        this.lightThreshold = lightThreshold;
+    }
+
+    public TraceParameters withReflections(int reflections) {
+        return new TraceParameters(reflections, diffuse, specular, reflectivity, ambientLight, workGroupSizeX, workGroupSizeY, maxLights, lightThreshold);
+    }
+
+    public TraceParameters withWorkGroupSize(int workGroupSizeX, int workGroupSizeY) {
+        return new TraceParameters(reflections, diffuse, specular, reflectivity, ambientLight, workGroupSizeX, workGroupSizeY, maxLights, lightThreshold);
+    }
+
+    public TraceParameters withMaxLights(int maxLights) {
+        return new TraceParameters(reflections, diffuse, specular, reflectivity, ambientLight, workGroupSizeX, workGroupSizeY, maxLights, lightThreshold);
+    }
+
+    public TraceParameters withLightThreshold(float lightThreshold) {
+        return new TraceParameters(reflections, diffuse, specular, reflectivity, ambientLight, workGroupSizeX, workGroupSizeY, maxLights, lightThreshold);
+    }
+
+    /**
+     * Smallest power of two bound for the given number of lights, unbounded past the largest one
+     * worth unrolling. Rounding up keeps the number of variants small as lights come and go.
+     */
+    public static int lightLoopBound(int lights, int largestBound) {
+        if (lights > largestBound) {
+            return UNBOUNDED_LIGHTS;
+        }
+        return Math.max(1, Integer.highestOneBit(Math.max(1, lights) * 2 - 1));
+    }
+
+    public int getReflections() {
+        return reflections;
+    }
+
+    public float getDiffuse() {
+        return diffuse;
+    }
+
+    public float getSpecular() {
+        return specular;
+    }
+
+    public float getReflectivity() {
+        return reflectivity;
+    }
+
+    public float getAmbientLight() {
+        return ambientLight;
+    }
+
+    public int getWorkGroupSizeX() {
+        return workGroupSizeX;
+    }
+
+    public int getWorkGroupSizeY() {
+        return workGroupSizeY;
+    }
+
+    public int getMaxLights() {
+        return maxLights;
+    }
+
+    public float getLightThreshold() {
+        return lightThreshold;
+    }
+
+    /**
+     * The #defines of this variant, in the names used by compute.glsl
+     */
+    public Map<String, String> toDefines() {
+        Map<String, String> defines = new LinkedHashMap<>();
+        defines.put("REFLECTIONS", Integer.toString(reflections));
+        defines.put("Kd", Float.toString(diffuse));
+        defines.put("Ks", Float.toString(specular));
+        defines.put("REFLECTIVITY", Float.toString(reflectivity));
+        defines.put("AMBIENT_LIGHT", Float.toString(ambientLight));
+        defines.put("WORK_GROUP_SIZE_X", Integer.toString(workGroupSizeX));
+        defines.put("WORK_GROUP_SIZE_Y", Integer.toString(workGroupSizeY));
+        if (maxLights != UNBOUNDED_LIGHTS) {
+            defines.put("MAX_LIGHTS", Integer.toString(maxLights));
+        }
+        return defines;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TraceParameters)) {
+            return false;
+        }
+        TraceParameters other = (TraceParameters) o;
+        return reflections == other.reflections
+                && Float.compare(diffuse, other.diffuse) == 0
+                && Float.compare(specular, other.specular) == 0
+                && Float.compare(reflectivity, other.reflectivity) == 0
+                && Float.compare(ambientLight, other.ambientLight) == 0
+                && workGroupSizeX == other.workGroupSizeX
+                && workGroupSizeY == other.workGroupSizeY
+                && maxLights == other.maxLights
+                && Float.compare(lightThreshold, other.lightThreshold) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(reflections, diffuse, specular, reflectivity, ambientLight, workGroupSizeX, workGroupSizeY, maxLights, lightThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return toDefines() + ", light threshold " + lightThreshold;
+    }
+}
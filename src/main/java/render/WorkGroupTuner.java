@@ -0,0 +1,167 @@
+package render;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Picks the compute work group shape that traces a frame fastest on this renderer.
+ *
+ * Every candidate is measured once to warm it up, which also compiles its variant, then measured
+ * in a few interleaved rounds so clock changes hit all candidates alike. The candidate with the
+ * fastest single run wins, the minimum being the least noisy estimate of what a shape can do.
+ * Winners are remembered per renderer in a properties file so the tuning runs once per driver.
+ */
+public class WorkGroupTuner {
+    private static final int ROUNDS = 3;
+
+    /**
+     * Work group dimensions, x * y invocations
+     */
+    public static final class Shape {
+        public final int x, y;
+
+        public Shape(int x, int y) {
+            if (x < 1 || y < 1) {
+                throw new IllegalArgumentException("Work group size must be positive: " + x + "x" + y);
+            }
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Parses the form written by {@link #toString}, e.g. 16x8
+         */
+        public static Shape parse(String shape) {
+            int separator = shape.indexOf('x');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Work group size must look like 16x8: " + shape);
+            }
+            try {
+                return new Shape(Integer.parseInt(shape.substring(0, separator).trim()), Integer.parseInt(shape.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Work group size must look like 16x8: " + shape);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && ((Shape) o).x == x && ((Shape) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+
+        @Override
+        public String toString() {
+            return x + "x" + y;
+        }
+    }
+
+    public static final List<Shape> DEFAULT_CANDIDATES = Collections.unmodifiableList(Arrays.asList(
+            new Shape(8, 8), new Shape(16, 8), new Shape(8, 16), new Shape(16, 16),
+            new Shape(32, 4), new Shape(32, 8), new Shape(64, 2), new Shape(64, 4)));
+
+    public interface Measurement {
+        /**
+         * Renders a representative frame with the given shape and returns how long it took
+         */
+        long nanos(Shape shape);
+    }
+
+    private final List<Shape> candidates;
+    private final long[] bestNanos;
+
+    public WorkGroupTuner(List<Shape> candidates) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to tune");
+        }
+        this.candidates = candidates;
+        this.bestNanos = new long[candidates.size()];
+    }
+
+    /**
+     * Measures every candidate and returns the fastest
+     */
+    public Shape tune(Measurement measurement) {
+        Arrays.fill(bestNanos, Long.MAX_VALUE);
+        for (Shape candidate : candidates) {
+            measurement.nanos(candidate);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < candidates.size(); i++) {
+                bestNanos[i] = Math.min(bestNanos[i], measurement.nanos(candidates.get(i)));
+            }
+        }
+
+        int best = 0;
+        for (int i = 1; i < candidates.size(); i++) {
+            if (bestNanos[i] < bestNanos[best]) {
+                best = i;
+            }
+        }
+        return candidates.get(best);
+    }
+
+    /**
+     * Fastest time of every candidate in the last tuning, for reporting
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder("Work group sizes:");
+        for (int i = 0; i < candidates.size(); i++) {
+            summary.append(String.format(" %s %.2fms", candidates.get(i), bestNanos[i] / 1e6));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return the shape stored for the renderer, or null if it was never tuned
+     */
+    public static Shape load(Path file, String renderer) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Properties winners = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            winners.load(in);
+            String shape = winners.getProperty(renderer);
+            return shape == null ? null : Shape.parse(shape);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Ignoring tuned work group sizes in " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the winner of a renderer, keeping those of others
+     */
+    public static void store(Path file, String renderer, Shape shape) {
+        Properties winners = new Properties();
+        try {
+            if (Files.isRegularFile(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    winners.load(in);
+                }
+            }
+            winners.setProperty(renderer, shape.toString());
+
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                winners.store(out, "Fastest compute work group size per renderer, see WorkGroupTuner");
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not store tuned work group size in " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Scene file whose sections are the store columns byte for byte, so loading it is mapping the file
+ * and copying, or uploading, whole columns without parsing anything. Written by
+ * {@link BinarySceneWriter}, little-endian throughout:
+ * <pre>
+ * header, 64 bytes
+ *    0  magic "RTSC"
+ *    4  format version
+ *    8  sphere count, light count, camera keyframe count, reserved
+ *   24  CRC32 of each section, in section order
+ *   44  reserved
+ *   60  CRC32 of the header up to here
+ * sphere positionRadius   16 bytes per sphere, as in SphereStore
+ * sphere material         16 bytes per sphere
+ * light positionBrightness 16 bytes per light, as in LightStore
+ * light colour            16 bytes per light
+ * camera keyframes        32 bytes each: int frame, position xyz, target xyz, unused
+ * </pre>
+ * Every section is mapped on its own, so a file can be larger than a single mapping.
+ */
+public class BinaryScene {
+    static final int MAGIC = 'R' | 'T' << 8 | 'S' << 16 | 'C' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int KEYFRAME_SIZE = 32;
+
+    //Sections in file order
+    static final int SPHERE_POSITION_RADIUS = 0;
+    static final int SPHERE_MATERIAL = 1;
+    static final int LIGHT_POSITION_BRIGHTNESS = 2;
+    static final int LIGHT_COLOUR = 3;
+    static final int KEYFRAMES = 4;
+    static final int SECTIONS = 5;
+
+    //Header fields
+    static final int COUNTS_OFFSET = 8;
+    static final int CHECKSUMS_OFFSET = 24;
+    static final int HEADER_CHECKSUM_OFFSET = 60;
+
+    //Most elements whose column still fits one mapping
+    static final int MAX_COUNT = Integer.MAX_VALUE / OffHeapStore.ELEMENT_SIZE;
+
+    private final Path file;
+    private final int sphereCount, lightCount, keyframeCount;
+    private final int[] checksums = new int[SECTIONS];
+    private final ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+
+    private BinaryScene(Path file, ByteBuffer header, FileChannel channel) throws IOException {
+        this.file = file;
+        sphereCount = header.getInt(COUNTS_OFFSET);
+        lightCount = header.getInt(COUNTS_OFFSET + 4);
+        keyframeCount = header.getInt(COUNTS_OFFSET + 8);
+        if (sphereCount < 0 || sphereCount > MAX_COUNT || lightCount < 0 || lightCount > MAX_COUNT
+                || keyframeCount < 0 || keyframeCount > MAX_COUNT) {
+            throw new IOException(file + ": invalid element counts");
+        }
+        long expectedSize = sectionOffset(SECTIONS, sphereCount, lightCount, keyframeCount);
+        if (channel.size() != expectedSize) {
+            throw new IOException(file + ": " + channel.size() + " bytes, the header needs " + expectedSize);
+        }
+
+        for (int s = 0; s < SECTIONS; s++) {
+            checksums[s] = header.getInt(CHECKSUMS_OFFSET + s * 4);
+            long offset = sectionOffset(s, sphereCount, lightCount, keyframeCount);
+            long length = sectionOffset(s + 1, sphereCount, lightCount, keyframeCount) - offset;
+            sections[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Maps a scene file and checks its header and section checksums
+     */
+    public static BinaryScene open(Path file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * Maps a scene file and checks its header. Skipping the section checksums leaves the file
+     * unread until the sections are used.
+     *
+     * @throws IOException if the file is not a binary scene of this version or is damaged
+     */
+    public static BinaryScene open(Path file, boolean verifyChecksums) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            if (header == null || header.getInt(0) != MAGIC) {
+                throw new IOException(file + ": not a binary scene");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException(file + ": unsupported binary scene version " + header.getInt(4));
+            }
+            if (header.getInt(HEADER_CHECKSUM_OFFSET) != checksum(header.duplicate().limit(HEADER_CHECKSUM_OFFSET))) {
+                throw new IOException(file + ": header checksum mismatch");
+            }
+
+            //Mappings stay valid after the channel is closed
+            BinaryScene scene = new BinaryScene(file, header, channel);
+            if (verifyChecksums) {
+                scene.verifyChecksums();
+            }
+            return scene;
+        }
+    }
+
+    /**
+     * Whether the file starts like a binary scene, so it can be told apart from a text one
+     */
+    public static boolean isBinaryScene(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel);
+            return header != null && header.getInt(0) == MAGIC;
+        }
+    }
+
+    //The header, or null if the file is too short to have one
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                return null;
+            }
+        }
+        return header.flip();
+    }
+
+    /**
+     * @throws IOException naming the first section whose contents do not match its checksum
+     */
+    public void verifyChecksums() throws IOException {
+        for (int s = 0; s < SECTIONS; s++) {
+            if (checksum(sections[s].duplicate()) != checksums[s]) {
+                throw new IOException(file + ": checksum mismatch in section " + s);
+            }
+        }
+    }
+
+    //Start of a section, or the end of the file for SECTIONS
+    static long sectionOffset(int section, int spheres, int lights, int keyframes) {
+        long[] lengths = {
+                (long) spheres * OffHeapStore.ELEMENT_SIZE, (long) spheres * OffHeapStore.ELEMENT_SIZE,
+                (long) lights * OffHeapStore.ELEMENT_SIZE, (long) lights * OffHeapStore.ELEMENT_SIZE,
+                (long) keyframes * KEYFRAME_SIZE};
+        long offset = HEADER_SIZE;
+        for (int s = 0; s < section; s++) {
+            offset += lengths[s];
+        }
+        return offset;
+    }
+
+    static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends the spheres and lights to the scene's stores, a bulk copy per column, and adds the
+     * camera keyframes to the path
+     */
+    public void readInto(Scene scene, CameraPath cameraPath) {
+        scene.sphereStore.appendElements(new ByteBuffer[]{sections[SPHERE_POSITION_RADIUS], sections[SPHERE_MATERIAL]}, sphereCount);
+        scene.lightStore.appendElements(new ByteBuffer[]{sections[LIGHT_POSITION_BRIGHTNESS], sections[LIGHT_COLOUR]}, lightCount);
+
+        ByteBuffer keyframes = sections[KEYFRAMES];
+        for (int i = 0; i < keyframeCount; i++) {
+            int at = i * KEYFRAME_SIZE;
+            Vector3f position = new Vector3f(keyframes.getFloat(at + 4), keyframes.getFloat(at + 8), keyframes.getFloat(at + 12));
+            Vector3f target = new Vector3f(keyframes.getFloat(at + 16), keyframes.getFloat(at + 20), keyframes.getFloat(at + 24));
+            cameraPath.addKeyframe(keyframes.getInt(at), position, target);
+        }
+    }
+
+    /**
+     * Read-only little-endian view of a sphere column, laid out like {@link SphereStore}'s column
+     * of the same index, e.g. {@link SphereStore#POSITION_RADIUS}
+     */
+    public ByteBuffer sphereColumn(int column) {
+        return view(SPHERE_POSITION_RADIUS + Objects.checkIndex(column, 2));
+    }
+
+    /**
+     * Read-only little-endian view of a light column, laid out like {@link LightStore}'s column
+     * of the same index
+     */
+    public ByteBuffer lightColumn(int column) {
+        return view(LIGHT_POSITION_BRIGHTNESS + Objects.checkIndex(column, 2));
+    }
+
+    private ByteBuffer view(int section) {
+        return sections[section].asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getSphereCount() {
+        return sphereCount;
+    }
+
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    public int getKeyframeCount() {
+        return keyframeCount;
+    }
+
+    /**
+     * Size of the file in bytes
+     */
+    public long getSize() {
+        return sectionOffset(SECTIONS, sphereCount, lightCount, keyframeCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d spheres, %d lights, %d camera keyframes, %.1f MB",
+                file, sphereCount, lightCount, keyframeCount, getSize() / 1e6);
+    }
+}
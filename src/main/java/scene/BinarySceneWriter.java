@@ -0,0 +1,178 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a {@link BinaryScene} file element by element, holding only a small buffer per column,
+ * so scenes far larger than memory can be written. The sphere and light counts are declared up
+ * front because they fix where every column starts. The header goes in last, so a file that was
+ * not closed properly is never mistaken for a valid one.
+ */
+public class BinarySceneWriter implements SceneSink, Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    //Column of the file buffered in memory and written at its own position
+    private final class Section {
+        final ByteBuffer buffer;
+        final CRC32 crc = new CRC32();
+        long position;
+
+        Section(long start, int bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+            position = start;
+        }
+
+        void put(float a, float b, float c, float d) throws IOException {
+            if (buffer.remaining() < OffHeapStore.ELEMENT_SIZE) {
+                flush();
+            }
+            buffer.putFloat(a).putFloat(b).putFloat(c).putFloat(d);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int sphereCount, lightCount;
+    private final Section[] columns = new Section[BinaryScene.KEYFRAMES];
+    //Keyframes are few and their count is not declared, they are written after the lights on close
+    private ByteBuffer keyframes = ByteBuffer.allocate(BinaryScene.KEYFRAME_SIZE * 16).order(ByteOrder.LITTLE_ENDIAN);
+    private int spheresWritten, lightsWritten, keyframesWritten;
+    private boolean closed;
+
+    public BinarySceneWriter(Path file, int sphereCount, int lightCount) throws IOException {
+        if (sphereCount < 0 || sphereCount > BinaryScene.MAX_COUNT || lightCount < 0 || lightCount > BinaryScene.MAX_COUNT) {
+            throw new IllegalArgumentException("Invalid element counts: " + sphereCount + " spheres, " + lightCount + " lights");
+        }
+        this.file = file;
+        this.sphereCount = sphereCount;
+        this.lightCount = lightCount;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        for (int s = 0; s < columns.length; s++) {
+            long start = BinaryScene.sectionOffset(s, sphereCount, lightCount, 0);
+            long length = BinaryScene.sectionOffset(s + 1, sphereCount, lightCount, 0) - start;
+            columns[s] = new Section(start, (int) Math.min(BUFFER_SIZE, Math.max(length, OffHeapStore.ELEMENT_SIZE)));
+        }
+    }
+
+    @Override
+    public void sphere(float x, float y, float z, float radius, float albedoR, float albedoG, float albedoB, float specularN) throws IOException {
+        if (spheresWritten == sphereCount) {
+            throw new IOException("More spheres than the " + sphereCount + " declared");
+        }
+        columns[BinaryScene.SPHERE_POSITION_RADIUS].put(x, y, z, radius);
+        columns[BinaryScene.SPHERE_MATERIAL].put(albedoR, albedoG, albedoB, specularN);
+        spheresWritten++;
+    }
+
+    @Override
+    public void light(float x, float y, float z, float r, float g, float b, float brightness) throws IOException {
+        if (lightsWritten == lightCount) {
+            throw new IOException("More lights than the " + lightCount + " declared");
+        }
+        columns[BinaryScene.LIGHT_POSITION_BRIGHTNESS].put(x, y, z, brightness);
+        columns[BinaryScene.LIGHT_COLOUR].put(r, g, b, 0.0f);
+        lightsWritten++;
+    }
+
+    @Override
+    public void cameraKeyframe(int frame, Vector3f position, Vector3f target) {
+        if (keyframes.remaining() < BinaryScene.KEYFRAME_SIZE) {
+            ByteBuffer grown = ByteBuffer.allocate(keyframes.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            keyframes = grown.put(keyframes.flip());
+        }
+        keyframes.putInt(frame)
+                .putFloat(position.x).putFloat(position.y).putFloat(position.z)
+                .putFloat(target.x).putFloat(target.y).putFloat(target.z)
+                .putFloat(0.0f);
+        keyframesWritten++;
+    }
+
+    /**
+     * Writes the remaining data and the header
+     *
+     * @throws IOException if fewer elements were written than declared, the file is then left invalid
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (spheresWritten != sphereCount || lightsWritten != lightCount) {
+                throw new IOException(file + ": declared " + sphereCount + " spheres and " + lightCount
+                        + " lights, got " + spheresWritten + " and " + lightsWritten);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(BinaryScene.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BinaryScene.MAGIC).putInt(BinaryScene.VERSION)
+                    .putInt(sphereCount).putInt(lightCount).putInt(keyframesWritten);
+            header.position(BinaryScene.CHECKSUMS_OFFSET);
+            for (Section column : columns) {
+                column.flush();
+                header.putInt((int) column.crc.getValue());
+            }
+            keyframes.flip();
+            header.putInt(BinaryScene.checksum(keyframes.duplicate()));
+            write(keyframes, BinaryScene.sectionOffset(BinaryScene.KEYFRAMES, sphereCount, lightCount, 0));
+
+            header.position(0).limit(BinaryScene.HEADER_CHECKSUM_OFFSET);
+            int headerChecksum = BinaryScene.checksum(header.duplicate());
+            header.limit(BinaryScene.HEADER_SIZE).putInt(BinaryScene.HEADER_CHECKSUM_OFFSET, headerChecksum);
+            write(header, 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void write(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    /**
+     * Converts a text scene, see {@link TextSceneReader}, to a binary one, reading it twice: once
+     * to count the elements and once to write them
+     */
+    public static void convert(Path textFile, Path binaryFile) throws IOException {
+        int[] counts = new int[2];
+        TextSceneReader.read(textFile, new SceneSink() {
+            @Override
+            public void sphere(float x, float y, float z, float radius, float albedoR, float albedoG, float albedoB, float specularN) {
+                counts[0]++;
+            }
+
+            @Override
+            public void light(float x, float y, float z, float r, float g, float b, float brightness) {
+                counts[1]++;
+            }
+
+            @Override
+            public void cameraKeyframe(int frame, Vector3f position, Vector3f target) {
+            }
+        });
+
+        try (BinarySceneWriter writer = new BinarySceneWriter(binaryFile, counts[0], counts[1])) {
+            TextSceneReader.read(textFile, writer);
+        }
+    }
+}
@@ -8,6 +8,15 @@ public class Camera {
     private final Vector3f direction = new Vector3f(0.0f, 0.5f, 0.0f);
     private final Vector3f upDirection = new Vector3f(0.0f, 1.0f, 0.0f);
 
+    /**
+     * Copies the position, target and up direction of another camera
+     */
+    public void set(Camera other) {
+        position.set(other.position);
+        direction.set(other.direction);
+        upDirection.set(other.upDirection);
+    }
+
     //Getters
 
     public Vector3f getPosition() {
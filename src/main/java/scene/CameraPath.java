@@ -0,0 +1,74 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Camera animation given by keyframes of position and look-at target, linearly interpolated between
+ * keyframes and held before the first and after the last one.
+ */
+public class CameraPath {
+    private final List<Keyframe> keyframes = new ArrayList<>();
+
+    private static final class Keyframe {
+        final int frame;
+        final Vector3f position;
+        final Vector3f target;
+
+        Keyframe(int frame, Vector3f position, Vector3f target) {
+            this.frame = frame;
+            this.position = position;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Adds a keyframe, replacing any keyframe already at the same frame
+     *
+     * @param target the point the camera looks at, see {@link Camera#getDirection()}
+     */
+    public void addKeyframe(int frame, Vector3f position, Vector3f target) {
+        int index = 0;
+        while (index < keyframes.size() && keyframes.get(index).frame < frame) {
+            index++;
+        }
+        Keyframe keyframe = new Keyframe(frame, new Vector3f(position), new Vector3f(target));
+        if (index < keyframes.size() && keyframes.get(index).frame == frame) {
+            keyframes.set(index, keyframe);
+        } else {
+            keyframes.add(index, keyframe);
+        }
+    }
+
+    public boolean isEmpty() {
+        return keyframes.isEmpty();
+    }
+
+    /**
+     * Moves the camera to where the path has it at the given frame, does nothing if the path is empty
+     */
+    public void apply(int frame, Camera camera) {
+        if (keyframes.isEmpty()) {
+            return;
+        }
+
+        Keyframe before = keyframes.get(0);
+        Keyframe after = before;
+        for (Keyframe keyframe : keyframes) {
+            if (keyframe.frame <= frame) {
+                before = keyframe;
+                after = keyframe;
+            } else {
+                after = keyframe;
+                break;
+            }
+        }
+
+        float t = after.frame == before.frame ? 0 : (float) (frame - before.frame) / (after.frame - before.frame);
+        t = Math.max(0, Math.min(1, t));
+        before.position.lerp(after.position, t, camera.getPosition());
+        before.target.lerp(after.target, t, camera.getDirection());
+    }
+}
@@ -0,0 +1,95 @@
+package scene;
+
+/**
+ * Bounded log of the slot ranges of a store that changed, so a consumer that copied the store at
+ * some version can copy just what changed since.
+ *
+ * A change next to or overlapping one of the last few recorded ranges of the same column extends
+ * that range instead of adding one, so writing a run of consecutive slots costs an entry per
+ * column even when the columns are written in turn. Once the log is full the oldest entries are
+ * dropped, and consumers older than them have to copy everything.
+ */
+public class ChangeJournal {
+    //Recent entries searched for a range to extend
+    private static final int MERGE_WINDOW = 4;
+
+    /**
+     * Receives the slots [firstSlot, endSlot) of a column
+     */
+    public interface RangeVisitor {
+        void changed(int column, int firstSlot, int endSlot);
+    }
+
+    private final long[] versions;
+    private final int[] columns;
+    private final int[] firstSlots;
+    private final int[] endSlots;
+    private int oldest;
+    private int count;
+
+    //Consumers at a version before this one missed dropped entries
+    private long horizon;
+
+    public ChangeJournal(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        versions = new long[capacity];
+        columns = new int[capacity];
+        firstSlots = new int[capacity];
+        endSlots = new int[capacity];
+    }
+
+    /**
+     * Records that the slots [firstSlot, endSlot) of a column changed, making the store the given version
+     */
+    public void record(long version, int column, int firstSlot, int endSlot) {
+        for (int i = 1; i <= Math.min(count, MERGE_WINDOW); i++) {
+            int recent = (oldest + count - i) % versions.length;
+            if (columns[recent] == column && firstSlot <= endSlots[recent] && endSlot >= firstSlots[recent]) {
+                firstSlots[recent] = Math.min(firstSlots[recent], firstSlot);
+                endSlots[recent] = Math.max(endSlots[recent], endSlot);
+                versions[recent] = version;
+                return;
+            }
+        }
+
+        if (count == versions.length) {
+            //Extended entries are not in version order, so keep the newest version dropped
+            horizon = Math.max(horizon, versions[oldest]);
+            oldest = (oldest + 1) % versions.length;
+            count--;
+        }
+        int entry = (oldest + count) % versions.length;
+        versions[entry] = version;
+        columns[entry] = column;
+        firstSlots[entry] = firstSlot;
+        endSlots[entry] = endSlot;
+        count++;
+    }
+
+    /**
+     * Visits every range changed after the given version, possibly more
+     *
+     * @return false, without visiting anything, if entries that old were already dropped
+     */
+    public boolean changesSince(long version, RangeVisitor visitor) {
+        if (version < horizon) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = (oldest + i) % versions.length;
+            if (versions[entry] > version) {
+                visitor.changed(columns[entry], firstSlots[entry], endSlots[entry]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of ranges held, at most the capacity
+     */
+    public int size() {
+        return count;
+    }
+}
@@ -7,7 +7,9 @@ public class Light {
     private Vector3f colour;
     private float brightness;
 
-
+    //Set while the light is part of a scene, changes are written through to the store
+    private LightStore store;
+    private int handle = -1;
 
     public Light(Vector3f position, Vector3f colour, float brightness) {
         this.position = position;
@@ -25,10 +27,16 @@ public class Light {
 
     public void setBrightness(float brightness) {
         this.brightness = brightness;
+        if (store != null) {
+            store.setBrightness(handle, brightness);
+        }
     }
 
     public void setPosition(Vector3f position) {
         this.position = position;
+        if (store != null) {
+            store.setPosition(handle, position.x, position.y, position.z);
+        }
     }
 
     public Vector3f getColour() {
@@ -37,5 +45,29 @@ public class Light {
 
     public void setColour(Vector3f colour) {
         this.colour = colour;
+        if (store != null) {
+            store.setColour(handle, colour.x, colour.y, colour.z);
+        }
+    }
+
+    /**
+     * Handle of this light in the scene's {@link LightStore}, -1 if it is not in a scene
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    void attach(LightStore store) {
+        if (this.store != null) {
+            throw new IllegalStateException("Light is already part of a scene");
+        }
+        this.handle = store.add(position.x, position.y, position.z, colour.x, colour.y, colour.z, brightness);
+        this.store = store;
+    }
+
+    void detach() {
+        store.remove(handle);
+        store = null;
+        handle = -1;
     }
 }
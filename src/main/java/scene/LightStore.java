@@ -0,0 +1,83 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Off-heap storage for point lights, two vec4 columns indexed by slot:
+ * <pre>
+ * positionBrightness: x, y, z, brightness
+ * colour:             r, g, b, unused
+ * </pre>
+ * matching the LightPositionBuffer and LightColourBuffer blocks in compute.glsl.
+ */
+public class LightStore extends OffHeapStore {
+    public static final int POSITION_BRIGHTNESS = 0;
+    public static final int COLOUR = 1;
+
+    public LightStore() {
+        super(2);
+    }
+
+    /**
+     * @return the handle of the new light
+     */
+    public int add(float x, float y, float z, float r, float g, float b, float brightness) {
+        int handle = allocateElement();
+        setPosition(handle, x, y, z);
+        setColour(handle, r, g, b);
+        setBrightness(handle, brightness);
+        return handle;
+    }
+
+    public void setPosition(int handle, float x, float y, float z) {
+        put(POSITION_BRIGHTNESS, handle, 0, x);
+        put(POSITION_BRIGHTNESS, handle, 1, y);
+        put(POSITION_BRIGHTNESS, handle, 2, z);
+    }
+
+    public void setBrightness(int handle, float brightness) {
+        put(POSITION_BRIGHTNESS, handle, 3, brightness);
+    }
+
+    public void setColour(int handle, float r, float g, float b) {
+        put(COLOUR, handle, 0, r);
+        put(COLOUR, handle, 1, g);
+        put(COLOUR, handle, 2, b);
+        put(COLOUR, handle, 3, 0.0f);
+    }
+
+    public float getBrightness(int handle) {
+        return get(POSITION_BRIGHTNESS, handle, 3);
+    }
+
+    /**
+     * Live position and brightness column for uploading, a new view on every call
+     */
+    public ByteBuffer getPositionBrightnessBuffer() {
+        return byteColumn(POSITION_BRIGHTNESS);
+    }
+
+    /**
+     * Live colour column for uploading, a new view on every call
+     */
+    public ByteBuffer getColourBuffer() {
+        return byteColumn(COLOUR);
+    }
+
+    /**
+     * Position and brightness of the light in slot s at s * 4 to s * 4 + 3.
+     * The view is replaced when the store grows, so fetch it again after adding lights.
+     */
+    public FloatBuffer positionBrightness() {
+        return floatColumn(POSITION_BRIGHTNESS);
+    }
+
+    /**
+     * Colour of the light in slot s at s * 4 to s * 4 + 2.
+     * The view is replaced when the store grows, so fetch it again after adding lights.
+     */
+    public FloatBuffer colours() {
+        return floatColumn(COLOUR);
+    }
+}
@@ -0,0 +1,259 @@
+package scene;
+
+import org.joml.Vector3f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIColor4D;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMaterial;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.lwjgl.assimp.Assimp.*;
+
+/**
+ * Imports the triangles of a model file into a {@link MeshStore} through Assimp, which reads the
+ * file natively, so it never passes through the Java heap. Every Assimp mesh becomes a mesh of the
+ * store with its material's diffuse colour and shininess. Node transforms are baked into the
+ * vertices, points and lines are dropped.
+ *
+ * Assimp joins vertices that are identical in every attribute. Only positions matter to the tracer,
+ * so the meshes are deduplicated again by position, one mesh per task on a {@link ForkJoinPool}.
+ */
+public class MeshImporter {
+    private static final int FLAGS = aiProcess_Triangulate | aiProcess_JoinIdenticalVertices
+            | aiProcess_PreTransformVertices | aiProcess_SortByPType;
+
+    private final ForkJoinPool pool;
+
+    public MeshImporter() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public MeshImporter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * What one import added to the store
+     */
+    public static class Stats {
+        public final int meshes, triangles, vertices, verticesBeforeDedup;
+        public final long bytesUsed;
+        public final double importMillis, convertMillis;
+
+        Stats(int meshes, int triangles, int vertices, int verticesBeforeDedup, long bytesUsed, double importMillis, double convertMillis) {
+            this.meshes = meshes;
+            this.triangles = triangles;
+            this.vertices = vertices;
+            this.verticesBeforeDedup = verticesBeforeDedup;
+            this.bytesUsed = bytesUsed;
+            this.importMillis = importMillis;
+            this.convertMillis = convertMillis;
+        }
+
+        public double getBytesPerTriangle() {
+            return triangles == 0 ? 0.0 : (double) bytesUsed / triangles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d meshes, %d triangles, %d vertices (%d before dedup), %.1f MB, %.1f bytes per triangle, assimp %.1f ms, convert %.1f ms",
+                    meshes, triangles, vertices, verticesBeforeDedup, bytesUsed / 1e6, getBytesPerTriangle(), importMillis, convertMillis);
+        }
+    }
+
+    //Deduplicated triangles of one Assimp mesh
+    private static final class Converted {
+        float[] positions;
+        int[] indices;
+        int verticesBeforeDedup;
+        Material material;
+    }
+
+    /**
+     * Adds the meshes of a model file to the store
+     *
+     * @throws IOException if Assimp cannot read the file
+     */
+    public Stats importInto(Path file, MeshStore store) throws IOException {
+        long start = System.nanoTime();
+        AIScene scene = aiImportFile(file.toString(), FLAGS);
+        if (scene == null) {
+            throw new IOException(file + ": " + aiGetErrorString());
+        }
+        long imported = System.nanoTime();
+        try {
+            Converted[] meshes = convert(scene);
+
+            int meshesAdded = 0, triangles = 0, vertices = 0, verticesBeforeDedup = 0;
+            long bytesBefore = store.getBytesUsed();
+            for (Converted mesh : meshes) {
+                if (mesh == null) {
+                    continue;
+                }
+                store.addMesh(mesh.positions, mesh.indices, mesh.material);
+                meshesAdded++;
+                triangles += mesh.indices.length / 3;
+                vertices += mesh.positions.length / 3;
+                verticesBeforeDedup += mesh.verticesBeforeDedup;
+            }
+            long converted = System.nanoTime();
+            return new Stats(meshesAdded, triangles, vertices, verticesBeforeDedup, store.getBytesUsed() - bytesBefore,
+                    (imported - start) / 1e6, (converted - imported) / 1e6);
+        } finally {
+            aiReleaseImport(scene);
+        }
+    }
+
+    //Converts every mesh on the pool, null for meshes without triangles
+    private Converted[] convert(AIScene scene) throws IOException {
+        int meshCount = scene.mNumMeshes();
+        PointerBuffer meshPointers = scene.mMeshes();
+        PointerBuffer materialPointers = scene.mMaterials();
+        Material[] materials = new Material[scene.mNumMaterials()];
+        for (int m = 0; m < materials.length; m++) {
+            materials[m] = material(AIMaterial.create(materialPointers.get(m)));
+        }
+
+        List<Callable<Converted>> tasks = new ArrayList<>(meshCount);
+        for (int m = 0; m < meshCount; m++) {
+            AIMesh mesh = AIMesh.create(meshPointers.get(m));
+            int materialIndex = mesh.mMaterialIndex();
+            Material material = materialIndex < materials.length ? materials[materialIndex] : Material.DEFAULT_MATERIAL;
+            tasks.add(() -> convert(mesh, material));
+        }
+
+        Converted[] converted = new Converted[meshCount];
+        List<Future<Converted>> results = pool.invokeAll(tasks);
+        try {
+            for (int m = 0; m < meshCount; m++) {
+                converted[m] = results.get(m).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting meshes", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to convert meshes", e.getCause());
+        }
+        return converted;
+    }
+
+    private static Converted convert(AIMesh mesh, Material material) {
+        if ((mesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) {
+            return null;
+        }
+        AIVector3D.Buffer sourceVertices = mesh.mVertices();
+        int sourceCount = mesh.mNumVertices();
+
+        //Maps every Assimp vertex to the first vertex at the same position
+        PositionTable table = new PositionTable(sourceCount);
+        int[] remap = new int[sourceCount];
+        for (int v = 0; v < sourceCount; v++) {
+            AIVector3D vertex = sourceVertices.get(v);
+            remap[v] = table.add(vertex.x(), vertex.y(), vertex.z());
+        }
+
+        AIFace.Buffer faces = mesh.mFaces();
+        int faceCount = mesh.mNumFaces();
+        int[] indices = new int[faceCount * 3];
+        int used = 0;
+        for (int f = 0; f < faceCount; f++) {
+            IntBuffer faceIndices = faces.get(f).mIndices();
+            //Points and lines are sorted into meshes of their own, but a mesh may still mix them in
+            if (faceIndices.remaining() != 3) {
+                continue;
+            }
+            int a = remap[faceIndices.get(0)], b = remap[faceIndices.get(1)], c = remap[faceIndices.get(2)];
+            //Triangles that collapsed to a line or a point can never be hit
+            if (a == b || b == c || a == c) {
+                continue;
+            }
+            indices[used++] = a;
+            indices[used++] = b;
+            indices[used++] = c;
+        }
+        if (used == 0) {
+            return null;
+        }
+
+        Converted converted = new Converted();
+        converted.positions = table.positions();
+        converted.indices = used == indices.length ? indices : Arrays.copyOf(indices, used);
+        converted.verticesBeforeDedup = sourceCount;
+        converted.material = material;
+        return converted;
+    }
+
+    //Diffuse colour and shininess, the default material's values where the file has none
+    private static Material material(AIMaterial source) {
+        Vector3f defaultAlbedo = Material.DEFAULT_MATERIAL.getAlbedo();
+        Vector3f albedo = new Vector3f(defaultAlbedo);
+        float specularN = Material.DEFAULT_MATERIAL.getSpecularN();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            AIColor4D colour = AIColor4D.mallocStack(stack);
+            if (aiGetMaterialColor(source, AI_MATKEY_COLOR_DIFFUSE, aiTextureType_NONE, 0, colour) == aiReturn_SUCCESS) {
+                albedo.set(colour.r(), colour.g(), colour.b());
+            }
+            FloatBuffer shininess = stack.mallocFloat(1);
+            IntBuffer max = stack.ints(1);
+            if (aiGetMaterialFloatArray(source, AI_MATKEY_SHININESS, aiTextureType_NONE, 0, shininess, max) == aiReturn_SUCCESS
+                    && shininess.get(0) > 0.0f) {
+                specularN = shininess.get(0);
+            }
+        }
+        return new Material(albedo, specularN);
+    }
+
+    //Open addressing hash set of positions, compared by their bits, without boxing a key per vertex
+    private static final class PositionTable {
+        private final int[] slots;
+        private final float[] positions;
+        private int size;
+
+        PositionTable(int capacity) {
+            slots = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2];
+            Arrays.fill(slots, -1);
+            positions = new float[capacity * 3];
+        }
+
+        //Index of the position, added if it is new
+        int add(float x, float y, float z) {
+            int xBits = Float.floatToIntBits(x), yBits = Float.floatToIntBits(y), zBits = Float.floatToIntBits(z);
+            int hash = (xBits * 31 + yBits) * 31 + zBits;
+            int mask = slots.length - 1;
+            for (int slot = (hash ^ hash >>> 16) & mask; ; slot = (slot + 1) & mask) {
+                int index = slots[slot];
+                if (index < 0) {
+                    slots[slot] = size;
+                    positions[size * 3] = x;
+                    positions[size * 3 + 1] = y;
+                    positions[size * 3 + 2] = z;
+                    return size++;
+                }
+                if (Float.floatToIntBits(positions[index * 3]) == xBits
+                        && Float.floatToIntBits(positions[index * 3 + 1]) == yBits
+                        && Float.floatToIntBits(positions[index * 3 + 2]) == zBits) {
+                    return index;
+                }
+            }
+        }
+
+        float[] positions() {
+            return size * 3 == positions.length ? positions : Arrays.copyOf(positions, size * 3);
+        }
+    }
+}
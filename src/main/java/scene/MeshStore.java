@@ -0,0 +1,216 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Off-heap storage for indexed triangle meshes, three arrays laid out as compute.glsl reads them:
+ * <pre>
+ * vertices:  x, y, z, unused          one vec4 per vertex
+ * triangles: v0, v1, v2, mesh         one ivec4 per triangle, vertex indices count from the first vertex of the store
+ * materials: albedo r, g, b, specularN one vec4 per mesh
+ * </pre>
+ * Meshes are static geometry: they are only ever added or cleared, so unlike the sphere and light
+ * stores there are no handles or change journal, and a new version means everything changed.
+ */
+public class MeshStore {
+    public static final int VERTEX_SIZE = 16;
+    public static final int TRIANGLE_SIZE = 16;
+    public static final int MATERIAL_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private ByteBuffer vertices = allocate(INITIAL_CAPACITY * VERTEX_SIZE);
+    private ByteBuffer triangles = allocate(INITIAL_CAPACITY * TRIANGLE_SIZE);
+    private ByteBuffer materials = allocate(INITIAL_CAPACITY * MATERIAL_SIZE);
+    private int vertexCount, triangleCount, meshCount;
+    private long version;
+
+    /**
+     * Adds a mesh with a material of its own
+     *
+     * @param positions x, y, z of every vertex
+     * @param indices   three vertex indices per triangle, counting from the mesh's first vertex
+     * @return the index of the mesh
+     */
+    public int addMesh(float[] positions, int[] indices, Material material) {
+        if (positions.length % 3 != 0 || indices.length % 3 != 0) {
+            throw new IllegalArgumentException("Positions and indices must come in threes");
+        }
+        int meshVertices = positions.length / 3;
+        for (int index : indices) {
+            if (index < 0 || index >= meshVertices) {
+                throw new IllegalArgumentException("Vertex index " + index + " of " + meshVertices);
+            }
+        }
+        int meshTriangles = indices.length / 3;
+
+        vertices = ensureCapacity(vertices, vertexCount + meshVertices, VERTEX_SIZE);
+        triangles = ensureCapacity(triangles, triangleCount + meshTriangles, TRIANGLE_SIZE);
+        materials = ensureCapacity(materials, meshCount + 1, MATERIAL_SIZE);
+
+        FloatBuffer vertexFloats = vertices.asFloatBuffer();
+        for (int v = 0; v < meshVertices; v++) {
+            int at = (vertexCount + v) * 4;
+            vertexFloats.put(at, positions[v * 3]);
+            vertexFloats.put(at + 1, positions[v * 3 + 1]);
+            vertexFloats.put(at + 2, positions[v * 3 + 2]);
+            vertexFloats.put(at + 3, 0.0f);
+        }
+        IntBuffer triangleInts = triangles.asIntBuffer();
+        for (int t = 0; t < meshTriangles; t++) {
+            int at = (triangleCount + t) * 4;
+            triangleInts.put(at, vertexCount + indices[t * 3]);
+            triangleInts.put(at + 1, vertexCount + indices[t * 3 + 1]);
+            triangleInts.put(at + 2, vertexCount + indices[t * 3 + 2]);
+            triangleInts.put(at + 3, meshCount);
+        }
+        int m = meshCount * MATERIAL_SIZE;
+        materials.putFloat(m, material.getAlbedo().x);
+        materials.putFloat(m + 4, material.getAlbedo().y);
+        materials.putFloat(m + 8, material.getAlbedo().z);
+        materials.putFloat(m + 12, material.getSpecularN());
+
+        vertexCount += meshVertices;
+        triangleCount += meshTriangles;
+        version++;
+        return meshCount++;
+    }
+
+    public void clear() {
+        if (meshCount > 0) {
+            vertexCount = 0;
+            triangleCount = 0;
+            meshCount = 0;
+            version++;
+        }
+    }
+
+    /**
+     * Makes this store a copy of another one, taking over its version. Copies are only made when
+     * the versions differ, so a chain of copies from one source costs nothing while it is unchanged.
+     */
+    public void copyFrom(MeshStore source) {
+        if (source.version == version && source.meshCount == meshCount) {
+            return;
+        }
+        vertices = copy(source.getVertexBuffer(), vertices, source.vertexCount, VERTEX_SIZE);
+        triangles = copy(source.getTriangleBuffer(), triangles, source.triangleCount, TRIANGLE_SIZE);
+        materials = copy(source.getMaterialBuffer(), materials, source.meshCount, MATERIAL_SIZE);
+        vertexCount = source.vertexCount;
+        triangleCount = source.triangleCount;
+        meshCount = source.meshCount;
+        version = source.version;
+    }
+
+    private static ByteBuffer copy(ByteBuffer source, ByteBuffer target, int count, int elementSize) {
+        target = ensureCapacity(target, count, elementSize);
+        target.clear();
+        target.put(source).clear();
+        return target;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int count, int elementSize) {
+        if ((long) count * elementSize <= buffer.capacity()) {
+            return buffer;
+        }
+        if ((long) count * elementSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Mesh store full: " + count + " elements");
+        }
+        int bytes = (int) Math.min(Integer.MAX_VALUE, Math.max((long) count * elementSize, buffer.capacity() * 2L));
+        ByteBuffer grown = allocate(bytes - bytes % elementSize);
+        ByteBuffer old = buffer.duplicate();
+        old.clear();
+        grown.put(old).clear();
+        return grown;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Increases whenever a mesh is added or the store is cleared
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    public int getMeshCount() {
+        return meshCount;
+    }
+
+    /**
+     * Live vertices for uploading, a new view on every call
+     */
+    public ByteBuffer getVertexBuffer() {
+        return view(vertices, vertexCount * VERTEX_SIZE);
+    }
+
+    /**
+     * Live triangles for uploading, a new view on every call
+     */
+    public ByteBuffer getTriangleBuffer() {
+        return view(triangles, triangleCount * TRIANGLE_SIZE);
+    }
+
+    /**
+     * Live mesh materials for uploading, a new view on every call
+     */
+    public ByteBuffer getMaterialBuffer() {
+        return view(materials, meshCount * MATERIAL_SIZE);
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int bytes) {
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.nativeOrder());
+        view.clear().limit(bytes);
+        return view;
+    }
+
+    /**
+     * Position of vertex v at v * 4 to v * 4 + 2.
+     * The view is replaced when the store grows, so fetch it again after adding meshes.
+     */
+    public FloatBuffer vertices() {
+        return vertices.asFloatBuffer();
+    }
+
+    /**
+     * Vertex indices of triangle t at t * 4 to t * 4 + 2 and its mesh at t * 4 + 3.
+     * The view is replaced when the store grows, so fetch it again after adding meshes.
+     */
+    public IntBuffer triangles() {
+        return triangles.asIntBuffer();
+    }
+
+    /**
+     * Albedo and specularN of mesh m at m * 4 to m * 4 + 3.
+     * The view is replaced when the store grows, so fetch it again after adding meshes.
+     */
+    public FloatBuffer materials() {
+        return materials.asFloatBuffer();
+    }
+
+    /**
+     * Bytes of vertex, triangle and material data in use
+     */
+    public long getBytesUsed() {
+        return (long) vertexCount * VERTEX_SIZE + (long) triangleCount * TRIANGLE_SIZE + (long) meshCount * MATERIAL_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d meshes, %d triangles, %d vertices, %.1f MB, %.1f bytes per triangle",
+                meshCount, triangleCount, vertexCount, getBytesUsed() / 1e6,
+                triangleCount == 0 ? 0.0 : (double) getBytesUsed() / triangleCount);
+    }
+}
@@ -0,0 +1,323 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Dense struct-of-arrays storage in direct buffers. Every column holds one vec4 per element,
+ * so a column can be bound as a std430 vec4 array as is. Elements are addressed by stable int
+ * handles while their slots stay packed in [0, size): removing an element moves the last one
+ * into its slot.
+ *
+ * Every change to the contents bumps a version number, so renderers can tell when the data they
+ * derived from the store is stale, and is recorded in a {@link ChangeJournal} so a copy of the
+ * store can be brought up to date by copying only the slots that changed.
+ */
+public abstract class OffHeapStore {
+    public static final int ELEMENT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int JOURNAL_CAPACITY = 64;
+
+    private final ByteBuffer[] columns;
+    private final FloatBuffer[] floatColumns;
+    private int capacity;
+    private int size;
+
+    private int[] slotOfHandle = new int[INITIAL_CAPACITY];
+    private int[] handleOfSlot = new int[INITIAL_CAPACITY];
+    private int[] freeHandles = new int[INITIAL_CAPACITY];
+    private int freeHandleCount;
+    private int handleCount;
+
+    private long version;
+    private final ChangeJournal journal = new ChangeJournal(JOURNAL_CAPACITY);
+
+    OffHeapStore(int columnCount) {
+        columns = new ByteBuffer[columnCount];
+        floatColumns = new FloatBuffer[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            columns[c] = allocate(INITIAL_CAPACITY);
+            floatColumns[c] = columns[c].asFloatBuffer();
+        }
+        capacity = INITIAL_CAPACITY;
+    }
+
+    /**
+     * Number of live elements, which occupy slots 0 to size - 1
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Slot currently holding the element, slots change when other elements are removed
+     */
+    public int slotOf(int handle) {
+        if (handle < 0 || handle >= handleCount || slotOfHandle[handle] < 0) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+        return slotOfHandle[handle];
+    }
+
+    public int handleAt(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " of " + size);
+        }
+        return handleOfSlot[slot];
+    }
+
+    /**
+     * Increases whenever an element is added, removed or changed, writing an unchanged value does not count
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Visits the column slots changed after the given version, see {@link ChangeJournal#changesSince}.
+     * Ranges may reach past the current size if elements were removed since.
+     *
+     * @return false if the changes go back too far and the whole store has to be copied
+     */
+    public boolean changesSince(long version, ChangeJournal.RangeVisitor visitor) {
+        return journal.changesSince(version, visitor);
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Byte view of the live part of a column for uploading, a new view on every call
+     */
+    public ByteBuffer getColumn(int column) {
+        return byteColumn(column);
+    }
+
+    public boolean contains(int handle) {
+        return handle >= 0 && handle < handleCount && slotOfHandle[handle] >= 0;
+    }
+
+    /**
+     * Removes the element, the handle may be reused by a later add
+     */
+    public void remove(int handle) {
+        int slot = slotOf(handle);
+        int last = --size;
+        if (slot != last) {
+            //Move the last element into the hole
+            for (int c = 0; c < columns.length; c++) {
+                FloatBuffer column = floatColumns[c];
+                for (int i = 0; i < 4; i++) {
+                    column.put(slot * 4 + i, column.get(last * 4 + i));
+                }
+            }
+            int movedHandle = handleOfSlot[last];
+            handleOfSlot[slot] = movedHandle;
+            slotOfHandle[movedHandle] = slot;
+        }
+        slotOfHandle[handle] = -1;
+        version++;
+        if (slot != last) {
+            recordChange(version, slot);
+        }
+
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        }
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+    /**
+     * Makes this store an exact copy of another one of the same kind, handles included. Only slots
+     * whose contents differ are written and journaled, so copying an unchanged store costs a
+     * comparison and leaves the version alone.
+     */
+    public void copyFrom(OffHeapStore source) {
+        if (source.columns.length != columns.length) {
+            throw new IllegalArgumentException("Stores have different columns");
+        }
+        int newSize = source.size;
+        if (newSize > capacity) {
+            grow(Math.max(newSize, capacity * 2));
+        }
+
+        long next = version + 1;
+        boolean changed = newSize != size;
+        for (int c = 0; c < columns.length; c++) {
+            changed |= copyColumn(next, c, source.floatColumns[c], newSize);
+        }
+        //A consumer's copy of slots the store did not use before may hold anything
+        for (int slot = size; slot < newSize; slot++) {
+            recordChange(next, slot);
+        }
+        if (changed) {
+            version = next;
+        }
+
+        size = newSize;
+        handleCount = source.handleCount;
+        freeHandleCount = source.freeHandleCount;
+        slotOfHandle = copyInto(source.slotOfHandle, slotOfHandle);
+        //Kept as long as the capacity, which already fits the new size
+        System.arraycopy(source.handleOfSlot, 0, handleOfSlot, 0, newSize);
+        freeHandles = copyInto(source.freeHandles, freeHandles);
+    }
+
+    //Copies the first slots of a column, journaling runs of changed slots, returns whether any changed
+    private boolean copyColumn(long newVersion, int column, FloatBuffer source, int slots) {
+        FloatBuffer target = floatColumns[column];
+        boolean changed = false;
+        int runStart = -1;
+        for (int slot = 0; slot < slots; slot++) {
+            boolean differs = false;
+            for (int i = slot * 4; i < slot * 4 + 4; i++) {
+                float value = source.get(i);
+                if (Float.floatToRawIntBits(target.get(i)) != Float.floatToRawIntBits(value)) {
+                    target.put(i, value);
+                    differs = true;
+                }
+            }
+            if (differs && runStart < 0) {
+                runStart = slot;
+            } else if (!differs && runStart >= 0) {
+                journal.record(newVersion, column, runStart, slot);
+                runStart = -1;
+            }
+            changed |= differs;
+        }
+        if (runStart >= 0) {
+            journal.record(newVersion, column, runStart, slots);
+        }
+        return changed;
+    }
+
+    //Reuses the target array when it is the same length
+    private static int[] copyInto(int[] source, int[] target) {
+        if (target.length != source.length) {
+            return source.clone();
+        }
+        System.arraycopy(source, 0, target, 0, source.length);
+        return target;
+    }
+
+    public void clear() {
+        for (int slot = size - 1; slot >= 0; slot--) {
+            remove(handleOfSlot[slot]);
+        }
+    }
+
+    //Reserves a slot at the end and returns the handle of the new element
+    int allocateElement() {
+        if (size == capacity) {
+            grow(capacity * 2);
+        }
+
+        int handle = nextHandle();
+        int slot = size++;
+        slotOfHandle[handle] = slot;
+        handleOfSlot[slot] = handle;
+        version++;
+        //The slot may hold whatever an earlier element left there, or nothing at all after growing
+        recordChange(version, slot);
+        return handle;
+    }
+
+    /**
+     * Appends elements whose columns are given as little-endian vec4 arrays in column order,
+     * copying each column in bulk, e.g. straight from a mapped {@link BinaryScene}
+     */
+    void appendElements(ByteBuffer[] data, int count) {
+        if (data.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " columns, got " + data.length);
+        }
+        if (count == 0) {
+            return;
+        }
+        if (size + count > capacity) {
+            grow(Math.max(size + count, capacity * 2));
+        }
+
+        for (int c = 0; c < columns.length; c++) {
+            FloatBuffer source = data[c].duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            source.limit(count * 4);
+            FloatBuffer target = floatColumns[c].duplicate();
+            target.position(size * 4);
+            target.put(source);
+        }
+        for (int slot = size; slot < size + count; slot++) {
+            int handle = nextHandle();
+            slotOfHandle[handle] = slot;
+            handleOfSlot[slot] = handle;
+        }
+        version++;
+        for (int c = 0; c < columns.length; c++) {
+            journal.record(version, c, size, size + count);
+        }
+        size += count;
+    }
+
+    //Reuses a freed handle if there is one
+    private int nextHandle() {
+        if (freeHandleCount > 0) {
+            return freeHandles[--freeHandleCount];
+        }
+        if (handleCount == slotOfHandle.length) {
+            slotOfHandle = Arrays.copyOf(slotOfHandle, slotOfHandle.length * 2);
+        }
+        return handleCount++;
+    }
+
+    void put(int column, int handle, int component, float value) {
+        int slot = slotOf(handle);
+        int index = slot * 4 + component;
+        FloatBuffer floats = floatColumns[column];
+        if (floats.get(index) != value) {
+            floats.put(index, value);
+            version++;
+            journal.record(version, column, slot, slot + 1);
+        }
+    }
+
+    //Records a slot of every column as changed
+    private void recordChange(long changeVersion, int slot) {
+        for (int c = 0; c < columns.length; c++) {
+            journal.record(changeVersion, c, slot, slot + 1);
+        }
+    }
+
+    float get(int column, int handle, int component) {
+        return floatColumns[column].get(slotOf(handle) * 4 + component);
+    }
+
+    //Float view of a whole column, indexed by slot * 4 + component
+    FloatBuffer floatColumn(int column) {
+        return floatColumns[column];
+    }
+
+    //Byte view of the live part of a column, for uploading
+    ByteBuffer byteColumn(int column) {
+        ByteBuffer view = columns[column].duplicate().order(ByteOrder.nativeOrder());
+        view.clear().limit(size * ELEMENT_SIZE);
+        return view;
+    }
+
+    private void grow(int newCapacity) {
+        for (int c = 0; c < columns.length; c++) {
+            ByteBuffer grown = allocate(newCapacity);
+            ByteBuffer old = columns[c].duplicate();
+            old.clear().limit(size * ELEMENT_SIZE);
+            grown.put(old).clear();
+            columns[c] = grown;
+            floatColumns[c] = grown.asFloatBuffer();
+        }
+        handleOfSlot = Arrays.copyOf(handleOfSlot, newCapacity);
+        capacity = newCapacity;
+    }
+
+    private static ByteBuffer allocate(int elements) {
+        return ByteBuffer.allocateDirect(elements * ELEMENT_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
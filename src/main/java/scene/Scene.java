@@ -1,10 +1,63 @@
 package scene;
 
-import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Spheres, lights and triangle meshes live in off-heap stores which renderers read directly.
+ * The object lists are adapters: adding a {@link Sphere} or {@link Light} copies it into its store
+ * and its setters keep the store up to date.
+ *
+ * Nothing changes unless asked to: every mutation goes through a store, which bumps its version
+ * and journals the slots it touched, and the animation only moves when {@link #step} or
+ * {@link #seek} moves the {@link SimulationClock}.
+ */
 public class Scene {
-    public final List<Light> lightsInScene = new ArrayList<>();
-    public final List<Sphere> spheresInScene = new ArrayList<>();
+    public final SphereStore sphereStore = new SphereStore();
+    public final LightStore lightStore = new LightStore();
+    public final MeshStore meshStore = new MeshStore();
+
+    public final List<Light> lightsInScene = new StoreBackedList<Light>(light -> light.attach(lightStore), Light::detach);
+    public final List<Sphere> spheresInScene = new StoreBackedList<Sphere>(sphere -> sphere.attach(sphereStore), Sphere::detach);
     public final Camera camera = new Camera();
+    public final SimulationClock clock = new SimulationClock();
+
+    /**
+     * Advances the clock by a tick, unless it is paused, and animates the scene to it
+     */
+    public void step() {
+        if (clock.advance()) {
+            animate();
+        }
+    }
+
+    /**
+     * Animates the scene to the given tick, e.g. a frame number in batch rendering
+     */
+    public void seek(long tick) {
+        clock.setTick(tick);
+        animate();
+    }
+
+    //Spheres added through spheresInScene bob up and down
+    private void animate() {
+        long tick = clock.getTick();
+        for (int i = 0; i < spheresInScene.size(); i++) {
+            spheresInScene.get(i).animate(tick);
+        }
+    }
+
+    /**
+     * Changes whenever a sphere, light or mesh is added, removed or modified
+     */
+    public long getVersion() {
+        return sphereStore.getVersion() + lightStore.getVersion() + meshStore.getVersion();
+    }
+
+    public boolean isAnimationPaused() {
+        return clock.isPaused();
+    }
+
+    public void setAnimationPaused(boolean animationPaused) {
+        clock.setPaused(animationPaused);
+    }
 }
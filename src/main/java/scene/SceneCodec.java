@@ -0,0 +1,187 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Packs the contents of a scene's stores into one buffer, e.g. to send it to another process, and
+ * unpacks it into another scene. Sphere and light columns are copied as they are, like in a
+ * {@link BinaryScene}. Meshes drop the padding of the store, so a triangle costs 12 bytes of
+ * indices and a vertex 12 bytes of position. Little-endian throughout:
+ * <pre>
+ * header, 24 bytes
+ *    0  magic "RTSM"
+ *    4  sphere count, light count, mesh count, vertex count, triangle count
+ * sphere positionRadius, sphere material, light positionBrightness, light colour   16 bytes per element each
+ * per mesh   albedo r, g, b, specularN, vertex count, triangle count
+ * per mesh   x, y, z of every vertex, then three vertex indices per triangle counting from the mesh's first vertex
+ * </pre>
+ * Only what the renderers read is packed: the scene's object lists, clock and camera stay behind.
+ */
+public final class SceneCodec {
+    static final int MAGIC = 'R' | 'T' << 8 | 'S' << 16 | 'M' << 24;
+    static final int HEADER_SIZE = 24;
+    static final int MESH_HEADER_SIZE = 24;
+
+    private SceneCodec() {
+    }
+
+    /**
+     * Packs the stores of the scene, reusing the given buffer if it is large enough
+     *
+     * @param reuse buffer of an earlier call, or null
+     * @return a buffer holding the packed scene from its position to its limit
+     */
+    public static ByteBuffer encode(Scene scene, ByteBuffer reuse) {
+        SphereStore spheres = scene.sphereStore;
+        LightStore lights = scene.lightStore;
+        MeshStore meshes = scene.meshStore;
+        int[] meshVertices = new int[meshes.getMeshCount()];
+        int[] firstVertex = new int[meshes.getMeshCount()];
+        int vertexCount = meshVertexRanges(meshes, firstVertex, meshVertices);
+
+        long size = HEADER_SIZE + (long) (spheres.size() + lights.size()) * 2 * OffHeapStore.ELEMENT_SIZE
+                + (long) meshes.getMeshCount() * MESH_HEADER_SIZE + vertexCount * 12L + meshes.getTriangleCount() * 12L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Scene too large to pack: " + size + " bytes");
+        }
+        ByteBuffer buffer = reuse != null && reuse.capacity() >= size ? reuse : ByteBuffer.allocateDirect((int) size);
+        buffer.clear().order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(spheres.size()).putInt(lights.size())
+                .putInt(meshes.getMeshCount()).putInt(vertexCount).putInt(meshes.getTriangleCount());
+        putColumn(buffer, spheres.getColumn(SphereStore.POSITION_RADIUS));
+        putColumn(buffer, spheres.getColumn(SphereStore.MATERIAL));
+        putColumn(buffer, lights.getColumn(LightStore.POSITION_BRIGHTNESS));
+        putColumn(buffer, lights.getColumn(LightStore.COLOUR));
+
+        FloatBuffer materials = meshes.materials();
+        IntBuffer triangles = meshes.triangles();
+        FloatBuffer vertices = meshes.vertices();
+        int[] meshTriangles = trianglesPerMesh(meshes);
+        for (int m = 0; m < meshVertices.length; m++) {
+            buffer.putFloat(materials.get(m * 4)).putFloat(materials.get(m * 4 + 1))
+                    .putFloat(materials.get(m * 4 + 2)).putFloat(materials.get(m * 4 + 3))
+                    .putInt(meshVertices[m]).putInt(meshTriangles[m]);
+        }
+        int t = 0;
+        for (int m = 0; m < meshVertices.length; m++) {
+            for (int v = firstVertex[m]; v < firstVertex[m] + meshVertices[m]; v++) {
+                buffer.putFloat(vertices.get(v * 4)).putFloat(vertices.get(v * 4 + 1)).putFloat(vertices.get(v * 4 + 2));
+            }
+            for (int end = t + meshTriangles[m]; t < end; t++) {
+                buffer.putInt(triangles.get(t * 4) - firstVertex[m])
+                        .putInt(triangles.get(t * 4 + 1) - firstVertex[m])
+                        .putInt(triangles.get(t * 4 + 2) - firstVertex[m]);
+            }
+        }
+        return buffer.flip();
+    }
+
+    //Vertices from the lowest to the highest index the triangles of each mesh use, returns their total
+    private static int meshVertexRanges(MeshStore meshes, int[] firstVertex, int[] vertexCount) {
+        IntBuffer triangles = meshes.triangles();
+        int[] last = new int[firstVertex.length];
+        Arrays.fill(firstVertex, Integer.MAX_VALUE);
+        Arrays.fill(last, -1);
+        for (int t = 0; t < meshes.getTriangleCount(); t++) {
+            int mesh = triangles.get(t * 4 + 3);
+            for (int i = 0; i < 3; i++) {
+                int vertex = triangles.get(t * 4 + i);
+                firstVertex[mesh] = Math.min(firstVertex[mesh], vertex);
+                last[mesh] = Math.max(last[mesh], vertex);
+            }
+        }
+        int total = 0;
+        for (int m = 0; m < firstVertex.length; m++) {
+            if (last[m] < 0) {
+                firstVertex[m] = 0;
+            }
+            vertexCount[m] = last[m] + 1 - firstVertex[m];
+            total += vertexCount[m];
+        }
+        return total;
+    }
+
+    //Meshes are added whole, so the triangles of each mesh follow each other in mesh order
+    private static int[] trianglesPerMesh(MeshStore meshes) {
+        IntBuffer triangles = meshes.triangles();
+        int[] counts = new int[meshes.getMeshCount()];
+        for (int t = 0; t < meshes.getTriangleCount(); t++) {
+            counts[triangles.get(t * 4 + 3)]++;
+        }
+        return counts;
+    }
+
+    private static void putColumn(ByteBuffer buffer, ByteBuffer column) {
+        FloatBuffer floats = column.asFloatBuffer();
+        buffer.asFloatBuffer().put(floats);
+        buffer.position(buffer.position() + column.remaining());
+    }
+
+    /**
+     * Replaces the contents of the scene's stores with a packed scene, reading the buffer from its
+     * position to its limit
+     *
+     * @throws IOException if the buffer does not hold a packed scene
+     */
+    public static void decode(ByteBuffer packed, Scene scene) throws IOException {
+        ByteBuffer buffer = packed.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a packed scene");
+        }
+        int sphereCount = buffer.getInt(), lightCount = buffer.getInt(), meshCount = buffer.getInt();
+        int vertexCount = buffer.getInt(), triangleCount = buffer.getInt();
+        long expected = HEADER_SIZE + (long) (sphereCount + lightCount) * 2 * OffHeapStore.ELEMENT_SIZE
+                + (long) meshCount * MESH_HEADER_SIZE + vertexCount * 12L + triangleCount * 12L;
+        if (sphereCount < 0 || lightCount < 0 || meshCount < 0 || vertexCount < 0 || triangleCount < 0
+                || buffer.remaining() + HEADER_SIZE != expected) {
+            throw new IOException("Packed scene of " + (buffer.remaining() + HEADER_SIZE) + " bytes, the header needs " + expected);
+        }
+
+        scene.sphereStore.clear();
+        scene.lightStore.clear();
+        scene.meshStore.clear();
+        scene.sphereStore.appendElements(new ByteBuffer[]{column(buffer, sphereCount), column(buffer, sphereCount)}, sphereCount);
+        scene.lightStore.appendElements(new ByteBuffer[]{column(buffer, lightCount), column(buffer, lightCount)}, lightCount);
+
+        Material[] materials = new Material[meshCount];
+        int[] meshVertices = new int[meshCount], meshTriangles = new int[meshCount];
+        for (int m = 0; m < meshCount; m++) {
+            Vector3f albedo = new Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            materials[m] = new Material(albedo, buffer.getFloat());
+            meshVertices[m] = buffer.getInt();
+            meshTriangles[m] = buffer.getInt();
+        }
+        for (int m = 0; m < meshCount; m++) {
+            if (meshVertices[m] < 0 || meshTriangles[m] < 0 || (long) meshVertices[m] * 12 + meshTriangles[m] * 12L > buffer.remaining()) {
+                throw new IOException("Mesh " + m + " reaches past the end of the packed scene");
+            }
+            float[] positions = new float[meshVertices[m] * 3];
+            buffer.asFloatBuffer().get(positions);
+            buffer.position(buffer.position() + positions.length * 4);
+            int[] indices = new int[meshTriangles[m] * 3];
+            buffer.asIntBuffer().get(indices);
+            buffer.position(buffer.position() + indices.length * 4);
+            try {
+                scene.meshStore.addMesh(positions, indices, materials[m]);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Mesh " + m + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    //The next count elements of a column, advancing past them
+    private static ByteBuffer column(ByteBuffer buffer, int count) {
+        ByteBuffer column = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        column.limit(count * OffHeapStore.ELEMENT_SIZE);
+        buffer.position(buffer.position() + count * OffHeapStore.ELEMENT_SIZE);
+        return column;
+    }
+}
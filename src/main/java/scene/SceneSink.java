@@ -0,0 +1,42 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.io.IOException;
+
+/**
+ * Receives the elements of a scene as a reader produces them, so a scene can go straight into a
+ * {@link Scene} or be written out again without being held in memory.
+ */
+public interface SceneSink {
+    void sphere(float x, float y, float z, float radius, float albedoR, float albedoG, float albedoB, float specularN) throws IOException;
+
+    void light(float x, float y, float z, float r, float g, float b, float brightness) throws IOException;
+
+    /**
+     * @param target the point the camera looks at, see {@link Camera#getDirection()}
+     */
+    void cameraKeyframe(int frame, Vector3f position, Vector3f target) throws IOException;
+
+    /**
+     * Adds spheres and lights to the scene's stores, so they are not animated, and keyframes to the path
+     */
+    static SceneSink of(Scene scene, CameraPath cameraPath) {
+        return new SceneSink() {
+            @Override
+            public void sphere(float x, float y, float z, float radius, float albedoR, float albedoG, float albedoB, float specularN) {
+                scene.sphereStore.add(x, y, z, radius, albedoR, albedoG, albedoB, specularN);
+            }
+
+            @Override
+            public void light(float x, float y, float z, float r, float g, float b, float brightness) {
+                scene.lightStore.add(x, y, z, r, g, b, brightness);
+            }
+
+            @Override
+            public void cameraKeyframe(int frame, Vector3f position, Vector3f target) {
+                cameraPath.addKeyframe(frame, position, target);
+            }
+        };
+    }
+}
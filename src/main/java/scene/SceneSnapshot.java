@@ -0,0 +1,54 @@
+package scene;
+
+/**
+ * Copy of everything a renderer reads from a {@link Scene}: its stores, camera and tick. Copies
+ * between snapshots and scenes go through {@link OffHeapStore#copyFrom}, so only slots that
+ * changed are written and journaled, and a renderer syncing its scene from snapshots still
+ * uploads just the changes. Meshes are only copied when they changed, see {@link MeshStore#copyFrom}.
+ */
+public class SceneSnapshot {
+    private final SphereStore sphereStore = new SphereStore();
+    private final LightStore lightStore = new LightStore();
+    private final MeshStore meshStore = new MeshStore();
+    private final Camera camera = new Camera();
+    private long tick;
+    private long sceneVersion;
+
+    /**
+     * Overwrites the snapshot with the current state of a scene and its camera
+     */
+    public void capture(Scene scene, Camera sceneCamera) {
+        sphereStore.copyFrom(scene.sphereStore);
+        lightStore.copyFrom(scene.lightStore);
+        meshStore.copyFrom(scene.meshStore);
+        camera.set(sceneCamera);
+        tick = scene.clock.getTick();
+        sceneVersion = scene.getVersion();
+    }
+
+    /**
+     * Makes a scene, typically one only a renderer reads, and a camera match the snapshot
+     */
+    public void applyTo(Scene target, Camera targetCamera) {
+        target.sphereStore.copyFrom(sphereStore);
+        target.lightStore.copyFrom(lightStore);
+        target.meshStore.copyFrom(meshStore);
+        targetCamera.set(camera);
+        target.clock.setTick(tick);
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Version of the captured scene, see {@link Scene#getVersion}
+     */
+    public long getSceneVersion() {
+        return sceneVersion;
+    }
+}
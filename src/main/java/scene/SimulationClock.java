@@ -0,0 +1,40 @@
+package scene;
+
+/**
+ * Time of the simulation in whole ticks, advanced explicitly by whoever drives the scene, e.g.
+ * once per frame by the window or set to the frame number by the batch renderer. Animation is a
+ * function of the tick, so a paused clock leaves the scene, and its version, untouched.
+ */
+public class SimulationClock {
+    private long tick;
+    private boolean paused;
+
+    /**
+     * Moves on by one tick unless paused
+     *
+     * @return true if the tick changed
+     */
+    public boolean advance() {
+        if (paused) {
+            return false;
+        }
+        tick++;
+        return true;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public void setTick(long tick) {
+        this.tick = tick;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+}
@@ -0,0 +1,167 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs the simulation of a scene on its own thread at a fixed tick rate, so the render loop never
+ * waits for it and it never waits for a slow frame. After a tick that changed the scene or its
+ * camera a {@link SceneSnapshot} is published through a {@link TripleBuffer}, from which the
+ * renderer copies the latest state into the scene it traces.
+ *
+ * Only the simulation thread touches the scene once started, other threads change it by posting
+ * commands, which run before the next tick.
+ */
+public class SimulationThread implements AutoCloseable {
+    //Ticks the simulation may fall behind before it stops trying to catch up
+    private static final int MAX_TICKS_BEHIND = 5;
+
+    private final Scene scene = new Scene();
+    private final TripleBuffer<SceneSnapshot> snapshots = new TripleBuffer<>(SceneSnapshot::new);
+    private final Queue<Consumer<Scene>> commands = new ConcurrentLinkedQueue<>();
+    private final long tickNanos;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    //Written by the simulation thread only
+    private volatile long ticks, published;
+    private long publishedVersion = -1;
+    private final Camera publishedCamera = new Camera();
+
+    public SimulationThread(int ticksPerSecond) {
+        if (ticksPerSecond <= 0) {
+            throw new IllegalArgumentException("Tick rate must be positive: " + ticksPerSecond);
+        }
+        tickNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+    }
+
+    /**
+     * The simulated scene, only to be used directly before {@link #start}
+     */
+    public Scene getScene() {
+        return scene;
+    }
+
+    /**
+     * Runs a change to the scene on the simulation thread before its next tick, or on the next
+     * {@link #start} if not running yet
+     */
+    public void post(Consumer<Scene> command) {
+        commands.add(command);
+    }
+
+    /**
+     * Publishes the scene as it is and starts ticking it
+     */
+    public void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        publish();
+        running = true;
+        thread = new Thread(this::run, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        long nextTick = System.nanoTime() + tickNanos;
+        while (running) {
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            tick();
+            nextTick += tickNanos;
+            //After a long stall skip the missed ticks rather than running them back to back
+            if (System.nanoTime() - nextTick > MAX_TICKS_BEHIND * tickNanos) {
+                nextTick = System.nanoTime() + tickNanos;
+            }
+        }
+    }
+
+    /**
+     * Runs the posted commands and steps the scene, then publishes it if anything changed. Called
+     * by the simulation thread, or directly when there is none.
+     */
+    public void tick() {
+        Consumer<Scene> command;
+        while ((command = commands.poll()) != null) {
+            command.accept(scene);
+        }
+        scene.step();
+        ticks++;
+
+        if (scene.getVersion() != publishedVersion || !sameCamera(scene.camera, publishedCamera)) {
+            publish();
+        }
+    }
+
+    private void publish() {
+        snapshots.back().capture(scene, scene.camera);
+        snapshots.publish();
+        publishedVersion = scene.getVersion();
+        publishedCamera.set(scene.camera);
+        published++;
+    }
+
+    private static boolean sameCamera(Camera a, Camera b) {
+        return equal(a.getPosition(), b.getPosition())
+                && equal(a.getDirection(), b.getDirection())
+                && equal(a.getUpDirection(), b.getUpDirection());
+    }
+
+    private static boolean equal(Vector3f a, Vector3f b) {
+        return a.x == b.x && a.y == b.y && a.z == b.z;
+    }
+
+    /**
+     * Copies the latest published snapshot into a scene and camera, on the render thread
+     *
+     * @return false, without touching them, if nothing was published since the last call
+     */
+    public boolean applyLatest(Scene target, Camera targetCamera) {
+        if (!snapshots.hasFresh()) {
+            return false;
+        }
+        snapshots.acquire().applyTo(target, targetCamera);
+        return true;
+    }
+
+    /**
+     * Stops ticking and waits for the simulation thread to finish. If the caller is interrupted while
+     * waiting it stops waiting and keeps its interrupt flag set.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    public long getSnapshotsPublished() {
+        return published;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Simulation: %d ticks, %d snapshots published", ticks, published);
+    }
+}
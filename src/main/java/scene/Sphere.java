@@ -5,10 +5,14 @@ import org.joml.Vector3f;
 public class Sphere {
     public final Material material;
 
-    int x = 0;
+    //Phase and period, in ticks, of the bobbing animation
     int offset = (int) (Math.random() * 100);
     int rate = 40;
 
+    //Set while the sphere is part of a scene, changes are written through to the store
+    private SphereStore store;
+    private int handle = -1;
+
     public Sphere(Material material, Vector3f position, float radius) {
         this.material = material;
         this.position = position;
@@ -16,12 +20,20 @@ public class Sphere {
     }
 
     public Vector3f getPosition() {
-        position.y = (float) (2 * Math.sin(((float)x++ / rate) + offset));
         return position;
     }
 
+    /**
+     * Moves the sphere to where the animation has it at the given tick of the scene's clock
+     */
+    void animate(long tick) {
+        position.y = (float) (2 * Math.sin(((float) tick / rate) + offset));
+        writePosition();
+    }
+
     public void setPosition(Vector3f position) {
         this.position = position;
+        writePosition();
     }
 
     public float getRadius() {
@@ -30,6 +42,37 @@ public class Sphere {
 
     public void setRadius(float radius) {
         this.radius = radius;
+        if (store != null) {
+            store.setRadius(handle, radius);
+        }
+    }
+
+    /**
+     * Handle of this sphere in the scene's {@link SphereStore}, -1 if it is not in a scene
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    void attach(SphereStore store) {
+        if (this.store != null) {
+            throw new IllegalStateException("Sphere is already part of a scene");
+        }
+        Vector3f albedo = material.getAlbedo();
+        this.handle = store.add(position.x, position.y, position.z, radius, albedo.x, albedo.y, albedo.z, material.getSpecularN());
+        this.store = store;
+    }
+
+    void detach() {
+        store.remove(handle);
+        store = null;
+        handle = -1;
+    }
+
+    private void writePosition() {
+        if (store != null) {
+            store.setPosition(handle, position.x, position.y, position.z);
+        }
     }
 
     private Vector3f position;
@@ -0,0 +1,99 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Off-heap storage for spheres, two vec4 columns indexed by slot:
+ * <pre>
+ * positionRadius: x, y, z, radius
+ * material:       albedo r, g, b, specularN
+ * </pre>
+ * matching the SpherePositionBuffer and SphereMaterialBuffer blocks in compute.glsl.
+ */
+public class SphereStore extends OffHeapStore {
+    public static final int POSITION_RADIUS = 0;
+    public static final int MATERIAL = 1;
+
+    public SphereStore() {
+        super(2);
+    }
+
+    /**
+     * @return the handle of the new sphere
+     */
+    public int add(float x, float y, float z, float radius, float albedoR, float albedoG, float albedoB, float specularN) {
+        int handle = allocateElement();
+        setPosition(handle, x, y, z);
+        setRadius(handle, radius);
+        setMaterial(handle, albedoR, albedoG, albedoB, specularN);
+        return handle;
+    }
+
+    public void setPosition(int handle, float x, float y, float z) {
+        put(POSITION_RADIUS, handle, 0, x);
+        put(POSITION_RADIUS, handle, 1, y);
+        put(POSITION_RADIUS, handle, 2, z);
+    }
+
+    public void setRadius(int handle, float radius) {
+        put(POSITION_RADIUS, handle, 3, radius);
+    }
+
+    public void setMaterial(int handle, float albedoR, float albedoG, float albedoB, float specularN) {
+        put(MATERIAL, handle, 0, albedoR);
+        put(MATERIAL, handle, 1, albedoG);
+        put(MATERIAL, handle, 2, albedoB);
+        put(MATERIAL, handle, 3, specularN);
+    }
+
+    public float getX(int handle) {
+        return get(POSITION_RADIUS, handle, 0);
+    }
+
+    public float getY(int handle) {
+        return get(POSITION_RADIUS, handle, 1);
+    }
+
+    public float getZ(int handle) {
+        return get(POSITION_RADIUS, handle, 2);
+    }
+
+    public float getRadius(int handle) {
+        return get(POSITION_RADIUS, handle, 3);
+    }
+
+    public float getSpecularN(int handle) {
+        return get(MATERIAL, handle, 3);
+    }
+
+    /**
+     * Live position and radius column for uploading, a new view on every call
+     */
+    public ByteBuffer getPositionRadiusBuffer() {
+        return byteColumn(POSITION_RADIUS);
+    }
+
+    /**
+     * Live material column for uploading, a new view on every call
+     */
+    public ByteBuffer getMaterialBuffer() {
+        return byteColumn(MATERIAL);
+    }
+
+    /**
+     * Position and radius of the sphere in slot s at s * 4 to s * 4 + 3.
+     * The view is replaced when the store grows, so fetch it again after adding spheres.
+     */
+    public FloatBuffer positionRadius() {
+        return floatColumn(POSITION_RADIUS);
+    }
+
+    /**
+     * Albedo and specularN of the sphere in slot s at s * 4 to s * 4 + 3.
+     * The view is replaced when the store grows, so fetch it again after adding spheres.
+     */
+    public FloatBuffer materials() {
+        return floatColumn(MATERIAL);
+    }
+}
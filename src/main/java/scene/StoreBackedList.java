@@ -0,0 +1,52 @@
+package scene;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the object API of {@link Scene} working on top of the off-heap stores.
+ * Adding an element attaches it to the store, removing it detaches it again.
+ */
+class StoreBackedList<E> extends AbstractList<E> {
+    private final List<E> elements = new ArrayList<>();
+    private final Consumer<E> attach;
+    private final Consumer<E> detach;
+
+    StoreBackedList(Consumer<E> attach, Consumer<E> detach) {
+        this.attach = attach;
+        this.detach = detach;
+    }
+
+    @Override
+    public E get(int index) {
+        return elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public void add(int index, E element) {
+        attach.accept(element);
+        elements.add(index, element);
+    }
+
+    @Override
+    public E set(int index, E element) {
+        attach.accept(element);
+        E previous = elements.set(index, element);
+        detach.accept(previous);
+        return previous;
+    }
+
+    @Override
+    public E remove(int index) {
+        E removed = elements.remove(index);
+        detach.accept(removed);
+        return removed;
+    }
+}
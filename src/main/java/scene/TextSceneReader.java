@@ -0,0 +1,111 @@
+package scene;
+
+import org.joml.Vector3f;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads scenes from a line based text format, one element per line:
+ * <pre>
+ * # comment
+ * sphere x y z radius [r g b specularN]
+ * light x y z r g b brightness
+ * camera frame x y z targetX targetY targetZ
+ * </pre>
+ * Spheres without a material get {@link Material#DEFAULT_MATERIAL}. Camera lines are keyframes of a
+ * {@link CameraPath}. Elements go straight into the scene's stores, so they are not animated.
+ * {@link BinarySceneWriter#convert} turns these files into the binary format.
+ */
+public class TextSceneReader {
+    private TextSceneReader() {
+    }
+
+    public static void read(Path file, Scene scene, CameraPath cameraPath) throws IOException {
+        read(file, SceneSink.of(scene, cameraPath));
+    }
+
+    public static void read(Path file, SceneSink sink) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            read(reader, sink);
+        }
+    }
+
+    /**
+     * Adds the spheres and lights to the scene and the camera keyframes to the path
+     *
+     * @throws IOException if reading fails or a line is malformed, naming the line
+     */
+    public static void read(Reader source, Scene scene, CameraPath cameraPath) throws IOException {
+        read(source, SceneSink.of(scene, cameraPath));
+    }
+
+    /**
+     * Passes the elements to the sink in file order
+     *
+     * @throws IOException if reading fails, the sink fails or a line is malformed, naming the line
+     */
+    public static void read(Reader source, SceneSink sink) throws IOException {
+        BufferedReader reader = source instanceof BufferedReader ? (BufferedReader) source : new BufferedReader(source);
+        Vector3f albedo = Material.DEFAULT_MATERIAL.getAlbedo();
+        float specularN = Material.DEFAULT_MATERIAL.getSpecularN();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] tokens = line.split("\\s+");
+            try {
+                switch (tokens[0]) {
+                    case "sphere": {
+                        float[] v = parse(tokens, 4, 8);
+                        if (v.length == 8) {
+                            sink.sphere(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7]);
+                        } else {
+                            sink.sphere(v[0], v[1], v[2], v[3], albedo.x, albedo.y, albedo.z, specularN);
+                        }
+                        break;
+                    }
+                    case "light": {
+                        float[] v = parse(tokens, 7, 7);
+                        sink.light(v[0], v[1], v[2], v[3], v[4], v[5], v[6]);
+                        break;
+                    }
+                    case "camera": {
+                        float[] v = parse(tokens, 7, 7);
+                        int frame = Integer.parseInt(tokens[1]);
+                        sink.cameraKeyframe(frame, new Vector3f(v[1], v[2], v[3]), new Vector3f(v[4], v[5], v[6]));
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("unknown element '" + tokens[0] + "'");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    //Parses the numbers after the element name, of which there must be either count or alternativeCount
+    private static float[] parse(String[] tokens, int count, int alternativeCount) {
+        int numbers = tokens.length - 1;
+        if (numbers != count && numbers != alternativeCount) {
+            String expected = count == alternativeCount ? String.valueOf(count) : count + " or " + alternativeCount;
+            throw new IllegalArgumentException(tokens[0] + " takes " + expected + " numbers, got " + numbers);
+        }
+        float[] values = new float[numbers];
+        for (int i = 0; i < numbers; i++) {
+            values[i] = Float.parseFloat(tokens[i + 1]);
+        }
+        return values;
+    }
+}
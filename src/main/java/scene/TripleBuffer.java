@@ -0,0 +1,66 @@
+package scene;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hands the latest of a stream of values from one producer thread to one consumer thread without
+ * locks or copies. The producer writes into a back buffer and publishes it by swapping it with the
+ * middle one, the consumer swaps the middle one with its front buffer whenever a newer one was
+ * published. Neither ever waits for the other, and neither ever sees a buffer the other is using,
+ * so the consumer cannot read a half written value; values published while the consumer was busy
+ * are skipped.
+ */
+public class TripleBuffer<T> {
+    //The middle index carries a flag telling whether it was published since the consumer last took it
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Object[] buffers = new Object[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    //Owned by the producer
+    private int back = 0;
+    //Owned by the consumer
+    private int front = 2;
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    /**
+     * Buffer the producer may write to, only valid until the next {@link #publish}
+     */
+    @SuppressWarnings("unchecked")
+    public T back() {
+        return (T) buffers[back];
+    }
+
+    /**
+     * Makes the back buffer the latest value and gives the producer another one to write to,
+     * which holds an older value
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Latest published value, or the one returned before if nothing was published since. The value
+     * belongs to the consumer until its next call.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return (T) buffers[front];
+    }
+
+    /**
+     * Whether a value was published since the consumer last acquired one
+     */
+    public boolean hasFresh() {
+        return (middle.get() & FRESH) != 0;
+    }
+}
@@ -0,0 +1,88 @@
+package service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded images by {@link RenderRequest#getKey request key}, holding at most a given number of
+ * bytes. Adding an image evicts the least recently used ones until it fits, an image larger than
+ * the whole cache is not kept. Thread safe.
+ */
+public class RenderCache {
+    private final long capacityBytes;
+    //Access ordered, so iteration starts at the least recently used image
+    private final LinkedHashMap<String, byte[]> images = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits, misses, evictions;
+
+    public RenderCache(long capacityBytes) {
+        if (capacityBytes < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacityBytes);
+        }
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * The image of a key, or null if it is not cached, counting a hit or a miss
+     */
+    public synchronized byte[] get(String key) {
+        byte[] image = images.get(key);
+        if (image != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return image;
+    }
+
+    public synchronized void put(String key, byte[] image) {
+        if (image.length > capacityBytes) {
+            return;
+        }
+        byte[] replaced = images.put(key, image);
+        bytes += image.length - (replaced != null ? replaced.length : 0);
+        for (Iterator<Map.Entry<String, byte[]>> it = images.entrySet().iterator(); bytes > capacityBytes && it.hasNext(); ) {
+            bytes -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Share of lookups that found their image, zero before the first
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d images, %.1f of %.1f MB, %.1f%% hits of %d lookups, %d evicted",
+                images.size(), bytes / 1e6, capacityBytes / 1e6, getHitRate() * 100, hits + misses, evictions);
+    }
+}
@@ -0,0 +1,68 @@
+package service;
+
+import cpu.CpuRaytracer;
+import cpu.FloatImage;
+import render.Accumulation;
+
+import java.io.IOException;
+
+/**
+ * A renderer the service renders requests with, one at a time. Each context is created, used and
+ * closed on a thread of its own, as a GL context must be.
+ */
+public interface RenderContext extends AutoCloseable {
+    /**
+     * Renders the request into a target of the request's size
+     */
+    void render(RenderRequest request, FloatImage target);
+
+    /**
+     * Whether the context accumulates several samples per pixel, otherwise requests take one
+     */
+    default boolean acceptsSamples() {
+        return false;
+    }
+
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Creates a context on the thread that is going to use it
+     */
+    interface Factory {
+        RenderContext create() throws IOException;
+    }
+
+    /**
+     * Contexts tracing on the CPU, sharing the common fork join pool
+     */
+    static Factory cpu() {
+        return () -> {
+            CpuRaytracer raytracer = new CpuRaytracer();
+            return new RenderContext() {
+                @Override
+                public void render(RenderRequest request, FloatImage target) {
+                    raytracer.setParameters(request.getParameters());
+                    Accumulation accumulation = null;
+                    if (request.getSamples() > 1) {
+                        accumulation = new Accumulation();
+                        accumulation.setMaxSamples(request.getSamples());
+                    }
+                    raytracer.setAccumulation(accumulation);
+                    raytracer.render(request.getScene(), request.getCamera(), target);
+                }
+
+                @Override
+                public boolean acceptsSamples() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    raytracer.close();
+                }
+            };
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package service;
+
+import org.joml.Vector3f;
+import render.TraceParameters;
+import scene.Camera;
+import scene.Scene;
+import scene.SceneCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One image to render: a scene seen from a camera at a resolution and quality. The request owns its
+ * scene, which must not change once the request is made.
+ *
+ * Requests are identified by a SHA-256 hash of what the renderers read, the scene packed by
+ * {@link SceneCodec} rather than the text it was read from, so requests for the same image share
+ * a key even if their scene files differ in formatting or comments.
+ */
+public final class RenderRequest {
+    private final Scene scene;
+    private final Camera camera = new Camera();
+    private final int width, height;
+    private final TraceParameters parameters;
+    private final int samples;
+    private final String key;
+
+    /**
+     * @param samples samples per pixel, more than one accumulates them adaptively
+     */
+    public RenderRequest(Scene scene, Camera camera, int width, int height, TraceParameters parameters, int samples) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive: " + width + "x" + height);
+        }
+        if (samples < 1) {
+            throw new IllegalArgumentException("Need at least one sample per pixel: " + samples);
+        }
+        this.scene = scene;
+        this.camera.set(camera);
+        this.width = width;
+        this.height = height;
+        this.parameters = parameters;
+        this.samples = samples;
+        this.key = keyOf();
+    }
+
+    private String keyOf() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every JVM", e);
+        }
+        digest.update(SceneCodec.encode(scene, null));
+
+        ByteBuffer view = ByteBuffer.allocate(9 * 4 + 3 * 4);
+        for (Vector3f vector : new Vector3f[]{camera.getPosition(), camera.getDirection(), camera.getUpDirection()}) {
+            view.putFloat(vector.x).putFloat(vector.y).putFloat(vector.z);
+        }
+        view.putInt(width).putInt(height).putInt(samples);
+        digest.update(view.flip());
+        digest.update(parameters.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    public Scene getScene() {
+        return scene;
+    }
+
+    public Camera getCamera() {
+        return camera;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public TraceParameters getParameters() {
+        return parameters;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Hex SHA-256 of the scene, camera, resolution and quality, equal for requests of the same image
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + ", " + samples + " samples, " + scene.sphereStore.size() + " spheres, "
+                + scene.lightStore.size() + " lights, " + scene.meshStore.getTriangleCount() + " triangles";
+    }
+}
@@ -0,0 +1,229 @@
+package service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import render.Accumulation;
+import render.TraceParameters;
+import scene.Camera;
+import scene.CameraPath;
+import scene.Scene;
+import scene.TextSceneReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP front end of a {@link RenderService}:
+ * <pre>
+ * POST /render?width=640&amp;height=480&amp;frame=0&amp;quality=full|preview&amp;samples=1   body: a text scene, answers a PNG
+ * GET  /stats                                                                   queue depth, cache hit rate, latency percentiles
+ * </pre>
+ * The scene is in the format of {@link TextSceneReader}. Its camera keyframes place the camera at
+ * the requested frame, without any the camera is where the window's starts. A full queue answers
+ * 503 with a Retry-After header, so clients back off.
+ *
+ * Every exchange is handled on a thread of its own that blocks until its image is ready. On a JVM
+ * with virtual threads those are virtual, so waiting requests cost next to nothing, otherwise they
+ * come from a pool of platform threads.
+ */
+public class RenderServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 8080;
+    //Largest scene accepted and image rendered, a request beyond any of them is refused before it is queued
+    private static final int MAX_SCENE_BYTES = 64 << 20;
+    private static final long MAX_PIXELS = 4096L * 4096L;
+    //As many as the window accumulates, so one request cannot hold a context indefinitely
+    private static final int MAX_SAMPLES = Accumulation.DEFAULT_MAX_SAMPLES;
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final HttpServer server;
+    private final RenderService service;
+    private final ExecutorService handlers = newHandlerExecutor();
+
+    public RenderServer(int port, RenderService service) throws IOException {
+        this.service = service;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/render", this::handleRender);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(handlers);
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor where the JVM has it, looked up by reflection to still run on older ones
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = runnable -> {
+                Thread thread = new Thread(runnable, "render-http-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+            return Executors.newCachedThreadPool(factory);
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleRender(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "POST a scene to render\n");
+                return;
+            }
+            RenderRequest request;
+            try {
+                request = parseRequest(exchange);
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+
+            byte[] png;
+            try {
+                png = service.submit(request).get();
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage() + "\n");
+                return;
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 503, e.getMessage() + "\n");
+                return;
+            } catch (ExecutionException e) {
+                sendText(exchange, 500, "Rendering failed: " + e.getCause() + "\n");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 503, "The server is shutting down\n");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.getResponseHeaders().set("ETag", "\"" + request.getKey() + "\"");
+            send(exchange, 200, png);
+        }
+    }
+
+    //Reads the scene from the body and the rest from the query
+    private static RenderRequest parseRequest(HttpExchange exchange) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        int width = intParameter(query, "width", 640);
+        int height = intParameter(query, "height", 480);
+        int frame = intParameter(query, "frame", 0);
+        int samples = intParameter(query, "samples", 1);
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException("Image size must be positive and at most " + MAX_PIXELS + " pixels: " + width + "x" + height);
+        }
+        if (samples < 1 || samples > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Samples must be between 1 and " + MAX_SAMPLES + ": " + samples);
+        }
+        TraceParameters parameters;
+        String quality = query.getOrDefault("quality", "full");
+        if (quality.equals("full")) {
+            parameters = TraceParameters.DEFAULT;
+        } else if (quality.equals("preview")) {
+            parameters = TraceParameters.PREVIEW;
+        } else {
+            throw new IllegalArgumentException("Quality must be full or preview: " + quality);
+        }
+
+        Scene scene = new Scene();
+        CameraPath cameraPath = new CameraPath();
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] text = body.readNBytes(MAX_SCENE_BYTES + 1);
+            if (text.length > MAX_SCENE_BYTES) {
+                throw new IllegalArgumentException("Scenes are limited to " + MAX_SCENE_BYTES + " bytes");
+            }
+            TextSceneReader.read(new InputStreamReader(new ByteArrayInputStream(text), StandardCharsets.UTF_8), scene, cameraPath);
+        } catch (IOException e) {
+            //The reader names the malformed line
+            throw new IllegalArgumentException("Invalid scene: " + e.getMessage());
+        }
+
+        //Same starting point as the window's camera
+        Camera camera = new Camera();
+        camera.getPosition().add(5.0f, 0.0f, 0.0f);
+        cameraPath.apply(frame, camera);
+        return new RenderRequest(scene, camera, width, height, parameters, samples);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            sendText(exchange, 200, service.stats());
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Stops accepting requests, giving the ones being answered a moment to finish. The service is left running.
+     * If the caller is interrupted while waiting it stops waiting and keeps its interrupt flag set.
+     */
+    @Override
+    public void close() {
+        server.stop(STOP_DELAY_SECONDS);
+        handlers.shutdown();
+        try {
+            handlers.awaitTermination(STOP_DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
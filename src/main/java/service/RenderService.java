@@ -0,0 +1,277 @@
+package service;
+
+import batch.ImageEncoder;
+import cpu.FloatImage;
+import render.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders requests to PNGs on a fixed number of {@link RenderContext}s, each on a thread of its own.
+ *
+ * Requests wait in a bounded queue for a free context. When it is full new requests are rejected
+ * straight away rather than queued, so a client learns to back off instead of waiting behind work
+ * the service cannot finish in time. A request for an image that is already queued or rendering
+ * waits for that render instead of adding another, and finished images go into a {@link RenderCache}
+ * which answers repeated requests without rendering.
+ */
+public class RenderService implements AutoCloseable {
+    private final RenderCache cache;
+    private final BlockingQueue<Job> queue;
+    private final int queueCapacity;
+    private final List<Thread> contexts = new ArrayList<>();
+    private final AtomicInteger busyContexts = new AtomicInteger();
+    private volatile boolean acceptsSamples;
+    private volatile boolean closed;
+
+    //Jobs queued or rendering by key, guarded by this together with the cache lookup and insertion
+    private final Map<String, Job> inFlight = new HashMap<>();
+
+    //Time from submission to the image, of every request whether rendered, coalesced or cached, guarded by itself
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long requests, rendered, coalesced, rejected, failed;
+
+    private static final class Job {
+        final RenderRequest request;
+        final CompletableFuture<byte[]> image = new CompletableFuture<>();
+
+        Job(RenderRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Starts the contexts and waits until all of them are created
+     *
+     * @param queueCapacity most requests waiting for a context
+     * @throws IOException if a context could not be created, the others are closed again
+     */
+    public RenderService(RenderContext.Factory factory, int contextCount, int queueCapacity, RenderCache cache)
+            throws IOException, InterruptedException {
+        if (contextCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Need at least one context and one queue slot: " + contextCount + ", " + queueCapacity);
+        }
+        this.cache = cache;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+
+        CountDownLatch started = new CountDownLatch(contextCount);
+        IOException[] failure = new IOException[1];
+        for (int i = 0; i < contextCount; i++) {
+            Thread thread = new Thread(() -> runContext(factory, started, failure), "render-context-" + i);
+            contexts.add(thread);
+            thread.start();
+        }
+        started.await();
+        if (failure[0] != null) {
+            close();
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Asks for the PNG of a request, from the cache, a render of the same image already under way or a new one
+     *
+     * @throws RejectedExecutionException if the queue is full or the service closed
+     * @throws IllegalArgumentException   if the request takes more samples than the contexts can
+     */
+    public CompletableFuture<byte[]> submit(RenderRequest request) {
+        if (request.getSamples() > 1 && !acceptsSamples) {
+            throw new IllegalArgumentException("This renderer takes one sample per pixel");
+        }
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> image;
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("The render service is closed");
+            }
+            requests++;
+            byte[] cached = cache.get(request.getKey());
+            if (cached != null) {
+                image = CompletableFuture.completedFuture(cached);
+            } else {
+                Job job = inFlight.get(request.getKey());
+                if (job != null) {
+                    coalesced++;
+                } else {
+                    job = new Job(request);
+                    if (!queue.offer(job)) {
+                        rejected++;
+                        throw new RejectedExecutionException("The render queue is full, " + queueCapacity + " requests are waiting");
+                    }
+                    inFlight.put(request.getKey(), job);
+                }
+                image = job.image;
+            }
+        }
+        return image.whenComplete((png, error) -> {
+            if (error == null) {
+                synchronized (latencies) {
+                    latencies.record(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    private void runContext(RenderContext.Factory factory, CountDownLatch started, IOException[] failure) {
+        RenderContext context;
+        try {
+            context = factory.create();
+        } catch (Throwable e) {
+            //Count down even on an error, or the constructor would wait for this context forever
+            synchronized (failure) {
+                if (failure[0] == null) {
+                    failure[0] = e instanceof IOException ? (IOException) e : new IOException("Could not create a render context", e);
+                }
+            }
+            started.countDown();
+            return;
+        }
+        acceptsSamples = context.acceptsSamples();
+        started.countDown();
+
+        try (context) {
+            FloatImage target = new FloatImage(1, 1);
+            while (!closed) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                busyContexts.incrementAndGet();
+                try {
+                    RenderRequest request = job.request;
+                    target.resize(request.getWidth(), request.getHeight());
+                    context.render(request, target);
+                    finish(job, ImageEncoder.encodePng(target), null);
+                } catch (Throwable e) {
+                    //Even an error such as running out of memory on a huge image fails only this job,
+                    //which must not stay in flight for every identical request to wait on
+                    finish(job, null, e);
+                } finally {
+                    busyContexts.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    //Publishes a job's image to the cache before it stops being in flight, so requests always find one or the other
+    private void finish(Job job, byte[] png, Throwable error) {
+        synchronized (this) {
+            if (png != null) {
+                cache.put(job.request.getKey(), png);
+                rendered++;
+            } else {
+                failed++;
+            }
+            inFlight.remove(job.request.getKey());
+        }
+        if (png != null) {
+            job.image.complete(png);
+        } else {
+            job.image.completeExceptionally(error);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getContextCount() {
+        return contexts.size();
+    }
+
+    public int getBusyContexts() {
+        return busyContexts.get();
+    }
+
+    public RenderCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Milliseconds within which the given percentage of the requests got their image
+     */
+    public double getLatencyMillis(double percentile) {
+        synchronized (latencies) {
+            return latencies.getValueAtPercentile(percentile) / 1e6;
+        }
+    }
+
+    /**
+     * Counters and percentiles for the stats endpoint, one "name value" pair per line
+     */
+    public String stats() {
+        StringBuilder stats = new StringBuilder();
+        synchronized (this) {
+            stats.append("requests ").append(requests).append('\n');
+            stats.append("rendered ").append(rendered).append('\n');
+            stats.append("coalesced ").append(coalesced).append('\n');
+            stats.append("rejected ").append(rejected).append('\n');
+            stats.append("failed ").append(failed).append('\n');
+        }
+        stats.append("queue_depth ").append(getQueueDepth()).append('\n');
+        stats.append("queue_capacity ").append(queueCapacity).append('\n');
+        stats.append("contexts_busy ").append(getBusyContexts()).append('\n');
+        stats.append("contexts ").append(getContextCount()).append('\n');
+        stats.append("cache_images ").append(cache.size()).append('\n');
+        stats.append("cache_bytes ").append(cache.getBytes()).append('\n');
+        stats.append("cache_capacity_bytes ").append(cache.getCapacityBytes()).append('\n');
+        stats.append("cache_evictions ").append(cache.getEvictions()).append('\n');
+        stats.append(String.format("cache_hit_rate %.4f%n", cache.getHitRate()));
+        for (double percentile : new double[]{50, 90, 99}) {
+            stats.append(String.format("latency_p%d_ms %.3f%n", (int) percentile, getLatencyMillis(percentile)));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Stops the contexts after the requests they are rendering, failing the ones still queued. If the
+     * caller is interrupted while waiting for them it stops waiting and keeps its interrupt flag set.
+     */
+    @Override
+    public void close() {
+        List<Job> abandoned = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            queue.drainTo(abandoned);
+            for (Job job : abandoned) {
+                inFlight.remove(job.request.getKey());
+            }
+        }
+        for (Job job : abandoned) {
+            job.image.completeExceptionally(new RejectedExecutionException("The render service closed"));
+        }
+        for (Thread context : contexts) {
+            context.interrupt();
+        }
+        try {
+            for (Thread context : contexts) {
+                context.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d contexts, %d of %d queued, cache %s, latency p50 %.1f ms p99 %.1f ms",
+                getContextCount(), getQueueDepth(), queueCapacity, cache, getLatencyMillis(50), getLatencyMillis(99));
+    }
+}
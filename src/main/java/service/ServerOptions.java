@@ -0,0 +1,70 @@
+package service;
+
+/**
+ * Command line options of the server mode, see {@link #USAGE}
+ */
+public class ServerOptions {
+    public static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: --serve [options]",
+            "  --port <port>         port to answer HTTP requests on (default " + RenderServer.DEFAULT_PORT + ")",
+            "  --renderer cpu|gl     CPU tracer or the compute shader in a hidden window (default cpu)",
+            "  --contexts <n>        renderers working at once, the gl renderer has one (default 1)",
+            "  --queue <n>           most requests waiting for a renderer, more are refused (default 16)",
+            "  --cache-mb <n>        megabytes of rendered images kept for repeated requests (default 256)");
+
+    public enum Renderer {
+        CPU, GL
+    }
+
+    public int port = RenderServer.DEFAULT_PORT;
+    public Renderer renderer = Renderer.CPU;
+    public int contexts = 1;
+    public int queueCapacity = 16;
+    public long cacheBytes = 256L << 20;
+
+    /**
+     * @throws IllegalArgumentException with a message for the user if the arguments are invalid
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "--renderer":
+                        options.renderer = Renderer.valueOf(value.toUpperCase());
+                        break;
+                    case "--contexts":
+                        options.contexts = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        options.queueCapacity = Integer.parseInt(value);
+                        break;
+                    case "--cache-mb":
+                        options.cacheBytes = Long.parseLong(value) << 20;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+            }
+        }
+
+        if (options.contexts < 1 || options.queueCapacity < 1 || options.cacheBytes < 0) {
+            throw new IllegalArgumentException("Need at least one context and one queue slot and a cache of no negative size");
+        }
+        //GLFW is initialised and terminated once per hidden window, so only one may exist
+        if (options.renderer == Renderer.GL && options.contexts > 1) {
+            throw new IllegalArgumentException("The gl renderer has one context");
+        }
+        return options;
+    }
+}
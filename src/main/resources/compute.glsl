@@ -1,22 +1,84 @@
 #version 430 core
 
+//Defaults of the values ComputeShader injects for each variant, see render.TraceParameters
+#ifndef AMBIENT_LIGHT
 #define AMBIENT_LIGHT 0.1
+#endif
+#ifndef REFLECTIVITY
 #define REFLECTIVITY 0.1
+#endif
 
-#define LARGE_FLOAT 1E+10
-
-#define MAX_SPHERES 1000
-#define MAX_LIGHTS 100
-
+#ifndef REFLECTIONS
 #define REFLECTIONS 2
+#endif
 
+#ifndef Kd
 #define Kd 0.9
+#endif
+#ifndef Ks
 #define Ks 0.1
+#endif
+
+#ifndef WORK_GROUP_SIZE_X
+#define WORK_GROUP_SIZE_X 16
+#endif
+#ifndef WORK_GROUP_SIZE_Y
+#define WORK_GROUP_SIZE_Y 16
+#endif
+
+//MAX_LIGHTS, if defined, bounds the light loop at compile time so it can be unrolled
+
+#define LARGE_FLOAT 1E+10
 
 #define EPSILON 0.0001
 
+//The larger of SahBvhBuilder.MAX_DEPTH and LbvhBuilder.MAX_DEPTH, plus 2, the most nodes the traversal stack can hold
+#define BVH_STACK_SIZE 66
+
+//Must match render.Reprojection
+#define REPROJECTION_DEPTH_TOLERANCE 0.01
+#define REPROJECTION_MAX_AGE 8
+
 layout(binding = 0, rgba32f) uniform image2D framebufferImage;
 
+//Running sum of every pixel's samples with the number of samples in alpha
+layout(binding = 1, rgba32f) uniform image2D accumulationImage;
+
+//Running mean and sum of squared deviations (Welford's M2) of every pixel's luminance
+layout(binding = 2, rg32f) uniform image2D momentsImage;
+
+//Distance to the primary hit, what it hit (see hitId) and how many frames in a row the colour was reprojected
+layout(binding = 3, rgba32f) uniform image2D surfaceImage;
+
+//Accumulation and surface images of the last complete image and where it was seen from, see render.Reprojection.
+//The first sample of a new view reuses its colours where they still show the same surface.
+layout(binding = 4, rgba32f) readonly uniform image2D historyImage;
+layout(binding = 5, rgba32f) readonly uniform image2D historySurfaceImage;
+uniform int reprojectHistory;
+uniform mat4 historyViewProjection;
+uniform vec3 historyEye;
+
+//Position of this frame's sample within its pixel, (0.5, 0.5) is the centre
+uniform vec2 sampleJitter;
+//Number of samples accumulated so far, zero replaces the accumulated image
+uniform int sampleIndex;
+
+//Adaptive sampling, see Accumulation: an adaptive pass traces the entries activeRange.x to
+//activeRange.y of the active pixel list instead of a tile, a collecting pass appends the pixels
+//that still need samples to the next list
+uniform int adaptivePass;
+uniform ivec2 activeRange;
+uniform int collectActive;
+uniform float errorThreshold;
+
+//Shows each pixel's sample count from blue for one to red for maxSamples instead of its colour
+uniform int showSampleHeatmap;
+uniform int maxSamples;
+
+//Region of the image traced by this dispatch, see TileScheduler
+uniform ivec2 tileOffset;
+uniform ivec2 tileSize;
+
 //View Frustum
 uniform vec3 eye, ray00, ray01, ray10, ray11;
 
@@ -38,10 +100,18 @@ struct Sphere {
     Material mat;
 };
 
+struct BvhNode {
+    vec3 boundsMin;
+    int leftOrFirst;   //Left child of an interior node, first primitive index of a leaf
+    vec3 boundsMax;
+    int primitiveCount; //Zero for interior nodes
+};
+
 struct Intersection {
     float lambda; //Lambda x DirectionVector + Origin = Point of intersection
     vec3 surfaceNormal;
     int  sphereIndex;
+    int  triangleIndex; //Into meshTriangles, -1 unless a triangle was hit
 };
 
 struct Ray {
@@ -51,17 +121,105 @@ struct Ray {
     bool reflects;
 };
 
+//Scene buffers, uploaded straight from the struct-of-arrays SphereStore and LightStore
+layout(std430, binding = 1) readonly buffer SpherePositionBuffer {
+    vec4 spherePositionRadius[]; //xyz position, w radius
+};
+
+layout(std430, binding = 2) readonly buffer SphereMaterialBuffer {
+    vec4 sphereMaterial[]; //rgb albedo, w specularN
+};
+
+layout(std430, binding = 3) readonly buffer LightPositionBuffer {
+    vec4 lightPositionBrightness[]; //xyz position, w brightness
+};
+
+layout(std430, binding = 4) readonly buffer LightColourBuffer {
+    vec4 lightColour[]; //rgb colour
+};
+
+//Bounding volume hierarchy over the spheres, packed by BvhPacker
+layout(std430, binding = 5) readonly buffer BvhNodeBuffer {
+    BvhNode bvhNodes[];
+};
+
+layout(std430, binding = 6) readonly buffer BvhPrimitiveBuffer {
+    int bvhPrimitives[];
+};
+
+//Triangle meshes from MeshStore, under a hierarchy of their own whose leaves reference the
+//triangles directly, as BvhPacker stores them in leaf order
+layout(std430, binding = 7) readonly buffer TriangleBvhNodeBuffer {
+    BvhNode triangleBvhNodes[];
+};
+
+layout(std430, binding = 8) readonly buffer MeshVertexBuffer {
+    vec4 meshVertices[]; //xyz position
+};
+
+layout(std430, binding = 9) readonly buffer MeshTriangleBuffer {
+    ivec4 meshTriangles[]; //xyz vertex indices, w mesh
+};
+
+layout(std430, binding = 10) readonly buffer MeshMaterialBuffer {
+    vec4 meshMaterials[]; //rgb albedo, w specularN
+};
+
+//Lights that can reach each cell of a world space grid over the geometry, built by LightGrid:
+//lightGrid[list] to lightGrid[list + 1] is the range of lightGrid holding the light indices of a
+//list, list 0 holds the lights that reach everywhere and list 1 + cell those of a cell
+layout(std430, binding = 11) readonly buffer LightGridBuffer {
+    int lightGrid[];
+};
+
+//Active pixel lists as y * width + x, the one this pass traces and the one it collects, swapped between passes
+layout(std430, binding = 12) readonly buffer ActivePixelBuffer {
+    uint activeCount;
+    uint activePixels[];
+};
+
+layout(std430, binding = 13) buffer NextActivePixelBuffer {
+    uint nextActiveCount;
+    uint nextActivePixels[];
+};
+
+//Pixels whose colour was reprojected rather than shaded, read back for the frame statistics
+layout(std430, binding = 14) buffer ReprojectionStatsBuffer {
+    uint reprojectedPixels;
+};
+
+uniform vec3 lightGridMin;
+uniform vec3 lightGridInverseCellSize;
+uniform ivec3 lightGridCells;
+
 uniform int numberOfLights;
 uniform int numberOfSpheres;
-uniform Light sceneLights[MAX_LIGHTS];
-uniform Sphere sceneSpheres[MAX_SPHERES];
+uniform int numberOfTriangles;
 
-float intersectSphere(vec3 origin, vec3 dir, const Sphere s) {
+Sphere getSphere(int index) {
+    vec4 positionRadius = spherePositionRadius[index];
+    vec4 material = sphereMaterial[index];
+    return Sphere(positionRadius.xyz, positionRadius.w, Material(material.rgb, material.w));
+}
+
+//List of the light grid cell holding a point, points just outside the grid use the nearest cell
+int lightGridList(vec3 point) {
+    ivec3 cell = clamp(ivec3(floor((point - lightGridMin) * lightGridInverseCellSize)), ivec3(0), lightGridCells - 1);
+    return 1 + cell.x + lightGridCells.x * (cell.y + lightGridCells.y * cell.z);
+}
+
+Light getLight(int index) {
+    vec4 positionBrightness = lightPositionBrightness[index];
+    return Light(positionBrightness.xyz, lightColour[index].rgb, positionBrightness.w);
+}
+
+//Takes the sphere's packed position and radius so the material is not loaded
+float intersectSphere(vec3 origin, vec3 dir, vec4 positionRadius) {
     float a = dot(dir, dir);
-    vec3 fromSphere = origin - s.position;
+    vec3 fromSphere = origin - positionRadius.xyz;
 
     float b = 2.0 * dot(dir, fromSphere);
-    float c = dot(fromSphere, fromSphere) - (s.radius * s.radius);
+    float c = dot(fromSphere, fromSphere) - (positionRadius.w * positionRadius.w);
 
     float dscrmnt = b * b - 4.0 * a * c;
     if(dscrmnt < 0.0) {
@@ -74,54 +232,221 @@ float intersectSphere(vec3 origin, vec3 dir, const Sphere s) {
     return solution;
 }
 
+//Moller-Trumbore, returns the lambda of the hit or -1.0 if the ray misses the triangle
+float intersectTriangle(vec3 origin, vec3 dir, ivec4 triangle) {
+    vec3 a = meshVertices[triangle.x].xyz;
+    vec3 edge1 = meshVertices[triangle.y].xyz - a;
+    vec3 edge2 = meshVertices[triangle.z].xyz - a;
+
+    vec3 p = cross(dir, edge2);
+    float determinant = dot(edge1, p);
+    if (abs(determinant) < 1E-12) {
+        //Parallel to the triangle
+        return -1.0;
+    }
+    float inverseDeterminant = 1.0 / determinant;
+
+    vec3 fromA = origin - a;
+    float u = dot(fromA, p) * inverseDeterminant;
+    if (u < 0.0 || u > 1.0) {
+        return -1.0;
+    }
+    vec3 q = cross(fromA, edge1);
+    float v = dot(dir, q) * inverseDeterminant;
+    if (v < 0.0 || u + v > 1.0) {
+        return -1.0;
+    }
+    return dot(edge2, q) * inverseDeterminant;
+}
+
+BvhNode getBvhNode(bool triangles, int index) {
+    return triangles ? triangleBvhNodes[index] : bvhNodes[index];
+}
+
+//Slab test, returns the distance at which the ray enters the node or LARGE_FLOAT if it misses it before maxLambda
+float intersectBounds(vec3 origin, vec3 inverseDirection, const BvhNode node, float maxLambda) {
+    vec3 t0 = (node.boundsMin - origin) * inverseDirection;
+    vec3 t1 = (node.boundsMax - origin) * inverseDirection;
+    vec3 tMin = min(t0, t1);
+    vec3 tMax = max(t0, t1);
+
+    float tNear = max(max(tMin.x, tMin.y), tMin.z);
+    float tFar = min(min(tMax.x, tMax.y), tMax.z);
+
+    if (tNear > tFar || tFar < 0.0 || tNear >= maxLambda) {
+        return LARGE_FLOAT;
+    }
+    return tNear;
+}
+
+//Finds the closest hit in the sphere or the triangle hierarchy that is nearer than smallest.
+//closest is the index of the hit in its own kind, hits at the same lambda go to the lowest index.
+void traverse(bool triangles, vec3 origin, vec3 direction, vec3 inverseDirection, inout float smallest, inout int closest) {
+    //Nodes still to visit and the distance at which the ray enters them
+    int nodeStack[BVH_STACK_SIZE];
+    float distanceStack[BVH_STACK_SIZE];
+    int stackSize = 0;
+
+    float rootDistance = intersectBounds(origin, inverseDirection, getBvhNode(triangles, 0), smallest);
+    if (rootDistance < smallest) {
+        nodeStack[0] = 0;
+        distanceStack[0] = rootDistance;
+        stackSize = 1;
+    }
+
+    while (stackSize > 0) {
+        stackSize--;
+        //A closer intersection may have been found since this node was pushed
+        if (distanceStack[stackSize] >= smallest) {
+            continue;
+        }
+        BvhNode node = getBvhNode(triangles, nodeStack[stackSize]);
+
+        if (node.primitiveCount > 0) {
+            //Leaf, test its spheres or triangles
+            for (int i = node.leftOrFirst; i < node.leftOrFirst + node.primitiveCount; i++) {
+                int index = triangles ? i : bvhPrimitives[i];
+
+                //Calculate lambda of intersection with the current primitive
+                float lambda = triangles
+                        ? intersectTriangle(origin, direction, meshTriangles[index])
+                        : intersectSphere(origin, direction, spherePositionRadius[index]);
+
+                //If Lambda is in correct direction and is smaller than current smallest Lambda (Closer to origin)
+                if (lambda > EPSILON && (lambda < smallest || (lambda == smallest && index < closest))) {
+                    smallest = lambda;
+                    closest = index;
+                }
+            }
+            continue;
+        }
+
+        //Interior node, visit the nearer child first by pushing it last
+        int left = node.leftOrFirst;
+        int right = left + 1;
+        float leftDistance = intersectBounds(origin, inverseDirection, getBvhNode(triangles, left), smallest);
+        float rightDistance = intersectBounds(origin, inverseDirection, getBvhNode(triangles, right), smallest);
+
+        int near = leftDistance <= rightDistance ? left : right;
+        int far = leftDistance <= rightDistance ? right : left;
+        float nearDistance = min(leftDistance, rightDistance);
+        float farDistance = max(leftDistance, rightDistance);
+
+        if (farDistance < smallest) {
+            nodeStack[stackSize] = far;
+            distanceStack[stackSize] = farDistance;
+            stackSize++;
+        }
+        if (nearDistance < smallest) {
+            nodeStack[stackSize] = near;
+            distanceStack[stackSize] = nearDistance;
+            stackSize++;
+        }
+    }
+}
+
 //Return true if the given Ray intersects with an entity in the scene
 //And store the intersection information in ray's `intersection' member
 bool intersect(inout Ray toIntersect) {
     //Used to find the closest intersection (smallest lambda) set to large number to ensure no clipping / lost entities at large lambdas
     float smallest = LARGE_FLOAT;
 
-    //If an intersection was found this is true
-    bool found = false;
+    //Index of the closest sphere and triangle, -1 if none was hit
+    int closestSphere = -1;
+    int closestTriangle = -1;
 
     //Normalize direction vector
     toIntersect.direction = normalize(toIntersect.direction);
 
-    //For all spheres in scene
-    for (int i = 0; i < numberOfSpheres; i++) {
-        Sphere sphere = sceneSpheres[i];
-
-        //Calculate lambda of intersection with the current sphere
-        float lambda = intersectSphere(toIntersect.origin, toIntersect.direction, sphere);
-
-        //If Lambda is in correct direction and is smaller than current smallest Lambda (Closer to origin)
-        if(lambda > EPSILON && lambda < smallest) {
-            //Update smallest lambda
-            smallest = lambda;
-            //Found an intersection
-            found = true;
-
-            //Set intersection information
-            toIntersect.intersect.lambda = lambda;
-            //Surface normal at point of intersection
-            toIntersect.intersect.surfaceNormal = normalize(toIntersect.origin + (toIntersect.direction * lambda) - sphere.position);
-            //Index of sphere we intersected with
-            toIntersect.intersect.sphereIndex = i;
-        }
+    //Avoid infinities so rays lying in a slab plane do not produce NaN
+    vec3 safeDirection = mix(toIntersect.direction, vec3(1E-30), equal(toIntersect.direction, vec3(0.0)));
+    vec3 inverseDirection = 1.0 / safeDirection;
+
+    if (numberOfSpheres > 0) {
+        traverse(false, toIntersect.origin, toIntersect.direction, inverseDirection, smallest, closestSphere);
     }
-    //No intersections, nullify intersection member
-    if(!found) {
-        toIntersect.intersect.lambda = 0;
-        toIntersect.intersect.surfaceNormal = vec3(0);
+    //Only triangles strictly closer than the closest sphere are taken
+    if (numberOfTriangles > 0) {
+        traverse(true, toIntersect.origin, toIntersect.direction, inverseDirection, smallest, closestTriangle);
+    }
+
+    if (closestTriangle >= 0) {
+        ivec4 triangle = meshTriangles[closestTriangle];
+        vec3 a = meshVertices[triangle.x].xyz;
+        vec3 normal = normalize(cross(meshVertices[triangle.y].xyz - a, meshVertices[triangle.z].xyz - a));
+        //Meshes may be wound either way, face the normal towards the ray
+        toIntersect.intersect.lambda = smallest;
+        toIntersect.intersect.surfaceNormal = dot(normal, toIntersect.direction) > 0.0 ? -normal : normal;
         toIntersect.intersect.sphereIndex = -1;
+        toIntersect.intersect.triangleIndex = closestTriangle;
+        return true;
     }
 
-    return found;
+    if (closestSphere >= 0) {
+        //Set intersection information
+        toIntersect.intersect.lambda = smallest;
+        //Surface normal at point of intersection
+        toIntersect.intersect.surfaceNormal = normalize(toIntersect.origin + (toIntersect.direction * smallest) - spherePositionRadius[closestSphere].xyz);
+        //Index of sphere we intersected with
+        toIntersect.intersect.sphereIndex = closestSphere;
+        toIntersect.intersect.triangleIndex = -1;
+        return true;
+    }
+
+    //No intersections, nullify intersection member
+    toIntersect.intersect.lambda = 0;
+    toIntersect.intersect.surfaceNormal = vec3(0);
+    toIntersect.intersect.sphereIndex = -1;
+    toIntersect.intersect.triangleIndex = -1;
+    return false;
 }
 
+//Specular exponent of the sphere or mesh that was hit
+float specularNOf(Intersection intersection) {
+    if (intersection.triangleIndex >= 0) {
+        return meshMaterials[meshTriangles[intersection.triangleIndex].w].w;
+    }
+    return sphereMaterial[intersection.sphereIndex].w;
+}
 
-vec3 trace(inout Ray toTrace) {
-    bool intersection = intersect(toTrace);
 
+//Diffuse and specular light reaching P from one light, zero if the light is blocked
+vec3 shade(Ray toTrace, vec3 P, Light light, float specularN) {
+    //vec3 toLightRay = (light.position - P);
+    //CHECK THIS
+    vec3 lightDirection = -normalize(light.position - P);
+
+    //CHECK THIS
+    Ray toLightRay = Ray(P - toTrace.intersect.surfaceNormal, lightDirection, Intersection(0.0f, vec3(0), -1, -1), false);
+
+    //If light can reach the point unobstructed
+    if (!intersect(toLightRay)) {
+
+        //Distance and R^2
+        float dist = distance(P, light.position);
+        float r2 = dist * dist;
+
+        //Diffuse
+        vec3 diffuseColour = (vec3(light.colour) * (light.brightness / r2));
+
+        //Specular
+        vec3 R = reflect(lightDirection, toLightRay.intersect.surfaceNormal);
+
+        //CHECK THIS
+        vec3 specularColour = pow(max(0.0f, dot(R, -toTrace.direction)), specularN) * light.brightness / r2 * light.colour;
+
+        //Final colour
+        return (Kd * diffuseColour) + (Ks * specularColour);
+    } else {
+        //CHECK THIS
+        //colour += AMBIENT_LIGHT * sphere.mat.albedo;
+        //return vec3(1.0, 0.0, 0.0);
+        return vec3(0.0);
+    }
+}
+
+//Colour of a ray whose closest hit was found
+vec3 shadeIntersection(inout Ray toTrace, bool intersection) {
     //Color of this point
     vec3 colour = vec3(AMBIENT_LIGHT);
     toTrace.reflects = intersection;
@@ -134,64 +459,162 @@ vec3 trace(inout Ray toTrace) {
     //Point of intersection
     vec3 P = toTrace.origin + (toTrace.intersect.lambda * toTrace.direction);
 
-    //Trace to light
-    for (int i = 0; i < numberOfLights; i++) {
-        Light light = sceneLights[i];
+    float specularN = specularNOf(toTrace.intersect);
+
+    //Trace to the lights of the global list, then those of the cell holding P
+    int cellList = lightGridList(P);
+    for (int pass = 0; pass < 2; pass++) {
+        int list = pass == 0 ? 0 : cellList;
+        int first = lightGrid[list];
+        int count = lightGrid[list + 1] - first;
+#ifdef MAX_LIGHTS
+        for (int n = 0; n < MAX_LIGHTS; n++) {
+            if (n >= count) {
+                break;
+            }
+#else
+        for (int n = 0; n < count; n++) {
+#endif
+            colour += shade(toTrace, P, getLight(lightGrid[first + n]), specularN);
+        }
+    }
 
-        //vec3 toLightRay = (light.position - P);
-        //CHECK THIS
-        vec3 lightDirection = -normalize(light.position - P);
+    return colour;
+}
 
-        //CHECK THIS
-        Ray toLightRay = Ray(P - toTrace.intersect.surfaceNormal, lightDirection, Intersection(0.0f, vec3(0), -1), false);
-        Sphere sphere = sceneSpheres[toTrace.intersect.sphereIndex];
+vec3 trace(inout Ray toTrace) {
+    return shadeIntersection(toTrace, intersect(toTrace));
+}
 
-        //If light can reach the point unobstructed
-        if (!intersect(toLightRay)) {
+//Colour of a primary ray whose closest hit was found, with its reflections
+vec3 shadePrimary(Ray primeRay, bool primeHit) {
+    vec3 color = shadeIntersection(primeRay, primeHit);
 
-            //Distance and R^2
-            float dist = distance(P, light.position);
-            float r2 = dist * dist;
+    //do reflection traces
+    Ray reflectionBounces[REFLECTIONS];
+    vec3 colours[REFLECTIONS];
+    reflectionBounces[0] = primeRay;
+    colours[0] = color;
+    for(int i = 1; i < REFLECTIONS; i++) {
+        //Calculate point of intersection as origin
+        Ray currentRay = reflectionBounces[i - 1];
+        vec3 reflectionOrigin = currentRay.origin + (currentRay.direction * currentRay.intersect.lambda);
 
-            //Diffuse
-            vec3 diffuseColour = (vec3(light.colour) * (light.brightness / r2));
+        //Calculate reflection direction
+        vec3 reflectionDirection = reflect(currentRay.direction, currentRay.intersect.surfaceNormal);
 
-            //Specular
-            vec3 R = reflect(lightDirection, toLightRay.intersect.surfaceNormal);
+        //Trace new ray
+        Ray reflectedRay = Ray(reflectionOrigin, reflectionDirection , Intersection(0, vec3(0), -1, -1), false);
+        vec3 reflectedColour = trace(reflectedRay);
 
-            //CHECK THIS
-            vec3 specularColour = pow(max(0.0f, dot(R, -toTrace.direction)), sphere.mat.specularN) * light.brightness / r2 * light.colour;
+        colours[i] = reflectedColour;
 
-            //Final colour
-            colour += (Kd * diffuseColour) + (Ks * specularColour);
-        } else {
-            //CHECK THIS
-            //colour += AMBIENT_LIGHT * sphere.mat.albedo;
-            //return vec3(1.0, 0.0, 0.0);
-        }
+        //Store in reflection bounces
+        reflectionBounces[i] = reflectedRay;
     }
 
-    return colour;
+    //Each reflection is weighted by a further power of the reflectivity
+    float exponent = REFLECTIVITY;
+    for(int i = 1; i < REFLECTIONS; i++) {
+        color += colours[i] * exponent;
+        exponent *= REFLECTIVITY;
+    }
+    return color;
+}
+
+//Same numbering as Reprojection.hitId: spheres count from 0, a miss is -1 and triangles count down from -2
+float hitId(Intersection intersection) {
+    return float(intersection.triangleIndex >= 0 ? -2 - intersection.triangleIndex : intersection.sphereIndex);
+}
+
+/*
+ * Looks up the pixel of the history image the primary hit projects to, misses by their direction.
+ * If that pixel saw the same surface at the same distance and has not been reused too often, its
+ * colour is returned and the surface's reuse count raised.
+ */
+bool reproject(Ray primeRay, bool primeHit, ivec2 px, ivec2 size, inout vec4 surface, out vec3 colour) {
+    vec3 P = primeRay.origin + primeRay.direction * primeRay.intersect.lambda;
+    vec4 clip = historyViewProjection * (primeHit ? vec4(P, 1.0) : vec4(primeRay.direction, 0.0));
+    if (clip.w <= 0.0) {
+        return false;
+    }
+    //Inverse of the mapping from pixels to frustum rays in main()
+    ivec2 historyPx = ivec2(floor((clip.xy / clip.w * 0.5 + 0.5) * vec2(size)));
+    if (any(lessThan(historyPx, ivec2(0))) || any(greaterThanEqual(historyPx, size))) {
+        return false;
+    }
+    vec4 historySurface = imageLoad(historySurfaceImage, historyPx);
+    //Same staggered limit as Reprojection.ageLimit
+    int ageLimit = REPROJECTION_MAX_AGE - (px.x + 3 * px.y) % (REPROJECTION_MAX_AGE / 2);
+    if (historySurface.y != surface.y || historySurface.z >= float(ageLimit)) {
+        return false;
+    }
+    if (primeHit && abs(distance(P, historyEye) - historySurface.x) > REPROJECTION_DEPTH_TOLERANCE * historySurface.x) {
+        return false;
+    }
+    vec4 history = imageLoad(historyImage, historyPx);
+    colour = history.rgb / history.a;
+    surface.z = historySurface.z + 1.0;
+    return true;
+}
+
+//Same test as Accumulation.isPixelConverged: the variance of the mean is the sample variance over the sample count
+bool pixelConverged(float samples, float m2) {
+    return samples >= 2.0 && m2 <= errorThreshold * errorThreshold * samples * (samples - 1.0);
+}
+
+bool neighbourConverged(ivec2 px) {
+    return pixelConverged(imageLoad(accumulationImage, px).a, imageLoad(momentsImage, px).y);
+}
+
+//Pixels keep sampling while a neighbour does, so a thin feature their own samples missed is still found.
+//Neighbours may or may not have added this pass's sample yet, either is good enough to decide on.
+bool neighbourhoodConverged(ivec2 px, ivec2 size, float samples, float m2) {
+    return pixelConverged(samples, m2)
+        && (px.x == 0 || neighbourConverged(px - ivec2(1, 0)))
+        && (px.x == size.x - 1 || neighbourConverged(px + ivec2(1, 0)))
+        && (px.y == 0 || neighbourConverged(px - ivec2(0, 1)))
+        && (px.y == size.y - 1 || neighbourConverged(px + ivec2(0, 1)));
 }
 
-layout (local_size_x = 16, local_size_y = 16) in;
+//Logarithmic ramp from blue through green to red, as SampleStatistics.heatmap
+vec3 sampleHeatmap(float samples) {
+    float t = maxSamples > 1 ? clamp(log(samples) / log(float(maxSamples)), 0.0, 1.0) : 1.0;
+    return vec3(max(2.0 * t - 1.0, 0.0), 1.0 - abs(2.0 * t - 1.0), max(1.0 - 2.0 * t, 0.0));
+}
+
+layout (local_size_x = WORK_GROUP_SIZE_X, local_size_y = WORK_GROUP_SIZE_Y) in;
 
 /**
  * Entry point of this GLSL compute shader.
  */
 void main(void) {
     /*
-     * Obtain the 2D index of the current compute shader work item via
-     * the built-in gl_GlobalInvocationID variable and store it in a 'px'
-     * variable because we need it later.
-     */
-    ivec2 px = ivec2(gl_GlobalInvocationID.xy);
-    /*
-     * Also obtain the size of the framebuffer image. We could have used
+     * Obtain the size of the framebuffer image. We could have used
      * a custom uniform for that as well. But GLSL already provides it as
      * a built-in function.
      */
     ivec2 size = imageSize(framebufferImage);
+    ivec2 px;
+    if (adaptivePass != 0) {
+        //Adaptive passes are dispatched as a row of work groups over a range of the active list
+        uint entry = uint(activeRange.x) + gl_WorkGroupID.x * gl_WorkGroupSize.x * gl_WorkGroupSize.y + gl_LocalInvocationIndex;
+        if (entry >= uint(activeRange.y))
+        return;
+        uint pixel = activePixels[entry];
+        px = ivec2(pixel % uint(size.x), pixel / uint(size.x));
+    } else {
+        /*
+         * Obtain the 2D index of the current compute shader work item via
+         * the built-in gl_GlobalInvocationID variable and store it in a 'px'
+         * variable because we need it later.
+         */
+        px = ivec2(gl_GlobalInvocationID.xy);
+        //The dispatch covers whole work groups, skip work items past the tile
+        if (any(greaterThanEqual(px, tileSize)))
+        return;
+        px += tileOffset;
+    }
     /*
      * Because we have to execute our compute shader with a global work
      * size that is a power of two, we need to check whether the current
@@ -204,14 +627,14 @@ void main(void) {
     /*
      * Now we take our rayNN uniforms declared above to determine the
      * world-space direction from the eye position through the current
-     * work item's pixel's center in the framebuffer image. We use the
+     * work item's pixel in the framebuffer image. We use the
      * 'px' variable, cast it to a floating-point vector, offset it by
-     * half a pixel's width (in whole pixel units) and then transform that
+     * this frame's sample position (in whole pixel units) and then transform that
      * position relative to our framebuffer size to get values in the
      * interval [(0, 0), (1, 1)] for all work items covering our
      * framebuffer.
      */
-    vec2 p = (vec2(px) + vec2(0.5)) / vec2(size);
+    vec2 p = (vec2(px) + sampleJitter) / vec2(size);
     /*
      * Use bilinear interpolation based on the X and Y fraction
      * (within 0..1) with our rayNN vectors defining the world-space
@@ -225,42 +648,47 @@ void main(void) {
      * The result is a computed color which we will write at the work
      * item's framebuffer pixel.
      */
-    Ray primeRay = Ray(eye, normalize(dir), Intersection(0, vec3(0), -1), false);
-
-    //Trace prime ray
-    vec3 color = trace(primeRay);
-
-    //do reflection traces
-    Ray reflectionBounces[REFLECTIONS];
-    vec3 colours[REFLECTIONS];
-    reflectionBounces[0] = primeRay;
-    colours[0] = color;
-    for(int i = 1; i < REFLECTIONS; i++) {
-        //Calculate point of intersection as origin
-        Ray currentRay = reflectionBounces[i - 1];
-        vec3 reflectionOrigin = currentRay.origin + (currentRay.direction * currentRay.intersect.lambda);
-
-        //Calculate reflection direction
-        vec3 reflectionDirection = reflect(currentRay.direction, currentRay.intersect.surfaceNormal);
-
-        //Trace new ray
-        Ray reflectedRay = Ray(reflectionOrigin, reflectionDirection , Intersection(0, vec3(0), -1), false);
-        vec3 reflectedColour = trace(reflectedRay);
-
-        colours[i] = reflectedColour;
+    Ray primeRay = Ray(eye, normalize(dir), Intersection(0, vec3(0), -1, -1), false);
+
+    //Find the prime ray's hit, then take its colour from the history image or shade it
+    bool primeHit = intersect(primeRay);
+    vec4 surface = vec4(primeRay.intersect.lambda, hitId(primeRay.intersect), 0.0, 0.0);
+    vec3 color;
+    if (reprojectHistory != 0 && reproject(primeRay, primeHit, px, size, surface, color)) {
+        atomicAdd(reprojectedPixels, 1u);
+    } else {
+        color = shadePrimary(primeRay, primeHit);
+    }
+    if (sampleIndex == 0) {
+        imageStore(surfaceImage, px, surface);
+    }
 
-        //Store in reflection bounces
-        reflectionBounces[i] = reflectedRay;
+    //Add this sample to the pixel's running sum and show the average
+    vec4 accumulated = vec4(color, 1.0);
+    if (sampleIndex > 0) {
+        accumulated += imageLoad(accumulationImage, px);
     }
+    imageStore(accumulationImage, px, accumulated);
+
+    //Welford's update of the luminance mean and M2 with this sample, accumulated.a is the new sample count
+    float luminance = dot(color, vec3(0.2126, 0.7152, 0.0722));
+    vec2 moments = vec2(luminance, 0.0);
+    if (sampleIndex > 0) {
+        moments = imageLoad(momentsImage, px).xy;
+        float delta = luminance - moments.x;
+        moments.x += delta / accumulated.a;
+        moments.y += delta * (luminance - moments.x);
+    }
+    imageStore(momentsImage, px, vec4(moments, 0.0, 0.0));
 
-    float exponent = pow(REFLECTIVITY, REFLECTIONS);
-    for(int i = 0; i < REFLECTIONS; i++) {
-        color += colours[REFLECTIONS - i] * exponent;
-        exponent /= REFLECTIVITY;
+    if (collectActive != 0 && !neighbourhoodConverged(px, size, accumulated.a, moments.y)) {
+        nextActivePixels[atomicAdd(nextActiveCount, 1u)] = uint(px.y * size.x + px.x);
     }
+
     /*
      * Store the final color in the framebuffer's pixel of the current
      * work item.
      */
-    imageStore(framebufferImage, px, vec4(color, 1.0));
+    vec3 shown = showSampleHeatmap != 0 ? sampleHeatmap(accumulated.a) : accumulated.rgb / accumulated.a;
+    imageStore(framebufferImage, px, vec4(shown, 1.0));
 }
\ No newline at end of file
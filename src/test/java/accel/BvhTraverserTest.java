@@ -0,0 +1,234 @@
+package accel;
+
+import cpu.CpuRaytracer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Closest hits through every way of building a hierarchy against testing every sphere
+ */
+class BvhTraverserTest {
+    private static final float MIN_LAMBDA = 1e-4f;
+    //More than SahBvhBuilder.PARALLEL_THRESHOLD, so subtrees are built as separate tasks
+    private static final int SPHERES = 5000;
+    private static final int RAYS = 2000;
+
+    @Test
+    void sahHitsMatchBruteForce() {
+        float[] spheres = randomSpheres(SPHERES, 1);
+        Bvh bvh = new Bvh();
+        new SahBvhBuilder().build(BoundedPrimitives.spheres(spheres, 4, SPHERES), bvh);
+        assertHitsMatchBruteForce(bvh, spheres, 2);
+    }
+
+    @Test
+    void lbvhHitsMatchBruteForce() {
+        float[] spheres = randomSpheres(SPHERES, 3);
+        Bvh bvh = new Bvh();
+        new LbvhBuilder().build(BoundedPrimitives.spheres(spheres, 4, SPHERES), bvh);
+        assertHitsMatchBruteForce(bvh, spheres, 4);
+    }
+
+    @Test
+    void lbvhStaysWithinItsDepthBound() {
+        //Spheres halving their distance from a corner, then many on one spot, which only their indices tell apart
+        int chain = 40, stacked = 5000, count = chain + stacked;
+        float[] spheres = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            float position = i < chain ? (float) Math.pow(0.5, i) : 0.0f;
+            spheres[i * 4] = spheres[i * 4 + 1] = spheres[i * 4 + 2] = position;
+            spheres[i * 4 + 3] = 0.01f;
+        }
+        Bvh bvh = new Bvh();
+        new LbvhBuilder().build(BoundedPrimitives.spheres(spheres, 4, count), bvh);
+
+        int deepest = 0;
+        for (int node = 0; node < bvh.getNodeCount(); node++) {
+            int depth = 0;
+            for (int parent = bvh.getParents()[node]; parent >= 0; parent = bvh.getParents()[parent]) {
+                depth++;
+            }
+            deepest = Math.max(deepest, depth);
+        }
+        assertTrue(deepest <= LbvhBuilder.MAX_DEPTH, "depth " + deepest);
+        assertTrue(LbvhBuilder.MAX_DEPTH <= SahBvhBuilder.MAX_DEPTH);
+    }
+
+    @Test
+    void refittedHitsMatchBruteForce() {
+        float[] spheres = randomSpheres(SPHERES, 5);
+        BoundedPrimitives primitives = BoundedPrimitives.spheres(spheres, 4, SPHERES);
+        Bvh bvh = new Bvh();
+        new LbvhBuilder().build(primitives, bvh);
+
+        //Move every sphere, far enough that the old bounds would miss many of them
+        Random random = new Random(6);
+        for (int i = 0; i < SPHERES; i++) {
+            for (int axis = 0; axis < 3; axis++) {
+                spheres[i * 4 + axis] += (random.nextFloat() - 0.5f) * 4;
+            }
+            spheres[i * 4 + 3] *= 0.5f + random.nextFloat();
+        }
+        new BvhRefitter().refit(bvh, primitives);
+        assertHitsMatchBruteForce(bvh, spheres, 7);
+    }
+
+    @Test
+    void dynamicHierarchyMatchesBruteForceWhileSpheresMove() {
+        float[] spheres = randomSpheres(SPHERES, 8);
+        BoundedPrimitives primitives = BoundedPrimitives.spheres(spheres, 4, SPHERES);
+        DynamicBvh dynamic = new DynamicBvh();
+        Random random = new Random(9);
+        boolean refitted = false;
+        for (int frame = 0; frame < 4; frame++) {
+            for (int i = 0; i < SPHERES; i++) {
+                spheres[i * 4 + 1] += (random.nextFloat() - 0.5f) * 0.5f;
+            }
+            dynamic.update(primitives);
+            refitted |= frame > 0 && !dynamic.getTimings().rebuilt;
+        }
+        assertTrue(refitted, "small moves should be refit rather than rebuilt");
+        assertHitsMatchBruteForce(dynamic.getBvh(), spheres, 10);
+    }
+
+    @Test
+    void countersMeasureTheTraversal() {
+        float[] spheres = randomSpheres(SPHERES, 11);
+        Bvh bvh = new Bvh();
+        new SahBvhBuilder().build(BoundedPrimitives.spheres(spheres, 4, SPHERES), bvh);
+        BvhTraverser traverser = new BvhTraverser(bvh, MIN_LAMBDA);
+        PrimitiveIntersector intersector = intersector(spheres);
+
+        //A ray pointing away from everything only tests the root
+        float far = spread(SPHERES) * 2;
+        assertFalse(traverser.closestHit(far, far, far, 1, 0, 0, intersector));
+        assertEquals(1, traverser.getNodesVisited());
+        assertEquals(0, traverser.getPrimitivesTested());
+
+        traverser.resetCounters();
+        assertEquals(0, traverser.getNodesVisited());
+
+        //Counters add up over rays until reset
+        BvhTraverser total = new BvhTraverser(bvh, MIN_LAMBDA);
+        long nodes = 0, primitives = 0;
+        float[] rays = randomRays(RAYS, SPHERES, 12);
+        for (int r = 0; r < RAYS; r++) {
+            int o = r * 6;
+            traverser.resetCounters();
+            traverser.closestHit(rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5], intersector);
+            total.closestHit(rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5], intersector);
+            //The root, then both children of every interior node expanded, each node at most once
+            assertEquals(1, traverser.getNodesVisited() % 2, "ray " + r);
+            assertTrue(traverser.getNodesVisited() <= bvh.getNodeCount(), "ray " + r);
+            assertTrue(traverser.getPrimitivesTested() <= SPHERES, "ray " + r);
+            nodes += traverser.getNodesVisited();
+            primitives += traverser.getPrimitivesTested();
+        }
+        assertEquals(nodes, total.getNodesVisited());
+        assertEquals(primitives, total.getPrimitivesTested());
+        //Brute force would take SPHERES tests per ray
+        assertTrue(primitives + nodes < (long) RAYS * SPHERES / 20, nodes + " nodes and " + primitives + " sphere tests for " + RAYS + " rays");
+    }
+
+    private static void assertHitsMatchBruteForce(Bvh bvh, float[] spheres, long seed) {
+        int count = spheres.length / 4;
+        BvhTraverser traverser = new BvhTraverser(bvh, MIN_LAMBDA);
+        PrimitiveIntersector intersector = intersector(spheres);
+        float[] rays = randomRays(RAYS, count, seed);
+        int hits = 0;
+        for (int r = 0; r < RAYS; r++) {
+            int o = r * 6;
+            float ox = rays[o], oy = rays[o + 1], oz = rays[o + 2], dx = rays[o + 3], dy = rays[o + 4], dz = rays[o + 5];
+
+            float closest = Float.MAX_VALUE;
+            int closestSphere = -1;
+            for (int i = 0; i < count; i++) {
+                float lambda = intersector.intersect(i, ox, oy, oz, dx, dy, dz);
+                if (lambda > MIN_LAMBDA && lambda < closest) {
+                    closest = lambda;
+                    closestSphere = i;
+                }
+            }
+
+            boolean hit = traverser.closestHit(ox, oy, oz, dx, dy, dz, intersector);
+            assertEquals(closestSphere, traverser.getPrimitive(), "sphere hit by ray " + r);
+            assertEquals(closestSphere >= 0, hit, "ray " + r);
+            if (hit) {
+                assertEquals(closest, traverser.getLambda(), "lambda of ray " + r);
+                hits++;
+            }
+        }
+        //Most rays should hit something, or the comparison proves little
+        assertTrue(hits > RAYS / 2, hits + " of " + RAYS + " rays hit");
+        //And the hierarchy should have skipped most of the spheres
+        assertTrue(traverser.getPrimitivesTested() < (long) RAYS * count / 20,
+                traverser.getPrimitivesTested() + " sphere tests for " + RAYS + " rays");
+    }
+
+    private static PrimitiveIntersector intersector(float[] spheres) {
+        return (sphere, ox, oy, oz, dx, dy, dz) -> {
+            int s = sphere * 4;
+            return CpuRaytracer.intersectSphere(ox, oy, oz, dx, dy, dz, spheres[s], spheres[s + 1], spheres[s + 2], spheres[s + 3]);
+        };
+    }
+
+    private static float spread(int count) {
+        return 2.0f * (float) Math.cbrt(count);
+    }
+
+    //x, y, z, radius of every sphere, in a cube of side spread around the origin
+    private static float[] randomSpheres(int count, long seed) {
+        Random random = new Random(seed);
+        float spread = spread(count);
+        float[] spheres = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            spheres[i * 4] = (random.nextFloat() - 0.5f) * spread;
+            spheres[i * 4 + 1] = (random.nextFloat() - 0.5f) * spread;
+            spheres[i * 4 + 2] = (random.nextFloat() - 0.5f) * spread;
+            spheres[i * 4 + 3] = 0.2f + random.nextFloat() * 0.5f;
+        }
+        return spheres;
+    }
+
+    //Origin and unit direction of every ray. Half start inside the cube, half outside aiming at it,
+    //and every eighth is axis aligned, so the slab test sees zero direction components
+    private static float[] randomRays(int count, int spheres, long seed) {
+        Random random = new Random(seed);
+        float spread = spread(spheres);
+        float[] rays = new float[count * 6];
+        for (int r = 0; r < count; r++) {
+            int o = r * 6;
+            float ox, oy, oz, dx, dy, dz;
+            if (r % 2 == 0) {
+                ox = (random.nextFloat() - 0.5f) * spread;
+                oy = (random.nextFloat() - 0.5f) * spread;
+                oz = (random.nextFloat() - 0.5f) * spread;
+                dx = (float) random.nextGaussian();
+                dy = (float) random.nextGaussian();
+                dz = (float) random.nextGaussian();
+            } else {
+                ox = -spread;
+                oy = (random.nextFloat() - 0.5f) * spread;
+                oz = (random.nextFloat() - 0.5f) * spread;
+                dx = 1;
+                dy = random.nextFloat() - 0.5f;
+                dz = random.nextFloat() - 0.5f;
+            }
+            if (r % 8 == 1) {
+                dy = 0;
+                dz = 0;
+            }
+            float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            rays[o] = ox;
+            rays[o + 1] = oy;
+            rays[o + 2] = oz;
+            rays[o + 3] = dx / length;
+            rays[o + 4] = dy / length;
+            rays[o + 5] = dz / length;
+        }
+        return rays;
+    }
+}
@@ -0,0 +1,352 @@
+package cpu;
+
+import org.junit.jupiter.api.Test;
+import render.Accumulation;
+import render.SampleStatistics;
+import render.TileScheduler;
+import render.TraceParameters;
+import org.joml.Vector3f;
+import scene.Camera;
+import scene.Material;
+import scene.Scene;
+import scene.TestScenes;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class CpuRaytracerTest {
+    private static final int WIDTH = 96, HEIGHT = 64;
+
+    @Test
+    void tilingAndThreadCountDoNotChangeTheImage() {
+        Scene scene = TestScenes.random(200, 4, 1);
+        Camera camera = TestScenes.outside(200);
+        FloatImage single = new FloatImage(WIDTH, HEIGHT), parallel = new FloatImage(WIDTH, HEIGHT);
+
+        ForkJoinPool one = new ForkJoinPool(1), four = new ForkJoinPool(4);
+        try {
+            new CpuRaytracer(one, CpuRaytracer.DEFAULT_TILE_SIZE).render(scene, camera, single);
+            new CpuRaytracer(four, 7).render(scene, camera, parallel);
+        } finally {
+            one.shutdown();
+            four.shutdown();
+        }
+        assertArrayEquals(single.getPixels(), parallel.getPixels());
+    }
+
+    @Test
+    void renderingTwiceIntoTheSameImageGivesTheSameImage() {
+        Scene scene = TestScenes.random(50, 3, 2);
+        Camera camera = TestScenes.outside(50);
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage image = new FloatImage(WIDTH, HEIGHT);
+
+        tracer.render(scene, camera, image);
+        float[] first = image.getPixels().clone();
+        tracer.render(scene, camera, image);
+        assertArrayEquals(first, image.getPixels());
+    }
+
+    @Test
+    void regionMatchesTheFullFrameAndLeavesTheRestAlone() {
+        Scene scene = TestScenes.random(100, 3, 3);
+        Camera camera = TestScenes.outside(100);
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage full = new FloatImage(WIDTH, HEIGHT), region = new FloatImage(WIDTH, HEIGHT);
+        float untouched = -1.0f;
+        Arrays.fill(region.getPixels(), untouched);
+
+        tracer.render(scene, camera, full);
+        int x0 = 13, y0 = 9, width = 40, height = 30;
+        tracer.render(scene, camera, region, x0, y0, width, height);
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean inside = x >= x0 && x < x0 + width && y >= y0 && y < y0 + height;
+                for (int c = 0; c < 4; c++) {
+                    int i = (y * WIDTH + x) * 4 + c;
+                    assertEquals(inside ? full.getPixels()[i] : untouched, region.getPixels()[i], "pixel " + x + ", " + y);
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> tracer.render(scene, camera, region, 90, 0, 10, 10));
+    }
+
+    @Test
+    void budgetedFramesAddUpToTheFullImage() {
+        Scene scene = TestScenes.random(100, 3, 4);
+        Camera camera = TestScenes.outside(100);
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage full = new FloatImage(WIDTH, HEIGHT), tiled = new FloatImage(WIDTH, HEIGHT);
+        tracer.render(scene, camera, full);
+
+        //A nanosecond budget renders one tile per frame
+        TileScheduler scheduler = new TileScheduler(16);
+        scheduler.setBudgetNanos(1);
+        int frames = 1;
+        while (!tracer.render(scene, camera, tiled, scheduler)) {
+            frames++;
+        }
+        assertEquals(scheduler.getTileCount(), frames);
+        assertArrayEquals(full.getPixels(), tiled.getPixels());
+    }
+
+    @Test
+    void litSphereIsBrighterThanTheBackground() {
+        FloatImage image = new FloatImage(WIDTH, HEIGHT);
+        new CpuRaytracer().render(litSphere(), facingLitSphere(), image);
+
+        float[] pixels = image.getPixels();
+        int centre = (HEIGHT / 2 * WIDTH + WIDTH / 2) * 4;
+        int corner = 0;
+        assertTrue(pixels[centre] > pixels[corner], "centre " + pixels[centre] + ", corner " + pixels[corner]);
+        //Misses all get the same background
+        assertEquals(pixels[corner], pixels[(WIDTH - 1) * 4]);
+    }
+
+    @Test
+    void flatBackgroundLeavesTheActiveListOnceItHasTheMinimumSamples() {
+        CpuRaytracer tracer = new CpuRaytracer();
+        Accumulation accumulation = adaptive();
+        tracer.setAccumulation(accumulation);
+        tracer.render(litSphere(), facingLitSphere(), new FloatImage(WIDTH, HEIGHT));
+
+        //Every sample of a miss is the same background, so the corners converge as soon as they may
+        SampleStatistics statistics = tracer.getSampleStatistics();
+        assertEquals(accumulation.getMinSamples(), statistics.getSamples(0, 0));
+        assertEquals(accumulation.getMinSamples(), statistics.getSamples(WIDTH - 1, HEIGHT - 1));
+        for (int i = 0; i < statistics.getActiveCount(); i++) {
+            assertNotEquals(0, statistics.getActivePixels()[i], "corner still active");
+        }
+        assertTrue(accumulation.getSamplesTraced() < (long) WIDTH * HEIGHT * accumulation.getSampleCount(),
+                accumulation.getSamplesTraced() + " samples in " + accumulation.getSampleCount() + " passes");
+    }
+
+    @Test
+    void pixelsOnTheSilhouetteKeepTakingSamples() {
+        Scene scene = litSphere();
+        Camera camera = facingLitSphere();
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage centres = new FloatImage(WIDTH, HEIGHT);
+        tracer.render(scene, camera, centres);
+        Accumulation accumulation = adaptive();
+        tracer.setAccumulation(accumulation);
+        tracer.render(scene, camera, new FloatImage(WIDTH, HEIGHT));
+
+        //The last miss before the sphere along the middle row, its right neighbour's centre is on the sphere
+        float[] pixels = centres.getPixels();
+        int y = HEIGHT / 2, x = 0;
+        while (pixels[(y * WIDTH + x + 1) * 4] == pixels[0]) {
+            x++;
+        }
+        //One of the two is partly covered, and the other stays active as its neighbour
+        SampleStatistics statistics = tracer.getSampleStatistics();
+        assertEquals(accumulation.getMaxSamples(), statistics.getSamples(x, y), "pixel " + x + ", " + y);
+        assertEquals(accumulation.getMaxSamples(), statistics.getSamples(x + 1, y), "pixel " + (x + 1) + ", " + y);
+        assertEquals(accumulation.getMinSamples(), statistics.getSamples(x - 5, y));
+    }
+
+    @Test
+    void adaptiveImageStaysWithinTheErrorThresholdOfSamplingEveryPixel() {
+        Scene scene = TestScenes.random(50, 3, 9);
+        Camera camera = TestScenes.outside(50);
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage everyPixel = new FloatImage(WIDTH, HEIGHT), adaptive = new FloatImage(WIDTH, HEIGHT);
+        Accumulation accumulation = adaptive();
+        accumulation.setAdaptive(false);
+        tracer.setAccumulation(accumulation);
+        tracer.render(scene, camera, everyPixel);
+        long everyPixelSamples = accumulation.getSamplesTraced();
+        accumulation.setAdaptive(true);
+        tracer.render(scene, camera, adaptive);
+
+        float largest = 0;
+        double sum = 0;
+        float[] expected = everyPixel.getPixels(), actual = adaptive.getPixels();
+        for (int i = 0; i < expected.length; i += 4) {
+            float difference = Math.abs(luminance(expected, i) - luminance(actual, i));
+            largest = Math.max(largest, difference);
+            sum += difference;
+        }
+        //A pixel stops once the standard error of its mean is below the threshold, so it may still be off
+        //by a few times that, but on average the two images agree well within it
+        float threshold = accumulation.getErrorThreshold();
+        assertTrue(sum / (WIDTH * HEIGHT) < threshold, "mean difference " + sum / (WIDTH * HEIGHT));
+        assertTrue(largest < 8 * threshold, "largest difference " + largest);
+        assertTrue(accumulation.getSamplesTraced() * 2 < everyPixelSamples, accumulation.getSamplesTraced() + " samples against " + everyPixelSamples);
+    }
+
+    @Test
+    void smallCameraMoveReusesPixelsAndShadesWhatItUncovers() {
+        //A small sphere hidden behind the lit one until the camera steps to the side
+        Scene hidden = litSphere();
+        Scene scene = litSphere();
+        scene.sphereStore.add(-3, 0, -1, 0.5f, 1, 0, 0, 50);
+        Camera before = facingLitSphere(), after = facingLitSphere();
+        after.getPosition().set(5, 0, -1);
+
+        CpuRaytracer tracer = new CpuRaytracer(), fresh = new CpuRaytracer();
+        tracer.setReprojection(true);
+        FloatImage reprojected = new FloatImage(WIDTH, HEIGHT);
+        FloatImage expected = new FloatImage(WIDTH, HEIGHT), withoutSphere = new FloatImage(WIDTH, HEIGHT);
+        tracer.render(scene, before, reprojected);
+        assertEquals(0, tracer.getReusedPixels());
+        fresh.render(hidden, before, withoutSphere);
+        assertArrayEquals(withoutSphere.getPixels(), reprojected.getPixels(), "the small sphere is not hidden");
+
+        tracer.render(scene, after, reprojected);
+        fresh.render(scene, after, expected);
+        fresh.render(hidden, after, withoutSphere);
+        assertTrue(tracer.getReusedPixels() > WIDTH * HEIGHT / 2, tracer.getReusedPixels() + " pixels reused");
+
+        //Pixels on the small sphere saw something else in the last image, so they are shaded like a fresh render
+        float largest = 0;
+        double sum = 0;
+        int uncovered = 0;
+        float[] actual = reprojected.getPixels();
+        for (int i = 0; i < actual.length; i += 4) {
+            float difference = Math.abs(luminance(expected.getPixels(), i) - luminance(actual, i));
+            largest = Math.max(largest, difference);
+            sum += difference;
+            if (expected.getPixels()[i] != withoutSphere.getPixels()[i]) {
+                uncovered++;
+                for (int c = 0; c < 4; c++) {
+                    assertEquals(expected.getPixels()[i + c], actual[i + c], "pixel " + i / 4 % WIDTH + ", " + i / 4 / WIDTH);
+                }
+            }
+        }
+        assertTrue(uncovered > 0);
+        //Reused colours are the last image resampled at the nearest pixel, which only shifts shading gradients a little
+        assertTrue(sum / (WIDTH * HEIGHT) < 0.001f, "mean difference " + sum / (WIDTH * HEIGHT));
+        assertTrue(largest < 0.05f, "largest difference " + largest);
+    }
+
+    @Test
+    void meshHierarchyGivesTheSameImageAsTestingEveryTriangle() {
+        Scene scene = TestScenes.random(20, 3, 5);
+        //Separate triangles, so no ray hits two at the same distance
+        Random random = new Random(6);
+        float spread = TestScenes.spread(20);
+        for (int mesh = 0; mesh < 4; mesh++) {
+            float[] positions = new float[300 * 9];
+            int[] indices = new int[300 * 3];
+            for (int t = 0; t < 300; t++) {
+                float cx = (random.nextFloat() - 0.5f) * spread, cy = (random.nextFloat() - 0.5f) * spread, cz = (random.nextFloat() - 0.5f) * spread;
+                for (int v = 0; v < 3; v++) {
+                    positions[t * 9 + v * 3] = cx + random.nextFloat() - 0.5f;
+                    positions[t * 9 + v * 3 + 1] = cy + random.nextFloat() - 0.5f;
+                    positions[t * 9 + v * 3 + 2] = cz + random.nextFloat() - 0.5f;
+                    indices[t * 3 + v] = t * 3 + v;
+                }
+            }
+            scene.meshStore.addMesh(positions, indices, new Material(new Vector3f(random.nextFloat(), 0.5f, 0.5f), 30));
+        }
+        Camera camera = TestScenes.outside(20);
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage hierarchy = new FloatImage(WIDTH, HEIGHT), everything = new FloatImage(WIDTH, HEIGHT);
+
+        tracer.render(scene, camera, hierarchy);
+        long hierarchyTests = tracer.getPrimitivesTested();
+        tracer.setBvhEnabled(false);
+        tracer.render(scene, camera, everything);
+        assertArrayEquals(everything.getPixels(), hierarchy.getPixels());
+        assertTrue(hierarchyTests * 10 < tracer.getPrimitivesTested(), hierarchyTests + " tests against " + tracer.getPrimitivesTested());
+    }
+
+    @Test
+    void lightGridChangesNoPixelByMoreThanItsThresholdAllows() {
+        //Dim lights in a large scene, so most of them only reach part of it
+        Random random = new Random(7);
+        Scene scene = new Scene();
+        float spread = 60;
+        for (int i = 0; i < 3000; i++) {
+            scene.sphereStore.add((random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    (random.nextFloat() + 0.4f) * 0.5f, random.nextFloat(), random.nextFloat(), random.nextFloat(), 20 + random.nextInt(50));
+        }
+        int lights = 100;
+        for (int i = 0; i < lights; i++) {
+            scene.lightStore.add((random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat(), (random.nextFloat() + 0.2f) * 0.5f);
+        }
+        Camera camera = new Camera();
+        camera.getPosition().set(5, 0, 0);
+        camera.getDirection().set(0, 0, 0);
+
+        CpuRaytracer tracer = new CpuRaytracer();
+        FloatImage exhaustive = new FloatImage(WIDTH, HEIGHT), culled = new FloatImage(WIDTH, HEIGHT);
+        TraceParameters parameters = TraceParameters.DEFAULT;
+        tracer.setParameters(parameters.withLightThreshold(TraceParameters.NO_LIGHT_CULLING));
+        tracer.render(scene, camera, exhaustive);
+        assertEquals(0, tracer.getLightGrid().getCulledLights());
+        long exhaustiveRays = tracer.getRaysTraced();
+        tracer.setParameters(parameters);
+        tracer.render(scene, camera, culled);
+        assertTrue(tracer.getRaysTraced() < exhaustiveRays * 3 / 4, tracer.getRaysTraced() + " rays against " + exhaustiveRays);
+
+        //A skipped light is below the threshold where it was skipped, and lights at most (Kd + Ks) times
+        //that per channel. Every bounce can skip every light, weighted by a power of the reflectivity.
+        float bounceWeights = 0, weight = 1;
+        for (int bounce = 0; bounce < parameters.getReflections(); bounce++) {
+            bounceWeights += weight;
+            weight *= parameters.getReflectivity();
+        }
+        float bound = lights * parameters.getLightThreshold() * (parameters.getDiffuse() + parameters.getSpecular()) * bounceWeights;
+        float largest = 0;
+        float[] expected = exhaustive.getPixels(), actual = culled.getPixels();
+        for (int i = 0; i < expected.length; i++) {
+            largest = Math.max(largest, Math.abs(expected[i] - actual[i]));
+        }
+        //Summing the remaining lights in another order may round differently
+        assertTrue(largest <= bound + 1e-5f, "largest difference " + largest + ", bound " + bound);
+    }
+
+    @Test
+    void packetsGiveBitIdenticalImages() {
+        Scene scene = TestScenes.random(2000, 4, 8);
+        Camera camera = TestScenes.outside(2000);
+        CpuRaytracer tracer = new CpuRaytracer();
+        tracer.setPacketTracing(true);
+        assumeTrue(tracer.isPacketTracing(), "jdk.incubator.vector is not available");
+
+        for (boolean bvh : new boolean[]{true, false}) {
+            tracer.setBvhEnabled(bvh);
+            FloatImage scalar = new FloatImage(WIDTH, HEIGHT), packets = new FloatImage(WIDTH, HEIGHT);
+            tracer.setPacketTracing(false);
+            tracer.render(scene, camera, scalar);
+            tracer.setPacketTracing(true);
+            tracer.render(scene, camera, packets);
+            assertTrue(tracer.getPacketsTraced() > 0);
+            assertArrayEquals(scalar.getPixels(), packets.getPixels(), "bvh " + bvh);
+        }
+    }
+
+    //One sphere lit from above, as seen from the side
+    private static Scene litSphere() {
+        Scene scene = new Scene();
+        scene.sphereStore.add(0, 0, 0, 1, 1, 1, 1, 50);
+        scene.lightStore.add(5, 5, 0, 1, 1, 1, 40);
+        return scene;
+    }
+
+    private static Camera facingLitSphere() {
+        Camera camera = new Camera();
+        camera.getPosition().set(5, 0, 0);
+        camera.getDirection().set(0, 0, 0);
+        return camera;
+    }
+
+    //Few enough passes for a test, the default warm-up and threshold
+    private static Accumulation adaptive() {
+        Accumulation accumulation = new Accumulation();
+        accumulation.setMaxSamples(64);
+        return accumulation;
+    }
+
+    private static float luminance(float[] rgba, int offset) {
+        return 0.2126f * rgba[offset] + 0.7152f * rgba[offset + 1] + 0.0722f * rgba[offset + 2];
+    }
+}
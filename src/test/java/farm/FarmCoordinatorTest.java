@@ -0,0 +1,78 @@
+package farm;
+
+import cpu.CpuRaytracer;
+import cpu.FloatImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import scene.Camera;
+import scene.Scene;
+import scene.TestScenes;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FarmCoordinatorTest {
+    private static final int WIDTH = 100, HEIGHT = 70;
+
+    /**
+     * Workers on threads of this process, plus one that announces a result far larger than any tile
+     */
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void workersTraceTheSameImageAndOversizedResultsDropTheirWorker() throws Exception {
+        Scene scene = TestScenes.random(300, 5, 1);
+        Camera camera = TestScenes.outside(300);
+        FloatImage expected = new FloatImage(WIDTH, HEIGHT);
+        new CpuRaytracer().render(scene, camera, expected);
+
+        List<Thread> workerThreads = new ArrayList<>();
+        List<ForkJoinPool> pools = new ArrayList<>();
+        try (FarmCoordinator farm = new FarmCoordinator(0, 32);
+             SocketChannel rogue = SocketChannel.open(new InetSocketAddress("localhost", farm.getPort()))) {
+            InetSocketAddress address = new InetSocketAddress("localhost", farm.getPort());
+            for (int i = 0; i < 2; i++) {
+                ForkJoinPool pool = new ForkJoinPool(2);
+                pools.add(pool);
+                FarmWorker worker = new FarmWorker(new CpuRaytracer(pool, CpuRaytracer.DEFAULT_TILE_SIZE), 2);
+                Thread thread = new Thread(() -> {
+                    try {
+                        worker.run(address);
+                    } catch (IOException e) {
+                        //Closing the coordinator may cut the connection
+                    }
+                }, "worker " + i);
+                thread.start();
+                workerThreads.add(thread);
+            }
+            FarmProtocol.send(rogue, FarmProtocol.begin(FarmProtocol.allocate(16), FarmProtocol.HELLO, FarmProtocol.HELLO_SIZE).putInt(1));
+            farm.awaitWorkers(3, 20_000);
+
+            //Only the header, a buffer for the payload would take the 2 GB the coordinator must not
+            ByteBuffer header = ByteBuffer.allocate(FarmProtocol.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(FarmProtocol.RESULT).putInt(FarmProtocol.MAX_PAYLOAD);
+            FarmProtocol.send(rogue, header);
+            //The frames finish either way, the rogue is dropped once its reader sees the length
+            for (int frame = 0; frame < 100 && farm.getWorkersLost() == 0; frame++) {
+                FloatImage actual = new FloatImage(WIDTH, HEIGHT);
+                farm.render(scene, camera, actual);
+                assertArrayEquals(expected.getPixels(), actual.getPixels(), "frame " + frame);
+            }
+            assertEquals(1, farm.getWorkersLost());
+            assertEquals(2, farm.getWorkerCount());
+        } finally {
+            for (Thread thread : workerThreads) {
+                thread.join();
+            }
+            pools.forEach(ForkJoinPool::shutdown);
+        }
+    }
+}
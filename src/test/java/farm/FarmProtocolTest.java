@@ -0,0 +1,84 @@
+package farm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FarmProtocolTest {
+    private static final int TILE_SIZE = 64;
+
+    @Test
+    void messagesArriveWholeAndGrowTheBuffer() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel out = Channels.newChannel(bytes);
+        ByteBuffer message = FarmProtocol.allocate(16);
+        FarmProtocol.send(out, message = FarmProtocol.begin(message, FarmProtocol.HELLO, FarmProtocol.HELLO_SIZE).putInt(8));
+        message = FarmProtocol.begin(message, FarmProtocol.RESULT, FarmProtocol.RESULT_HEADER_SIZE + TILE_SIZE * TILE_SIZE * 16)
+                .putLong(3).putInt(5).putLong(7);
+        while (message.hasRemaining()) {
+            message.putFloat(message.position() / 4.0f);
+        }
+        FarmProtocol.send(out, message);
+        FarmProtocol.send(out, FarmProtocol.begin(message, FarmProtocol.SHUTDOWN, 0));
+
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+        ByteBuffer input = FarmProtocol.allocate(16);
+        input = FarmProtocol.receive(in, input, TILE_SIZE);
+        assertEquals(FarmProtocol.HELLO, FarmProtocol.typeOf(input));
+        assertEquals(8, input.getInt());
+
+        input = FarmProtocol.receive(in, input, TILE_SIZE);
+        assertEquals(FarmProtocol.RESULT, FarmProtocol.typeOf(input));
+        assertEquals(FarmProtocol.RESULT_HEADER_SIZE + TILE_SIZE * TILE_SIZE * 16, input.remaining());
+        assertEquals(3, input.getLong());
+        assertEquals(5, input.getInt());
+        assertEquals(7, input.getLong());
+        assertEquals((FarmProtocol.HEADER_SIZE + FarmProtocol.RESULT_HEADER_SIZE) / 4.0f, input.getFloat());
+
+        input = FarmProtocol.receive(in, input, TILE_SIZE);
+        assertEquals(FarmProtocol.SHUTDOWN, FarmProtocol.typeOf(input));
+        assertFalse(input.hasRemaining());
+        ByteBuffer last = input;
+        assertThrows(EOFException.class, () -> FarmProtocol.receive(in, last, TILE_SIZE));
+    }
+
+    @Test
+    void lengthsBeyondWhatTheTypeHoldsAreRejectedBeforeReadingThePayload() {
+        //Larger than a tile of pixels, or close to 2 GB
+        assertRejected(FarmProtocol.RESULT, FarmProtocol.RESULT_HEADER_SIZE + (TILE_SIZE + 1) * TILE_SIZE * 16, TILE_SIZE);
+        assertRejected(FarmProtocol.RESULT, FarmProtocol.MAX_PAYLOAD, TILE_SIZE);
+        assertRejected(FarmProtocol.RESULT, -1, TILE_SIZE);
+        assertRejected(FarmProtocol.SCENE, -1, TILE_SIZE);
+        //Workers do not take results at all
+        assertRejected(FarmProtocol.RESULT, FarmProtocol.RESULT_HEADER_SIZE + 16, 0);
+    }
+
+    @Test
+    void fixedSizeMessagesMustHaveTheirSize() {
+        assertRejected(FarmProtocol.TILE, FarmProtocol.TILE_SIZE + 1, TILE_SIZE);
+        assertRejected(FarmProtocol.TILE, FarmProtocol.TILE_SIZE - 1, TILE_SIZE);
+        assertRejected(FarmProtocol.HELLO, 0, TILE_SIZE);
+        assertRejected(FarmProtocol.SHUTDOWN, 4, TILE_SIZE);
+        //Too short for the frame, tile and time
+        assertRejected(FarmProtocol.RESULT, FarmProtocol.RESULT_HEADER_SIZE - 1, TILE_SIZE);
+        assertRejected(42, 0, TILE_SIZE);
+    }
+
+    //A header with nothing after it, so reading the payload would end in an EOFException instead
+    private static void assertRejected(int type, int length, int tileSize) {
+        ByteBuffer header = ByteBuffer.allocate(FarmProtocol.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putInt(type).putInt(length);
+        ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(header.array()));
+        IOException e = assertThrows(IOException.class, () -> FarmProtocol.receive(in, FarmProtocol.allocate(16), tileSize));
+        assertFalse(e instanceof EOFException, "type " + type + " of length " + length + " was read");
+    }
+}
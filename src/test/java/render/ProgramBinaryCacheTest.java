@@ -0,0 +1,96 @@
+package render;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgramBinaryCacheTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void keyChangesWithEveryPart() {
+        String key = ProgramBinaryCache.keyOf("driver", Map.of("A", "1"), List.of("x", "y"));
+        assertEquals(key, ProgramBinaryCache.keyOf("driver", Map.of("A", "1"), List.of("x", "y")));
+        assertNotEquals(key, ProgramBinaryCache.keyOf("other driver", Map.of("A", "1"), List.of("x", "y")));
+        assertNotEquals(key, ProgramBinaryCache.keyOf("driver", Map.of("A", "2"), List.of("x", "y")));
+        //Moving text from one source into the next is a different program
+        assertNotEquals(key, ProgramBinaryCache.keyOf("driver", Map.of("A", "1"), List.of("xy", "")));
+        assertEquals(ProgramBinaryCache.keyOf("driver", Map.of("A", "1", "B", "2"), List.of()),
+                ProgramBinaryCache.keyOf("driver", Map.of("B", "2", "A", "1"), List.of()));
+    }
+
+    @Test
+    void storedBinaryLoadsBack() {
+        ProgramBinaryCache cache = new ProgramBinaryCache(directory.resolve("programs"));
+        String key = ProgramBinaryCache.keyOf("driver", Map.of(), List.of("source"));
+        assertNull(cache.load(key));
+
+        cache.store(key, 7, new byte[]{1, 2, 3});
+        ProgramBinaryCache.Entry entry = cache.load(key);
+        assertNotNull(entry);
+        assertEquals(7, entry.format);
+        assertArrayEquals(new byte[]{1, 2, 3}, entry.binary);
+        assertEquals(0, cache.getRejected());
+    }
+
+    @Test
+    void corruptOrTruncatedBinaryIsDeleted() throws IOException {
+        ProgramBinaryCache cache = new ProgramBinaryCache(directory);
+        String corrupt = ProgramBinaryCache.keyOf("driver", Map.of(), List.of("corrupt"));
+        String truncated = ProgramBinaryCache.keyOf("driver", Map.of(), List.of("truncated"));
+        cache.store(corrupt, 1, new byte[]{1, 2, 3});
+        cache.store(truncated, 1, new byte[]{1, 2, 3});
+
+        Path file = directory.resolve(corrupt + ".bin");
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+        assertNull(cache.load(corrupt));
+        assertFalse(Files.exists(file));
+
+        file = directory.resolve(truncated + ".bin");
+        bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 2));
+        assertNull(cache.load(truncated));
+        assertFalse(Files.exists(file));
+        assertEquals(2, cache.getRejected());
+    }
+
+    @Test
+    void lengthBeyondTheFileIsRejectedWithoutAllocatingIt() throws IOException {
+        ProgramBinaryCache cache = new ProgramBinaryCache(directory);
+        String key = ProgramBinaryCache.keyOf("driver", Map.of(), List.of("huge"));
+        cache.store(key, 1, new byte[]{1, 2, 3});
+
+        //The length follows magic, version and format
+        Path file = directory.resolve(key + ".bin");
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        bytes.putInt(12, 0x7ffffff0);
+        Files.write(file, bytes.array());
+        assertNull(cache.load(key));
+        assertFalse(Files.exists(file));
+        assertEquals(1, cache.getRejected());
+    }
+
+    @Test
+    void hitsAndMissesAddUpTheirTimes() {
+        ProgramBinaryCache cache = new ProgramBinaryCache(directory);
+        cache.recordHit(1_000_000);
+        cache.recordHit(500_000);
+        cache.recordMiss(40_000_000);
+        assertEquals(2, cache.getHits());
+        assertEquals(1_500_000, cache.getHitNanos());
+        assertEquals(1, cache.getMisses());
+        assertEquals(40_000_000, cache.getMissNanos());
+    }
+}
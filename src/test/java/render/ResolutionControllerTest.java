@@ -0,0 +1,68 @@
+package render;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResolutionControllerTest {
+    private static final long TARGET = 12_000_000;
+
+    //A pass costs the full resolution time times the fraction of pixels traced
+    private static long pass(ResolutionController controller, double fullNanos) {
+        return (long) (fullNanos * controller.getScale() * controller.getScale());
+    }
+
+    @Test
+    void slowPassesShrinkTheScaleToMeetTheTarget() {
+        ResolutionController controller = new ResolutionController(TARGET, 0.25, 1.0);
+        assertEquals(1.0, controller.getScale());
+        assertFalse(controller.recordPass(pass(controller, 40e6)));
+        assertTrue(controller.recordPass(pass(controller, 40e6)));
+        //sqrt(12 / 40) rounded down to a step
+        assertEquals(0.5, controller.getScale(), 1e-9);
+        assertEquals(640, controller.scale(1280));
+
+        //The scale then holds
+        for (int i = 0; i < 50; i++) {
+            assertFalse(controller.recordPass(pass(controller, 40e6)), "pass " + i);
+        }
+    }
+
+    @Test
+    void scaleGrowsBackOnlyAfterManyFastPasses() {
+        ResolutionController controller = new ResolutionController(TARGET, 0.25, 1.0);
+        controller.recordPass(pass(controller, 40e6));
+        controller.recordPass(pass(controller, 40e6));
+        assertEquals(0.5, controller.getScale(), 1e-9);
+
+        int passes = 0;
+        while (!controller.recordPass(pass(controller, 10e6))) {
+            passes++;
+        }
+        assertEquals(9, passes);
+        assertEquals(1.0, controller.getScale(), 1e-9);
+    }
+
+    @Test
+    void onePassOnTargetEndsASlowStreak() {
+        ResolutionController controller = new ResolutionController(TARGET, 0.25, 1.0);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(controller.recordPass(40_000_000));
+            assertFalse(controller.recordPass(TARGET));
+        }
+        assertEquals(1.0, controller.getScale());
+    }
+
+    @Test
+    void scaleStaysInItsRange() {
+        ResolutionController controller = new ResolutionController(TARGET, 0.25, 0.8);
+        assertEquals(0.8, controller.getScale());
+        controller.recordPass(1_000_000_000);
+        assertTrue(controller.recordPass(1_000_000_000));
+        assertEquals(0.25, controller.getScale(), 1e-9);
+        assertEquals(1, controller.scale(1));
+
+        assertThrows(IllegalArgumentException.class, () -> new ResolutionController(0, 0.25, 1.0));
+        assertThrows(IllegalArgumentException.class, () -> new ResolutionController(TARGET, 0.5, 0.25));
+    }
+}
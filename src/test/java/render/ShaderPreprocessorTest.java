@@ -0,0 +1,69 @@
+package render;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShaderPreprocessorTest {
+    @Test
+    void definesGoAfterTheVersionLineAndKeepLineNumbers() {
+        String source = "#version 430\nvoid main() {\n}\n";
+        Map<String, String> defines = new LinkedHashMap<>();
+        defines.put("A", "1");
+        defines.put("B", "2.5");
+        assertEquals("#version 430\n#define A 1\n#define B 2.5\n#line 2\nvoid main() {\n}\n",
+                ShaderPreprocessor.injectDefines(source, defines));
+    }
+
+    @Test
+    void versionAfterCommentsIsFound() {
+        String source = "//Header\n//More\n#version 430\nint x;\n";
+        assertEquals("//Header\n//More\n#version 430\n#define A 1\n#line 4\nint x;\n",
+                ShaderPreprocessor.injectDefines(source, Map.of("A", "1")));
+    }
+
+    @Test
+    void sourceWithoutVersionGetsTheDefinesOnTop() {
+        assertEquals("#define A 1\n#line 1\nint x;\n", ShaderPreprocessor.injectDefines("int x;\n", Map.of("A", "1")));
+        assertEquals("int x;\n", ShaderPreprocessor.injectDefines("int x;\n", Map.of()));
+    }
+
+    @Test
+    void malformedDefinesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ShaderPreprocessor.injectDefines("#version 430\n", Map.of("1A", "1")));
+        assertThrows(IllegalArgumentException.class, () -> ShaderPreprocessor.injectDefines("#version 430\n", Map.of("A", "1\n#define B 2")));
+    }
+
+    @Test
+    void everyParameterIsGuardedInTheShader() throws IOException {
+        String source;
+        try (InputStream in = ShaderPreprocessorTest.class.getResourceAsStream("/compute.glsl")) {
+            assertNotNull(in, "compute.glsl is not on the classpath");
+            source = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        //An injected define the shader does not guard would be redefined, MAX_LIGHTS is optional
+        for (String name : TraceParameters.DEFAULT.withMaxLights(4).toDefines().keySet()) {
+            assertTrue(source.contains("#ifndef " + name) || source.contains("#ifdef " + name), "compute.glsl does not guard " + name);
+        }
+        String injected = ShaderPreprocessor.injectDefines(source, TraceParameters.PREVIEW.toDefines());
+        assertTrue(injected.startsWith("#version"));
+        assertTrue(injected.contains("#define REFLECTIONS 1\n"));
+    }
+
+    @Test
+    void lightLoopBoundRoundsUpToAPowerOfTwo() {
+        int[] lights = {0, 1, 2, 3, 5, 16, 17};
+        int[] bounds = {1, 1, 2, 4, 8, 16, TraceParameters.UNBOUNDED_LIGHTS};
+        for (int i = 0; i < lights.length; i++) {
+            assertEquals(bounds[i], TraceParameters.lightLoopBound(lights[i], 16), lights[i] + " lights");
+        }
+        assertFalse(TraceParameters.DEFAULT.toDefines().containsKey("MAX_LIGHTS"));
+        assertEquals("4", TraceParameters.DEFAULT.withMaxLights(4).toDefines().get("MAX_LIGHTS"));
+    }
+}
@@ -0,0 +1,227 @@
+package render;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the scheduler with a fake clock that each rendered tile advances by its cost
+ */
+class TileSchedulerTest {
+    private static final int TILE_SIZE = 10;
+
+    private long now;
+    private final List<int[]> rendered = new ArrayList<>();
+
+    private TileScheduler scheduler(int width, int height) {
+        TileScheduler scheduler = new TileScheduler(TILE_SIZE, () -> now);
+        scheduler.resize(width, height);
+        return scheduler;
+    }
+
+    //Renders a frame whose tiles each take the time the cost function gives, recording them as x, y, width, height
+    private boolean frame(TileScheduler scheduler, ToLongFunction<int[]> cost) {
+        rendered.clear();
+        return scheduler.renderFrame((x, y, width, height) -> {
+            int[] tile = {x, y, width, height};
+            rendered.add(tile);
+            now += cost.applyAsLong(tile);
+        });
+    }
+
+    @Test
+    void passCoversEveryPixelOnce() {
+        TileScheduler scheduler = scheduler(35, 25);
+        assertEquals(12, scheduler.getTileCount());
+        assertTrue(frame(scheduler, tile -> 1));
+
+        int[] covered = new int[35 * 25];
+        for (int[] tile : rendered) {
+            for (int y = tile[1]; y < tile[1] + tile[3]; y++) {
+                for (int x = tile[0]; x < tile[0] + tile[2]; x++) {
+                    covered[y * 35 + x]++;
+                }
+            }
+        }
+        for (int count : covered) {
+            assertEquals(1, count);
+        }
+        assertEquals(35 * 25, scheduler.getPixelsRenderedLastFrame());
+    }
+
+    @Test
+    void budgetStopsTheFrameOnceTheNextTileWouldOverrunIt() {
+        TileScheduler scheduler = scheduler(40, 40);
+        //Learn every tile's cost in one unlimited pass
+        frame(scheduler, tile -> 40);
+        scheduler.setBudgetNanos(100);
+
+        //Two tiles take 80ns, a third is predicted to end at 120
+        assertFalse(frame(scheduler, tile -> 40));
+        assertEquals(2, scheduler.getTilesRenderedLastFrame());
+        assertEquals(80, scheduler.getNanosLastFrame());
+        assertEquals(14, scheduler.getPendingTiles());
+
+        int frames = 1;
+        boolean complete;
+        do {
+            complete = frame(scheduler, tile -> 40);
+            assertEquals(2, rendered.size());
+            frames++;
+        } while (!complete);
+        assertEquals(8, frames);
+        assertEquals(0, scheduler.getPendingTiles());
+    }
+
+    @Test
+    void tileOfUnknownCostIsRenderedUntilTheBudgetIsSpent() {
+        TileScheduler scheduler = scheduler(40, 40);
+        scheduler.setBudgetNanos(100);
+        //Nothing is known about the costs yet, so tiles are rendered until the time is up
+        frame(scheduler, tile -> 40);
+        assertEquals(3, scheduler.getTilesRenderedLastFrame());
+        assertEquals(120, scheduler.getNanosLastFrame());
+    }
+
+    @Test
+    void everyFrameRendersAtLeastOneTile() {
+        TileScheduler scheduler = scheduler(30, 20);
+        scheduler.setBudgetNanos(1);
+        for (int i = 1; i < scheduler.getTileCount(); i++) {
+            assertFalse(frame(scheduler, tile -> 50));
+            assertEquals(1, rendered.size());
+        }
+        assertTrue(frame(scheduler, tile -> 50));
+        assertEquals(1, rendered.size());
+
+        //The next frame starts a new pass
+        assertFalse(frame(scheduler, tile -> 50));
+        assertEquals(scheduler.getTileCount() - 1, scheduler.getPendingTiles());
+    }
+
+    @Test
+    void tilesLeftOverGoFirstAfterARestart() {
+        TileScheduler scheduler = scheduler(50, 50);
+        scheduler.setBudgetNanos(100);
+        frame(scheduler, tile -> 40);
+        Set<String> firstFrame = keys(rendered);
+        assertEquals(3, firstFrame.size());
+
+        //Restarting keeps the carried tiles ahead of those the first frame rendered, which are nearer the centre
+        scheduler.restart();
+        scheduler.setBudgetNanos(TileScheduler.UNLIMITED);
+        assertTrue(frame(scheduler, tile -> 40));
+        assertEquals(scheduler.getTileCount(), rendered.size());
+        Set<String> lastThree = keys(rendered.subList(rendered.size() - 3, rendered.size()));
+        assertEquals(firstFrame, lastThree);
+    }
+
+    @Test
+    void centreFirstRendersOutwards() {
+        TileScheduler scheduler = scheduler(70, 50);
+        assertEquals(TileScheduler.Order.CENTRE_FIRST, scheduler.getOrder());
+        frame(scheduler, tile -> 1);
+
+        assertArrayEquals(new int[]{30, 20, 10, 10}, rendered.get(0));
+        long previous = -1;
+        for (int[] tile : rendered) {
+            long distance = centreDistance(tile, 70, 50);
+            assertTrue(distance >= previous, "tile at " + tile[0] + ", " + tile[1] + " out of order");
+            previous = distance;
+        }
+    }
+
+    @Test
+    void costliestFirstFollowsTheLastPassCosts() {
+        TileScheduler scheduler = scheduler(40, 30);
+        scheduler.setOrder(TileScheduler.Order.COSTLIEST_FIRST);
+        //Costs in microseconds, as the order only looks at whole microseconds, rising across the image
+        ToLongFunction<int[]> cost = tile -> (tile[0] + 7L * tile[1] + 1) * 1000;
+        frame(scheduler, cost);
+
+        frame(scheduler, cost);
+        assertEquals(scheduler.getTileCount(), rendered.size());
+        long previous = Long.MAX_VALUE;
+        for (int[] tile : rendered) {
+            assertTrue(cost.applyAsLong(tile) <= previous, "tile at " + tile[0] + ", " + tile[1] + " out of order");
+            previous = cost.applyAsLong(tile);
+        }
+
+        //Under a budget the costliest tile still goes first
+        scheduler.setBudgetNanos(100_000);
+        frame(scheduler, cost);
+        assertArrayEquals(new int[]{30, 20, 10, 10}, rendered.get(0));
+    }
+
+    @Test
+    void resizeStartsANewPass() {
+        TileScheduler scheduler = scheduler(40, 40);
+        scheduler.setBudgetNanos(1);
+        frame(scheduler, tile -> 1);
+        assertEquals(15, scheduler.getPendingTiles());
+
+        scheduler.resize(40, 40);
+        assertEquals(15, scheduler.getPendingTiles());
+        scheduler.resize(20, 20);
+        assertEquals(4, scheduler.getPendingTiles());
+        assertThrows(IllegalArgumentException.class, () -> scheduler.setBudgetNanos(0));
+    }
+
+    @Test
+    void predictedFramesFillTheBudgetWithTheCostsReportedLater() {
+        TileScheduler scheduler = scheduler(40, 40);
+        scheduler.setPredicted(true);
+        scheduler.setBudgetNanos(100);
+        //The tiles only get queued, the clock does not move. Nothing is known, so one tile per frame
+        assertFalse(frame(scheduler, tile -> 0));
+        assertEquals(1, rendered.size());
+        assertEquals(0, scheduler.getNanosLastFrame());
+        int[] first = rendered.get(0);
+        scheduler.recordCost(first[0], first[1], 40);
+
+        //Tiles never timed are predicted to cost the average of those that were
+        assertFalse(frame(scheduler, tile -> 0));
+        assertEquals(2, rendered.size());
+        assertEquals(80, scheduler.getNanosLastFrame());
+        for (int[] tile : rendered) {
+            scheduler.recordCost(tile[0], tile[1], 10);
+        }
+        //The other tiles are predicted at the average of 40, 10 and 10
+        frame(scheduler, tile -> 0);
+        assertEquals(5, rendered.size());
+        assertEquals(100, scheduler.getNanosLastFrame());
+        assertEquals(20, scheduler.getMeanPixelNanos() * TILE_SIZE * TILE_SIZE, 1e-9);
+
+        //Costs of tiles that are not there are ignored
+        scheduler.recordCost(400, 0, 1);
+        scheduler.recordCost(5, 0, 1);
+        assertEquals(20, scheduler.getMeanPixelNanos() * TILE_SIZE * TILE_SIZE, 1e-9);
+    }
+
+    @Test
+    void predictedFramesWithoutABudgetRenderWholePasses() {
+        TileScheduler scheduler = scheduler(40, 40);
+        scheduler.setPredicted(true);
+        assertTrue(frame(scheduler, tile -> 0));
+        assertEquals(16, rendered.size());
+    }
+
+    private static long centreDistance(int[] tile, int width, int height) {
+        long dx = tile[0] + TILE_SIZE / 2 - width / 2, dy = tile[1] + TILE_SIZE / 2 - height / 2;
+        return dx * dx + dy * dy;
+    }
+
+    private static Set<String> keys(List<int[]> tiles) {
+        Set<String> keys = new HashSet<>();
+        for (int[] tile : tiles) {
+            keys.add(tile[0] + "," + tile[1]);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,55 @@
+package render;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkGroupTunerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void fastestCandidateWinsAfterAWarmUp() {
+        WorkGroupTuner tuner = new WorkGroupTuner(WorkGroupTuner.DEFAULT_CANDIDATES);
+        Map<WorkGroupTuner.Shape, Integer> calls = new HashMap<>();
+        //128 invocations is fastest, the first run of every shape is slow as if it were compiling
+        WorkGroupTuner.Shape best = tuner.tune(shape -> {
+            int call = calls.merge(shape, 1, Integer::sum);
+            return call == 1 ? 1_000_000_000L : Math.abs(shape.x * shape.y - 128) * 1000L + (shape.x == 32 ? 5 : 0) + 100;
+        });
+        assertEquals(new WorkGroupTuner.Shape(16, 8), best);
+        for (WorkGroupTuner.Shape candidate : WorkGroupTuner.DEFAULT_CANDIDATES) {
+            assertEquals(4, calls.get(candidate), candidate.toString());
+        }
+        assertTrue(tuner.summary().startsWith("Work group sizes: 8x8 "), tuner.summary());
+    }
+
+    @Test
+    void winnersAreStoredPerRenderer() {
+        Path file = directory.resolve("tuning").resolve("work-groups.properties");
+        assertNull(WorkGroupTuner.load(file, "Mesa|llvmpipe|4.5"));
+
+        WorkGroupTuner.store(file, "Mesa|llvmpipe|4.5", new WorkGroupTuner.Shape(32, 4));
+        WorkGroupTuner.store(file, "other", new WorkGroupTuner.Shape(8, 8));
+        assertEquals(new WorkGroupTuner.Shape(32, 4), WorkGroupTuner.load(file, "Mesa|llvmpipe|4.5"));
+        assertEquals(new WorkGroupTuner.Shape(8, 8), WorkGroupTuner.load(file, "other"));
+        assertNull(WorkGroupTuner.load(file, "unknown"));
+
+        WorkGroupTuner.store(file, "other", new WorkGroupTuner.Shape(64, 2));
+        assertEquals(new WorkGroupTuner.Shape(64, 2), WorkGroupTuner.load(file, "other"));
+        assertEquals(new WorkGroupTuner.Shape(32, 4), WorkGroupTuner.load(file, "Mesa|llvmpipe|4.5"));
+    }
+
+    @Test
+    void shapesParseWhatTheyPrint() {
+        assertEquals(new WorkGroupTuner.Shape(16, 8), WorkGroupTuner.Shape.parse(new WorkGroupTuner.Shape(16, 8).toString()));
+        assertThrows(IllegalArgumentException.class, () -> WorkGroupTuner.Shape.parse("16"));
+        assertThrows(IllegalArgumentException.class, () -> WorkGroupTuner.Shape.parse("16xa"));
+        assertThrows(IllegalArgumentException.class, () -> WorkGroupTuner.Shape.parse("0x8"));
+    }
+}
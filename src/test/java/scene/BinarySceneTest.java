@@ -0,0 +1,139 @@
+package scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinarySceneTest {
+    private static final String TEXT_SCENE = String.join("\n",
+            "# Spheres, lights and a camera path",
+            "sphere 0 0 0 1.0",
+            "sphere 2 0.5 -1 0.6 1 0.3 0.3 20",
+            "sphere -1.5 -0.5 1.5 0.8 0.3 0.6 1 80",
+            "sphere 0 -101 0 100 0.8 0.8 0.8 10",
+            "light 3 4 2 1 0.9 0.8 18",
+            "light 0 200 0 1 1 1 2000",
+            "camera 0 6 1 0 0 0 0",
+            "camera 30 0 1 6 0 0 0",
+            "camera 59 -6 1 0 0 0 0",
+            "");
+
+    //Mapped files cannot be deleted on every platform until the mapping is collected, so no @TempDir
+    private static Path temporaryFile(String suffix) throws IOException {
+        Path file = Files.createTempFile("scene", suffix);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    private static Path textScene() throws IOException {
+        Path file = temporaryFile(".txt");
+        Files.writeString(file, TEXT_SCENE);
+        return file;
+    }
+
+    @Test
+    void convertedSceneReadsBackLikeTheText() throws IOException {
+        Path text = textScene(), binary = temporaryFile(".scene");
+        BinarySceneWriter.convert(text, binary);
+        BinaryScene scene = BinaryScene.open(binary);
+        assertEquals(4, scene.getSphereCount());
+        assertEquals(2, scene.getLightCount());
+        assertEquals(3, scene.getKeyframeCount());
+
+        Scene fromText = new Scene(), fromBinary = new Scene();
+        CameraPath textPath = new CameraPath(), binaryPath = new CameraPath();
+        TextSceneReader.read(text, fromText, textPath);
+        //A freed handle in the target must not confuse the bulk append
+        fromBinary.sphereStore.remove(fromBinary.sphereStore.add(9, 9, 9, 9, 9, 9, 9, 9));
+        scene.readInto(fromBinary, binaryPath);
+
+        assertSameColumns(fromText.sphereStore, fromBinary.sphereStore);
+        assertSameColumns(fromText.lightStore, fromBinary.lightStore);
+        for (int slot = 0; slot < fromBinary.sphereStore.size(); slot++) {
+            assertEquals(slot, fromBinary.sphereStore.slotOf(fromBinary.sphereStore.handleAt(slot)));
+        }
+        for (int frame = -1; frame < 80; frame += 7) {
+            Camera textCamera = new Camera(), binaryCamera = new Camera();
+            textPath.apply(frame, textCamera);
+            binaryPath.apply(frame, binaryCamera);
+            assertEquals(textCamera.getPosition(), binaryCamera.getPosition(), "frame " + frame);
+            assertEquals(textCamera.getDirection(), binaryCamera.getDirection(), "frame " + frame);
+        }
+
+        assertTrue(BinaryScene.isBinaryScene(binary));
+        assertFalse(BinaryScene.isBinaryScene(text));
+    }
+
+    @Test
+    void largeSceneSurvivesTheRoundTrip() throws IOException {
+        Scene original = TestScenes.random(5000, 50, 1);
+        Path binary = temporaryFile(".scene");
+        try (BinarySceneWriter writer = new BinarySceneWriter(binary, 5000, 50)) {
+            SphereStore spheres = original.sphereStore;
+            for (int slot = 0; slot < spheres.size(); slot++) {
+                int handle = spheres.handleAt(slot);
+                FloatBuffer material = spheres.materials();
+                writer.sphere(spheres.getX(handle), spheres.getY(handle), spheres.getZ(handle), spheres.getRadius(handle),
+                        material.get(slot * 4), material.get(slot * 4 + 1), material.get(slot * 4 + 2), spheres.getSpecularN(handle));
+            }
+            FloatBuffer lights = original.lightStore.positionBrightness(), colours = original.lightStore.colours();
+            for (int slot = 0; slot < original.lightStore.size(); slot++) {
+                writer.light(lights.get(slot * 4), lights.get(slot * 4 + 1), lights.get(slot * 4 + 2),
+                        colours.get(slot * 4), colours.get(slot * 4 + 1), colours.get(slot * 4 + 2), lights.get(slot * 4 + 3));
+            }
+        }
+
+        Scene copy = new Scene();
+        BinaryScene.open(binary).readInto(copy, new CameraPath());
+        assertSameColumns(original.sphereStore, copy.sphereStore);
+        assertSameColumns(original.lightStore, copy.lightStore);
+    }
+
+    @Test
+    void damageIsDetected() throws IOException {
+        Path binary = temporaryFile(".scene"), damaged = temporaryFile(".scene");
+        BinarySceneWriter.convert(textScene(), binary);
+        byte[] bytes = Files.readAllBytes(binary);
+
+        //A flipped bit in a section is only found when checking the sections
+        byte[] section = bytes.clone();
+        section[BinaryScene.HEADER_SIZE + 6] ^= 1;
+        Files.write(damaged, section);
+        assertThrows(IOException.class, () -> BinaryScene.open(damaged));
+        assertDoesNotThrow(() -> BinaryScene.open(damaged, false));
+
+        byte[] header = bytes.clone();
+        header[BinaryScene.COUNTS_OFFSET + 1] ^= 1;
+        Files.write(damaged, header);
+        assertThrows(IOException.class, () -> BinaryScene.open(damaged, false));
+
+        Files.write(damaged, Arrays.copyOf(bytes, bytes.length - 4));
+        assertThrows(IOException.class, () -> BinaryScene.open(damaged, false));
+
+        Files.write(damaged, new byte[10]);
+        assertThrows(IOException.class, () -> BinaryScene.open(damaged, false));
+    }
+
+    @Test
+    void writerRefusesFewerElementsThanDeclared() throws IOException {
+        Path binary = temporaryFile(".scene");
+        BinarySceneWriter writer = new BinarySceneWriter(binary, 2, 0);
+        writer.sphere(1, 2, 3, 4, 5, 6, 7, 8);
+        assertThrows(IOException.class, writer::close);
+        assertThrows(IOException.class, () -> BinaryScene.open(binary));
+    }
+
+    private static void assertSameColumns(OffHeapStore expected, OffHeapStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int c = 0; c < expected.getColumnCount(); c++) {
+            assertEquals(expected.getColumn(c), actual.getColumn(c), "column " + c);
+        }
+    }
+}
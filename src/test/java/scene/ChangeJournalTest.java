@@ -0,0 +1,45 @@
+package scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeJournalTest {
+    private static List<String> changesSince(ChangeJournal journal, long version) {
+        List<String> ranges = new ArrayList<>();
+        assertTrue(journal.changesSince(version, (column, firstSlot, endSlot) -> ranges.add(column + ":" + firstSlot + "-" + endSlot)));
+        return ranges;
+    }
+
+    @Test
+    void adjacentChangesOfAColumnMerge() {
+        ChangeJournal journal = new ChangeJournal(8);
+        //Two columns written in turn, slot after slot
+        for (int slot = 0; slot < 10; slot++) {
+            journal.record(slot + 1, 0, slot, slot + 1);
+            journal.record(slot + 1, 1, slot, slot + 1);
+        }
+        assertEquals(2, journal.size());
+        assertEquals(List.of("0:0-10", "1:0-10"), changesSince(journal, 0));
+
+        //A range far away gets its own entry
+        journal.record(11, 0, 50, 51);
+        assertEquals(List.of("0:50-51"), changesSince(journal, 10));
+        assertEquals(List.of(), changesSince(journal, 11));
+    }
+
+    @Test
+    void consumersOlderThanTheDroppedEntriesCopyEverything() {
+        ChangeJournal journal = new ChangeJournal(4);
+        for (int version = 1; version <= 6; version++) {
+            journal.record(version, 0, version * 10, version * 10 + 1);
+        }
+        assertEquals(4, journal.size());
+        assertFalse(journal.changesSince(1, (column, firstSlot, endSlot) -> fail("dropped changes visited")));
+        assertEquals(List.of("0:50-51", "0:60-61"), changesSince(journal, 4));
+        assertThrows(IllegalArgumentException.class, () -> new ChangeJournal(0));
+    }
+}
@@ -0,0 +1,126 @@
+package scene;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimulationThreadTest {
+    private static final int SNAPSHOTS = 2000;
+
+    /**
+     * Every command stamps every value of the scene with its sequence number, so a snapshot with
+     * two different stamps in it was torn between ticks
+     */
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void snapshotsAreNeverTornAndNeverGoBack() throws InterruptedException {
+        SimulationThread simulation = new SimulationThread(5000);
+        Scene scene = simulation.getScene();
+        scene.setAnimationPaused(true);
+        for (int i = 0; i < 200; i++) {
+            scene.sphereStore.add(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        for (int i = 0; i < 20; i++) {
+            scene.lightStore.add(0, 0, 0, 0, 0, 0, 0);
+        }
+        scene.camera.getPosition().set(0, 0, 0);
+
+        //The producer keeps going until the consumer has seen enough snapshots
+        AtomicInteger lastCommand = new AtomicInteger();
+        AtomicReference<Throwable> producerFailure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                Random random = new Random(1);
+                while (!Thread.currentThread().isInterrupted()) {
+                    float stamp = lastCommand.get() + 1;
+                    //Spheres also come and go, so the snapshots change size too
+                    boolean remove = random.nextInt(10) == 0, add = random.nextInt(10) == 0;
+                    simulation.post(s -> stamp(s, stamp, remove, add));
+                    lastCommand.incrementAndGet();
+                    LockSupport.parkNanos(20_000);
+                }
+            } catch (Throwable t) {
+                producerFailure.set(t);
+            }
+        }, "producer");
+
+        simulation.start();
+        producer.start();
+        Scene target = new Scene();
+        Camera camera = new Camera();
+        float last = -1;
+        long applied = 0;
+        try {
+            //Then the last command posted has to come through
+            while (applied < SNAPSHOTS || last < lastCommand.get()) {
+                if (applied == SNAPSHOTS && producer.isAlive()) {
+                    producer.interrupt();
+                    producer.join();
+                }
+                if (!simulation.applyLatest(target, camera)) {
+                    Thread.yield();
+                    continue;
+                }
+                applied++;
+                float stamp = camera.getPosition().x;
+                assertTrue(stamp >= last, "stamp " + stamp + " after " + last);
+                assertStamped(target.sphereStore, stamp);
+                assertStamped(target.lightStore, stamp);
+                assertEquals(stamp, camera.getPosition().y);
+                assertEquals(stamp, camera.getPosition().z);
+                last = stamp;
+            }
+        } finally {
+            producer.interrupt();
+            producer.join();
+            simulation.close();
+        }
+        assertNull(producerFailure.get());
+    }
+
+    private static void stamp(Scene scene, float stamp, boolean remove, boolean add) {
+        SphereStore spheres = scene.sphereStore;
+        if (remove && spheres.size() > 10) {
+            spheres.remove(spheres.handleAt(spheres.size() / 2));
+        }
+        if (add) {
+            spheres.add(0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        for (int slot = 0; slot < spheres.size(); slot++) {
+            int handle = spheres.handleAt(slot);
+            spheres.setPosition(handle, stamp, stamp, stamp);
+            spheres.setRadius(handle, stamp);
+            spheres.setMaterial(handle, stamp, stamp, stamp, stamp);
+        }
+        LightStore lights = scene.lightStore;
+        for (int slot = 0; slot < lights.size(); slot++) {
+            int handle = lights.handleAt(slot);
+            lights.setPosition(handle, stamp, stamp, stamp);
+            lights.setBrightness(handle, stamp);
+            lights.setColour(handle, stamp, stamp, stamp);
+        }
+        scene.camera.getPosition().set(stamp, stamp, stamp);
+    }
+
+    private static void assertStamped(OffHeapStore store, float stamp) {
+        for (int c = 0; c < store.getColumnCount(); c++) {
+            FloatBuffer column = store.getColumn(c).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int i = 0; i < store.size() * 4; i++) {
+                //The colour column has no fourth component
+                if (store instanceof LightStore && c == LightStore.COLOUR && i % 4 == 3) {
+                    continue;
+                }
+                assertEquals(stamp, column.get(i), "column " + c + ", float " + i);
+            }
+        }
+    }
+}
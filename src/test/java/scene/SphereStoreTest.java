@@ -0,0 +1,193 @@
+package scene;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SphereStoreTest {
+    @Test
+    void handlesKeepTheirElementWhileOthersAreRemoved() {
+        SphereStore store = new SphereStore();
+        Random random = new Random(1);
+        //Past the initial capacity, so the columns grow
+        Map<Integer, Float> radii = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            float radius = random.nextFloat();
+            radii.put(store.add(i, 0, 0, radius, 1, 1, 1, 50), radius);
+        }
+        List<Integer> handles = new ArrayList<>(radii.keySet());
+        for (int i = 0; i < 500; i++) {
+            int handle = handles.remove(random.nextInt(handles.size()));
+            store.remove(handle);
+            radii.remove(handle);
+        }
+
+        assertEquals(500, store.size());
+        for (int handle : handles) {
+            assertEquals(radii.get(handle), store.getRadius(handle));
+            assertEquals(handle, store.handleAt(store.slotOf(handle)));
+        }
+        //Slots stay packed
+        for (int slot = 0; slot < store.size(); slot++) {
+            assertTrue(radii.containsKey(store.handleAt(slot)));
+        }
+        assertEquals(500 * OffHeapStore.ELEMENT_SIZE, store.getColumn(SphereStore.POSITION_RADIUS).remaining());
+    }
+
+    @Test
+    void removedHandleIsInvalidUntilReused() {
+        SphereStore store = new SphereStore();
+        int first = store.add(1, 0, 0, 1, 1, 1, 1, 50);
+        int second = store.add(2, 0, 0, 1, 1, 1, 1, 50);
+        store.remove(first);
+
+        assertFalse(store.contains(first));
+        assertThrows(IllegalArgumentException.class, () -> store.slotOf(first));
+        assertThrows(IllegalArgumentException.class, () -> store.getX(first));
+        assertThrows(IndexOutOfBoundsException.class, () -> store.handleAt(1));
+        assertEquals(0, store.slotOf(second));
+        assertEquals(2, store.getX(second));
+
+        assertEquals(first, store.add(3, 0, 0, 1, 1, 1, 1, 50));
+        assertEquals(3, store.getX(first));
+    }
+
+    @Test
+    void versionCountsRealChangesOnly() {
+        SphereStore store = new SphereStore();
+        int handle = store.add(1, 2, 3, 1, 1, 1, 1, 50);
+        long version = store.getVersion();
+
+        store.setPosition(handle, 1, 2, 3);
+        assertEquals(version, store.getVersion());
+        store.setPosition(handle, 1, 2, 4);
+        assertTrue(store.getVersion() > version);
+
+        version = store.getVersion();
+        store.remove(handle);
+        assertTrue(store.getVersion() > version);
+    }
+
+    @Test
+    void journaledRangesKeepACopyInSync() {
+        SphereStore store = new SphereStore();
+        Random random = new Random(2);
+        List<Integer> handles = new ArrayList<>();
+        //What a GPU buffer per column would hold, brought up to date like ComputeShader does
+        byte[][] copy = new byte[store.getColumnCount()][0];
+        long copiedVersion = -1;
+        int partialCopies = 0;
+
+        for (int frame = 0; frame < 2000; frame++) {
+            //Mostly a few changes, now and then more than the journal holds
+            int changes = random.nextInt(frame % 50 == 0 ? 200 : 6);
+            for (int i = 0; i < changes; i++) {
+                int change = random.nextInt(4);
+                if (change == 0 || handles.isEmpty()) {
+                    handles.add(store.add(random.nextInt(5), random.nextFloat(), 0, 1, 1, 1, 1, 50));
+                } else if (change == 1) {
+                    store.remove(handles.remove(random.nextInt(handles.size())));
+                } else {
+                    int handle = handles.get(random.nextInt(handles.size()));
+                    store.setPosition(handle, random.nextInt(3), store.getY(handle), store.getZ(handle));
+                }
+            }
+
+            int bytes = store.size() * OffHeapStore.ELEMENT_SIZE;
+            byte[][] target = copy;
+            boolean partial = copiedVersion >= 0 && copy[0].length >= bytes
+                    && store.changesSince(copiedVersion, (column, firstSlot, endSlot) -> {
+                ByteBuffer source = store.getColumn(column);
+                int end = Math.min(endSlot * OffHeapStore.ELEMENT_SIZE, bytes);
+                for (int b = firstSlot * OffHeapStore.ELEMENT_SIZE; b < end; b++) {
+                    target[column][b] = source.get(b);
+                }
+            });
+            if (partial) {
+                partialCopies++;
+            } else {
+                for (int c = 0; c < copy.length; c++) {
+                    copy[c] = Arrays.copyOf(copy[c], Math.max(bytes, copy[c].length * 2));
+                    store.getColumn(c).get(copy[c], 0, bytes);
+                }
+            }
+            copiedVersion = store.getVersion();
+
+            for (int c = 0; c < copy.length; c++) {
+                byte[] expected = new byte[bytes];
+                store.getColumn(c).get(expected);
+                assertArrayEquals(expected, Arrays.copyOf(copy[c], bytes), "column " + c + " in frame " + frame);
+            }
+        }
+        //Most frames should have got away with copying the changes
+        assertTrue(partialCopies > 1500, partialCopies + " partial copies");
+    }
+
+    @Test
+    void onlyChangedSlotsAreReported() {
+        SphereStore store = new SphereStore();
+        int handle = store.add(1, 2, 3, 1, 1, 1, 1, 50);
+        long version = store.getVersion();
+        assertTrue(store.changesSince(version, (column, firstSlot, endSlot) -> fail("nothing changed")));
+
+        //Animating every sphere in turn is one range per column
+        for (int i = 1; i < 100; i++) {
+            store.add(i, 0, 0, 1, 1, 1, 1, 50);
+        }
+        version = store.getVersion();
+        for (int i = 0; i < 100; i++) {
+            store.setPosition(store.handleAt(i), i, 1, 0);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        assertTrue(store.changesSince(version, (column, firstSlot, endSlot) -> ranges.add(new int[]{column, firstSlot, endSlot})));
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new int[]{SphereStore.POSITION_RADIUS, 0, 100}, ranges.get(0));
+        assertEquals(1, store.getY(handle));
+    }
+
+    @Test
+    void copyFromMakesAnExactCopyAndOnlyJournalsDifferences() {
+        SphereStore source = new SphereStore(), copy = new SphereStore();
+        Random random = new Random(3);
+        for (int frame = 0; frame < 500; frame++) {
+            for (int i = random.nextInt(20); i > 0; i--) {
+                int change = random.nextInt(4);
+                if (change == 0 || source.size() < 3) {
+                    source.add(random.nextFloat(), 0, 0, 1, 1, 1, 1, 50);
+                } else if (change == 1) {
+                    source.remove(source.handleAt(random.nextInt(source.size())));
+                } else {
+                    source.setPosition(source.handleAt(random.nextInt(source.size())), random.nextFloat(), 1, 2);
+                }
+            }
+            copy.copyFrom(source);
+            assertEquals(source.size(), copy.size());
+            for (int c = 0; c < source.getColumnCount(); c++) {
+                assertEquals(source.getColumn(c), copy.getColumn(c), "column " + c + " in frame " + frame);
+            }
+            for (int slot = 0; slot < source.size(); slot++) {
+                assertEquals(source.handleAt(slot), copy.handleAt(slot));
+            }
+        }
+
+        long version = copy.getVersion();
+        copy.copyFrom(source);
+        assertEquals(version, copy.getVersion());
+        source.setPosition(source.handleAt(1), 7, 7, 7);
+        copy.copyFrom(source);
+        List<int[]> ranges = new ArrayList<>();
+        assertTrue(copy.changesSince(version, (column, firstSlot, endSlot) -> ranges.add(new int[]{column, firstSlot, endSlot})));
+        //Merged into a recent range it may come with its neighbours
+        assertEquals(1, ranges.size());
+        assertEquals(SphereStore.POSITION_RADIUS, ranges.get(0)[0]);
+        assertTrue(ranges.get(0)[1] <= 1 && ranges.get(0)[2] >= 2);
+    }
+}
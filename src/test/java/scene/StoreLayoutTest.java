@@ -0,0 +1,235 @@
+package scene;
+
+import accel.BoundedPrimitives;
+import accel.Bvh;
+import accel.BvhPacker;
+import accel.SahBvhBuilder;
+import org.joml.Vector3f;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the bytes the stores and {@link BvhPacker} upload against the std430 layout of the
+ * storage blocks and structs declared in compute.glsl, without a GPU.
+ */
+class StoreLayoutTest {
+    private static Std430 shader;
+
+    @BeforeAll
+    static void parseShader() throws IOException {
+        try (InputStream in = StoreLayoutTest.class.getResourceAsStream("/compute.glsl")) {
+            assertNotNull(in, "compute.glsl is not on the classpath");
+            shader = new Std430(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void sphereColumnsMatchTheSphereBlocks() {
+        assertVec4Array("SpherePositionBuffer", "spherePositionRadius", OffHeapStore.ELEMENT_SIZE);
+        assertVec4Array("SphereMaterialBuffer", "sphereMaterial", OffHeapStore.ELEMENT_SIZE);
+
+        SphereStore store = new SphereStore();
+        store.add(9, 9, 9, 9, 9, 9, 9, 9);
+        store.add(1, 2, 3, 4, 0.5f, 0.6f, 0.7f, 8);
+        assertFloats(store.getColumn(SphereStore.POSITION_RADIUS), OffHeapStore.ELEMENT_SIZE, 1, 2, 3, 4);
+        assertFloats(store.getColumn(SphereStore.MATERIAL), OffHeapStore.ELEMENT_SIZE, 0.5f, 0.6f, 0.7f, 8);
+        assertEquals(2 * OffHeapStore.ELEMENT_SIZE, store.getColumn(SphereStore.POSITION_RADIUS).remaining());
+    }
+
+    @Test
+    void lightColumnsMatchTheLightBlocks() {
+        assertVec4Array("LightPositionBuffer", "lightPositionBrightness", OffHeapStore.ELEMENT_SIZE);
+        assertVec4Array("LightColourBuffer", "lightColour", OffHeapStore.ELEMENT_SIZE);
+
+        LightStore store = new LightStore();
+        store.add(9, 9, 9, 9, 9, 9, 9);
+        store.add(1, 2, 3, 0.25f, 0.5f, 0.75f, 40);
+        assertFloats(store.getColumn(LightStore.POSITION_BRIGHTNESS), OffHeapStore.ELEMENT_SIZE, 1, 2, 3, 40);
+        assertFloats(store.getColumn(LightStore.COLOUR), OffHeapStore.ELEMENT_SIZE, 0.25f, 0.5f, 0.75f);
+    }
+
+    @Test
+    void meshArraysMatchTheMeshBlocks() {
+        assertVec4Array("MeshVertexBuffer", "meshVertices", MeshStore.VERTEX_SIZE);
+        assertEquals("ivec4", shader.block("MeshTriangleBuffer").get("meshTriangles").type);
+        assertEquals(MeshStore.TRIANGLE_SIZE, shader.block("MeshTriangleBuffer").get("meshTriangles").stride);
+        assertVec4Array("MeshMaterialBuffer", "meshMaterials", MeshStore.MATERIAL_SIZE);
+
+        MeshStore store = new MeshStore();
+        store.addMesh(new float[]{0, 0, 0, 1, 0, 0, 0, 1, 0}, new int[]{0, 1, 2}, Material.DEFAULT_MATERIAL);
+        store.addMesh(new float[]{5, 6, 7, 1, 0, 0, 0, 1, 0}, new int[]{2, 0, 1}, new Material(new Vector3f(0.5f, 0.6f, 0.7f), 8));
+        ByteBuffer vertices = store.getVertexBuffer();
+        assertEquals(6 * MeshStore.VERTEX_SIZE, vertices.remaining());
+        assertFloats(vertices, 3 * MeshStore.VERTEX_SIZE, 5, 6, 7, 0);
+        ByteBuffer triangles = store.getTriangleBuffer();
+        //Indices count from the first vertex of the store, w is the mesh
+        int t = MeshStore.TRIANGLE_SIZE;
+        assertArrayEquals(new int[]{5, 3, 4, 1},
+                new int[]{triangles.getInt(t), triangles.getInt(t + 4), triangles.getInt(t + 8), triangles.getInt(t + 12)});
+        assertFloats(store.getMaterialBuffer(), MeshStore.MATERIAL_SIZE, 0.5f, 0.6f, 0.7f, 8);
+    }
+
+    @Test
+    void packedNodesMatchTheBvhNodeStruct() {
+        Std430.Member boundsMin = shader.struct("BvhNode").get("boundsMin");
+        assertEquals(BvhPacker.NODE_BOUNDS_MIN_OFFSET, boundsMin.offset);
+        assertEquals(BvhPacker.NODE_LEFT_OR_FIRST_OFFSET, shader.struct("BvhNode").get("leftOrFirst").offset);
+        assertEquals(BvhPacker.NODE_BOUNDS_MAX_OFFSET, shader.struct("BvhNode").get("boundsMax").offset);
+        assertEquals(BvhPacker.NODE_PRIMITIVE_COUNT_OFFSET, shader.struct("BvhNode").get("primitiveCount").offset);
+        assertEquals(BvhPacker.NODE_SIZE, shader.block("BvhNodeBuffer").get("bvhNodes").stride);
+        assertEquals(BvhPacker.NODE_SIZE, shader.block("TriangleBvhNodeBuffer").get("triangleBvhNodes").stride);
+        assertEquals(4, shader.block("BvhPrimitiveBuffer").get("bvhPrimitives").stride);
+
+        //The root node spans both spheres whether or not it is split
+        Bvh bvh = new Bvh();
+        new SahBvhBuilder().build(BoundedPrimitives.spheres(new float[]{0, 0, 0, 1, 3, 0, 0, 1}, 4, 2), bvh);
+        ByteBuffer nodes = new BvhPacker().packNodes(bvh);
+        assertEquals(bvh.getNodeCount() * BvhPacker.NODE_SIZE, nodes.remaining());
+        assertFloats(nodes, BvhPacker.NODE_BOUNDS_MIN_OFFSET, -1, -1, -1);
+        assertFloats(nodes, BvhPacker.NODE_BOUNDS_MAX_OFFSET, 4, 1, 1);
+        assertEquals(bvh.getNodes()[0], nodes.getInt(BvhPacker.NODE_LEFT_OR_FIRST_OFFSET));
+        assertEquals(bvh.getNodes()[1], nodes.getInt(BvhPacker.NODE_PRIMITIVE_COUNT_OFFSET));
+    }
+
+    @Test
+    void activePixelListsStartWithTheirCount() {
+        for (String[] block : new String[][]{{"ActivePixelBuffer", "activeCount", "activePixels"},
+                {"NextActivePixelBuffer", "nextActiveCount", "nextActivePixels"}}) {
+            assertEquals(0, shader.block(block[0]).get(block[1]).offset);
+            assertEquals(4, shader.block(block[0]).get(block[2]).offset);
+            assertEquals(4, shader.block(block[0]).get(block[2]).stride);
+        }
+    }
+
+    private static void assertVec4Array(String block, String member, int elementSize) {
+        Std430.Member array = shader.block(block).get(member);
+        assertNotNull(array, block + " has no " + member);
+        assertEquals(1, shader.block(block).size(), block + " should only hold " + member);
+        assertEquals("vec4", array.type);
+        assertEquals(0, array.offset);
+        assertEquals(elementSize, array.stride);
+    }
+
+    private static void assertFloats(ByteBuffer buffer, int offset, float... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], buffer.getFloat(offset + i * 4), "float " + i + " at byte " + offset);
+        }
+    }
+
+    /**
+     * Offsets and array strides of the structs and std430 storage blocks of a shader, as far as
+     * compute.glsl needs: scalars, vectors, structs and unsized arrays as the last block member
+     */
+    private static final class Std430 {
+        private static final Pattern STRUCT = Pattern.compile("struct\\s+(\\w+)\\s*\\{([^}]*)}\\s*;");
+        private static final Pattern BLOCK = Pattern.compile("layout\\s*\\(\\s*std430[^)]*\\)[^{;]*?buffer\\s+(\\w+)\\s*\\{([^}]*)}\\s*;");
+        private static final Pattern MEMBER = Pattern.compile("(\\w+)\\s+(\\w+)\\s*(\\[\\s*])?\\s*;");
+
+        static final class Member {
+            final String type;
+            final int offset;
+            //Bytes between array elements, the size for members that are not arrays
+            final int stride;
+
+            Member(String type, int offset, int stride) {
+                this.type = type;
+                this.offset = offset;
+                this.stride = stride;
+            }
+        }
+
+        //Size and alignment of every struct, by name
+        private final Map<String, int[]> structSizes = new HashMap<>();
+        private final Map<String, Map<String, Member>> structs = new HashMap<>();
+        private final Map<String, Map<String, Member>> blocks = new HashMap<>();
+
+        Std430(String source) {
+            String code = source.replaceAll("//[^\n]*", "").replaceAll("(?s)/\\*.*?\\*/", "");
+            Matcher struct = STRUCT.matcher(code);
+            while (struct.find()) {
+                int[] sizeAndAlignment = new int[2];
+                structs.put(struct.group(1), layout(struct.group(2), sizeAndAlignment));
+                structSizes.put(struct.group(1), sizeAndAlignment);
+            }
+            Matcher block = BLOCK.matcher(code);
+            while (block.find()) {
+                blocks.put(block.group(1), layout(block.group(2), new int[2]));
+            }
+        }
+
+        Map<String, Member> struct(String name) {
+            return require(structs, name);
+        }
+
+        Map<String, Member> block(String name) {
+            return require(blocks, name);
+        }
+
+        private static Map<String, Member> require(Map<String, Map<String, Member>> declarations, String name) {
+            Map<String, Member> members = declarations.get(name);
+            assertNotNull(members, "compute.glsl declares no " + name);
+            return members;
+        }
+
+        private Map<String, Member> layout(String body, int[] sizeAndAlignment) {
+            Map<String, Member> members = new LinkedHashMap<>();
+            Matcher member = MEMBER.matcher(body);
+            int offset = 0, structAlignment = 4;
+            while (member.find()) {
+                int[] type = sizeAndAlignment(member.group(1));
+                int alignment = type[1];
+                offset = roundUp(offset, alignment);
+                //std430 array elements are padded to their alignment, vec3 to 16 bytes
+                int stride = member.group(3) != null ? roundUp(type[0], alignment) : type[0];
+                members.put(member.group(2), new Member(member.group(1), offset, stride));
+                offset += stride;
+                structAlignment = Math.max(structAlignment, alignment);
+            }
+            sizeAndAlignment[0] = roundUp(offset, structAlignment);
+            sizeAndAlignment[1] = structAlignment;
+            return members;
+        }
+
+        private int[] sizeAndAlignment(String type) {
+            switch (type) {
+                case "float":
+                case "int":
+                case "uint":
+                case "bool":
+                    return new int[]{4, 4};
+                case "vec2":
+                case "ivec2":
+                case "uvec2":
+                    return new int[]{8, 8};
+                case "vec3":
+                case "ivec3":
+                case "uvec3":
+                    return new int[]{12, 16};
+                case "vec4":
+                case "ivec4":
+                case "uvec4":
+                    return new int[]{16, 16};
+                default:
+                    int[] struct = structSizes.get(type);
+                    assertNotNull(struct, "Unknown GLSL type " + type);
+                    return struct;
+            }
+        }
+
+        private static int roundUp(int value, int alignment) {
+            return (value + alignment - 1) / alignment * alignment;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package scene;
+
+import java.util.Random;
+
+/**
+ * Deterministic random scenes shared by the tests, spread like the ones Main builds
+ */
+public final class TestScenes {
+    private TestScenes() {
+    }
+
+    public static Scene random(int spheres, int lights, long seed) {
+        Random random = new Random(seed);
+        Scene scene = new Scene();
+        //Keep the density roughly constant as the sphere count grows
+        float spread = spread(spheres);
+        for (int i = 0; i < spheres; i++) {
+            scene.sphereStore.add(
+                    (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    (random.nextFloat() + 0.4f) * 0.5f,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat(), 20 + random.nextInt(50));
+        }
+        for (int i = 0; i < lights; i++) {
+            scene.lightStore.add(
+                    (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread, (random.nextFloat() - 0.5f) * spread,
+                    random.nextFloat(), random.nextFloat(), random.nextFloat(), (random.nextFloat() + 5) * 3);
+        }
+        return scene;
+    }
+
+    /**
+     * Side of the cube the spheres of {@link #random} are spread over
+     */
+    public static float spread(int spheres) {
+        return 10.0f * (float) Math.cbrt(Math.max(1, spheres / 3.0));
+    }
+
+    /**
+     * A camera outside the cube of {@link #random}, looking at its centre
+     */
+    public static Camera outside(int spheres) {
+        Camera camera = new Camera();
+        camera.getPosition().set(spread(spheres), 0.3f * spread(spheres), 0.2f * spread(spheres));
+        camera.getDirection().set(0.0f, 0.0f, 0.0f);
+        return camera;
+    }
+}
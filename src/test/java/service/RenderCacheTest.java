@@ -0,0 +1,49 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderCacheTest {
+    @Test
+    void leastRecentlyUsedImagesMakeRoom() {
+        RenderCache cache = new RenderCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        //Using a makes b the least recently used
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[4]);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(8, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRate());
+    }
+
+    @Test
+    void replacingAnImageCountsOnlyTheNewOne() {
+        RenderCache cache = new RenderCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("a", new byte[6]);
+        assertEquals(1, cache.size());
+        assertEquals(6, cache.getBytes());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void imageLargerThanTheCacheIsNotKept() {
+        RenderCache cache = new RenderCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("huge", new byte[11]);
+        assertNull(cache.get("huge"));
+        assertNotNull(cache.get("a"));
+        assertEquals(0, cache.getEvictions());
+        assertEquals(0, new RenderCache(0).getHitRate());
+        assertThrows(IllegalArgumentException.class, () -> new RenderCache(-1));
+    }
+}
@@ -0,0 +1,64 @@
+package service;
+
+import cpu.FloatImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Requests against a context that fails every render, so none needs the PNG encoder's natives
+ */
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class RenderServerTest {
+    @Test
+    void requestsBeyondTheLimitsAreRefusedBeforeRendering() throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        RenderContext.Factory factory = () -> new RenderContext() {
+            @Override
+            public void render(RenderRequest request, FloatImage target) {
+                renders.incrementAndGet();
+                throw new IllegalStateException("No image");
+            }
+
+            @Override
+            public boolean acceptsSamples() {
+                return true;
+            }
+        };
+        try (RenderService service = new RenderService(factory, 1, 1, new RenderCache(0));
+             RenderServer server = new RenderServer(0, service)) {
+            server.start();
+            assertEquals(400, post(server, "width=16&height=16&samples=2000000000"));
+            assertEquals(400, post(server, "width=16&height=16&samples=0"));
+            assertEquals(400, post(server, "width=5000&height=5000"));
+            assertEquals(0, renders.get());
+
+            //Within the limits the request reaches the context, which fails it
+            assertEquals(500, post(server, "width=16&height=16&samples=1024"));
+            assertEquals(1, renders.get());
+        }
+    }
+
+    private static int post(RenderServer server, String query) throws IOException {
+        URL url = new URL("http://localhost:" + server.getPort() + "/render?" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(new byte[0]);
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import render.TraceParameters;
+import scene.Camera;
+import scene.Scene;
+import scene.TestScenes;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Contexts that fail or block instead of rendering, so no request needs the PNG encoder's natives
+ */
+@Timeout(value = 30, unit = TimeUnit.SECONDS)
+class RenderServiceTest {
+    private static RenderRequest request(int width) {
+        Scene scene = TestScenes.random(10, 1, 1);
+        Camera camera = TestScenes.outside(10);
+        return new RenderRequest(scene, camera, width, 20, TraceParameters.DEFAULT, 1);
+    }
+
+    @Test
+    void errorInAContextFailsTheRequestWithoutLeavingItInFlight() throws Exception {
+        AtomicInteger renders = new AtomicInteger();
+        RenderContext.Factory factory = () -> (request, target) -> {
+            renders.incrementAndGet();
+            throw new OutOfMemoryError("Pretending the image does not fit");
+        };
+        try (RenderService service = new RenderService(factory, 1, 4, new RenderCache(1 << 20))) {
+            RenderRequest request = request(30);
+            for (int attempt = 1; attempt <= 2; attempt++) {
+                //The second attempt would wait forever on the first one's image if its key stayed in flight
+                CompletableFuture<byte[]> image = service.submit(request);
+                ExecutionException e = assertThrows(ExecutionException.class, () -> image.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof OutOfMemoryError, e.getCause().toString());
+                assertEquals(attempt, renders.get());
+            }
+            assertTrue(service.stats().contains("failed 2\n"), service.stats());
+            assertEquals(0, service.getCache().size());
+        }
+    }
+
+    @Test
+    void identicalRequestsShareARenderAndAFullQueueRejects() throws Exception {
+        CountDownLatch rendering = new CountDownLatch(1), release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        RenderContext.Factory factory = () -> (request, target) -> {
+            renders.incrementAndGet();
+            rendering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("No image");
+        };
+        try (RenderService service = new RenderService(factory, 1, 1, new RenderCache(1 << 20))) {
+            CompletableFuture<byte[]> first = service.submit(request(30));
+            rendering.await();
+            CompletableFuture<byte[]> same = service.submit(request(30));
+            //The context is busy, one request fits in the queue and the next does not
+            CompletableFuture<byte[]> queued = service.submit(request(40));
+            assertThrows(RejectedExecutionException.class, () -> service.submit(request(50)));
+            assertEquals(1, service.getQueueDepth());
+            assertEquals(1, service.getBusyContexts());
+
+            release.countDown();
+            for (CompletableFuture<byte[]> image : List.of(first, same, queued)) {
+                assertThrows(ExecutionException.class, () -> image.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(2, renders.get());
+            String stats = service.stats();
+            assertTrue(stats.contains("coalesced 1\n") && stats.contains("rejected 1\n") && stats.contains("failed 2\n"), stats);
+        }
+    }
+
+    @Test
+    void errorCreatingAContextFailsTheConstructor() {
+        RenderContext.Factory factory = () -> {
+            throw new OutOfMemoryError("No room for a context");
+        };
+        IOException e = assertThrows(IOException.class, () -> new RenderService(factory, 2, 1, new RenderCache(0)));
+        assertTrue(e.getCause() instanceof OutOfMemoryError, String.valueOf(e.getCause()));
+    }
+}